@@ -28,10 +28,15 @@
 
 package org.jf.baksmali.Adaptors;
 
+import com.google.common.collect.Lists;
 import org.jf.baksmali.BaksmaliOptions;
+import org.jf.baksmali.LoadBalancingReport;
 import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.dexbacked.DexBackedClassDef;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile.InvalidItemIndex;
+import org.jf.dexlib2.dexbacked.DexBackedMethodImplementation;
+import org.jf.dexlib2.dexbacked.instruction.DexBackedInstructionCursor;
 import org.jf.dexlib2.iface.*;
 import org.jf.dexlib2.iface.instruction.Instruction;
 import org.jf.dexlib2.iface.instruction.formats.Instruction21c;
@@ -41,15 +46,24 @@ import org.jf.util.IndentingWriter;
 import org.jf.util.StringUtils;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringWriter;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 public class ClassDefinition {
     @Nonnull public final BaksmaliOptions options;
     @Nonnull public final ClassDef classDef;
     @Nonnull private final HashSet<String> fieldsSetInStaticConstructor;
+    @Nullable private Executor methodExecutor;
+    @Nullable private LoadBalancingReport report;
 
-    protected boolean validationErrors;
+    protected volatile boolean validationErrors;
 
     public ClassDefinition(@Nonnull BaksmaliOptions options, @Nonnull ClassDef classDef) {
         this.options = options;
@@ -61,6 +75,29 @@ public class ClassDefinition {
         return validationErrors;
     }
 
+    /**
+     * Sets an executor that is used to render the methods of this class in parallel.
+     *
+     * The thread that calls writeTo renders any method that hasn't yet been started by the executor itself, so it is
+     * safe to use the same executor that writeTo is called from. The methods are written out in their usual order.
+     *
+     * @param methodExecutor The executor to use, or null to render the methods serially
+     */
+    public void setMethodExecutor(@Nullable Executor methodExecutor) {
+        this.methodExecutor = methodExecutor;
+    }
+
+    /**
+     * Sets a report to record the time spent rendering methods in parallel in.
+     *
+     * Each method that is rendered by a task is recorded for the thread that actually rendered it, and the time the
+     * thread that calls writeTo spends running or waiting for those tasks is recorded as well, so it can be excluded
+     * from the time spent on the class itself.
+     */
+    public void setLoadBalancingReport(@Nullable LoadBalancingReport report) {
+        this.report = report;
+    }
+
     @Nonnull
     private static HashSet<String> findFieldsSetInStaticConstructor(@Nonnull ClassDef classDef) {
         HashSet<String> fieldsSetInStaticConstructor = new HashSet<String>();
@@ -68,30 +105,35 @@ public class ClassDefinition {
         for (Method method: classDef.getDirectMethods()) {
             if (method.getName().equals("<clinit>")) {
                 MethodImplementation impl = method.getImplementation();
-                if (impl != null) {
+                if (impl instanceof DexBackedMethodImplementation) {
+                    // walk the instructions in place, rather than creating an instruction object for each one
+                    DexBackedInstructionCursor cursor =
+                            new DexBackedInstructionCursor((DexBackedMethodImplementation)impl);
+                    while (cursor.next()) {
+                        Opcode opcode = cursor.getOpcode();
+                        if (opcode != null && isStaticPut(opcode)) {
+                            FieldReference fieldRef = null;
+                            try {
+                                fieldRef = (FieldReference)cursor.getReference();
+                            } catch (InvalidItemIndex ex) {
+                                // just ignore it for now. We'll deal with it later, when processing the instructions
+                                // themselves
+                            }
+                            addFieldSetInStaticConstructor(classDef, fieldsSetInStaticConstructor, fieldRef);
+                        }
+                    }
+                } else if (impl != null) {
                     for (Instruction instruction: impl.getInstructions()) {
-                        switch (instruction.getOpcode()) {
-                            case SPUT:
-                            case SPUT_BOOLEAN:
-                            case SPUT_BYTE:
-                            case SPUT_CHAR:
-                            case SPUT_OBJECT:
-                            case SPUT_SHORT:
-                            case SPUT_WIDE: {
-                                Instruction21c ins = (Instruction21c)instruction;
-                                FieldReference fieldRef = null;
-                                try {
-                                    fieldRef = (FieldReference)ins.getReference();
-                                } catch (InvalidItemIndex ex) {
-                                    // just ignore it for now. We'll deal with it later, when processing the instructions
-                                    // themselves
-                                }
-                                if (fieldRef != null &&
-                                        fieldRef.getDefiningClass().equals((classDef.getType()))) {
-                                    fieldsSetInStaticConstructor.add(ReferenceUtil.getShortFieldDescriptor(fieldRef));
-                                }
-                                break;
+                        if (isStaticPut(instruction.getOpcode())) {
+                            Instruction21c ins = (Instruction21c)instruction;
+                            FieldReference fieldRef = null;
+                            try {
+                                fieldRef = (FieldReference)ins.getReference();
+                            } catch (InvalidItemIndex ex) {
+                                // just ignore it for now. We'll deal with it later, when processing the instructions
+                                // themselves
                             }
+                            addFieldSetInStaticConstructor(classDef, fieldsSetInStaticConstructor, fieldRef);
                         }
                     }
                 }
@@ -100,6 +142,29 @@ public class ClassDefinition {
         return fieldsSetInStaticConstructor;
     }
 
+    private static boolean isStaticPut(@Nonnull Opcode opcode) {
+        switch (opcode) {
+            case SPUT:
+            case SPUT_BOOLEAN:
+            case SPUT_BYTE:
+            case SPUT_CHAR:
+            case SPUT_OBJECT:
+            case SPUT_SHORT:
+            case SPUT_WIDE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void addFieldSetInStaticConstructor(@Nonnull ClassDef classDef,
+                                                       @Nonnull HashSet<String> fieldsSetInStaticConstructor,
+                                                       @Nullable FieldReference fieldRef) {
+        if (fieldRef != null && fieldRef.getDefiningClass().equals((classDef.getType()))) {
+            fieldsSetInStaticConstructor.add(ReferenceUtil.getShortFieldDescriptor(fieldRef));
+        }
+    }
+
     public void writeTo(IndentingWriter writer) throws IOException {
         writeClass(writer);
         writeSuper(writer);
@@ -256,7 +321,11 @@ public class ClassDefinition {
             directMethods = classDef.getDirectMethods();
         }
 
-        for (Method method: directMethods) {
+        List<? extends Method> methodList = Lists.newArrayList(directMethods);
+        List<FutureTask<String>> renderedMethods = renderMethods(methodList);
+
+        for (int i=0; i<methodList.size(); i++) {
+            Method method = methodList.get(i);
             if (!wroteHeader) {
                 writer.write("\n\n");
                 writer.write("# direct methods");
@@ -273,13 +342,7 @@ public class ClassDefinition {
                 methodWriter = new CommentingIndentingWriter(writer);
             }
 
-            MethodImplementation methodImpl = method.getImplementation();
-            if (methodImpl == null) {
-                MethodDefinition.writeEmptyMethodTo(methodWriter, method, options);
-            } else {
-                MethodDefinition methodDefinition = new MethodDefinition(this, method, methodImpl);
-                methodDefinition.writeTo(methodWriter);
-            }
+            writeMethod(methodWriter, method, renderedMethods == null ? null : renderedMethods.get(i));
         }
         return writtenMethods;
     }
@@ -295,7 +358,11 @@ public class ClassDefinition {
             virtualMethods = classDef.getVirtualMethods();
         }
 
-        for (Method method: virtualMethods) {
+        List<? extends Method> methodList = Lists.newArrayList(virtualMethods);
+        List<FutureTask<String>> renderedMethods = renderMethods(methodList);
+
+        for (int i=0; i<methodList.size(); i++) {
+            Method method = methodList.get(i);
             if (!wroteHeader) {
                 writer.write("\n\n");
                 writer.write("# virtual methods");
@@ -318,13 +385,104 @@ public class ClassDefinition {
                 System.err.println("You will need to rename one of these methods, including all references.");
             }
 
-            MethodImplementation methodImpl = method.getImplementation();
-            if (methodImpl == null) {
-                MethodDefinition.writeEmptyMethodTo(methodWriter, method, options);
-            } else {
-                MethodDefinition methodDefinition = new MethodDefinition(this, method, methodImpl);
-                methodDefinition.writeTo(methodWriter);
+            writeMethod(methodWriter, method, renderedMethods == null ? null : renderedMethods.get(i));
+        }
+    }
+
+    private void writeMethod(@Nonnull IndentingWriter writer, @Nonnull Method method,
+                             @Nullable FutureTask<String> renderedMethod) throws IOException {
+        if (renderedMethod != null) {
+            long start = System.nanoTime();
+            // run it here if the executor hasn't gotten to it yet. This is a no-op if it has already been started.
+            renderedMethod.run();
+            String methodText;
+            try {
+                methodText = renderedMethod.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while rendering method");
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException)cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException)cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error)cause;
+                }
+                throw new RuntimeException(cause);
+            } finally {
+                LoadBalancingReport report = this.report;
+                if (report != null) {
+                    report.recordMethodWait(System.nanoTime() - start);
+                }
             }
+            writer.write(methodText);
+            return;
+        }
+
+        MethodImplementation methodImpl = method.getImplementation();
+        if (methodImpl == null) {
+            MethodDefinition.writeEmptyMethodTo(writer, method, options);
+        } else {
+            MethodDefinition methodDefinition = new MethodDefinition(this, method, methodImpl);
+            methodDefinition.writeTo(writer);
+        }
+    }
+
+    /**
+     * Starts rendering the given methods using the method executor, if any.
+     *
+     * @return A list containing a task for each method that renders it to a string, or null if there is no method
+     * executor
+     */
+    @Nullable
+    private List<FutureTask<String>> renderMethods(@Nonnull List<? extends Method> methods) {
+        Executor methodExecutor = this.methodExecutor;
+        if (methodExecutor == null) {
+            return null;
+        }
+
+        List<FutureTask<String>> renderedMethods = Lists.newArrayListWithCapacity(methods.size());
+        for (final Method method: methods) {
+            FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+                @Override public String call() throws Exception {
+                    long start = System.nanoTime();
+                    try {
+                        StringWriter stringWriter = new StringWriter();
+                        IndentingWriter methodWriter = new IndentingWriter(stringWriter);
+                        writeMethod(methodWriter, method, null);
+                        methodWriter.flush();
+                        return normalizeNewlines(stringWriter.toString());
+                    } finally {
+                        LoadBalancingReport report = ClassDefinition.this.report;
+                        if (report != null) {
+                            report.recordMethod(System.nanoTime() - start);
+                        }
+                    }
+                }
+            });
+            renderedMethods.add(task);
+        }
+        for (FutureTask<String> task: renderedMethods) {
+            methodExecutor.execute(task);
+        }
+        return renderedMethods;
+    }
+
+    private static final String NEWLINE = System.getProperty("line.separator");
+
+    /**
+     * Converts the platform newlines written by IndentingWriter back to '\n', so that the text can be written through
+     * another IndentingWriter.
+     */
+    @Nonnull
+    private static String normalizeNewlines(@Nonnull String text) {
+        if (NEWLINE.equals("\n")) {
+            return text;
         }
+        return text.replace(NEWLINE, "\n");
     }
 }
@@ -392,7 +392,7 @@ public class MethodDefinition {
     }
 
     private boolean needsAnalyzed() {
-        for (Instruction instruction: methodImpl.getInstructions()) {
+        for (Instruction instruction: instructions) {
             if (instruction.getOpcode().odexOnly()) {
                 return true;
             }
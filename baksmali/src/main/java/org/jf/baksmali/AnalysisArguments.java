@@ -35,6 +35,7 @@ import com.beust.jcommander.Parameter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.jf.dexlib2.analysis.ClassPath;
+import org.jf.dexlib2.analysis.ClassPathIndex;
 import org.jf.dexlib2.analysis.ClassPathResolver;
 import org.jf.dexlib2.dexbacked.OatFile.OatDexFile;
 import org.jf.dexlib2.iface.DexFile;
@@ -45,6 +46,8 @@ import javax.annotation.Nonnull;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static org.jf.dexlib2.analysis.ClassPath.NOT_ART;
 
@@ -72,6 +75,14 @@ public class AnalysisArguments {
     @ExtendedParameter(argumentNames = "dir")
     public List<String> classPathDirectories = null;
 
+    @Parameter(names = {"--classpath-index", "--cpi"},
+            description = "A file to store precomputed vtables, field offsets and interfaces for the classpath in. " +
+                    "If the file was created for the same classpath, api level and oat version, it is used instead " +
+                    "of computing that information again. Otherwise, it is recreated. This speeds up deodexing many " +
+                    "files against the same bootclasspath.")
+    @ExtendedParameter(argumentNames = "file")
+    public String classPathIndex = null;
+
     public static class CheckPackagePrivateArgument {
         @Parameter(names = {"--check-package-private-access", "--package-private", "--checkpp", "--pp"},
                 description = "Use the package-private access check when calculating vtable indexes. This is enabled " +
@@ -90,6 +101,28 @@ public class AnalysisArguments {
     public ClassPath loadClassPathForDexFile(@Nonnull File dexFileDir, @Nonnull DexFile dexFile,
                                              boolean checkPackagePrivateAccess, int oatVersion)
             throws IOException {
+        return loadClassPathForDexFile(dexFileDir, dexFile, checkPackagePrivateAccess, oatVersion,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    @Nonnull
+    public ClassPath loadClassPathForDexFile(@Nonnull File dexFileDir, @Nonnull DexFile dexFile,
+                                             boolean checkPackagePrivateAccess, int oatVersion, int jobs)
+            throws IOException {
+        return loadSharedClassPath(dexFileDir, dexFile, checkPackagePrivateAccess, oatVersion, jobs)
+                .getClassPath(dexFile);
+    }
+
+    /**
+     * Loads the class path for the given dex file, in a form that can also be used for other dex files that use the
+     * same class path, e.g. other apks for the same api level.
+     *
+     * @param jobs The number of threads to use while loading the class path entries and building the class path index
+     */
+    @Nonnull
+    public SharedClassPath loadSharedClassPath(@Nonnull File dexFileDir, @Nonnull DexFile dexFile,
+                                               boolean checkPackagePrivateAccess, int oatVersion, int jobs)
+            throws IOException {
         ClassPathResolver resolver;
 
         // By default, oatVersion should be NOT_ART, and we'll automatically set it if dexFile is an oat file. In some
@@ -105,6 +138,7 @@ public class AnalysisArguments {
             checkPackagePrivateAccess = true;
         }
 
+        List<String> classPathDirectories = this.classPathDirectories;
         if (classPathDirectories == null || classPathDirectories.size() == 0) {
             classPathDirectories = Lists.newArrayList(dexFileDir.getPath());
         }
@@ -123,21 +157,72 @@ public class AnalysisArguments {
             }
         }
 
-        if (bootClassPath == null) {
-            // TODO: we should be able to get the api from the Opcodes object associated with the dexFile..
-            // except that the oat version -> api mapping doesn't fully work yet
-            resolver = new ClassPathResolver(filteredClassPathDirectories, classPath, dexFile);
-        }  else if (bootClassPath.size() == 1 && bootClassPath.get(0).length() == 0) {
-            // --bootclasspath "" is a special case, denoting that no bootclasspath should be used
-            resolver = new ClassPathResolver(
-                    ImmutableList.<String>of(), ImmutableList.<String>of(), classPath, dexFile);
-        } else {
-            resolver = new ClassPathResolver(filteredClassPathDirectories, bootClassPath, classPath, dexFile);
+        // the classpath entries are loaded concurrently, which helps when there are many boot classpath entries
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        try {
+            if (bootClassPath == null) {
+                // TODO: we should be able to get the api from the Opcodes object associated with the dexFile..
+                // except that the oat version -> api mapping doesn't fully work yet
+                resolver = new ClassPathResolver(filteredClassPathDirectories, null, classPath, dexFile, executor);
+            }  else if (bootClassPath.size() == 1 && bootClassPath.get(0).length() == 0) {
+                // --bootclasspath "" is a special case, denoting that no bootclasspath should be used
+                resolver = new ClassPathResolver(
+                        ImmutableList.<String>of(), ImmutableList.<String>of(), classPath, dexFile, executor);
+            } else {
+                resolver = new ClassPathResolver(filteredClassPathDirectories, bootClassPath, classPath, dexFile,
+                        executor);
+            }
+        } finally {
+            executor.shutdown();
         }
 
         if (oatVersion == 0 && dexFile instanceof OatDexFile) {
             oatVersion = ((OatDexFile)dexFile).getContainer().getOatVersion();
         }
-        return new ClassPath(resolver.getResolvedClassProviders(), checkPackagePrivateAccess, oatVersion);
+
+        ClassPathIndex index = null;
+        if (classPathIndex != null) {
+            index = loadClassPathIndex(new File(classPathIndex), resolver, dexFile, checkPackagePrivateAccess,
+                    oatVersion, jobs);
+        }
+        return new SharedClassPath(resolver.getClassPathProviders(), checkPackagePrivateAccess, oatVersion, index);
+    }
+
+    /**
+     * Loads the class path index from the given file, or creates it if it doesn't exist or was created for a different
+     * class path
+     */
+    @Nonnull
+    private static ClassPathIndex loadClassPathIndex(@Nonnull File indexFile, @Nonnull ClassPathResolver resolver,
+                                                     @Nonnull DexFile dexFile, boolean checkPackagePrivateAccess,
+                                                     int oatVersion, int jobs) throws IOException {
+        StringBuilder key = new StringBuilder();
+        for (File file: resolver.getLoadedFiles()) {
+            key.append(file.getCanonicalPath()).append(':').append(file.length()).append(':')
+                    .append(file.lastModified()).append('\n');
+        }
+        key.append("api:").append(dexFile.getOpcodes().api).append('\n');
+        key.append("art:").append(dexFile.getOpcodes().artVersion).append('\n');
+        key.append("oat:").append(oatVersion).append('\n');
+        key.append("checkpp:").append(checkPackagePrivateAccess).append('\n');
+
+        ClassPathIndex index = ClassPathIndex.load(indexFile, key.toString());
+        if (index != null) {
+            return index;
+        }
+
+        ClassPath classPath = new ClassPath(resolver.getClassPathProviders(), checkPackagePrivateAccess, oatVersion);
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        try {
+            ClassPathIndex.write(indexFile, key.toString(), classPath, executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        index = ClassPathIndex.load(indexFile, key.toString());
+        if (index == null) {
+            throw new IOException(String.format("Could not load the newly created classpath index %s", indexFile));
+        }
+        return index;
     }
 }
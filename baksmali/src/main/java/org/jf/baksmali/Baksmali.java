@@ -29,8 +29,16 @@
 package org.jf.baksmali;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import org.jf.baksmali.Adaptors.ClassDefinition;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedMethod;
+import org.jf.dexlib2.dexbacked.DexBackedMethodImplementation;
 import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.iface.DexFile;
 import org.jf.util.ClassFileNameHandler;
@@ -40,6 +48,7 @@ import javax.annotation.Nullable;
 import java.io.*;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
 
@@ -50,6 +59,45 @@ public class Baksmali {
 
     public static boolean disassembleDexFile(DexFile dexFile, File outputDir, int jobs, final BaksmaliOptions options,
                                              @Nullable List<String> classes) {
+        return disassembleDexFile(dexFile, outputDir, jobs, options, classes, null);
+    }
+
+    /**
+     * Disassembles the classes in the given dex file.
+     *
+     * Classes are disassembled in parallel. The methods of large classes are also rendered in parallel, so that a few
+     * large classes don't leave the other threads idle.
+     *
+     * @param report If non-null, timing information about how the work was balanced between the threads will be
+     *               recorded in this report
+     * @return true if all classes were disassembled successfully
+     */
+    public static boolean disassembleDexFile(DexFile dexFile, File outputDir, int jobs, final BaksmaliOptions options,
+                                             @Nullable List<String> classes,
+                                             @Nullable final LoadBalancingReport report) {
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        try {
+            return disassembleDexFile(dexFile, outputDir, executor, jobs, options, classes, report);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Disassembles the classes in the given dex file, using an existing executor.
+     *
+     * The executor isn't shut down afterwards, so the same executor can be shared when disassembling multiple dex
+     * files, including concurrently from different threads.
+     *
+     * @param executor The executor to disassemble the classes with
+     * @param jobs The number of threads used by executor
+     * @param report If non-null, timing information about how the work was balanced between the threads will be
+     *               recorded in this report
+     * @return true if all classes were disassembled successfully
+     */
+    public static boolean disassembleDexFile(DexFile dexFile, File outputDir, ExecutorService executor, int jobs,
+                                             final BaksmaliOptions options, @Nullable List<String> classes,
+                                             @Nullable final LoadBalancingReport report) {
 
         //sort the classes, so that if we're on a case-insensitive file system and need to handle classes with file
         //name collisions, then we'll use the same name for each class, if the dex file goes through multiple
@@ -59,9 +107,37 @@ public class Baksmali {
 
         final ClassFileNameHandler fileNameHandler = new ClassFileNameHandler(outputDir, ".smali");
 
-        ExecutorService executor = Executors.newFixedThreadPool(jobs);
         List<Future<Boolean>> tasks = Lists.newArrayList();
 
+        IncrementalManifest manifest = null;
+        Map<String, String> classHashes = null;
+        if (options.incremental) {
+            HashCode optionsHash = ClassDefHasher.hashOptions(options);
+            if (optionsHash != null) {
+                try {
+                    manifest = IncrementalManifest.load(outputDir, optionsHash.toString());
+                } catch (IOException ex) {
+                    throw new RuntimeException(ex);
+                }
+                classHashes = hashClasses(classDefs, executor, options);
+            }
+        }
+        final IncrementalManifest finalManifest = manifest;
+        final Map<String, String> finalClassHashes = classHashes;
+
+        final Executor methodExecutor;
+        if (jobs > 1) {
+            methodExecutor = executor;
+        } else {
+            methodExecutor = null;
+        }
+
+        if (options.deodex && options.classPath != null && jobs > 1) {
+            // Deodexing needs the vtables and field tables of most of the boot class path, so compute them all in
+            // parallel up front
+            options.classPath.precomputeClassTables(executor);
+        }
+
         Set<String> classSet = null;
         if (classes != null) {
             classSet = new HashSet<String>(classes);
@@ -73,26 +149,108 @@ public class Baksmali {
             }
             tasks.add(executor.submit(new Callable<Boolean>() {
                 @Override public Boolean call() throws Exception {
-                    return disassembleClass(classDef, fileNameHandler, options);
+                    long start = System.nanoTime();
+                    boolean split = methodExecutor != null && shouldSplitClass(classDef);
+
+                    boolean result;
+                    if (finalManifest != null) {
+                        result = disassembleClass(classDef, fileNameHandler, options, finalManifest,
+                                finalClassHashes.get(classDef.getType()), split ? methodExecutor : null, report);
+                    } else {
+                        result = disassembleClass(classDef, fileNameHandler, options, null, null,
+                                split ? methodExecutor : null, report);
+                    }
+
+                    if (report != null) {
+                        report.recordClass(classDef.getType(), System.nanoTime() - start, split);
+                    }
+                    return result;
                 }
             }));
         }
 
+        boolean errorOccurred = !waitForTasks(tasks);
+
+        if (report != null) {
+            report.finish();
+        }
+
+        if (manifest != null) {
+            if (classSet == null) {
+                manifest.deleteRemovedClasses();
+            } else {
+                manifest.keepPreviousEntries();
+            }
+            try {
+                manifest.save();
+            } catch (IOException ex) {
+                System.err.println("\n\nError occurred while writing the incremental manifest");
+                ex.printStackTrace();
+                errorOccurred = true;
+            }
+        }
+        return !errorOccurred;
+    }
+
+    /**
+     * Disassembles the classes in the given dex file into a zip or tar archive, rather than into a directory.
+     *
+     * The classes are disassembled in parallel, and each finished class is handed to the archive's writer thread.
+     * The entries are written in the same order as the classes are disassembled, and their paths are assigned in that
+     * order as well, so the archive's contents don't depend on how the work was scheduled. The incremental option
+     * doesn't apply to archives.
+     *
+     * The archive isn't closed by this method.
+     *
+     * @return true if all classes were disassembled successfully
+     */
+    public static boolean disassembleDexFile(DexFile dexFile, final SmaliArchiveWriter archiveWriter, int jobs,
+                                             final BaksmaliOptions options, @Nullable List<String> classes) {
+        List<? extends ClassDef> classDefs = Ordering.natural().sortedCopy(dexFile.getClasses());
+
+        Set<String> classSet = null;
+        if (classes != null) {
+            classSet = new HashSet<String>(classes);
+        }
+
         boolean errorOccurred = false;
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
         try {
-            for (Future<Boolean> task: tasks) {
-                while(true) {
-                    try {
-                        if (!task.get()) {
-                            errorOccurred = true;
-                        }
-                    } catch (InterruptedException ex) {
-                        continue;
-                    } catch (ExecutionException ex) {
-                        throw new RuntimeException(ex);
-                    }
-                    break;
+            final Executor methodExecutor = jobs > 1 ? executor : null;
+
+            if (options.deodex && options.classPath != null && jobs > 1) {
+                options.classPath.precomputeClassTables(executor);
+            }
+
+            List<Future<Boolean>> tasks = Lists.newArrayList();
+            int sequence = 0;
+            for (final ClassDef classDef: classDefs) {
+                String classDescriptor = classDef.getType();
+                if (classSet != null && !classSet.contains(classDescriptor)) {
+                    continue;
+                }
+
+                //validate that the descriptor is formatted like we expect
+                if (classDescriptor.charAt(0) != 'L' ||
+                        classDescriptor.charAt(classDescriptor.length()-1) != ';') {
+                    System.err.println("Unrecognized class descriptor - " + classDescriptor + " - skipping class");
+                    errorOccurred = true;
+                    continue;
                 }
+
+                final String path = archiveWriter.getPathForClass(classDescriptor);
+                final int entrySequence = sequence++;
+                tasks.add(executor.submit(new Callable<Boolean>() {
+                    @Override public Boolean call() throws Exception {
+                        boolean split = methodExecutor != null && shouldSplitClass(classDef);
+                        return disassembleClass(classDef, options, archiveWriter, entrySequence, path,
+                                split ? methodExecutor : null);
+                    }
+                }));
+            }
+
+            if (!waitForTasks(tasks)) {
+                errorOccurred = true;
             }
         } finally {
             executor.shutdown();
@@ -100,8 +258,134 @@ public class Baksmali {
         return !errorOccurred;
     }
 
+    /**
+     * Waits for all of the given tasks to finish
+     *
+     * @return true if all of the tasks returned true
+     */
+    private static boolean waitForTasks(List<Future<Boolean>> tasks) {
+        boolean success = true;
+        for (Future<Boolean> task: tasks) {
+            while(true) {
+                try {
+                    if (!task.get()) {
+                        success = false;
+                    }
+                } catch (InterruptedException ex) {
+                    continue;
+                } catch (ExecutionException ex) {
+                    throw new RuntimeException(ex);
+                }
+                break;
+            }
+        }
+        return success;
+    }
+
+    /**
+     * The minimum total number of code units in the methods of a class for the methods to be rendered in parallel
+     */
+    private static final int SPLIT_CLASS_THRESHOLD = 8192;
+
+    /**
+     * Determines if a class is large enough that its methods should be rendered in parallel
+     */
+    private static boolean shouldSplitClass(ClassDef classDef) {
+        if (!(classDef instanceof DexBackedClassDef)) {
+            return false;
+        }
+
+        int methodsWithCode = 0;
+        int codeUnits = 0;
+        for (DexBackedMethod method: ((DexBackedClassDef)classDef).getMethods()) {
+            DexBackedMethodImplementation implementation = method.getImplementation();
+            if (implementation != null) {
+                methodsWithCode++;
+                codeUnits += implementation.getInstructionsSize();
+            }
+        }
+        return methodsWithCode > 1 && codeUnits >= SPLIT_CLASS_THRESHOLD;
+    }
+
+    /**
+     * Hashes each class, for comparison with the hashes from a previous incremental disassembly.
+     *
+     * @return A map of class type to hash. Classes that can't be hashed, including those that fail with an exception,
+     * are not included.
+     */
+    private static Map<String, String> hashClasses(List<? extends ClassDef> classDefs, ExecutorService executor,
+                                                   BaksmaliOptions options) {
+        final Map<String, HashCode> ownHashes = Maps.newHashMap();
+        final Map<String, Set<String>> accessorClasses = Maps.newHashMap();
+
+        List<Future<HashCode>> tasks = Lists.newArrayList();
+        for (final ClassDef classDef: classDefs) {
+            final Set<String> classAccessorClasses = Sets.newTreeSet();
+            accessorClasses.put(classDef.getType(), classAccessorClasses);
+            tasks.add(executor.submit(new Callable<HashCode>() {
+                @Override public HashCode call() throws Exception {
+                    return ClassDefHasher.hashClass(classDef, classAccessorClasses);
+                }
+            }));
+        }
+
+        for (int i=0; i<classDefs.size(); i++) {
+            while (true) {
+                try {
+                    ownHashes.put(classDefs.get(i).getType(), tasks.get(i).get());
+                } catch (InterruptedException ex) {
+                    continue;
+                } catch (ExecutionException ex) {
+                    // The hashes are only used to skip unchanged classes. A class that can't be hashed is treated as
+                    // having no hash, so it's disassembled again on every run
+                    System.err.println(String.format("Warning: could not hash class %s for incremental disassembly: %s",
+                            classDefs.get(i).getType(), ex.getCause()));
+                    ownHashes.put(classDefs.get(i).getType(), null);
+                }
+                break;
+            }
+        }
+
+        boolean includeAccessors = options.accessorComments && options.syntheticAccessorResolver != null;
+
+        Map<String, String> classHashes = Maps.newHashMap();
+        for (Map.Entry<String, HashCode> entry: ownHashes.entrySet()) {
+            HashCode ownHash = entry.getValue();
+            if (ownHash == null) {
+                continue;
+            }
+
+            if (!includeAccessors || accessorClasses.get(entry.getKey()).isEmpty()) {
+                classHashes.put(entry.getKey(), ownHash.toString());
+                continue;
+            }
+
+            // The accessor comments in this class depend on the accessor methods in other classes
+            Hasher hasher = Hashing.sha1().newHasher();
+            hasher.putBytes(ownHash.asBytes());
+            boolean hashable = true;
+            for (String accessorClass: accessorClasses.get(entry.getKey())) {
+                hasher.putUnencodedChars(accessorClass);
+                if (ownHashes.containsKey(accessorClass)) {
+                    HashCode accessorClassHash = ownHashes.get(accessorClass);
+                    if (accessorClassHash == null) {
+                        hashable = false;
+                        break;
+                    }
+                    hasher.putBytes(accessorClassHash.asBytes());
+                }
+            }
+            if (hashable) {
+                classHashes.put(entry.getKey(), hasher.hash().toString());
+            }
+        }
+        return classHashes;
+    }
+
     private static boolean disassembleClass(ClassDef classDef, ClassFileNameHandler fileNameHandler,
-                                            BaksmaliOptions options) {
+                                            BaksmaliOptions options, @Nullable IncrementalManifest manifest,
+                                            @Nullable String classHash, @Nullable Executor methodExecutor,
+                                            @Nullable LoadBalancingReport report) {
         /**
          * The path for the disassembly file is based on the package name
          * The class descriptor will look something like:
@@ -120,8 +404,15 @@ public class Baksmali {
 
         File smaliFile = fileNameHandler.getUniqueFilenameForClass(classDescriptor);
 
+        if (manifest != null && classHash != null && manifest.isUnchanged(classDescriptor, classHash, smaliFile)) {
+            manifest.put(classDescriptor, classHash, smaliFile);
+            return true;
+        }
+
         //create and initialize the top level string template
         ClassDefinition classDefinition = new ClassDefinition(options, classDef);
+        classDefinition.setMethodExecutor(methodExecutor);
+        classDefinition.setLoadBalancingReport(report);
 
         //write the disassembly
         Writer writer = null;
@@ -168,6 +459,38 @@ public class Baksmali {
                 }
             }
         }
+
+        if (manifest != null) {
+            manifest.put(classDescriptor, classHash, smaliFile);
+        }
         return true;
     }
+
+    private static boolean disassembleClass(ClassDef classDef, BaksmaliOptions options,
+                                            SmaliArchiveWriter archiveWriter, int sequence, String path,
+                                            @Nullable Executor methodExecutor) {
+        ClassDefinition classDefinition = new ClassDefinition(options, classDef);
+        classDefinition.setMethodExecutor(methodExecutor);
+
+        boolean success = false;
+        try {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            IndentingWriter writer = new IndentingWriter(new BufferedWriter(
+                    new OutputStreamWriter(outputStream, "UTF8")));
+            classDefinition.writeTo(writer);
+            writer.close();
+
+            archiveWriter.addEntry(sequence, path, outputStream.toByteArray());
+            success = true;
+        } catch (Exception ex) {
+            System.err.println("\n\nError occurred while disassembling class " + classDef.getType().replace('/', '.') +
+                    " - skipping class");
+            ex.printStackTrace();
+        } finally {
+            if (!success) {
+                archiveWriter.skipEntry(sequence);
+            }
+        }
+        return success;
+    }
 }
@@ -60,6 +60,12 @@ public class BaksmaliOptions {
     public boolean implicitReferences = false;
     public boolean normalizeVirtualMethods = false;
 
+    /**
+     * If true, classes that are unchanged since a previous disassembly into the same output directory with the same
+     * options are not rewritten, and the files for classes that no longer exist are deleted.
+     */
+    public boolean incremental = false;
+
     // register info values
     public static final int ALL = 1;
     public static final int ALLPRE = 2;
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.baksmali;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.io.Files;
+import org.jf.baksmali.BatchDisassembler.OptionsFactory;
+import org.jf.baksmali.BatchDisassembler.Result;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.analysis.ClassPath;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.OatFile.OatDexFile;
+import org.jf.util.jcommander.ExtendedParameter;
+import org.jf.util.jcommander.ExtendedParameters;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.jf.dexlib2.analysis.ClassPath.NOT_ART;
+
+@Parameters(commandDescription = "Disassembles many dex/apk files in a single run.")
+@ExtendedParameters(
+        commandName = "batch-disassemble",
+        commandAliases = { "batch", "bd" })
+public class BatchDisassembleCommand extends DisassembleCommand {
+
+    @Parameter(names = {"--input-list", "--il"},
+            description = "A file listing the input files to disassemble, one per line. Blank lines and lines " +
+                    "starting with # are ignored. This can be used in addition to, or instead of, listing the inputs " +
+                    "on the command line.")
+    @ExtendedParameter(argumentNames = "file")
+    private String inputListFile = null;
+
+    /**
+     * The class paths that have been loaded so far, keyed by the parts of each input that affect which class path is
+     * used for it
+     */
+    private final Map<String, SharedClassPath> sharedClassPaths = Maps.newHashMap();
+
+    public BatchDisassembleCommand(@Nonnull List<JCommander> commandAncestors) {
+        super(commandAncestors);
+    }
+
+    /**
+     * Disassembles each input into a separate subdirectory of the output directory, named after the input file.
+     *
+     * The inputs can be dex, apk, odex or oat files, or directories, in which case every dex, apk, jar, odex and oat
+     * file in the directory and its subdirectories is disassembled. When a class path is needed, it is shared by all of
+     * the inputs that would use the same class path, e.g. the inputs with the same api level.
+     */
+    @Override public void run() {
+        List<String> inputs = Lists.newArrayList(inputList);
+        if (inputListFile != null) {
+            try {
+                for (String line: Files.readLines(new File(inputListFile), Charsets.UTF_8)) {
+                    line = line.trim();
+                    if (line.length() > 0 && !line.startsWith("#")) {
+                        inputs.add(line);
+                    }
+                }
+            } catch (IOException ex) {
+                System.err.println("Error while reading input list " + inputListFile);
+                ex.printStackTrace(System.err);
+                System.exit(-1);
+            }
+        }
+
+        if (inputs.isEmpty()) {
+            usage();
+            return;
+        }
+
+        List<File> inputFiles = Lists.newArrayList();
+        for (String input: inputs) {
+            File file = new File(input);
+            if (!file.exists()) {
+                System.err.println("Can't find file: " + input);
+                System.exit(-1);
+            }
+            addInputFiles(file, inputFiles);
+        }
+
+        File outputDirectoryFile = new File(outputDir);
+        if (!outputDirectoryFile.exists()) {
+            if (!outputDirectoryFile.mkdirs()) {
+                System.err.println("Can't create the output directory " + outputDir);
+                System.exit(-1);
+            }
+        }
+
+        OptionsFactory optionsFactory = new OptionsFactory() {
+            @Nonnull @Override
+            public BaksmaliOptions getOptions(@Nonnull File inputFile, @Nonnull DexBackedDexFile dexFile)
+                    throws IOException {
+                BatchDisassembleCommand.this.inputFile = inputFile;
+                BatchDisassembleCommand.this.dexFile = dexFile;
+
+                // a class path that can't be loaded only fails this input, rather than exiting
+                ClassPath classPath = null;
+                if (needsClassPath()) {
+                    classPath = loadClassPath();
+                }
+                return BatchDisassembleCommand.this.getOptions(classPath);
+            }
+        };
+
+        long start = System.nanoTime();
+        BatchDisassembler batchDisassembler = new BatchDisassembler(jobs, Opcodes.forApi(apiLevel));
+        List<Result> results = batchDisassembler.disassemble(inputFiles, outputDirectoryFile, optionsFactory, classes,
+                System.out);
+
+        int failures = 0;
+        for (Result result: results) {
+            if (!result.success) {
+                failures++;
+            }
+        }
+        System.out.println(String.format(Locale.US, "Disassembled %d of %d inputs successfully in %d ms",
+                results.size() - failures, results.size(), (System.nanoTime() - start) / 1000000));
+
+        if (failures > 0) {
+            System.exit(-1);
+        }
+    }
+
+    @Nonnull @Override protected ClassPath loadClassPath() throws IOException {
+        File dexFileDir = inputFile.getAbsoluteFile().getParentFile();
+        String key = getClassPathKey(dexFileDir);
+        SharedClassPath sharedClassPath = sharedClassPaths.get(key);
+        if (sharedClassPath == null) {
+            sharedClassPath = analysisArguments.loadSharedClassPath(dexFileDir, dexFile,
+                    shouldCheckPackagePrivateAccess(), NOT_ART, jobs);
+
+            // compute the class tables of the shared class path once, rather than once for each input that uses it
+            ExecutorService executor = Executors.newFixedThreadPool(jobs);
+            try {
+                sharedClassPath = sharedClassPath.withIndex(executor);
+            } finally {
+                executor.shutdown();
+            }
+            sharedClassPaths.put(key, sharedClassPath);
+        }
+        return sharedClassPath.getClassPath(dexFile);
+    }
+
+    /**
+     * Gets a key for everything about the current input that affects the class path that is loaded for it: the api
+     * level and art version, the oat version of an oat file, and the directory containing the input, which is searched
+     * for the class path files when no class path directories were given.
+     */
+    @Nonnull
+    private String getClassPathKey(@Nonnull File dexFileDir) {
+        StringBuilder key = new StringBuilder();
+        key.append(dexFile.getOpcodes().api).append(':').append(dexFile.getOpcodes().artVersion);
+        if (dexFile instanceof OatDexFile) {
+            key.append(":oat").append(((OatDexFile)dexFile).getContainer().getOatVersion());
+        }
+        if (analysisArguments.classPathDirectories == null || analysisArguments.classPathDirectories.isEmpty()) {
+            key.append(':').append(dexFileDir.getPath());
+        }
+        return key.toString();
+    }
+
+    private static void addInputFiles(@Nonnull File file, @Nonnull List<File> inputFiles) {
+        if (!file.isDirectory()) {
+            inputFiles.add(file);
+            return;
+        }
+
+        File[] files = file.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File child: Ordering.natural().sortedCopy(Arrays.asList(files))) {
+            if (child.isDirectory()) {
+                addInputFiles(child, inputFiles);
+            } else if (isInputFileName(child.getName())) {
+                inputFiles.add(child);
+            }
+        }
+    }
+
+    private static boolean isInputFileName(@Nonnull String name) {
+        String extension = Files.getFileExtension(name).toLowerCase(Locale.US);
+        return extension.equals("dex") || extension.equals("apk") || extension.equals("jar") ||
+                extension.equals("odex") || extension.equals("oat");
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.baksmali;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Disassembles many input files in a single run, sharing a single thread pool between them.
+ *
+ * The work is pipelined across inputs: the next inputs are loaded in the background while the current ones are being
+ * disassembled, and the classes of up to PIPELINE_DEPTH inputs can be disassembled at the same time, so the threads
+ * aren't left idle while a small input finishes or a large one is loaded. Each input is disassembled into its own
+ * subdirectory of the output directory, named after the input file.
+ *
+ * A failure to load or disassemble one input doesn't affect the others. The result of each input is reported as soon
+ * as it is finished, and all the results are returned at the end.
+ */
+public class BatchDisassembler {
+    /**
+     * The maximum number of inputs that are loaded or being disassembled at any one time
+     */
+    private static final int PIPELINE_DEPTH = 3;
+
+    /**
+     * Creates the options to use for each input
+     */
+    public interface OptionsFactory {
+        /**
+         * This is called for each input in turn, from the thread that called disassemble.
+         */
+        @Nonnull BaksmaliOptions getOptions(@Nonnull File inputFile, @Nonnull DexBackedDexFile dexFile)
+                throws Exception;
+    }
+
+    /**
+     * The result of disassembling a single input
+     */
+    public static class Result {
+        @Nonnull public final File inputFile;
+        @Nonnull public final File outputDir;
+        public final boolean success;
+        public final int classCount;
+        public final long elapsedMillis;
+        @Nullable public final Throwable error;
+
+        public Result(@Nonnull File inputFile, @Nonnull File outputDir, boolean success, int classCount,
+                      long elapsedMillis, @Nullable Throwable error) {
+            this.inputFile = inputFile;
+            this.outputDir = outputDir;
+            this.success = success;
+            this.classCount = classCount;
+            this.elapsedMillis = elapsedMillis;
+            this.error = error;
+        }
+
+        @Override public String toString() {
+            if (success) {
+                return String.format(Locale.US, "OK %s: %d classes in %d ms", inputFile, classCount, elapsedMillis);
+            }
+            if (error != null) {
+                return String.format("FAILED %s: %s", inputFile, error);
+            }
+            return String.format("FAILED %s: some classes could not be disassembled", inputFile);
+        }
+    }
+
+    private final int jobs;
+    @Nonnull private final Opcodes opcodes;
+
+    /**
+     * @param jobs The number of threads to disassemble the classes with
+     * @param opcodes The opcodes to use when loading the inputs
+     */
+    public BatchDisassembler(int jobs, @Nonnull Opcodes opcodes) {
+        this.jobs = jobs;
+        this.opcodes = opcodes;
+    }
+
+    /**
+     * Disassembles each of the given input files.
+     *
+     * @param inputFiles The dex/apk/odex/oat files to disassemble
+     * @param outputDir The directory to create the output directory of each input in
+     * @param optionsFactory Creates the options for each input
+     * @param classes If non-null, only these classes are disassembled from each input
+     * @param progress If non-null, the result of each input is printed here as soon as it is finished
+     * @return The result for each input, in the same order as inputFiles
+     */
+    @Nonnull
+    public List<Result> disassemble(@Nonnull List<File> inputFiles, @Nonnull File outputDir,
+                                    @Nonnull OptionsFactory optionsFactory, @Nullable final List<String> classes,
+                                    @Nullable final PrintStream progress) {
+        List<File> outputDirs = getOutputDirs(inputFiles, outputDir);
+        final Result[] results = new Result[inputFiles.size()];
+
+        // A permit is acquired before an input is loaded, and released once it has been disassembled (or failed)
+        final Semaphore permits = new Semaphore(PIPELINE_DEPTH);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        ExecutorService loader = Executors.newSingleThreadExecutor();
+        ExecutorService drivers = Executors.newFixedThreadPool(PIPELINE_DEPTH);
+        try {
+            List<Future<DexBackedDexFile>> loadFutures = Lists.newArrayList();
+            for (final File inputFile: inputFiles) {
+                loadFutures.add(loader.submit(new Callable<DexBackedDexFile>() {
+                    @Override public DexBackedDexFile call() throws Exception {
+                        permits.acquireUninterruptibly();
+                        boolean loaded = false;
+                        try {
+                            DexBackedDexFile dexFile = DexFileFactory.loadDexFile(inputFile, opcodes);
+                            dexFile.enableStringCache(false);
+                            loaded = true;
+                            return dexFile;
+                        } finally {
+                            if (!loaded) {
+                                permits.release();
+                            }
+                        }
+                    }
+                }));
+            }
+
+            List<Future<?>> driverFutures = Lists.newArrayList();
+            for (int i=0; i<inputFiles.size(); i++) {
+                final int index = i;
+                final File inputFile = inputFiles.get(i);
+                final File inputOutputDir = outputDirs.get(i);
+                final long start = System.nanoTime();
+
+                final DexBackedDexFile dexFile;
+                final BaksmaliOptions options;
+                try {
+                    dexFile = Uninterruptibles.getUninterruptibly(loadFutures.get(i));
+                } catch (ExecutionException ex) {
+                    finish(results, index, new Result(inputFile, inputOutputDir, false, 0, 0, ex.getCause()),
+                            progress);
+                    continue;
+                } finally {
+                    // a completed future keeps a reference to its result. Drop it, so that each dex file can be
+                    // garbage collected as soon as it has been disassembled
+                    loadFutures.set(i, null);
+                }
+                try {
+                    options = optionsFactory.getOptions(inputFile, dexFile);
+                } catch (Exception ex) {
+                    permits.release();
+                    finish(results, index, new Result(inputFile, inputOutputDir, false, 0, 0, ex), progress);
+                    continue;
+                }
+
+                driverFutures.add(drivers.submit(new Runnable() {
+                    @Override public void run() {
+                        Result result;
+                        try {
+                            if (!inputOutputDir.exists() && !inputOutputDir.mkdirs()) {
+                                throw new IllegalStateException("Can't create the output directory " +
+                                        inputOutputDir);
+                            }
+                            boolean success = Baksmali.disassembleDexFile(dexFile, inputOutputDir, executor, jobs,
+                                    options, classes, null);
+                            result = new Result(inputFile, inputOutputDir, success, dexFile.getClasses().size(),
+                                    toMillis(System.nanoTime() - start), null);
+                        } catch (Throwable ex) {
+                            result = new Result(inputFile, inputOutputDir, false, 0,
+                                    toMillis(System.nanoTime() - start), ex);
+                        } finally {
+                            permits.release();
+                        }
+                        finish(results, index, result, progress);
+                    }
+                }));
+            }
+
+            for (Future<?> future: driverFutures) {
+                try {
+                    Uninterruptibles.getUninterruptibly(future);
+                } catch (ExecutionException ex) {
+                    // the driver tasks catch everything themselves
+                    throw new RuntimeException(ex.getCause());
+                }
+            }
+        } finally {
+            loader.shutdown();
+            drivers.shutdown();
+            executor.shutdown();
+        }
+
+        return Arrays.asList(results);
+    }
+
+    private static void finish(@Nonnull Result[] results, int index, @Nonnull Result result,
+                               @Nullable PrintStream progress) {
+        synchronized (results) {
+            results[index] = result;
+            if (progress != null) {
+                progress.println(result);
+            }
+        }
+    }
+
+    /**
+     * Gets a unique output directory for each input, based on the name of the input file without its extension
+     */
+    @Nonnull
+    private static List<File> getOutputDirs(@Nonnull List<File> inputFiles, @Nonnull File outputDir) {
+        Set<String> usedNames = Sets.newHashSet();
+        List<File> outputDirs = Lists.newArrayList();
+        for (File inputFile: inputFiles) {
+            String baseName = Files.getNameWithoutExtension(inputFile.getName());
+            String name = baseName;
+            for (int i=2; !usedNames.add(name.toLowerCase(Locale.US)); i++) {
+                name = baseName + "-" + i;
+            }
+            outputDirs.add(new File(outputDir, name));
+        }
+        return outputDirs;
+    }
+
+    private static long toMillis(long nanos) {
+        return nanos / 1000000;
+    }
+}
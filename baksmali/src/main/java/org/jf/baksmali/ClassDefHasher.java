@@ -0,0 +1,400 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.baksmali;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Ordering;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.jf.dexlib2.DebugItemType;
+import org.jf.dexlib2.ValueType;
+import org.jf.dexlib2.dexbacked.instruction.DexBackedInstruction;
+import org.jf.dexlib2.iface.*;
+import org.jf.dexlib2.iface.debug.*;
+import org.jf.dexlib2.iface.instruction.DualReferenceInstruction;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.iface.value.*;
+import org.jf.dexlib2.util.ReferenceUtil;
+import org.jf.dexlib2.util.SyntheticAccessorResolver;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Computes a hash of everything in a class that can affect its disassembly.
+ *
+ * The raw bytes of each instruction are hashed directly, except for any string/type/field/method indexes. Those are
+ * replaced by the resolved reference, because the indexes of unchanged references will shift whenever something is
+ * added to or removed from the dex file.
+ */
+class ClassDefHasher {
+    @Nonnull private final Hasher hasher = Hashing.sha1().newHasher();
+    @Nonnull private final Set<String> accessorClasses;
+
+    private ClassDefHasher(@Nonnull Set<String> accessorClasses) {
+        this.accessorClasses = accessorClasses;
+    }
+
+    /**
+     * Hashes the given class.
+     *
+     * @param classDef The class to hash
+     * @param accessorClasses If non-null, the types of any classes with synthetic accessor methods that are invoked by
+     *                        this class will be added to this set. The disassembly of this class depends on the
+     *                        contents of those accessors.
+     * @return The hash of the class, or null if the class contains something that can't be hashed
+     */
+    @Nullable
+    public static HashCode hashClass(@Nonnull ClassDef classDef, @Nonnull Set<String> accessorClasses) {
+        ClassDefHasher classDefHasher = new ClassDefHasher(accessorClasses);
+        if (!classDefHasher.putClass(classDef)) {
+            return null;
+        }
+        return classDefHasher.hasher.hash();
+    }
+
+    /**
+     * Gets a hash of the options that can affect the disassembly of a class
+     *
+     * @return The hash of the options, or null if the options include something that can't be hashed, e.g. a class
+     * path, whose classes can affect the disassembly of any class.
+     */
+    @Nullable
+    public static HashCode hashOptions(@Nonnull BaksmaliOptions options) {
+        if (options.classPath != null || options.inlineResolver != null) {
+            return null;
+        }
+
+        Hasher hasher = Hashing.sha1().newHasher();
+        hasher.putInt(options.apiLevel);
+        hasher.putBoolean(options.parameterRegisters);
+        hasher.putBoolean(options.localsDirective);
+        hasher.putBoolean(options.sequentialLabels);
+        hasher.putBoolean(options.debugInfo);
+        hasher.putBoolean(options.codeOffsets);
+        hasher.putBoolean(options.accessorComments && options.syntheticAccessorResolver != null);
+        hasher.putBoolean(options.allowOdex);
+        hasher.putBoolean(options.deodex);
+        hasher.putBoolean(options.implicitReferences);
+        hasher.putBoolean(options.normalizeVirtualMethods);
+        hasher.putInt(options.registerInfo);
+        for (Map.Entry<Integer, String> entry: Ordering.natural().onResultOf(
+                new Function<Map.Entry<Integer, String>, Integer>() {
+                    @Override public Integer apply(Map.Entry<Integer, String> input) {
+                        return input.getKey();
+                    }
+                }).sortedCopy(options.resourceIds.entrySet())) {
+            hasher.putInt(entry.getKey());
+            putString(hasher, entry.getValue());
+        }
+        return hasher.hash();
+    }
+
+    private boolean putClass(@Nonnull ClassDef classDef) {
+        putString(classDef.getType());
+        hasher.putInt(classDef.getAccessFlags());
+        putString(classDef.getSuperclass());
+        putStrings(classDef.getInterfaces());
+        putString(classDef.getSourceFile());
+        putAnnotations(classDef.getAnnotations());
+
+        hasher.putInt(-1);
+        for (Field field: classDef.getStaticFields()) {
+            putField(field);
+        }
+        hasher.putInt(-1);
+        for (Field field: classDef.getInstanceFields()) {
+            putField(field);
+        }
+        hasher.putInt(-1);
+        for (Method method: classDef.getDirectMethods()) {
+            if (!putMethod(method)) {
+                return false;
+            }
+        }
+        hasher.putInt(-1);
+        for (Method method: classDef.getVirtualMethods()) {
+            if (!putMethod(method)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void putField(@Nonnull Field field) {
+        putString(field.getName());
+        putString(field.getType());
+        hasher.putInt(field.getAccessFlags());
+        putEncodedValue(field.getInitialValue());
+        putAnnotations(field.getAnnotations());
+    }
+
+    private boolean putMethod(@Nonnull Method method) {
+        putString(method.getName());
+        putString(method.getReturnType());
+        hasher.putInt(method.getAccessFlags());
+        putAnnotations(method.getAnnotations());
+
+        hasher.putInt(method.getParameters().size());
+        for (MethodParameter parameter: method.getParameters()) {
+            putString(parameter.getType());
+            putString(parameter.getName());
+            putAnnotations(parameter.getAnnotations());
+        }
+
+        MethodImplementation implementation = method.getImplementation();
+        if (implementation == null) {
+            hasher.putInt(-1);
+            return true;
+        }
+
+        hasher.putInt(implementation.getRegisterCount());
+        for (Instruction instruction: implementation.getInstructions()) {
+            if (!putInstruction(instruction)) {
+                return false;
+            }
+        }
+        hasher.putInt(-1);
+
+        for (TryBlock<? extends ExceptionHandler> tryBlock: implementation.getTryBlocks()) {
+            hasher.putInt(tryBlock.getStartCodeAddress());
+            hasher.putInt(tryBlock.getCodeUnitCount());
+            for (ExceptionHandler handler: tryBlock.getExceptionHandlers()) {
+                putString(handler.getExceptionType());
+                hasher.putInt(handler.getHandlerCodeAddress());
+            }
+            hasher.putInt(-1);
+        }
+        hasher.putInt(-1);
+
+        for (DebugItem debugItem: implementation.getDebugItems()) {
+            putDebugItem(debugItem);
+        }
+        hasher.putInt(-1);
+        return true;
+    }
+
+    private boolean putInstruction(@Nonnull Instruction instruction) {
+        if (!(instruction instanceof DexBackedInstruction)) {
+            return false;
+        }
+        DexBackedInstruction dexBackedInstruction = (DexBackedInstruction)instruction;
+
+        byte[] bytes = dexBackedInstruction.dexFile.readByteRange(dexBackedInstruction.instructionStart,
+                instruction.getCodeUnits() * 2);
+
+        if (instruction instanceof ReferenceInstruction) {
+            ReferenceInstruction referenceInstruction = (ReferenceInstruction)instruction;
+            switch (instruction.getOpcode().format) {
+                case Format31c:
+                    clearBytes(bytes, 2, 4);
+                    break;
+                case Format45cc:
+                case Format4rcc:
+                    clearBytes(bytes, 2, 2);
+                    clearBytes(bytes, 6, 2);
+                    break;
+                default:
+                    clearBytes(bytes, 2, 2);
+                    break;
+            }
+
+            hasher.putBytes(bytes);
+            putString(ReferenceUtil.getReferenceString(referenceInstruction.getReference()));
+            if (instruction instanceof DualReferenceInstruction) {
+                putString(ReferenceUtil.getReferenceString(
+                        ((DualReferenceInstruction)instruction).getReference2()));
+            }
+
+            if (referenceInstruction.getReference() instanceof MethodReference) {
+                MethodReference methodReference = (MethodReference)referenceInstruction.getReference();
+                if (SyntheticAccessorResolver.looksLikeSyntheticAccessor(methodReference.getName())) {
+                    accessorClasses.add(methodReference.getDefiningClass());
+                }
+            }
+        } else {
+            hasher.putBytes(bytes);
+        }
+        return true;
+    }
+
+    private static void clearBytes(@Nonnull byte[] bytes, int offset, int length) {
+        for (int i=offset; i<offset+length; i++) {
+            bytes[i] = 0;
+        }
+    }
+
+    private void putDebugItem(@Nonnull DebugItem debugItem) {
+        hasher.putInt(debugItem.getDebugItemType());
+        hasher.putInt(debugItem.getCodeAddress());
+        switch (debugItem.getDebugItemType()) {
+            case DebugItemType.START_LOCAL: {
+                StartLocal startLocal = (StartLocal)debugItem;
+                hasher.putInt(startLocal.getRegister());
+                putLocalInfo(startLocal);
+                break;
+            }
+            case DebugItemType.END_LOCAL: {
+                EndLocal endLocal = (EndLocal)debugItem;
+                hasher.putInt(endLocal.getRegister());
+                putLocalInfo(endLocal);
+                break;
+            }
+            case DebugItemType.RESTART_LOCAL: {
+                RestartLocal restartLocal = (RestartLocal)debugItem;
+                hasher.putInt(restartLocal.getRegister());
+                putLocalInfo(restartLocal);
+                break;
+            }
+            case DebugItemType.LINE_NUMBER:
+                hasher.putInt(((LineNumber)debugItem).getLineNumber());
+                break;
+            case DebugItemType.SET_SOURCE_FILE:
+                putString(((SetSourceFile)debugItem).getSourceFile());
+                break;
+        }
+    }
+
+    private void putLocalInfo(@Nonnull LocalInfo localInfo) {
+        putString(localInfo.getName());
+        putString(localInfo.getType());
+        putString(localInfo.getSignature());
+    }
+
+    private void putAnnotations(@Nonnull Collection<? extends Annotation> annotations) {
+        hasher.putInt(annotations.size());
+        for (Annotation annotation: annotations) {
+            hasher.putInt(annotation.getVisibility());
+            putString(annotation.getType());
+            putAnnotationElements(annotation.getElements());
+        }
+    }
+
+    private void putAnnotationElements(@Nonnull Collection<? extends AnnotationElement> elements) {
+        hasher.putInt(elements.size());
+        for (AnnotationElement element: elements) {
+            putString(element.getName());
+            putEncodedValue(element.getValue());
+        }
+    }
+
+    private void putEncodedValue(@Nullable EncodedValue encodedValue) {
+        if (encodedValue == null) {
+            hasher.putInt(-1);
+            return;
+        }
+
+        hasher.putInt(encodedValue.getValueType());
+        switch (encodedValue.getValueType()) {
+            case ValueType.BYTE:
+                hasher.putByte(((ByteEncodedValue)encodedValue).getValue());
+                break;
+            case ValueType.SHORT:
+                hasher.putShort(((ShortEncodedValue)encodedValue).getValue());
+                break;
+            case ValueType.CHAR:
+                hasher.putChar(((CharEncodedValue)encodedValue).getValue());
+                break;
+            case ValueType.INT:
+                hasher.putInt(((IntEncodedValue)encodedValue).getValue());
+                break;
+            case ValueType.LONG:
+                hasher.putLong(((LongEncodedValue)encodedValue).getValue());
+                break;
+            case ValueType.FLOAT:
+                hasher.putFloat(((FloatEncodedValue)encodedValue).getValue());
+                break;
+            case ValueType.DOUBLE:
+                hasher.putDouble(((DoubleEncodedValue)encodedValue).getValue());
+                break;
+            case ValueType.STRING:
+                putString(((StringEncodedValue)encodedValue).getValue());
+                break;
+            case ValueType.TYPE:
+                putString(((TypeEncodedValue)encodedValue).getValue());
+                break;
+            case ValueType.FIELD:
+                putString(ReferenceUtil.getReferenceString(((FieldEncodedValue)encodedValue).getValue()));
+                break;
+            case ValueType.METHOD:
+                putString(ReferenceUtil.getReferenceString(((MethodEncodedValue)encodedValue).getValue()));
+                break;
+            case ValueType.ENUM:
+                putString(ReferenceUtil.getReferenceString(((EnumEncodedValue)encodedValue).getValue()));
+                break;
+            case ValueType.ARRAY: {
+                Collection<? extends EncodedValue> values = ((ArrayEncodedValue)encodedValue).getValue();
+                hasher.putInt(values.size());
+                for (EncodedValue value: values) {
+                    putEncodedValue(value);
+                }
+                break;
+            }
+            case ValueType.ANNOTATION: {
+                AnnotationEncodedValue annotationEncodedValue = (AnnotationEncodedValue)encodedValue;
+                putString(annotationEncodedValue.getType());
+                putAnnotationElements(annotationEncodedValue.getElements());
+                break;
+            }
+            case ValueType.BOOLEAN:
+                hasher.putBoolean(((BooleanEncodedValue)encodedValue).getValue());
+                break;
+        }
+    }
+
+    private void putStrings(@Nonnull Collection<String> strings) {
+        hasher.putInt(strings.size());
+        for (String string: strings) {
+            putString(string);
+        }
+    }
+
+    private void putString(@Nullable String string) {
+        putString(hasher, string);
+    }
+
+    private static void putString(@Nonnull Hasher hasher, @Nullable String string) {
+        if (string == null) {
+            hasher.putInt(-1);
+        } else {
+            hasher.putInt(string.length());
+            hasher.putUnencodedChars(string);
+        }
+    }
+}
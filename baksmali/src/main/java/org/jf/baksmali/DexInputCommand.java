@@ -146,5 +146,8 @@ public abstract class DexInputCommand extends Command {
                 throw new RuntimeException(ex);
             }
         }
+
+        // The same type descriptors and member names are looked up many times while disassembling or analyzing
+        dexFile.enableStringCache(false);
     }
 }
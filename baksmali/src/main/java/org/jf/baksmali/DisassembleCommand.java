@@ -38,6 +38,8 @@ import com.beust.jcommander.ParametersDelegate;
 import com.beust.jcommander.validators.PositiveInteger;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import org.jf.dexlib2.analysis.ClassPath;
 import org.jf.dexlib2.util.SyntheticAccessorResolver;
 import org.jf.util.StringWrapper;
 import org.jf.util.jcommander.ExtendedParameter;
@@ -45,11 +47,15 @@ import org.jf.util.jcommander.ExtendedParameters;
 import org.xml.sax.SAXException;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
+import static org.jf.dexlib2.analysis.ClassPath.NOT_ART;
+
 @Parameters(commandDescription = "Disassembles a dex file.")
 @ExtendedParameters(
         commandName = "disassemble",
@@ -86,7 +92,7 @@ public class DisassembleCommand extends DexInputCommand {
             description = "The number of threads to use. Defaults to the number of cores available.",
             validateWith = PositiveInteger.class)
     @ExtendedParameter(argumentNames = "n")
-    private int jobs = Runtime.getRuntime().availableProcessors();
+    protected int jobs = Runtime.getRuntime().availableProcessors();
 
     @Parameter(names = {"-l", "--use-locals"},
             description = "When disassembling, output the .locals directive with the number of non-parameter " +
@@ -107,7 +113,14 @@ public class DisassembleCommand extends DexInputCommand {
     @Parameter(names = {"-o", "--output"},
             description = "The directory to write the disassembled files to.")
     @ExtendedParameter(argumentNames = "dir")
-    private String outputDir = "out";
+    protected String outputDir = "out";
+
+    @Parameter(names = {"--output-format", "--of"},
+            description = "The format to write the disassembled files in. One of directory, zip or tar. For zip " +
+                    "and tar, all of the files are written into a single archive, and the output option gives the " +
+                    "path of the archive. If it doesn't have an extension, .zip or .tar is added.")
+    @ExtendedParameter(argumentNames = "format")
+    private String outputFormat = "directory";
 
     @Parameter(names = {"--parameter-registers", "--preg", "--pr"}, arity = 1,
             description = "Use the pNN syntax for registers that refer to a method parameter on method entry. True " +
@@ -136,10 +149,21 @@ public class DisassembleCommand extends DexInputCommand {
             description = "Allows odex opcodes to be disassembled, even if the result won't be able to be reassembled.")
     private boolean allowOdex = false;
 
+    @Parameter(names = {"--incremental", "--inc"},
+            description = "Only rewrite the files for classes that have changed since a previous disassembly into " +
+                    "the same output directory, and delete the files for classes that no longer exist. This has no " +
+                    "effect when a class path is needed, e.g. for register info or deodexing.")
+    private boolean incremental = false;
+
+    @Parameter(names = {"--jobs-report"},
+            description = "After disassembling, print a report of how the work was balanced between the threads, " +
+                    "including the utilization of each thread and the slowest classes.")
+    protected boolean jobsReport = false;
+
     @Parameter(names = "--classes",
             description = "A comma separated list of classes. Only disassemble these classes")
     @ExtendedParameter(argumentNames = "classes")
-    private List<String> classes = null;
+    protected List<String> classes = null;
 
     public DisassembleCommand(@Nonnull List<JCommander> commandAncestors) {
         super(commandAncestors);
@@ -166,6 +190,15 @@ public class DisassembleCommand extends DexInputCommand {
                             "re-assemble the results unless you deodex it. See \"baksmali help deodex\"");
         }
 
+        if (analysisArguments.classPathDirectories == null || analysisArguments.classPathDirectories.isEmpty()) {
+            analysisArguments.classPathDirectories = Lists.newArrayList(inputFile.getAbsoluteFile().getParent());
+        }
+
+        if (!outputFormat.equalsIgnoreCase("directory")) {
+            disassembleToArchive();
+            return;
+        }
+
         File outputDirectoryFile = new File(outputDir);
         if (!outputDirectoryFile.exists()) {
             if (!outputDirectoryFile.mkdirs()) {
@@ -174,11 +207,68 @@ public class DisassembleCommand extends DexInputCommand {
             }
         }
 
-        if (analysisArguments.classPathDirectories == null || analysisArguments.classPathDirectories.isEmpty()) {
-            analysisArguments.classPathDirectories = Lists.newArrayList(inputFile.getAbsoluteFile().getParent());
+        LoadBalancingReport report = null;
+        if (jobsReport) {
+            report = new LoadBalancingReport(jobs);
+        }
+
+        boolean success = Baksmali.disassembleDexFile(dexFile, outputDirectoryFile, jobs, getOptions(), classes,
+                report);
+
+        if (report != null) {
+            report.print(System.out);
+        }
+
+        if (!success) {
+            System.exit(-1);
+        }
+    }
+
+    private void disassembleToArchive() {
+        SmaliArchiveWriter.Format format;
+        if (outputFormat.equalsIgnoreCase("zip")) {
+            format = SmaliArchiveWriter.Format.ZIP;
+        } else if (outputFormat.equalsIgnoreCase("tar")) {
+            format = SmaliArchiveWriter.Format.TAR;
+        } else {
+            System.err.println(String.format("Invalid output format: %s", outputFormat));
+            usage();
+            System.exit(-1);
+            return;
+        }
+
+        if (incremental) {
+            System.err.println("--incremental can't be used when writing to an archive");
+            System.exit(-1);
+        }
+
+        File archiveFile = new File(outputDir);
+        if (Files.getFileExtension(archiveFile.getName()).length() == 0) {
+            archiveFile = new File(outputDir + "." + format.name().toLowerCase(Locale.US));
+        }
+        File archiveParent = archiveFile.getAbsoluteFile().getParentFile();
+        if (!archiveParent.exists() && !archiveParent.mkdirs()) {
+            System.err.println("Can't create the output directory " + archiveParent);
+            System.exit(-1);
+        }
+
+        BaksmaliOptions options = getOptions();
+
+        boolean success;
+        try {
+            SmaliArchiveWriter archiveWriter = new SmaliArchiveWriter(archiveFile, format);
+            try {
+                success = Baksmali.disassembleDexFile(dexFile, archiveWriter, jobs, options, classes);
+            } finally {
+                archiveWriter.close();
+            }
+        } catch (IOException ex) {
+            System.err.println("Error while writing " + archiveFile);
+            ex.printStackTrace(System.err);
+            success = false;
         }
 
-        if (!Baksmali.disassembleDexFile(dexFile, outputDirectoryFile, jobs, getOptions(), classes)) {
+        if (!success) {
             System.exit(-1);
         }
     }
@@ -187,6 +277,15 @@ public class DisassembleCommand extends DexInputCommand {
         return !registerInfoTypes.isEmpty() || normalizeVirtualMethods;
     }
 
+    /**
+     * Loads the class path to use for the current dex file, when needsClassPath() is true
+     */
+    @Nonnull
+    protected ClassPath loadClassPath() throws IOException {
+        return analysisArguments.loadClassPathForDexFile(inputFile.getAbsoluteFile().getParentFile(), dexFile,
+                shouldCheckPackagePrivateAccess(), NOT_ART, jobs);
+    }
+
     protected boolean shouldCheckPackagePrivateAccess() {
         return false;
     }
@@ -200,18 +299,31 @@ public class DisassembleCommand extends DexInputCommand {
             throw new IllegalStateException("You must call loadDexFile first");
         }
 
-        final BaksmaliOptions options = new BaksmaliOptions();
-
+        ClassPath classPath = null;
         if (needsClassPath()) {
             try {
-                options.classPath = analysisArguments.loadClassPathForDexFile(
-                        inputFile.getAbsoluteFile().getParentFile(), dexFile, shouldCheckPackagePrivateAccess());
+                classPath = loadClassPath();
             } catch (Exception ex) {
                 System.err.println("\n\nError occurred while loading class path files. Aborting.");
                 ex.printStackTrace(System.err);
                 System.exit(-1);
             }
         }
+        return getOptions(classPath);
+    }
+
+    /**
+     * Creates the options for the current dex file, using a class path that has already been loaded.
+     *
+     * @param classPath The class path to use, or null if needsClassPath() is false
+     */
+    protected BaksmaliOptions getOptions(@Nullable ClassPath classPath) {
+        if (dexFile == null) {
+            throw new IllegalStateException("You must call loadDexFile first");
+        }
+
+        final BaksmaliOptions options = new BaksmaliOptions();
+        options.classPath = classPath;
 
         if (!resourceIdFiles.isEmpty()) {
             Map<String, File> resourceFiles = Maps.newHashMap();
@@ -252,6 +364,7 @@ public class DisassembleCommand extends DexInputCommand {
         options.accessorComments = accessorComments;
         options.implicitReferences = implicitReferences;
         options.normalizeVirtualMethods = normalizeVirtualMethods;
+        options.incremental = incremental;
 
         options.registerInfo = 0;
 
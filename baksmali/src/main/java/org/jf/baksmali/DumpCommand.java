@@ -34,15 +34,23 @@ package org.jf.baksmali;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
+import com.beust.jcommander.validators.PositiveInteger;
+import com.google.common.collect.Sets;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.raw.ItemType;
 import org.jf.dexlib2.dexbacked.raw.RawDexFile;
 import org.jf.dexlib2.dexbacked.raw.util.DexAnnotator;
 import org.jf.util.ConsoleUtil;
+import org.jf.util.jcommander.ExtendedParameter;
 import org.jf.util.jcommander.ExtendedParameters;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.*;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 @Parameters(commandDescription = "Prints an annotated hex dump for the given dex file")
 @ExtendedParameters(
@@ -54,6 +62,35 @@ public class DumpCommand extends DexInputCommand {
             description = "Show usage information for this command.")
     private boolean help;
 
+    @Parameter(names = {"-j", "--jobs"},
+            description = "The number of threads to use to annotate the sections of the dex file. Using more " +
+                    "than 1 thread uses more memory. Defaults to 1. This has no effect when streaming.",
+            validateWith = PositiveInteger.class)
+    @ExtendedParameter(argumentNames = "n")
+    private int jobs = 1;
+
+    @Parameter(names = "--stream",
+            description = "Write out the annotations as they are generated, instead of collecting the annotations " +
+                    "for the whole file in memory first. The output is the same, but memory use doesn't grow with " +
+                    "the size of the dex file. This is implied by --sections, --start and --end.")
+    private boolean stream = false;
+
+    @Parameter(names = "--sections",
+            description = "A comma separated list of the sections to dump, e.g. code_item,debug_info_item. Only " +
+                    "these sections are dumped.")
+    @ExtendedParameter(argumentNames = "sections")
+    private List<String> sections = null;
+
+    @Parameter(names = "--start",
+            description = "Only dump the data at or after this offset. Hex offsets can be given with a 0x prefix.")
+    @ExtendedParameter(argumentNames = "offset")
+    private String startOffset = null;
+
+    @Parameter(names = "--end",
+            description = "Only dump the data before this offset. Hex offsets can be given with a 0x prefix.")
+    @ExtendedParameter(argumentNames = "offset")
+    private String endOffset = null;
+
     public DumpCommand(@Nonnull List<JCommander> commandAncestors) {
         super(commandAncestors);
     }
@@ -70,11 +107,50 @@ public class DumpCommand extends DexInputCommand {
             return;
         }
 
+        Set<Integer> itemTypes = null;
+        if (sections != null) {
+            itemTypes = Sets.newHashSet();
+            for (String section: sections) {
+                int itemType = ItemType.getItemType(section);
+                if (itemType == -1) {
+                    System.err.println(String.format("Unknown section: %s", section));
+                    usage();
+                    return;
+                }
+                itemTypes.add(itemType);
+            }
+        }
+
+        int start;
+        int end;
+        try {
+            start = startOffset == null ? 0 : Integer.decode(startOffset);
+            end = endOffset == null ? Integer.MAX_VALUE : Integer.decode(endOffset);
+        } catch (NumberFormatException ex) {
+            System.err.println(String.format("Invalid offset: %s", ex.getMessage()));
+            usage();
+            return;
+        }
+        if (start < 0 || end < start) {
+            System.err.println("Invalid offset range");
+            usage();
+            return;
+        }
+        if (itemTypes != null && (startOffset != null || endOffset != null)) {
+            System.err.println("--sections can't be used with --start or --end");
+            usage();
+            return;
+        }
+
         String input = inputList.get(0);
         loadDexFile(input);
 
         try {
-            dump(dexFile, System.out);
+            if (stream || itemTypes != null || startOffset != null || endOffset != null) {
+                streamDump(dexFile, System.out, itemTypes, start, end);
+            } else {
+                dump(dexFile, System.out, jobs);
+            }
         } catch (IOException ex) {
             System.err.println("There was an error while dumping the dex file");
             ex.printStackTrace(System.err);
@@ -94,13 +170,80 @@ public class DumpCommand extends DexInputCommand {
             throws IOException {
         Writer writer = new BufferedWriter(new OutputStreamWriter(output));
 
+        DexAnnotator annotator = newAnnotator(dexFile);
+        annotator.writeAnnotations(writer);
+        writer.flush();
+    }
+
+    /**
+     * Writes an annotated hex dump of the given dex file to output, annotating the sections of the dex file in
+     * parallel.
+     *
+     * The output is the same as that of dump(DexBackedDexFile, OutputStream).
+     *
+     * @param dexFile The dex file to dump
+     * @param output An OutputStream to write the annotated hex dump to. The caller is responsible for closing this
+     *               when needed.
+     * @param jobs The number of threads to use
+     *
+     * @throws IOException
+     */
+    public static void dump(@Nonnull DexBackedDexFile dexFile, @Nonnull OutputStream output, int jobs)
+            throws IOException {
+        if (jobs <= 1) {
+            dump(dexFile, output);
+            return;
+        }
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output));
+
+        DexAnnotator annotator = newAnnotator(dexFile);
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        try {
+            annotator.writeAnnotations(writer, executor);
+        } finally {
+            executor.shutdown();
+        }
+        writer.flush();
+    }
+
+    /**
+     * Writes an annotated hex dump of the given dex file to output, as the annotations are generated.
+     *
+     * The annotations aren't collected in memory first, so this can be used for dex files of any size. When dumping
+     * the whole file, the output is the same as that of dump.
+     *
+     * @param dexFile The dex file to dump
+     * @param output An OutputStream to write the annotated hex dump to. The caller is responsible for closing this
+     *               when needed.
+     * @param itemTypes If not null, only the sections with these item types are dumped
+     * @param startOffset The inclusive start of the range of offsets to dump. Ignored if itemTypes is not null.
+     * @param endOffset The exclusive end of the range of offsets to dump. Ignored if itemTypes is not null.
+     *
+     * @throws IOException
+     */
+    public static void streamDump(@Nonnull DexBackedDexFile dexFile, @Nonnull OutputStream output,
+                                  @Nullable Set<Integer> itemTypes, int startOffset, int endOffset)
+            throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output));
+
+        DexAnnotator annotator = newAnnotator(dexFile);
+        if (itemTypes != null) {
+            annotator.streamSectionAnnotations(writer, itemTypes);
+        } else {
+            annotator.streamAnnotations(writer, startOffset, endOffset);
+        }
+        writer.flush();
+    }
+
+    @Nonnull
+    private static DexAnnotator newAnnotator(@Nonnull DexBackedDexFile dexFile) {
         int consoleWidth = ConsoleUtil.getConsoleWidth();
         if (consoleWidth <= 0) {
             consoleWidth = 120;
         }
 
         RawDexFile rawDexFile = new RawDexFile(dexFile.getOpcodes(), dexFile);
-        DexAnnotator annotator = new DexAnnotator(rawDexFile, consoleWidth);
-        annotator.writeAnnotations(writer);
+        return new DexAnnotator(rawDexFile, consoleWidth);
     }
 }
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.baksmali;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.io.Files;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A manifest of the classes that were disassembled into an output directory, which is used to skip classes that
+ * haven't changed since the previous disassembly into the same directory.
+ *
+ * The manifest records the hash and relative output path of each class, along with a hash of the options that were
+ * used.
+ */
+class IncrementalManifest {
+    public static final String MANIFEST_FILE_NAME = ".baksmali-manifest";
+
+    private static final String HEADER = "baksmali-manifest 1";
+
+    // recorded for classes that were written without a hash, so that they are never considered unchanged
+    private static final String NO_HASH = "-";
+
+    @Nonnull private final File outputDir;
+    @Nonnull private final String optionsHash;
+    @Nonnull private final Map<String, Entry> previousEntries;
+    @Nonnull private final ConcurrentMap<String, Entry> entries = Maps.newConcurrentMap();
+
+    private IncrementalManifest(@Nonnull File outputDir, @Nonnull String optionsHash,
+                                @Nonnull Map<String, Entry> previousEntries) {
+        this.outputDir = outputDir;
+        this.optionsHash = optionsHash;
+        this.previousEntries = previousEntries;
+    }
+
+    public static class Entry {
+        @Nonnull public final String hash;
+        @Nonnull public final String path;
+
+        public Entry(@Nonnull String hash, @Nonnull String path) {
+            this.hash = hash;
+            this.path = path;
+        }
+    }
+
+    /**
+     * Loads the manifest from the given output directory.
+     *
+     * If there is no manifest, or it was written using different options, the returned manifest will have no
+     * previous entries.
+     */
+    @Nonnull
+    public static IncrementalManifest load(@Nonnull File outputDir, @Nonnull String optionsHash) throws IOException {
+        Map<String, Entry> previousEntries = Maps.newHashMap();
+
+        File manifestFile = new File(outputDir, MANIFEST_FILE_NAME);
+        if (manifestFile.isFile()) {
+            List<String> lines = Files.readLines(manifestFile, Charsets.UTF_8);
+            if (lines.size() >= 2 && lines.get(0).equals(HEADER) && lines.get(1).equals(optionsHash)) {
+                for (String line: lines.subList(2, lines.size())) {
+                    String[] parts = line.split("\t");
+                    if (parts.length != 3) {
+                        // The manifest is corrupt. Ignore it, and regenerate everything
+                        previousEntries.clear();
+                        break;
+                    }
+                    previousEntries.put(parts[1], new Entry(parts[0], parts[2]));
+                }
+            }
+        }
+
+        return new IncrementalManifest(outputDir, optionsHash, previousEntries);
+    }
+
+    /**
+     * Records the hash and output path of a class for the current disassembly.
+     *
+     * @param hash The hash of the class, or null if it couldn't be hashed. A class without a hash is still recorded,
+     *             so that its output file is kept, but it will be disassembled again the next time.
+     */
+    public void put(@Nonnull String type, @Nullable String hash, @Nonnull File smaliFile) {
+        entries.put(type, new Entry(hash == null ? NO_HASH : hash, getRelativePath(smaliFile)));
+    }
+
+    /**
+     * Determines if the given class is unchanged since the previous disassembly, and its output file still exists.
+     */
+    public boolean isUnchanged(@Nonnull String type, @Nonnull String hash, @Nonnull File smaliFile) {
+        Entry previousEntry = previousEntries.get(type);
+        return previousEntry != null &&
+                !previousEntry.hash.equals(NO_HASH) &&
+                previousEntry.hash.equals(hash) &&
+                previousEntry.path.equals(getRelativePath(smaliFile)) &&
+                smaliFile.isFile();
+    }
+
+    /**
+     * Carries over the previous entries for any classes that weren't disassembled this time. This is used when only
+     * a subset of the classes are disassembled.
+     */
+    public void keepPreviousEntries() {
+        for (Map.Entry<String, Entry> entry: previousEntries.entrySet()) {
+            entries.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Deletes the output files of any previously disassembled classes that weren't disassembled this time, unless the
+     * file now belongs to a different class.
+     */
+    public void deleteRemovedClasses() {
+        Map<String, String> currentPaths = Maps.newHashMap();
+        for (Map.Entry<String, Entry> entry: entries.entrySet()) {
+            currentPaths.put(entry.getValue().path, entry.getKey());
+        }
+
+        for (Map.Entry<String, Entry> entry: previousEntries.entrySet()) {
+            if (!entries.containsKey(entry.getKey()) && !currentPaths.containsKey(entry.getValue().path)) {
+                File smaliFile = new File(outputDir, entry.getValue().path);
+                // noinspection ResultOfMethodCallIgnored
+                smaliFile.delete();
+            }
+        }
+    }
+
+    public void save() throws IOException {
+        File manifestFile = new File(outputDir, MANIFEST_FILE_NAME);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(manifestFile), "UTF-8"));
+        try {
+            writer.write(HEADER);
+            writer.write('\n');
+            writer.write(optionsHash);
+            writer.write('\n');
+            for (String type: Ordering.natural().sortedCopy(entries.keySet())) {
+                Entry entry = entries.get(type);
+                writer.write(entry.hash);
+                writer.write('\t');
+                writer.write(type);
+                writer.write('\t');
+                writer.write(entry.path);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Nonnull
+    private String getRelativePath(@Nonnull File smaliFile) {
+        String outputPath = outputDir.getPath();
+        String path = smaliFile.getPath();
+        if (path.startsWith(outputPath) && path.length() > outputPath.length()) {
+            path = path.substring(outputPath.length() + 1);
+        }
+        return path.replace(File.separatorChar, '/');
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.baksmali;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+
+import javax.annotation.Nonnull;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects timing information about a parallel disassembly, to show how well the work was balanced between the
+ * worker threads.
+ */
+public class LoadBalancingReport {
+    private static final int SLOWEST_CLASS_COUNT = 10;
+
+    private final int jobs;
+    private final long startTime = System.nanoTime();
+    private long endTime = -1;
+
+    @Nonnull private final ConcurrentMap<String, ThreadStats> threadStats = Maps.newConcurrentMap();
+    @Nonnull private final List<ClassStats> classStats = Collections.synchronizedList(Lists.<ClassStats>newArrayList());
+
+    public LoadBalancingReport(int jobs) {
+        this.jobs = jobs;
+    }
+
+    private static class ThreadStats {
+        @Nonnull public final AtomicLong busyTime = new AtomicLong();
+        /** Time included in busyTime that was actually spent running or waiting for method rendering tasks */
+        @Nonnull public final AtomicLong methodWaitTime = new AtomicLong();
+        @Nonnull public final AtomicLong classCount = new AtomicLong();
+        @Nonnull public final AtomicLong methodCount = new AtomicLong();
+
+        public long getBusyTime() {
+            return busyTime.get() - methodWaitTime.get();
+        }
+    }
+
+    private static class ClassStats {
+        @Nonnull public final String type;
+        public final long time;
+        public final boolean split;
+
+        public ClassStats(@Nonnull String type, long time, boolean split) {
+            this.type = type;
+            this.time = time;
+            this.split = split;
+        }
+    }
+
+    @Nonnull
+    private ThreadStats getThreadStats() {
+        String threadName = Thread.currentThread().getName();
+        ThreadStats stats = threadStats.get(threadName);
+        if (stats == null) {
+            stats = new ThreadStats();
+            ThreadStats existing = threadStats.putIfAbsent(threadName, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Records the disassembly of a class on the current thread.
+     *
+     * @param type The type of the class
+     * @param time The time spent on the class, in nanoseconds. For a class that was split, this includes any time
+     *             spent running or waiting for its method rendering tasks. That time is recorded separately with
+     *             recordMethodWait, and isn't counted as busy time for the class.
+     * @param split Whether the methods of the class were rendered in parallel
+     */
+    public void recordClass(@Nonnull String type, long time, boolean split) {
+        ThreadStats stats = getThreadStats();
+        stats.busyTime.addAndGet(time);
+        stats.classCount.incrementAndGet();
+        classStats.add(new ClassStats(type, time, split));
+    }
+
+    /**
+     * Records the rendering of a single method of a split class, on the thread that actually rendered it.
+     *
+     * @param time The time spent rendering the method, in nanoseconds
+     */
+    public void recordMethod(long time) {
+        ThreadStats stats = getThreadStats();
+        stats.busyTime.addAndGet(time);
+        stats.methodCount.incrementAndGet();
+    }
+
+    /**
+     * Records the time the current thread spent running or waiting for a method rendering task of the class it is
+     * disassembling. If the task was run on this thread, its time has already been recorded with recordMethod.
+     *
+     * @param time The time spent, in nanoseconds
+     */
+    public void recordMethodWait(long time) {
+        getThreadStats().methodWaitTime.addAndGet(time);
+    }
+
+    public void finish() {
+        endTime = System.nanoTime();
+    }
+
+    public void print(@Nonnull PrintStream out) {
+        long wallTime = (endTime == -1 ? System.nanoTime() : endTime) - startTime;
+
+        long totalBusyTime = 0;
+        for (ThreadStats stats: threadStats.values()) {
+            totalBusyTime += stats.getBusyTime();
+        }
+
+        out.println(String.format("Disassembled %d classes with %d jobs in %d ms", classStats.size(), jobs,
+                toMillis(wallTime)));
+        if (wallTime > 0) {
+            out.println(String.format("Utilization: %.1f%% of %d ms available", 100.0 * totalBusyTime / wallTime / jobs,
+                    toMillis(wallTime * jobs)));
+        }
+
+        out.println();
+        out.println("Per-thread work:");
+        for (String threadName: Ordering.natural().sortedCopy(threadStats.keySet())) {
+            ThreadStats stats = threadStats.get(threadName);
+            out.println(String.format("  %s: %d ms busy, %d classes, %d split methods", threadName,
+                    toMillis(stats.getBusyTime()), stats.classCount.get(), stats.methodCount.get()));
+        }
+
+        List<ClassStats> slowestClasses;
+        synchronized (classStats) {
+            slowestClasses = new Ordering<ClassStats>() {
+                @Override public int compare(ClassStats left, ClassStats right) {
+                    return left.time < right.time ? -1 : (left.time == right.time ? 0 : 1);
+                }
+            }.greatestOf(classStats, SLOWEST_CLASS_COUNT);
+        }
+
+        out.println();
+        out.println("Slowest classes:");
+        for (ClassStats stats: slowestClasses) {
+            out.println(String.format("  %s: %d ms%s", stats.type, toMillis(stats.time),
+                    stats.split ? " (split by method)" : ""));
+        }
+    }
+
+    private static long toMillis(long nanos) {
+        return nanos / 1000000;
+    }
+}
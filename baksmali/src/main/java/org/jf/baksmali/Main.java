@@ -81,6 +81,7 @@ public class Main extends Command {
         List<JCommander> commandHierarchy = main.getCommandHierarchy();
 
         ExtendedCommands.addExtendedCommand(jc, new DisassembleCommand(commandHierarchy));
+        ExtendedCommands.addExtendedCommand(jc, new BatchDisassembleCommand(commandHierarchy));
         ExtendedCommands.addExtendedCommand(jc, new DeodexCommand(commandHierarchy));
         ExtendedCommands.addExtendedCommand(jc, new DumpCommand(commandHierarchy));
         ExtendedCommands.addExtendedCommand(jc, new HelpCommand(commandHierarchy));
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.baksmali;
+
+import com.google.common.collect.ImmutableList;
+import org.jf.dexlib2.analysis.ClassPath;
+import org.jf.dexlib2.analysis.ClassPathIndex;
+import org.jf.dexlib2.analysis.ClassPathResolver;
+import org.jf.dexlib2.analysis.ClassProvider;
+import org.jf.dexlib2.iface.DexFile;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A resolved class path, whose class providers can be shared by the class paths of multiple dex files.
+ *
+ * The class path files are only loaded once, and the class providers for them are shared, so that e.g. many apks
+ * can be analyzed against the same boot class path.
+ */
+public class SharedClassPath {
+    @Nonnull private final List<ClassProvider> classPathProviders;
+    private final boolean checkPackagePrivateAccess;
+    private final int oatVersion;
+    @Nullable private final ClassPathIndex classPathIndex;
+
+    public SharedClassPath(@Nonnull List<ClassProvider> classPathProviders, boolean checkPackagePrivateAccess,
+                           int oatVersion, @Nullable ClassPathIndex classPathIndex) {
+        this.classPathProviders = ImmutableList.copyOf(classPathProviders);
+        this.checkPackagePrivateAccess = checkPackagePrivateAccess;
+        this.oatVersion = oatVersion;
+        this.classPathIndex = classPathIndex;
+    }
+
+    /**
+     * Gets a SharedClassPath with an index of the classes in the shared class path providers, so that their vtables,
+     * field offsets and interfaces are only computed once, instead of once for each dex file.
+     *
+     * If this SharedClassPath already has an index, e.g. one that was loaded from a file, it is returned as is.
+     * Otherwise, an in-memory index is created.
+     *
+     * @param executor If non-null, the class tables will be computed in parallel, using this executor
+     */
+    @Nonnull
+    public SharedClassPath withIndex(@Nullable ExecutorService executor) throws IOException {
+        if (classPathIndex != null) {
+            return this;
+        }
+        ClassPath classPath = new ClassPath(classPathProviders, checkPackagePrivateAccess, oatVersion);
+        return new SharedClassPath(classPathProviders, checkPackagePrivateAccess, oatVersion,
+                ClassPathIndex.create(classPath, executor));
+    }
+
+    /**
+     * Creates a ClassPath for analyzing the given dex file, consisting of the shared class path providers, followed by
+     * the providers for the dex file itself.
+     */
+    @Nonnull
+    public ClassPath getClassPath(@Nonnull DexFile dexFile) throws IOException {
+        List<ClassProvider> classProviders = ImmutableList.<ClassProvider>builder()
+                .addAll(classPathProviders)
+                .addAll(ClassPathResolver.getDexFileProviders(dexFile))
+                .build();
+        return new ClassPath(classProviders, checkPackagePrivateAccess, oatVersion, classPathIndex);
+    }
+}
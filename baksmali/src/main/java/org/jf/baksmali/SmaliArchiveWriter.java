@@ -0,0 +1,375 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.baksmali;
+
+import com.google.common.collect.Maps;
+import org.jf.util.ClassFileNameHandler;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes the disassembled smali files into a single zip or tar archive, rather than into a directory tree.
+ *
+ * The paths of the files within the archive are generated by a ClassFileNameHandler, in the same way as when writing
+ * into a directory. Since the archive might be extracted on any file system, the paths are always generated as if for
+ * a case insensitive file system that doesn't allow windows reserved file names.
+ *
+ * The entries are handed to a single writer thread, which writes them into the archive in sequence order. Each
+ * sequence number from 0 up to the number of entries must be either added or skipped before the archive is closed.
+ */
+public class SmaliArchiveWriter implements Closeable {
+    public enum Format {
+        ZIP,
+        TAR
+    }
+
+    /**
+     * The maximum total size of the entries that are waiting for an entry with a lower sequence number, before
+     * addEntry blocks
+     */
+    private static final int MAX_PENDING_BYTES = 32 * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // used as the value for skipped entries
+    private static final PendingEntry SKIPPED = new PendingEntry("", new byte[0]);
+
+    @Nonnull private final ClassFileNameHandler fileNameHandler;
+    @Nonnull private final File rootPath;
+    @Nonnull private final Format format;
+    @Nonnull private final OutputStream outputStream;
+    private final long time;
+    @Nonnull private final Thread writerThread;
+
+    // These are all guarded by this
+    @Nonnull private final Map<Integer, PendingEntry> pendingEntries = Maps.newHashMap();
+    private long pendingBytes = 0;
+    private int nextSequence = 0;
+    private boolean closed = false;
+    @Nullable private IOException error = null;
+
+    /**
+     * Creates a new archive, and starts its writer thread
+     *
+     * @param archiveFile The archive file to create. It is overwritten if it already exists.
+     * @param format The format of the archive
+     */
+    public SmaliArchiveWriter(@Nonnull File archiveFile, @Nonnull Format format) throws IOException {
+        // The root path is only used to build the paths for the handler. It never touches the file system, since the
+        // case sensitivity is given
+        this.rootPath = new File("archive");
+        this.fileNameHandler = new ClassFileNameHandler(rootPath, ".smali", false, true);
+        this.format = format;
+        this.time = System.currentTimeMillis();
+
+        OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(archiveFile));
+        if (format == Format.ZIP) {
+            outputStream = new ZipOutputStream(outputStream);
+        }
+        this.outputStream = outputStream;
+
+        writerThread = new Thread(new Runnable() {
+            @Override public void run() {
+                writeEntries();
+            }
+        }, "smali archive writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Gets the path of the file for the given class within the archive. This should be called once per class.
+     *
+     * @param classDescriptor The class descriptor, e.g. Ljava/lang/Object;
+     * @return The path of the file within the archive, using '/' as a separator
+     */
+    @Nonnull
+    public String getPathForClass(@Nonnull String classDescriptor) {
+        File file = fileNameHandler.getUniqueFilenameForClass(classDescriptor);
+        String path = file.getPath().substring(rootPath.getPath().length() + 1);
+        if (File.separatorChar != '/') {
+            path = path.replace(File.separatorChar, '/');
+        }
+        return path;
+    }
+
+    /**
+     * Hands an entry to the writer thread. This may block until the entries with lower sequence numbers have been
+     * written, if too many entries are already waiting for them.
+     *
+     * @param sequence The sequence number of the entry
+     * @param path The path of the entry within the archive, as returned by getPathForClass
+     * @param data The contents of the entry
+     */
+    public synchronized void addEntry(int sequence, @Nonnull String path, @Nonnull byte[] data) {
+        while (sequence != nextSequence && pendingBytes > MAX_PENDING_BYTES && error == null) {
+            waitUninterruptibly();
+        }
+        pendingEntries.put(sequence, new PendingEntry(path, data));
+        pendingBytes += data.length;
+        notifyAll();
+    }
+
+    /**
+     * Indicates that there is no entry for the given sequence number, e.g. because the class couldn't be disassembled
+     */
+    public synchronized void skipEntry(int sequence) {
+        pendingEntries.put(sequence, SKIPPED);
+        notifyAll();
+    }
+
+    /**
+     * Waits for all of the entries to be written, and then finishes the archive.
+     *
+     * @throws IOException If an error occurred while writing any of the entries, or while finishing the archive
+     */
+    @Override public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                writerThread.join();
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        IOException error;
+        synchronized (this) {
+            error = this.error;
+        }
+
+        try {
+            if (error == null) {
+                if (format == Format.TAR) {
+                    // the end of a tar archive is marked by 2 empty blocks
+                    outputStream.write(new byte[TAR_BLOCK_SIZE * 2]);
+                }
+            }
+        } finally {
+            outputStream.close();
+        }
+
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void writeEntries() {
+        while (true) {
+            PendingEntry entry;
+            synchronized (this) {
+                while (!pendingEntries.containsKey(nextSequence) && !closed) {
+                    waitUninterruptibly();
+                }
+                entry = pendingEntries.remove(nextSequence);
+                if (entry == null) {
+                    // closed, and all of the entries have been written
+                    return;
+                }
+            }
+
+            try {
+                if (entry != SKIPPED) {
+                    writeEntry(entry);
+                }
+            } catch (IOException ex) {
+                synchronized (this) {
+                    error = ex;
+                    pendingEntries.clear();
+                    pendingBytes = 0;
+                    notifyAll();
+                }
+                return;
+            }
+
+            synchronized (this) {
+                pendingBytes -= entry.data.length;
+                nextSequence++;
+                notifyAll();
+            }
+        }
+    }
+
+    private void waitUninterruptibly() {
+        boolean interrupted = false;
+        try {
+            wait();
+        } catch (InterruptedException ex) {
+            interrupted = true;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeEntry(@Nonnull PendingEntry entry) throws IOException {
+        if (format == Format.ZIP) {
+            ZipOutputStream zipOutputStream = (ZipOutputStream)outputStream;
+            ZipEntry zipEntry = new ZipEntry(entry.path);
+            zipEntry.setTime(time);
+            zipOutputStream.putNextEntry(zipEntry);
+            zipOutputStream.write(entry.data);
+            zipOutputStream.closeEntry();
+        } else {
+            writeTarEntry(entry.path, entry.data);
+        }
+    }
+
+    private static final int TAR_BLOCK_SIZE = 512;
+    private static final int TAR_NAME_LENGTH = 100;
+    private static final int TAR_PREFIX_LENGTH = 155;
+
+    private void writeTarEntry(@Nonnull String path, @Nonnull byte[] data) throws IOException {
+        byte[] pathBytes = path.getBytes(UTF8);
+
+        String name = path;
+        String prefix = "";
+        if (pathBytes.length > TAR_NAME_LENGTH) {
+            int split = getTarPrefixSplit(path);
+            if (split < 0) {
+                // The path doesn't fit into the ustar name and prefix fields, so write a gnu long name entry first
+                byte[] longName = new byte[pathBytes.length + 1];
+                System.arraycopy(pathBytes, 0, longName, 0, pathBytes.length);
+                writeTarHeader("././@LongLink", "", longName.length, 'L');
+                writeTarData(longName);
+                name = new String(pathBytes, 0, TAR_NAME_LENGTH, UTF8);
+            } else {
+                prefix = path.substring(0, split);
+                name = path.substring(split + 1);
+            }
+        }
+
+        writeTarHeader(name, prefix, data.length, '0');
+        writeTarData(data);
+    }
+
+    /**
+     * @return The index of the '/' to split the path at, into the ustar prefix and name fields, or -1 if there's no
+     * suitable split
+     */
+    private static int getTarPrefixSplit(@Nonnull String path) {
+        for (int i = path.indexOf('/'); i >= 0; i = path.indexOf('/', i + 1)) {
+            int prefixLength = path.substring(0, i).getBytes(UTF8).length;
+            int nameLength = path.substring(i + 1).getBytes(UTF8).length;
+            if (prefixLength > TAR_PREFIX_LENGTH) {
+                return -1;
+            }
+            if (nameLength <= TAR_NAME_LENGTH) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void writeTarHeader(@Nonnull String name, @Nonnull String prefix, long size, char type)
+            throws IOException {
+        byte[] header = new byte[TAR_BLOCK_SIZE];
+        putTarField(header, 0, TAR_NAME_LENGTH, name.getBytes(UTF8));
+        putTarOctal(header, 100, 8, 0644);
+        putTarOctal(header, 108, 8, 0);
+        putTarOctal(header, 116, 8, 0);
+        putTarOctal(header, 124, 12, size);
+        putTarOctal(header, 136, 12, time / 1000);
+        header[156] = (byte)type;
+        putTarField(header, 257, 6, "ustar".getBytes(UTF8));
+        header[263] = '0';
+        header[264] = '0';
+        putTarField(header, 345, TAR_PREFIX_LENGTH, prefix.getBytes(UTF8));
+
+        // the checksum is calculated with the checksum field filled with spaces
+        for (int i=148; i<156; i++) {
+            header[i] = ' ';
+        }
+        int checksum = 0;
+        for (byte b: header) {
+            checksum += b & 0xff;
+        }
+        putTarOctal(header, 148, 7, checksum);
+
+        outputStream.write(header);
+    }
+
+    private void writeTarData(@Nonnull byte[] data) throws IOException {
+        outputStream.write(data);
+        int padding = (TAR_BLOCK_SIZE - (data.length % TAR_BLOCK_SIZE)) % TAR_BLOCK_SIZE;
+        outputStream.write(new byte[padding]);
+    }
+
+    private static void putTarField(@Nonnull byte[] header, int offset, int length, @Nonnull byte[] value) {
+        System.arraycopy(value, 0, header, offset, Math.min(length, value.length));
+    }
+
+    /**
+     * Writes a zero-padded, null terminated octal number into a tar header field
+     */
+    private static void putTarOctal(@Nonnull byte[] header, int offset, int length, long value) {
+        String octal = Long.toOctalString(value);
+        StringBuilder sb = new StringBuilder();
+        for (int i=octal.length(); i<length-1; i++) {
+            sb.append('0');
+        }
+        sb.append(octal);
+        putTarField(header, offset, length - 1, sb.toString().getBytes(UTF8));
+        header[offset + length - 1] = 0;
+    }
+
+    private static class PendingEntry {
+        @Nonnull public final String path;
+        @Nonnull public final byte[] data;
+
+        public PendingEntry(@Nonnull String path, @Nonnull byte[] data) {
+            this.path = path;
+            this.data = data;
+        }
+    }
+}
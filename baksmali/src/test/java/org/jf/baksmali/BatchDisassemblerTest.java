@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.baksmali;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import junit.framework.Assert;
+import org.jf.baksmali.BatchDisassembler.OptionsFactory;
+import org.jf.baksmali.BatchDisassembler.Result;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.smali.Smali;
+import org.jf.smali.SmaliOptions;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+public class BatchDisassemblerTest {
+    @Test
+    public void testBatchDisassembly() throws IOException {
+        File tempDir = Files.createTempDir();
+        try {
+            List<File> inputs = Lists.newArrayList();
+            for (int i=0; i<6; i++) {
+                File inputDir = new File(tempDir, "input" + i);
+                Assert.assertTrue(inputDir.mkdirs());
+                // all of the inputs have the same name, so each needs a unique output directory
+                inputs.add(assemble(inputDir, "app.dex", "LInput" + i + ";"));
+            }
+
+            File invalidInput = new File(tempDir, "invalid.dex");
+            Files.write("not a dex file", invalidInput, Charsets.UTF_8);
+            inputs.add(3, invalidInput);
+
+            File missingInput = new File(tempDir, "missing.dex");
+            inputs.add(missingInput);
+
+            File outputDir = new File(tempDir, "out");
+            OptionsFactory optionsFactory = new OptionsFactory() {
+                @Nonnull @Override
+                public BaksmaliOptions getOptions(@Nonnull File inputFile, @Nonnull DexBackedDexFile dexFile) {
+                    return new BaksmaliOptions();
+                }
+            };
+
+            List<Result> results = new BatchDisassembler(3, Opcodes.getDefault()).disassemble(inputs, outputDir,
+                    optionsFactory, null, null);
+            Assert.assertEquals(inputs.size(), results.size());
+
+            int classIndex = 0;
+            for (int i=0; i<results.size(); i++) {
+                Result result = results.get(i);
+                Assert.assertEquals(inputs.get(i), result.inputFile);
+
+                if (result.inputFile.equals(invalidInput) || result.inputFile.equals(missingInput)) {
+                    Assert.assertFalse(result.success);
+                    Assert.assertNotNull(result.error);
+                    continue;
+                }
+
+                Assert.assertTrue(result.toString(), result.success);
+                Assert.assertEquals(2, result.classCount);
+                Assert.assertTrue(new File(result.outputDir, "Input" + classIndex + ".smali").isFile());
+                Assert.assertTrue(new File(result.outputDir, "Common.smali").isFile());
+                classIndex++;
+            }
+            Assert.assertEquals(new File(outputDir, "app"), results.get(0).outputDir);
+            Assert.assertEquals(new File(outputDir, "app-2"), results.get(1).outputDir);
+        } finally {
+            delete(tempDir);
+        }
+    }
+
+    @Nonnull
+    private static File assemble(@Nonnull File dir, @Nonnull String name, @Nonnull String type) throws IOException {
+        File smaliDir = new File(dir, "smali");
+        Assert.assertTrue(smaliDir.mkdirs());
+        Files.write(".class public " + type + "\n.super Ljava/lang/Object;\n", new File(smaliDir, "0.smali"),
+                Charsets.UTF_8);
+        Files.write(".class public LCommon;\n.super Ljava/lang/Object;\n", new File(smaliDir, "1.smali"),
+                Charsets.UTF_8);
+
+        File dexFile = new File(dir, name);
+        SmaliOptions smaliOptions = new SmaliOptions();
+        smaliOptions.outputDexFile = dexFile.getPath();
+        Assert.assertTrue(Smali.assemble(smaliOptions, smaliDir.getPath()));
+        return dexFile;
+    }
+
+    private static void delete(@Nonnull File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child: files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
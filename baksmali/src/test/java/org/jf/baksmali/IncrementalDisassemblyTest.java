@@ -0,0 +1,215 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.baksmali;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import junit.framework.Assert;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.util.SyntheticAccessorResolver;
+import org.jf.smali.Smali;
+import org.jf.smali.SmaliOptions;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+public class IncrementalDisassemblyTest {
+    private static final String MARKER = "unchanged";
+
+    private static final String CLASS_A = "" +
+            ".class public LA;\n" +
+            ".super Ljava/lang/Object;\n" +
+            ".method public static test()Ljava/lang/String;\n" +
+            "    .registers 1\n" +
+            "    const-string v0, \"a string\"\n" +
+            "    invoke-static {}, LC;->test()V\n" +
+            "    return-object v0\n" +
+            ".end method\n";
+
+    private static final String CLASS_B = "" +
+            ".class public LB;\n" +
+            ".super Ljava/lang/Object;\n" +
+            ".method static synthetic access$000()I\n" +
+            "    .registers 1\n" +
+            "    sget v0, LB;->value:I\n" +
+            "    return v0\n" +
+            ".end method\n" +
+            ".field private static value:I\n";
+
+    private static final String CLASS_B_MODIFIED = "" +
+            ".class public LB;\n" +
+            ".super Ljava/lang/Object;\n" +
+            ".method static synthetic access$000()I\n" +
+            "    .registers 1\n" +
+            "    const/4 v0, 0x1\n" +
+            "    return v0\n" +
+            ".end method\n" +
+            ".field private static value:I\n";
+
+    private static final String CLASS_C = "" +
+            ".class public LC;\n" +
+            ".super Ljava/lang/Object;\n" +
+            ".method public static test()V\n" +
+            "    .registers 1\n" +
+            "    invoke-static {}, LB;->access$000()I\n" +
+            "    return-void\n" +
+            ".end method\n";
+
+    private static final String CLASS_D = "" +
+            ".class public LD;\n" +
+            ".super Ljava/lang/Object;\n" +
+            ".field public static value:Ljava/lang/String; = \"d\"\n";
+
+    private static final String CLASS_AAA = "" +
+            ".class public LAAA;\n" +
+            ".super Ljava/lang/Object;\n" +
+            ".method public static test()Ljava/lang/String;\n" +
+            "    .registers 1\n" +
+            "    const-string v0, \"AAA string\"\n" +
+            "    return-object v0\n" +
+            ".end method\n";
+
+    @Test
+    public void testIncrementalDisassembly() throws IOException {
+        File tempDir = Files.createTempDir();
+        try {
+            File outputDir = new File(tempDir, "out");
+
+            disassemble(tempDir, outputDir, CLASS_A, CLASS_B, CLASS_C, CLASS_D);
+            Assert.assertTrue(new File(outputDir, IncrementalManifest.MANIFEST_FILE_NAME).isFile());
+            for (String name: new String[] { "A", "B", "C", "D" }) {
+                Files.write(MARKER, new File(outputDir, name + ".smali"), Charsets.UTF_8);
+            }
+
+            // The new class shifts the indexes of all the existing strings and types, which shouldn't cause A or D to
+            // be rewritten. C calls the modified accessor in B, so it should be rewritten along with B.
+            disassemble(tempDir, outputDir, CLASS_AAA, CLASS_A, CLASS_B_MODIFIED, CLASS_C, CLASS_D);
+            Assert.assertEquals(MARKER, read(outputDir, "A"));
+            Assert.assertFalse(MARKER.equals(read(outputDir, "B")));
+            Assert.assertFalse(MARKER.equals(read(outputDir, "C")));
+            Assert.assertEquals(MARKER, read(outputDir, "D"));
+            Assert.assertTrue(new File(outputDir, "AAA.smali").isFile());
+
+            disassemble(tempDir, outputDir, CLASS_AAA, CLASS_A, CLASS_B_MODIFIED, CLASS_C);
+            Assert.assertEquals(MARKER, read(outputDir, "A"));
+            Assert.assertFalse(new File(outputDir, "D.smali").exists());
+        } finally {
+            delete(tempDir);
+        }
+    }
+
+    @Test
+    public void testUnhashableClass() throws IOException {
+        File tempDir = Files.createTempDir();
+        try {
+            File outputDir = new File(tempDir, "out");
+
+            DexBackedDexFile dex = assemble(tempDir, CLASS_A, CLASS_D);
+            disassemble(dex, outputDir);
+            Files.write(MARKER, new File(outputDir, "A.smali"), Charsets.UTF_8);
+            Files.write(MARKER, new File(outputDir, "D.smali"), Charsets.UTF_8);
+
+            // The instructions of an immutable class aren't backed by the dex file, so the class can't be hashed.
+            // It should be written on every run, and not be deleted as a removed class.
+            List<ClassDef> classDefs = Lists.newArrayList();
+            for (ClassDef classDef: dex.getClasses()) {
+                classDefs.add(classDef.getType().equals("LA;") ? ImmutableClassDef.of(classDef) : classDef);
+            }
+            DexFile unhashableDex = new ImmutableDexFile(dex.getOpcodes(), classDefs);
+
+            for (int i=0; i<2; i++) {
+                disassemble(unhashableDex, outputDir);
+                Assert.assertTrue(new File(outputDir, "A.smali").isFile());
+                Assert.assertFalse(MARKER.equals(read(outputDir, "A")));
+                Assert.assertEquals(MARKER, read(outputDir, "D"));
+                Files.write(MARKER, new File(outputDir, "A.smali"), Charsets.UTF_8);
+            }
+        } finally {
+            delete(tempDir);
+        }
+    }
+
+    private static void disassemble(@Nonnull File tempDir, @Nonnull File outputDir, @Nonnull String... classes)
+            throws IOException {
+        disassemble(assemble(tempDir, classes), outputDir);
+    }
+
+    private static void disassemble(@Nonnull DexFile dexFile, @Nonnull File outputDir) {
+        BaksmaliOptions options = new BaksmaliOptions();
+        options.incremental = true;
+        options.syntheticAccessorResolver = new SyntheticAccessorResolver(dexFile.getOpcodes(), dexFile.getClasses());
+        Assert.assertTrue(Baksmali.disassembleDexFile(dexFile, outputDir, 1, options));
+    }
+
+    @Nonnull
+    private static DexBackedDexFile assemble(@Nonnull File tempDir, @Nonnull String... classes) throws IOException {
+        File smaliDir = new File(tempDir, "smali");
+        delete(smaliDir);
+        Assert.assertTrue(smaliDir.mkdirs());
+        for (int i=0; i<classes.length; i++) {
+            Files.write(classes[i], new File(smaliDir, i + ".smali"), Charsets.UTF_8);
+        }
+
+        File dexFile = new File(tempDir, "classes.dex");
+        SmaliOptions smaliOptions = new SmaliOptions();
+        smaliOptions.outputDexFile = dexFile.getPath();
+        Assert.assertTrue(Smali.assemble(smaliOptions, smaliDir.getPath()));
+
+        return DexFileFactory.loadDexFile(dexFile, Opcodes.getDefault());
+    }
+
+    @Nonnull
+    private static String read(@Nonnull File outputDir, @Nonnull String name) throws IOException {
+        return Files.toString(new File(outputDir, name + ".smali"), Charsets.UTF_8);
+    }
+
+    private static void delete(@Nonnull File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child: files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.baksmali;
+
+import com.google.common.collect.Lists;
+import junit.framework.Assert;
+import org.antlr.runtime.RecognitionException;
+import org.jf.baksmali.Adaptors.ClassDefinition;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.smali.SmaliTestUtils;
+import org.jf.util.IndentingWriter;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class ParallelMethodRenderingTest {
+    private static final String SOURCE = "" +
+            ".class public LParallelMethodRenderingTest;\n" +
+            ".super Ljava/lang/Object;\n" +
+            ".method public constructor <init>()V\n" +
+            "    .registers 1\n" +
+            "    invoke-direct {p0}, Ljava/lang/Object;-><init>()V\n" +
+            "    return-void\n" +
+            ".end method\n" +
+            ".method private static direct(I)I\n" +
+            "    .registers 2\n" +
+            "    .line 10\n" +
+            "    add-int/lit8 v0, p0, 0x1\n" +
+            "    return v0\n" +
+            ".end method\n" +
+            ".method public abstract virtualAbstract()V\n" +
+            ".end method\n" +
+            ".method public virtual(Ljava/lang/String;)Ljava/lang/String;\n" +
+            "    .registers 3\n" +
+            "    if-nez p1, :cond_0\n" +
+            "    const-string v0, \"null\"\n" +
+            "    return-object v0\n" +
+            "    :cond_0\n" +
+            "    return-object p1\n" +
+            ".end method\n" +
+            ".method public virtual2()V\n" +
+            "    .registers 1\n" +
+            "    :try_start\n" +
+            "    invoke-static {}, LParallelMethodRenderingTest;->other()V\n" +
+            "    :try_end\n" +
+            "    .catchall {:try_start .. :try_end} :handler\n" +
+            "    return-void\n" +
+            "    :handler\n" +
+            "    return-void\n" +
+            ".end method\n";
+
+    @Test
+    public void testParallelRendering() throws IOException, RecognitionException {
+        ClassDef classDef = SmaliTestUtils.compileSmali(SOURCE);
+        String expected = render(classDef, null);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Assert.assertEquals(expected, render(classDef, executor));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testCallerRunsRendering() throws IOException, RecognitionException {
+        ClassDef classDef = SmaliTestUtils.compileSmali(SOURCE);
+        String expected = render(classDef, null);
+
+        // an executor that never runs anything, so the writing thread has to render every method itself
+        Executor executor = new Executor() {
+            @Override public void execute(@Nonnull Runnable command) {
+            }
+        };
+        Assert.assertEquals(expected, render(classDef, executor));
+    }
+
+    @Test
+    public void testReportCountsOnlyRenderedMethods() throws IOException, RecognitionException {
+        ClassDef classDef = SmaliTestUtils.compileSmali(SOURCE);
+
+        // the tasks are only run after the class has been written, by which point the writing thread has already
+        // rendered every method itself, so running them again does nothing and shouldn't be counted
+        final List<Runnable> tasks = Lists.newArrayList();
+        Executor executor = new Executor() {
+            @Override public void execute(@Nonnull Runnable command) {
+                tasks.add(command);
+            }
+        };
+        LoadBalancingReport report = new LoadBalancingReport(1);
+        render(classDef, executor, report);
+        for (Runnable task: tasks) {
+            task.run();
+        }
+        Assert.assertEquals(5, tasks.size());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        report.print(new PrintStream(output, true));
+        Matcher matcher = Pattern.compile("(\\d+) split methods").matcher(output.toString());
+        int methodCount = 0;
+        while (matcher.find()) {
+            methodCount += Integer.parseInt(matcher.group(1));
+        }
+        Assert.assertEquals(5, methodCount);
+    }
+
+    @Nonnull
+    private static String render(@Nonnull ClassDef classDef, @Nullable Executor executor) throws IOException {
+        return render(classDef, executor, null);
+    }
+
+    @Nonnull
+    private static String render(@Nonnull ClassDef classDef, @Nullable Executor executor,
+                                 @Nullable LoadBalancingReport report) throws IOException {
+        StringWriter stringWriter = new StringWriter();
+        IndentingWriter writer = new IndentingWriter(stringWriter);
+        ClassDefinition classDefinition = new ClassDefinition(new BaksmaliOptions(), classDef);
+        classDefinition.setMethodExecutor(executor);
+        classDefinition.setLoadBalancingReport(report);
+        classDefinition.writeTo(writer);
+        writer.close();
+        return stringWriter.toString();
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.baksmali;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import junit.framework.Assert;
+import org.jf.baksmali.SmaliArchiveWriter.Format;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.smali.Smali;
+import org.jf.smali.SmaliOptions;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+public class SmaliArchiveWriterTest {
+    private static final String LONG_PACKAGE =
+            "com/example/a/really/long/package/name/that/does/not/fit/into/the/name/field/of/a/tar/header/";
+
+    @Test
+    public void testArchiveOutput() throws IOException {
+        File tempDir = Files.createTempDir();
+        try {
+            File smaliDir = new File(tempDir, "smali");
+            Assert.assertTrue(smaliDir.mkdirs());
+            String[] types = new String[] { "LFoo;", "Lfoo;", "Lcom/example/Bar;", "Lcon;",
+                    "L" + LONG_PACKAGE + "Baz;",
+                    "L" + LONG_PACKAGE + "AClassNameThatIsLongEnoughThatThePathCannotBeSplitIntoANameAndPrefix" +
+                            "AtAllWithoutUsingAGnuLongLinkEntryToHoldTheFullNameOfTheFileInsteadOfTheHeader;" };
+            for (int i=0; i<types.length; i++) {
+                Files.write(".class public " + types[i] + "\n.super Ljava/lang/Object;\n",
+                        new File(smaliDir, i + ".smali"), Charsets.UTF_8);
+            }
+
+            File dexFile = new File(tempDir, "classes.dex");
+            SmaliOptions smaliOptions = new SmaliOptions();
+            smaliOptions.outputDexFile = dexFile.getPath();
+            Assert.assertTrue(Smali.assemble(smaliOptions, smaliDir.getPath()));
+            DexBackedDexFile dex = DexBackedDexFile.fromInputStream(Opcodes.getDefault(),
+                    new BufferedInputStream(new FileInputStream(dexFile)));
+
+            BaksmaliOptions options = new BaksmaliOptions();
+
+            File zipFile = new File(tempDir, "out.zip");
+            SmaliArchiveWriter writer = new SmaliArchiveWriter(zipFile, Format.ZIP);
+            Assert.assertTrue(Baksmali.disassembleDexFile(dex, writer, 3, options, null));
+            writer.close();
+
+            File tarFile = new File(tempDir, "out.tar");
+            writer = new SmaliArchiveWriter(tarFile, Format.TAR);
+            Assert.assertTrue(Baksmali.disassembleDexFile(dex, writer, 3, options, null));
+            writer.close();
+
+            Map<String, String> zipEntries = readZip(zipFile);
+            Map<String, String> tarEntries = readTar(tarFile);
+            Assert.assertEquals(types.length, zipEntries.size());
+            Assert.assertEquals(zipEntries, tarEntries);
+
+            // the two differently-cased classes must get distinct paths, as on a case-insensitive filesystem
+            Assert.assertTrue(zipEntries.containsKey("Foo.smali"));
+            Assert.assertTrue(zipEntries.containsKey("foo.1.smali"));
+            Assert.assertTrue(zipEntries.containsKey("com/example/Bar.smali"));
+            Assert.assertTrue(zipEntries.containsKey("con#.smali"));
+            Assert.assertTrue(zipEntries.containsKey(LONG_PACKAGE + "Baz.smali"));
+            Assert.assertTrue(zipEntries.get("com/example/Bar.smali").startsWith(
+                    ".class public Lcom/example/Bar;\n.super Ljava/lang/Object;\n"));
+
+            // smali can assemble directly from either archive
+            Set<String> expectedTypes = Sets.newHashSet(types);
+            for (File archive: new File[] { zipFile, tarFile }) {
+                File reassembledFile = new File(tempDir, archive.getName() + ".dex");
+                smaliOptions.outputDexFile = reassembledFile.getPath();
+                Assert.assertTrue(Smali.assemble(smaliOptions, archive.getPath()));
+
+                DexBackedDexFile reassembled = DexBackedDexFile.fromInputStream(Opcodes.getDefault(),
+                        new BufferedInputStream(new FileInputStream(reassembledFile)));
+                Set<String> reassembledTypes = Sets.newHashSet();
+                for (ClassDef classDef: reassembled.getClasses()) {
+                    reassembledTypes.add(classDef.getType());
+                }
+                Assert.assertEquals(expectedTypes, reassembledTypes);
+            }
+        } finally {
+            delete(tempDir);
+        }
+    }
+
+    @Nonnull
+    private static Map<String, String> readZip(@Nonnull File zipFile) throws IOException {
+        Map<String, String> entries = Maps.newLinkedHashMap();
+        ZipInputStream zis = new ZipInputStream(new FileInputStream(zipFile));
+        try {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                entries.put(entry.getName(), new String(ByteStreams.toByteArray(zis), Charsets.UTF_8));
+            }
+        } finally {
+            zis.close();
+        }
+        return entries;
+    }
+
+    @Nonnull
+    private static Map<String, String> readTar(@Nonnull File tarFile) throws IOException {
+        Map<String, String> entries = Maps.newLinkedHashMap();
+        DataInputStream dis = new DataInputStream(new FileInputStream(tarFile));
+        try {
+            String longName = null;
+            byte[] header = new byte[512];
+            while (true) {
+                dis.readFully(header);
+                String name = readTarString(header, 0, 100);
+                if (name.isEmpty()) {
+                    break;
+                }
+                int size = Integer.parseInt(readTarString(header, 124, 12).trim(), 8);
+                byte[] data = new byte[size];
+                dis.readFully(data);
+                ByteStreams.skipFully(dis, (512 - (size % 512)) % 512);
+
+                if (header[156] == 'L') {
+                    longName = readTarString(data, 0, data.length);
+                    continue;
+                }
+                Assert.assertEquals('0', header[156]);
+                String prefix = readTarString(header, 345, 155);
+                if (longName != null) {
+                    name = longName;
+                    longName = null;
+                } else if (!prefix.isEmpty()) {
+                    name = prefix + "/" + name;
+                }
+                entries.put(name, new String(data, Charsets.UTF_8));
+            }
+        } finally {
+            dis.close();
+        }
+        return entries;
+    }
+
+    @Nonnull
+    private static String readTarString(@Nonnull byte[] buf, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && buf[end] != 0) {
+            end++;
+        }
+        return new String(buf, offset, end - offset, Charsets.UTF_8);
+    }
+
+    private static void delete(@Nonnull File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child: files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -36,12 +36,15 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
+import org.jf.dexlib2.dexbacked.BaseDexBuffer;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile;
 import org.jf.dexlib2.dexbacked.DexBackedDexFile.NotADexFile;
 import org.jf.dexlib2.dexbacked.DexBackedOdexFile;
+import org.jf.dexlib2.dexbacked.MappedZipDexContainer;
 import org.jf.dexlib2.dexbacked.OatFile;
 import org.jf.dexlib2.dexbacked.OatFile.NotAnOatFileException;
 import org.jf.dexlib2.dexbacked.OatFile.OatDexFile;
+import org.jf.dexlib2.dexbacked.OatFile.VdexBufferProvider;
 import org.jf.dexlib2.dexbacked.OatFile.VdexProvider;
 import org.jf.dexlib2.dexbacked.ZipDexContainer;
 import org.jf.dexlib2.dexbacked.ZipDexContainer.NotAZipFileException;
@@ -53,6 +56,8 @@ import org.jf.util.ExceptionWithContext;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.List;
 
 public final class DexFileFactory {
@@ -280,6 +285,161 @@ public final class DexFileFactory {
         throw new UnsupportedFileTypeException("%s is not an apk, dex, odex or oat file.", file.getPath());
     }
 
+    /**
+     * Loads a dex/apk/odex/oat file, memory-mapping dex, odex and oat files rather than reading them into the heap.
+     *
+     * This behaves the same as {@link #loadDexFile(File, Opcodes)}, except that the returned dex file reads directly
+     * from a read-only mapping of the file. For a zip/apk file, the zip file is mapped instead, and the dex file is
+     * read directly from the mapping if it is stored without compression, or inflated into the heap otherwise.
+     *
+     * @param file The file to open
+     * @param opcodes The set of opcodes to use
+     * @return A DexBackedDexFile for the given file
+     *
+     * @throws UnsupportedOatVersionException If file refers to an unsupported oat file
+     * @throws DexFileNotFoundException If file does not exist, if file is a zip file but does not have a "classes.dex"
+     * entry, or if file is an oat file that has no dex entries.
+     * @throws UnsupportedFileTypeException If file is not a valid dex/zip/odex/oat file, or if the "classes.dex" entry
+     * in a zip file is not a valid dex file
+     */
+    @Nonnull
+    public static DexBackedDexFile mapDexFile(@Nonnull File file, @Nonnull Opcodes opcodes) throws IOException {
+        if (!file.exists()) {
+            throw new DexFileNotFoundException("%s does not exist", file.getName());
+        }
+
+        ZipDexContainer zipDexContainer = getMappedZipDexContainer(file, opcodes);
+        if (zipDexContainer != null) {
+            return new DexEntryFinder(file.getPath(), zipDexContainer).findEntry("classes.dex", true);
+        }
+
+        ByteBuffer buf = mapFile(file);
+
+        DexBackedDexFile dexFile = mapDexOrOdexFile(buf, opcodes);
+        if (dexFile != null) {
+            return dexFile;
+        }
+
+        OatFile oatFile = mapOatFile(file, buf);
+        if (oatFile != null) {
+            List<OatDexFile> oatDexFiles = oatFile.getDexFiles();
+
+            if (oatDexFiles.size() == 0) {
+                throw new DexFileNotFoundException("Oat file %s contains no dex files", file.getName());
+            }
+
+            return oatDexFiles.get(0);
+        }
+
+        throw new UnsupportedFileTypeException("%s is not an apk, dex, odex or oat file.", file.getPath());
+    }
+
+    /**
+     * Loads a file containing 1 or more dex files, memory-mapping dex, odex and oat files rather than reading them
+     * into the heap.
+     *
+     * This behaves the same as {@link #loadDexContainer(File, Opcodes)}, except that dex, odex and oat files are read
+     * directly from a read-only mapping of the file. For a zip/apk file, a {@link MappedZipDexContainer} is returned,
+     * which maps the zip file once, and reads the dex entries from that mapping.
+     *
+     * @param file The file to open
+     * @param opcodes The set of opcodes to use
+     * @return A MultiDexContainer
+     * @throws DexFileNotFoundException If the given file does not exist
+     * @throws UnsupportedFileTypeException If the given file is not a valid dex/zip/odex/oat file
+     */
+    public static MultiDexContainer<? extends DexBackedDexFile> mapDexContainer(
+            @Nonnull File file, @Nonnull final Opcodes opcodes) throws IOException {
+        if (!file.exists()) {
+            throw new DexFileNotFoundException("%s does not exist", file.getName());
+        }
+
+        ZipDexContainer zipDexContainer = getMappedZipDexContainer(file, opcodes);
+        if (zipDexContainer != null) {
+            return zipDexContainer;
+        }
+
+        ByteBuffer buf = mapFile(file);
+
+        DexBackedDexFile dexFile = mapDexOrOdexFile(buf, opcodes);
+        if (dexFile != null) {
+            return new SingletonMultiDexContainer(file.getPath(), dexFile);
+        }
+
+        OatFile oatFile = mapOatFile(file, buf);
+        if (oatFile != null) {
+            return oatFile;
+        }
+
+        throw new UnsupportedFileTypeException("%s is not an apk, dex, odex or oat file.", file.getPath());
+    }
+
+    /**
+     * @return A MappedZipDexContainer for the given file, or a ZipDexContainer if it is a zip file that
+     * MappedZipDexContainer can't read (e.g. a zip64 file), or null if it isn't a zip file
+     */
+    @Nullable
+    private static ZipDexContainer getMappedZipDexContainer(@Nonnull File file, @Nonnull Opcodes opcodes) {
+        MappedZipDexContainer mappedZipDexContainer = new MappedZipDexContainer(file, opcodes);
+        if (mappedZipDexContainer.isZipFile()) {
+            return mappedZipDexContainer;
+        }
+        ZipDexContainer zipDexContainer = new ZipDexContainer(file, opcodes);
+        if (zipDexContainer.isZipFile()) {
+            return zipDexContainer;
+        }
+        return null;
+    }
+
+    @Nullable
+    private static DexBackedDexFile mapDexOrOdexFile(@Nonnull ByteBuffer buf, @Nonnull Opcodes opcodes) {
+        try {
+            return new DexBackedDexFile(opcodes, buf);
+        } catch (DexBackedDexFile.NotADexFile ex) {
+            // just eat it
+        }
+
+        try {
+            return DexBackedOdexFile.fromByteBuffer(opcodes, buf);
+        } catch (DexBackedOdexFile.NotAnOdexFile ex) {
+            // just eat it
+        }
+
+        return null;
+    }
+
+    @Nullable
+    private static OatFile mapOatFile(@Nonnull File file, @Nonnull ByteBuffer buf) {
+        OatFile oatFile;
+        try {
+            oatFile = new OatFile(buf, new MappedFilenameVdexProvider(file));
+        } catch (NotAnOatFileException ex) {
+            return null;
+        }
+
+        // TODO: we should support loading earlier oat files, just not deodexing them
+        if (oatFile.isSupportedVersion() == OatFile.UNSUPPORTED) {
+            throw new UnsupportedOatVersionException(oatFile);
+        }
+        return oatFile;
+    }
+
+    @Nonnull
+    private static ByteBuffer mapFile(@Nonnull File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new UnsupportedFileTypeException("%s is too large to be mapped.", file.getPath());
+            }
+            // The mapping remains valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
     /**
      * Writes a DexFile out to disk
      *
@@ -492,4 +652,61 @@ public final class DexFileFactory {
             return buf;
         }
     }
+
+    /**
+     * A VdexProvider that memory-maps the vdex file associated with an oat file, rather than reading it into the heap
+     */
+    public static class MappedFilenameVdexProvider implements VdexBufferProvider {
+        private final File vdexFile;
+
+        @Nullable
+        private ByteBuffer buf = null;
+        private boolean loadedVdex = false;
+
+        public MappedFilenameVdexProvider(File oatFile) {
+            File oatParent = oatFile.getAbsoluteFile().getParentFile();
+            String baseName = Files.getNameWithoutExtension(oatFile.getAbsolutePath());
+            vdexFile = new File(oatParent, baseName + ".vdex");
+        }
+
+        @Nullable private ByteBuffer getMappedVdex() {
+            if (!loadedVdex) {
+                if (vdexFile.exists()) {
+                    try {
+                        buf = mapFile(vdexFile);
+                    } catch (FileNotFoundException e) {
+                        buf = null;
+                    } catch (IOException ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+                loadedVdex = true;
+            }
+
+            return buf;
+        }
+
+        @Nullable @Override public BaseDexBuffer getVdexBuffer() {
+            ByteBuffer buf = getMappedVdex();
+            if (buf == null) {
+                return null;
+            }
+            return new BaseDexBuffer(buf);
+        }
+
+        /**
+         * Note: this copies the entire vdex file into the heap. Use getVdexBuffer() instead, where possible.
+         */
+        @Nullable @Override public byte[] getVdex() {
+            ByteBuffer buf = getMappedVdex();
+            if (buf == null) {
+                return null;
+            }
+            byte[] vdex = new byte[buf.capacity()];
+            ByteBuffer dup = buf.duplicate();
+            dup.position(0);
+            dup.get(vdex);
+            return vdex;
+        }
+    }
 }
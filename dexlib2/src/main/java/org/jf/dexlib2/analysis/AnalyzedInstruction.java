@@ -32,6 +32,7 @@
 package org.jf.dexlib2.analysis;
 
 import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import org.jf.dexlib2.Opcode;
@@ -64,29 +65,42 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
      */
     protected final int instructionIndex;
 
+    private static final int[] NO_INSTRUCTIONS = new int[0];
+
     /**
-     * Instructions that can pass on execution to this one during normal execution
+     * The indexes of the instructions that can pass on execution to this one during normal execution, in ascending
+     * order. The fake "StartOfMethod" instruction has an index of -1.
      */
     @Nonnull
-    protected final TreeSet<AnalyzedInstruction> predecessors = new TreeSet<AnalyzedInstruction>();
+    private int[] predecessors = NO_INSTRUCTIONS;
+    private int predecessorCount = 0;
 
     /**
-     * Instructions that can execution could pass on to next during normal execution
+     * The indexes of the instructions that execution could pass on to next during normal execution, in the order
+     * they were added
      */
     @Nonnull
-    protected final LinkedList<AnalyzedInstruction> successors = new LinkedList<AnalyzedInstruction>();
+    private int[] successors = NO_INSTRUCTIONS;
+    private int successorCount = 0;
 
     /**
-     * This contains the register types *before* the instruction has executed
+     * The number of registers in the method
      */
-    @Nonnull
-    protected final RegisterType[] preRegisterMap;
+    private final int registerCount;
 
     /**
-     * This contains the register types *after* the instruction has executed
+     * This contains the ids of the register types *before* the instruction has executed, followed by the ids of the
+     * register types *after* the instruction has executed. The ids are assigned by the method analyzer's
+     * RegisterTypeTable.
+     *
+     * This is null if an id has been stored that doesn't fit in a char, in which case wideRegisterTypes is used
+     * instead.
      */
-    @Nonnull
-    protected final RegisterType[] postRegisterMap;
+    @Nullable
+    private char[] registerTypes;
+
+    @Nullable
+    private int[] wideRegisterTypes;
 
     /**
      * This contains optional register type overrides for register types from predecessors
@@ -106,13 +120,50 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
         this.instruction = instruction;
         this.originalInstruction = instruction;
         this.instructionIndex = instructionIndex;
-        this.postRegisterMap = new RegisterType[registerCount];
-        this.preRegisterMap = new RegisterType[registerCount];
-        RegisterType unknown = RegisterType.getRegisterType(RegisterType.UNKNOWN, null);
-        for (int i=0; i<registerCount; i++) {
-            preRegisterMap[i] = unknown;
-            postRegisterMap[i] = unknown;
+        this.registerCount = registerCount;
+        // all registers start out as UNKNOWN, which has an id of 0
+        this.registerTypes = new char[registerCount * 2];
+    }
+
+    private int getRegisterTypeId(int index) {
+        char[] registerTypes = this.registerTypes;
+        if (registerTypes != null) {
+            return registerTypes[index];
+        }
+        return wideRegisterTypes[index];
+    }
+
+    private void setRegisterTypeId(int index, int registerTypeId) {
+        char[] registerTypes = this.registerTypes;
+        if (registerTypes != null) {
+            if (registerTypeId <= Character.MAX_VALUE) {
+                registerTypes[index] = (char)registerTypeId;
+                return;
+            }
+            int[] wideRegisterTypes = new int[registerTypes.length];
+            for (int i=0; i<registerTypes.length; i++) {
+                wideRegisterTypes[i] = registerTypes[i];
+            }
+            this.wideRegisterTypes = wideRegisterTypes;
+            this.registerTypes = null;
         }
+        wideRegisterTypes[index] = registerTypeId;
+    }
+
+    int getPreRegisterTypeId(int registerNumber) {
+        return getRegisterTypeId(registerNumber);
+    }
+
+    int getPostRegisterTypeId(int registerNumber) {
+        return getRegisterTypeId(registerCount + registerNumber);
+    }
+
+    private void setPreRegisterTypeId(int registerNumber, int registerTypeId) {
+        setRegisterTypeId(registerNumber, registerTypeId);
+    }
+
+    private void setPostRegisterTypeId(int registerNumber, int registerTypeId) {
+        setRegisterTypeId(registerCount + registerNumber, registerTypeId);
     }
 
     public int getInstructionIndex() {
@@ -120,11 +171,23 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
     }
 
     public int getPredecessorCount() {
-        return predecessors.size();
+        return predecessorCount;
     }
 
     public SortedSet<AnalyzedInstruction> getPredecessors() {
-        return Collections.unmodifiableSortedSet(predecessors);
+        ImmutableSortedSet.Builder<AnalyzedInstruction> builder = ImmutableSortedSet.naturalOrder();
+        for (int i=0; i<predecessorCount; i++) {
+            builder.add(methodAnalyzer.getAnalyzedInstruction(predecessors[i]));
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return The instruction index of the predecessor at the given position, in ascending order of instruction index
+     */
+    int getPredecessorIndex(int position) {
+        assert position < predecessorCount;
+        return predecessors[position];
     }
 
     public RegisterType getPredecessorRegisterType(@Nonnull AnalyzedInstruction predecessor, int registerNumber) {
@@ -135,15 +198,54 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
                 return override;
             }
         }
-        return predecessor.postRegisterMap[registerNumber];
+        return predecessor.getPostInstructionRegisterType(registerNumber);
+    }
+
+    private int getPredecessorRegisterTypeId(@Nonnull AnalyzedInstruction predecessor, int registerNumber) {
+        if (predecessorRegisterOverrides != null) {
+            RegisterType override = predecessorRegisterOverrides.get(
+                    new PredecessorOverrideKey(predecessor, registerNumber));
+            if (override != null) {
+                return methodAnalyzer.getRegisterTypeTable().getId(override);
+            }
+        }
+        return predecessor.getPostRegisterTypeId(registerNumber);
     }
 
     protected boolean addPredecessor(AnalyzedInstruction predecessor) {
-        return predecessors.add(predecessor);
+        int predecessorIndex = predecessor.instructionIndex;
+        int position = Arrays.binarySearch(predecessors, 0, predecessorCount, predecessorIndex);
+        if (position >= 0) {
+            return false;
+        }
+        position = -(position + 1);
+
+        if (predecessorCount == predecessors.length) {
+            predecessors = Arrays.copyOf(predecessors, Math.max(2, predecessorCount * 2));
+        }
+        System.arraycopy(predecessors, position, predecessors, position + 1, predecessorCount - position);
+        predecessors[position] = predecessorIndex;
+        predecessorCount++;
+        return true;
     }
 
     protected void addSuccessor(AnalyzedInstruction successor) {
-        successors.add(successor);
+        if (successorCount == successors.length) {
+            successors = Arrays.copyOf(successors, Math.max(2, successorCount * 2));
+        }
+        successors[successorCount++] = successor.instructionIndex;
+    }
+
+    public int getSuccessorCount() {
+        return successorCount;
+    }
+
+    /**
+     * @return The instruction index of the successor at the given position, in the order the successors were added
+     */
+    int getSuccessorIndex(int position) {
+        assert position < successorCount;
+        return successors[position];
     }
 
     protected void setDeodexedInstruction(Instruction instruction) {
@@ -158,7 +260,18 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
 
     @Nonnull
     public List<AnalyzedInstruction> getSuccessors() {
-        return Collections.unmodifiableList(successors);
+        return new AbstractList<AnalyzedInstruction>() {
+            @Override public AnalyzedInstruction get(int index) {
+                if (index < 0 || index >= successorCount) {
+                    throw new IndexOutOfBoundsException();
+                }
+                return methodAnalyzer.getAnalyzedInstruction(successors[index]);
+            }
+
+            @Override public int size() {
+                return successorCount;
+            }
+        };
     }
 
     @Nonnull
@@ -186,44 +299,43 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
     public boolean isBeginningInstruction() {
         //if this instruction has no predecessors, it is either the fake "StartOfMethod" instruction or it is an
         //unreachable instruction.
-        if (predecessors.size() == 0) {
+        if (predecessorCount == 0) {
             return false;
         }
-        return predecessors.first().instructionIndex == -1;
+        return predecessors[0] == -1;
     }
 
     /*
      * Merges the given register type into the specified pre-instruction register, and also sets the post-instruction
      * register type accordingly if it isn't a destination register for this instruction
      * @param registerNumber Which register to set
-     * @param registerType The register type
+     * @param registerTypeId The id of the register type
      * @returns true If the post-instruction register type was changed. This might be false if either the specified
      * register is a destination register for this instruction, or if the pre-instruction register type didn't change
      * after merging in the given register type
      */
-    protected boolean mergeRegister(int registerNumber, RegisterType registerType, BitSet verifiedInstructions,
+    protected boolean mergeRegister(int registerNumber, int registerTypeId, BitSet verifiedInstructions,
                                     boolean override) {
-        assert registerNumber >= 0 && registerNumber < postRegisterMap.length;
-        assert registerType != null;
+        assert registerNumber >= 0 && registerNumber < registerCount;
 
-        RegisterType oldRegisterType = preRegisterMap[registerNumber];
+        int oldRegisterTypeId = getPreRegisterTypeId(registerNumber);
 
-        RegisterType mergedRegisterType;
+        int mergedRegisterTypeId;
         if (override) {
-            mergedRegisterType = getMergedPreRegisterTypeFromPredecessors(registerNumber);
+            mergedRegisterTypeId = getMergedPreRegisterTypeIdFromPredecessors(registerNumber);
         } else {
-            mergedRegisterType = oldRegisterType.merge(registerType);
+            mergedRegisterTypeId = methodAnalyzer.getRegisterTypeTable().merge(oldRegisterTypeId, registerTypeId);
         }
 
-        if (mergedRegisterType.equals(oldRegisterType)) {
+        if (mergedRegisterTypeId == oldRegisterTypeId) {
             return false;
         }
 
-        preRegisterMap[registerNumber] = mergedRegisterType;
+        setPreRegisterTypeId(registerNumber, mergedRegisterTypeId);
         verifiedInstructions.clear(instructionIndex);
 
         if (!setsRegister(registerNumber)) {
-            postRegisterMap[registerNumber] = mergedRegisterType;
+            setPostRegisterTypeId(registerNumber, mergedRegisterTypeId);
             return true;
         }
 
@@ -240,22 +352,28 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
      */
     @Nonnull
     protected RegisterType getMergedPreRegisterTypeFromPredecessors(int registerNumber) {
-        RegisterType mergedRegisterType = null;
-        for (AnalyzedInstruction predecessor: predecessors) {
-            RegisterType predecessorRegisterType = getPredecessorRegisterType(predecessor, registerNumber);
-            if (predecessorRegisterType != null) {
-                if (mergedRegisterType == null) {
-                    mergedRegisterType = predecessorRegisterType;
-                } else {
-                    mergedRegisterType = predecessorRegisterType.merge(mergedRegisterType);
-                }
-            }
-        }
-        if (mergedRegisterType == null) {
+        return methodAnalyzer.getRegisterTypeTable().getRegisterType(
+                getMergedPreRegisterTypeIdFromPredecessors(registerNumber));
+    }
+
+    private int getMergedPreRegisterTypeIdFromPredecessors(int registerNumber) {
+        if (predecessorCount == 0) {
             // This is a start-of-method or unreachable instruction.
             throw new IllegalStateException();
         }
-        return mergedRegisterType;
+
+        RegisterTypeTable registerTypeTable = methodAnalyzer.getRegisterTypeTable();
+        int mergedRegisterTypeId = -1;
+        for (int i=0; i<predecessorCount; i++) {
+            AnalyzedInstruction predecessor = methodAnalyzer.getAnalyzedInstruction(predecessors[i]);
+            int predecessorRegisterTypeId = getPredecessorRegisterTypeId(predecessor, registerNumber);
+            if (mergedRegisterTypeId == -1) {
+                mergedRegisterTypeId = predecessorRegisterTypeId;
+            } else {
+                mergedRegisterTypeId = registerTypeTable.merge(predecessorRegisterTypeId, mergedRegisterTypeId);
+            }
+        }
+        return mergedRegisterTypeId;
     }
     /**
      * Sets the "post-instruction" register type as indicated.
@@ -264,15 +382,15 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
      * @return true if the given register type is different than the existing post-instruction register type
      */
     protected boolean setPostRegisterType(int registerNumber, RegisterType registerType) {
-        assert registerNumber >= 0 && registerNumber < postRegisterMap.length;
+        assert registerNumber >= 0 && registerNumber < registerCount;
         assert registerType != null;
 
-        RegisterType oldRegisterType = postRegisterMap[registerNumber];
-        if (oldRegisterType.equals(registerType)) {
+        int registerTypeId = methodAnalyzer.getRegisterTypeTable().getId(registerType);
+        if (getPostRegisterTypeId(registerNumber) == registerTypeId) {
             return false;
         }
 
-        postRegisterMap[registerNumber] = registerType;
+        setPostRegisterTypeId(registerNumber, registerTypeId);
         return true;
     }
 
@@ -295,18 +413,18 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
         }
         predecessorRegisterOverrides.put(new PredecessorOverrideKey(predecessor, registerNumber), registerType);
 
-        RegisterType mergedType = getMergedPreRegisterTypeFromPredecessors(registerNumber);
+        int mergedTypeId = getMergedPreRegisterTypeIdFromPredecessors(registerNumber);
 
-        if (preRegisterMap[registerNumber].equals(mergedType)) {
+        if (getPreRegisterTypeId(registerNumber) == mergedTypeId) {
             return false;
         }
 
-        preRegisterMap[registerNumber] = mergedType;
+        setPreRegisterTypeId(registerNumber, mergedTypeId);
         verifiedInstructions.clear(instructionIndex);
 
         if (!setsRegister(registerNumber)) {
-            if (!postRegisterMap[registerNumber].equals(mergedType)) {
-                postRegisterMap[registerNumber] = mergedType;
+            if (getPostRegisterTypeId(registerNumber) != mergedTypeId) {
+                setPostRegisterTypeId(registerNumber, mergedTypeId);
                 return true;
             }
         }
@@ -391,7 +509,7 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
                 getPredecessorCount() == 1 &&
                 (instruction.getOpcode() == Opcode.IF_EQZ || instruction.getOpcode() == Opcode.IF_NEZ)) {
 
-            AnalyzedInstruction prevInstruction = predecessors.first();
+            AnalyzedInstruction prevInstruction = methodAnalyzer.getAnalyzedInstruction(predecessors[0]);
             if (prevInstruction.instruction.getOpcode() == Opcode.INSTANCE_OF &&
                     MethodAnalyzer.canPropagateTypeAfterInstanceOf(
                             prevInstruction, this, methodAnalyzer.getClassPath())) {
@@ -412,7 +530,9 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
 
                     RegisterType newType = null;
 
-                    for (AnalyzedInstruction prevPrevAnalyzedInstruction : prevInstruction.predecessors) {
+                    for (int i=0; i<prevInstruction.predecessorCount; i++) {
+                        AnalyzedInstruction prevPrevAnalyzedInstruction =
+                                methodAnalyzer.getAnalyzedInstruction(prevInstruction.predecessors[i]);
                         Opcode opcode = prevPrevAnalyzedInstruction.instruction.getOpcode();
                         if (opcode == Opcode.MOVE_OBJECT || opcode == Opcode.MOVE_OBJECT_16 ||
                                 opcode == Opcode.MOVE_OBJECT_FROM16) {
@@ -504,19 +624,19 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
                     preInstructionDestRegisterType.category == RegisterType.UNINIT_THIS) {
                 setRegisters.add(destinationRegister);
 
-                RegisterType objectRegisterType = preRegisterMap[destinationRegister];
-                for (int i = 0; i < preRegisterMap.length; i++) {
+                int objectRegisterTypeId = getPreRegisterTypeId(destinationRegister);
+                for (int i = 0; i < registerCount; i++) {
                     if (i == destinationRegister) {
                         continue;
                     }
 
-                    RegisterType preInstructionRegisterType = preRegisterMap[i];
+                    RegisterType preInstructionRegisterType = getPreInstructionRegisterType(i);
 
-                    if (preInstructionRegisterType.equals(objectRegisterType)) {
+                    if (getPreRegisterTypeId(i) == objectRegisterTypeId) {
                         setRegisters.add(i);
                     } else if (preInstructionRegisterType.category == RegisterType.UNINIT_REF ||
                             preInstructionRegisterType.category == RegisterType.UNINIT_THIS) {
-                        RegisterType postInstructionRegisterType = postRegisterMap[i];
+                        RegisterType postInstructionRegisterType = getPostInstructionRegisterType(i);
                         if (postInstructionRegisterType.category == RegisterType.UNKNOWN) {
                             setRegisters.add(i);
                         }
@@ -527,8 +647,8 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
                 // unknown This is because the uninitialized reference may be an alias to the reference being
                 // initialized, but we can't know that until the object register's type is known
 
-                for (int i = 0; i < preRegisterMap.length; i++) {
-                    RegisterType registerType = preRegisterMap[i];
+                for (int i = 0; i < registerCount; i++) {
+                    RegisterType registerType = getPreInstructionRegisterType(i);
                     if (registerType.category == RegisterType.UNINIT_REF ||
                             registerType.category == RegisterType.UNINIT_THIS) {
                         setRegisters.add(i);
@@ -546,7 +666,7 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
                 getPredecessorCount() == 1 &&
                 (instruction.getOpcode() == Opcode.IF_EQZ || instruction.getOpcode() == Opcode.IF_NEZ)) {
 
-            AnalyzedInstruction prevInstruction = predecessors.first();
+            AnalyzedInstruction prevInstruction = methodAnalyzer.getAnalyzedInstruction(predecessors[0]);
             if (prevInstruction.instruction.getOpcode() == Opcode.INSTANCE_OF &&
                     MethodAnalyzer.canPropagateTypeAfterInstanceOf(
                             prevInstruction, this, methodAnalyzer.getClassPath())) {
@@ -564,7 +684,9 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
 
                     RegisterType newType = null;
 
-                    for (AnalyzedInstruction prevPrevAnalyzedInstruction : prevInstruction.predecessors) {
+                    for (int i=0; i<prevInstruction.predecessorCount; i++) {
+                        AnalyzedInstruction prevPrevAnalyzedInstruction =
+                                methodAnalyzer.getAnalyzedInstruction(prevInstruction.predecessors[i]);
                         Opcode opcode = prevPrevAnalyzedInstruction.instruction.getOpcode();
                         if (opcode == Opcode.MOVE_OBJECT || opcode == Opcode.MOVE_OBJECT_16 ||
                                 opcode == Opcode.MOVE_OBJECT_FROM16) {
@@ -621,17 +743,17 @@ public class AnalyzedInstruction implements Comparable<AnalyzedInstruction> {
     }
 
     public int getRegisterCount() {
-        return postRegisterMap.length;
+        return registerCount;
     }
 
     @Nonnull
     public RegisterType getPostInstructionRegisterType(int registerNumber) {
-        return postRegisterMap[registerNumber];
+        return methodAnalyzer.getRegisterTypeTable().getRegisterType(getPostRegisterTypeId(registerNumber));
     }
 
     @Nonnull
     public RegisterType getPreInstructionRegisterType(int registerNumber) {
-        return preRegisterMap[registerNumber];
+        return methodAnalyzer.getRegisterTypeTable().getRegisterType(getPreRegisterTypeId(registerNumber));
     }
 
     public int compareTo(@Nonnull AnalyzedInstruction analyzedInstruction) {
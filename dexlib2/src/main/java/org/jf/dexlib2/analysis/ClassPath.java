@@ -36,22 +36,46 @@ import com.google.common.base.Suppliers;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.jf.dexlib2.Opcodes;
 import org.jf.dexlib2.analysis.reflection.ReflectionClassDef;
 import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.util.ExceptionWithContext;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+/**
+ * A set of classes that can be used for analysis.
+ *
+ * A ClassPath is safe to use concurrently from multiple threads, e.g. by MethodAnalyzers for different methods, as
+ * long as the ClassProviders it was created with are. The TypeProtos it creates compute their vtables and instance
+ * field tables lazily and only once, and those can be computed for all of the classes up front, in parallel, with
+ * precomputeClassTables.
+ */
 public class ClassPath {
+    /**
+     * The number of classes handled by each task in precomputeClassTables
+     */
+    private static final int PRECOMPUTE_BATCH_SIZE = 256;
+
     @Nonnull private final TypeProto unknownClass;
-    @Nonnull private List<ClassProvider> classProviders;
+    @Nonnull private final List<ClassProvider> classProviders;
+    @Nullable private final ClassPathIndex classPathIndex;
     private final boolean checkPackagePrivateAccess;
     public final int oatVersion;
 
@@ -88,11 +112,29 @@ public class ClassPath {
      */
     public ClassPath(@Nonnull Iterable<? extends ClassProvider> classProviders, boolean checkPackagePrivateAccess,
                      int oatVersion) {
+        this(classProviders, checkPackagePrivateAccess, oatVersion, null);
+    }
+
+    /**
+     * Creates a new ClassPath instance that can load classes from the given providers
+     *
+     * @param classProviders An iterable of ClassProviders. When loading a class, these providers will be searched in
+     *                       order
+     * @param checkPackagePrivateAccess Whether checkPackagePrivateAccess is needed, enabled for ONLY early API 17 by
+     *                                  default
+     * @param oatVersion The applicable oat version, or NOT_ART
+     * @param classPathIndex If non-null, a precomputed index of the vtables, field offsets and interfaces of the
+     *                       classes provided by the first providers. This must have been created for the same
+     *                       providers, with the same checkPackagePrivateAccess and oatVersion.
+     */
+    public ClassPath(@Nonnull Iterable<? extends ClassProvider> classProviders, boolean checkPackagePrivateAccess,
+                     int oatVersion, @Nullable ClassPathIndex classPathIndex) {
         // add fallbacks for certain special classes that must be present
         unknownClass = new UnknownClassProto(this);
         loadedClasses.put(unknownClass.getType(), unknownClass);
         this.checkPackagePrivateAccess = checkPackagePrivateAccess;
         this.oatVersion = oatVersion;
+        this.classPathIndex = classPathIndex;
 
         loadPrimitiveType("Z");
         loadPrimitiveType("B");
@@ -104,8 +146,10 @@ public class ClassPath {
         loadPrimitiveType("D");
         loadPrimitiveType("L");
 
-        this.classProviders = Lists.newArrayList(classProviders);
-        this.classProviders.add(getBasicClasses());
+        this.classProviders = ImmutableList.<ClassProvider>builder()
+                .addAll(classProviders)
+                .add(getBasicClasses())
+                .build();
     }
 
     private void loadPrimitiveType(String type) {
@@ -142,12 +186,40 @@ public class ClassPath {
         }
     };
 
-    @Nonnull private LoadingCache<String, TypeProto> loadedClasses = CacheBuilder.newBuilder().build(classLoader);
+    @Nonnull private final LoadingCache<String, TypeProto> loadedClasses = CacheBuilder.newBuilder().build(classLoader);
 
     @Nonnull
     public ClassDef getClassDef(String type) {
-        for (ClassProvider provider: classProviders) {
-            ClassDef classDef = provider.getClassDef(type);
+        ProviderIndex providerIndex = providerIndexSupplier.get();
+        int typeHash = DexBackedClassIndex.hashType(type);
+        int[] unindexedProviders = providerIndex.unindexedProviders;
+        int nextUnindexed = 0;
+
+        // The candidate DexClassProviders for this hash are found in increasing order of position. Any provider that
+        // can't list its classes, and that comes before a candidate, gets the first chance to provide the class
+        int[] typeHashes = providerIndex.typeHashes;
+        int[] positions = providerIndex.positions;
+        int mask = positions.length - 1;
+        int slot = DexBackedClassIndex.smear(typeHash) & mask;
+        while (positions[slot] != 0) {
+            if (typeHashes[slot] == typeHash) {
+                int position = positions[slot] - 1;
+                while (nextUnindexed < unindexedProviders.length && unindexedProviders[nextUnindexed] < position) {
+                    ClassDef classDef = classProviders.get(unindexedProviders[nextUnindexed++]).getClassDef(type);
+                    if (classDef != null) {
+                        return classDef;
+                    }
+                }
+                ClassDef classDef = ((DexClassProvider)classProviders.get(position)).getClassDef(type, typeHash);
+                if (classDef != null) {
+                    return classDef;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        while (nextUnindexed < unindexedProviders.length) {
+            ClassDef classDef = classProviders.get(unindexedProviders[nextUnindexed++]).getClassDef(type);
             if (classDef != null) {
                 return classDef;
             }
@@ -155,6 +227,156 @@ public class ClassPath {
         throw new UnresolvedClassException("Could not resolve class %s", type);
     }
 
+    /**
+     * A merged index of the classes defined by the DexClassProviders in this class path.
+     *
+     * This is an open-addressing hash table of (type hash, provider position) pairs, built from the type hashes of
+     * each provider without decoding any type strings. A lookup only queries the providers that have a class with
+     * the same type hash, instead of querying each provider in turn. The pairs are added in order of position, so
+     * the candidates for a given hash are found in that same order.
+     */
+    private static class ProviderIndex {
+        @Nonnull public final int[] typeHashes;
+        // each entry is the provider position + 1, with 0 used for empty slots
+        @Nonnull public final int[] positions;
+        // the positions of any providers that aren't DexClassProviders, in increasing order
+        @Nonnull public final int[] unindexedProviders;
+
+        public ProviderIndex(@Nonnull List<ClassProvider> classProviders) {
+            List<int[]> providerTypeHashes = Lists.newArrayList();
+            int[] unindexedProviders = new int[classProviders.size()];
+            int unindexedCount = 0;
+            int classCount = 0;
+
+            for (int i=0; i<classProviders.size(); i++) {
+                ClassProvider classProvider = classProviders.get(i);
+                if (classProvider instanceof DexClassProvider) {
+                    int[] hashes = ((DexClassProvider)classProvider).getTypeHashes();
+                    providerTypeHashes.add(hashes);
+                    classCount += hashes.length;
+                } else {
+                    providerTypeHashes.add(null);
+                    unindexedProviders[unindexedCount++] = i;
+                }
+            }
+
+            // keep the load factor at or below 0.5
+            int capacity = Integer.highestOneBit(Math.max(classCount, 1)) * 4;
+            if (capacity < 0) {
+                throw new IllegalStateException("Too many classes: " + classCount);
+            }
+            int mask = capacity - 1;
+
+            int[] typeHashes = new int[capacity];
+            int[] positions = new int[capacity];
+            for (int i=0; i<classProviders.size(); i++) {
+                int[] hashes = providerTypeHashes.get(i);
+                if (hashes == null) {
+                    continue;
+                }
+                for (int typeHash: hashes) {
+                    int slot = DexBackedClassIndex.smear(typeHash) & mask;
+                    while (positions[slot] != 0) {
+                        if (positions[slot] == i + 1 && typeHashes[slot] == typeHash) {
+                            // this provider is already a candidate for this hash
+                            break;
+                        }
+                        slot = (slot + 1) & mask;
+                    }
+                    typeHashes[slot] = typeHash;
+                    positions[slot] = i + 1;
+                }
+            }
+
+            this.typeHashes = typeHashes;
+            this.positions = positions;
+            this.unindexedProviders = Arrays.copyOf(unindexedProviders, unindexedCount);
+        }
+    }
+
+    private final Supplier<ProviderIndex> providerIndexSupplier = Suppliers.memoize(
+            new Supplier<ProviderIndex>() {
+                @Override public ProviderIndex get() {
+                    return new ProviderIndex(classProviders);
+                }
+            });
+
+    /**
+     * Computes the vtable and instance field table of every class that is defined by a DexClassProvider in this class
+     * path, using the given executor.
+     *
+     * These are normally computed lazily, as needed. For example, when deodexing against a large boot class path,
+     * this can be used to compute them all in parallel before starting the analysis, instead of having the analysis
+     * threads block on each other while computing the tables for the common superclasses.
+     *
+     * Classes that are covered by this class path's ClassPathIndex are skipped.
+     *
+     * This waits until all of the tables have been computed.
+     */
+    public void precomputeClassTables(@Nonnull ExecutorService executor) {
+        List<String> types = Lists.newArrayList(getDexClassTypes());
+
+        List<Future<?>> futures = Lists.newArrayList();
+        for (final List<String> batch: Lists.partition(types, PRECOMPUTE_BATCH_SIZE)) {
+            futures.add(executor.submit(new Runnable() {
+                @Override public void run() {
+                    for (String type: batch) {
+                        precomputeClassTables(type);
+                    }
+                }
+            }));
+        }
+
+        for (Future<?> future: futures) {
+            try {
+                Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException ex) {
+                throw new ExceptionWithContext(ex.getCause(), "Error while precomputing class tables");
+            }
+        }
+    }
+
+    /**
+     * @return The types of all the classes that are defined by a DexClassProvider in this class path
+     */
+    @Nonnull
+    Set<String> getDexClassTypes() {
+        Set<String> types = Sets.newLinkedHashSet();
+        for (ClassProvider classProvider: classProviders) {
+            if (classProvider instanceof DexClassProvider) {
+                types.addAll(((DexClassProvider)classProvider).getClassTypes());
+            }
+        }
+        return Collections.unmodifiableSet(types);
+    }
+
+    @Nullable
+    ClassPathIndex getClassPathIndex() {
+        return classPathIndex;
+    }
+
+    private void precomputeClassTables(@Nonnull String type) {
+        if (classPathIndex != null && classPathIndex.getIndexedClass(type) != null) {
+            // the tables for this class were already computed when the index was created, and will be read from the
+            // index when needed
+            return;
+        }
+        TypeProto typeProto = getClass(type);
+        if (!(typeProto instanceof ClassProto)) {
+            return;
+        }
+        ClassProto classProto = (ClassProto)typeProto;
+        try {
+            classProto.getVtable();
+            if (!classProto.isInterface()) {
+                classProto.getInstanceFields();
+            }
+        } catch (RuntimeException ex) {
+            // Any problem with the class will be reported if and when the class is actually needed, since a failed
+            // computation isn't memoized
+        }
+    }
+
     @Nonnull
     public TypeProto getUnknownClass() {
         return unknownClass;
@@ -0,0 +1,532 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.analysis;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodParameter;
+import org.jf.dexlib2.iface.reference.FieldReference;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.ImmutableMethodParameter;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.util.ReferenceUtil;
+import org.jf.util.SparseArray;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * A precomputed index of the vtables, instance field offsets and interfaces of the classes in a class path.
+ *
+ * Computing these for a large boot class path takes a while, and is the same for every dex file that is analyzed
+ * against it. An index can be written once for a class path, and then memory mapped by later runs. ClassProto will
+ * use the information in the index for any class that it contains, instead of computing it.
+ *
+ * Each index has a key, which should uniquely identify the class path it was created for, e.g. the paths, sizes and
+ * modification times of the class path files, along with the api level and oat version. An index is only loaded if
+ * its key matches.
+ *
+ * The index only contains the classes whose vtable and interfaces could be fully resolved using only the classes in
+ * the indexed class path. Since the class path is searched before the dex file being analyzed, the information for
+ * these classes doesn't depend on the dex file being analyzed.
+ *
+ * Instances of this class are safe for concurrent use.
+ */
+public class ClassPathIndex {
+    private static final byte[] MAGIC = new byte[] { 'c', 'p', 'i', 'n', 'd', 'e', 'x', '\n' };
+    private static final int VERSION = 1;
+
+    private static final int KEY_HASH_SIZE = 20;
+    private static final int VERSION_OFFSET = MAGIC.length;
+    private static final int KEY_HASH_OFFSET = VERSION_OFFSET + 4;
+    private static final int CLASS_COUNT_OFFSET = KEY_HASH_OFFSET + KEY_HASH_SIZE;
+    private static final int CLASS_TABLE_OFFSET_OFFSET = CLASS_COUNT_OFFSET + 4;
+    private static final int HEADER_SIZE = CLASS_TABLE_OFFSET_OFFSET + 4;
+
+    private static final int CLASS_TABLE_ENTRY_SIZE = 8;
+
+    @Nonnull private final ByteBuffer buffer;
+    private final int classCount;
+    private final int classTableOffset;
+
+    // The decoded strings, methods and fields, keyed by their offset in the index. These are shared between all the
+    // classes that reference them
+    @Nonnull private final ConcurrentMap<Integer, String> strings = Maps.newConcurrentMap();
+    @Nonnull private final ConcurrentMap<Integer, Method> methods = Maps.newConcurrentMap();
+    @Nonnull private final ConcurrentMap<Integer, FieldReference> fields = Maps.newConcurrentMap();
+
+    private ClassPathIndex(@Nonnull ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.classCount = buffer.getInt(CLASS_COUNT_OFFSET);
+        this.classTableOffset = buffer.getInt(CLASS_TABLE_OFFSET_OFFSET);
+    }
+
+    /**
+     * Loads the index from the given file, if it exists and was created for the given key.
+     *
+     * @return The index, or null if the file doesn't exist, or isn't a valid index for the given key
+     */
+    @Nullable
+    public static ClassPathIndex load(@Nonnull File file, @Nonnull String key) throws IOException {
+        if (!file.isFile() || file.length() < HEADER_SIZE) {
+            return null;
+        }
+
+        ByteBuffer buffer;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            // the mapping remains valid after the file is closed
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+        } finally {
+            randomAccessFile.close();
+        }
+
+        for (int i=0; i<MAGIC.length; i++) {
+            if (buffer.get(i) != MAGIC[i]) {
+                return null;
+            }
+        }
+        if (buffer.getInt(VERSION_OFFSET) != VERSION) {
+            return null;
+        }
+        byte[] keyHash = getKeyHash(key);
+        for (int i=0; i<KEY_HASH_SIZE; i++) {
+            if (buffer.get(KEY_HASH_OFFSET + i) != keyHash[i]) {
+                return null;
+            }
+        }
+
+        ClassPathIndex index = new ClassPathIndex(buffer);
+        long classTableEnd = (long)index.classTableOffset + (long)index.classCount * CLASS_TABLE_ENTRY_SIZE;
+        if (index.classCount < 0 || index.classTableOffset < HEADER_SIZE || classTableEnd > buffer.limit()) {
+            return null;
+        }
+        return index;
+    }
+
+    /**
+     * Writes an index for all of the classes in the given class path.
+     *
+     * The given class path should only contain the classes that the index is meant to cover. It should not contain
+     * the dex file being analyzed, for example.
+     *
+     * @param file The file to write the index to. Any existing file is replaced.
+     * @param key The key that identifies the class path
+     * @param classPath The class path to index
+     * @param executor If non-null, the class tables will be computed in parallel, using this executor
+     */
+    public static void write(@Nonnull File file, @Nonnull String key, @Nonnull ClassPath classPath,
+                             @Nullable ExecutorService executor) throws IOException {
+        ByteBuffer data = build(key, classPath, executor);
+
+        // write to a uniquely named temporary file first, so that another process never sees a partially written
+        // index, and two processes writing the same index don't clobber each other's temporary file
+        File tempFile = File.createTempFile(file.getName() + ".tmp-", ".tmp", file.getAbsoluteFile().getParentFile());
+        boolean written = false;
+        try {
+            FileOutputStream fileOutputStream = new FileOutputStream(tempFile);
+            try {
+                fileOutputStream.write(data.array());
+            } finally {
+                fileOutputStream.close();
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                tempFile.delete();
+            }
+        }
+        if (!tempFile.renameTo(file)) {
+            file.delete();
+            if (!tempFile.renameTo(file)) {
+                tempFile.delete();
+                throw new IOException(String.format("Could not write %s", file));
+            }
+        }
+    }
+
+    /**
+     * Creates an in-memory index for all of the classes in the given class path.
+     *
+     * This can be used to share the class tables of a class path between the ClassPaths of several dex files within
+     * a single run, without writing an index file.
+     *
+     * @param classPath The class path to index. As with write, this should only contain the classes that the index
+     *                  is meant to cover.
+     * @param executor If non-null, the class tables will be computed in parallel, using this executor
+     */
+    @Nonnull
+    public static ClassPathIndex create(@Nonnull ClassPath classPath, @Nullable ExecutorService executor)
+            throws IOException {
+        return new ClassPathIndex(build("", classPath, executor));
+    }
+
+    @Nonnull
+    private static ByteBuffer build(@Nonnull String key, @Nonnull ClassPath classPath,
+                                    @Nullable ExecutorService executor) throws IOException {
+        if (executor != null) {
+            classPath.precomputeClassTables(executor);
+        }
+
+        IndexWriter writer = new IndexWriter();
+        writer.out.write(MAGIC);
+        writer.out.writeInt(VERSION);
+        writer.out.write(getKeyHash(key));
+        // the class count and class table offset are filled in at the end
+        writer.out.writeInt(0);
+        writer.out.writeInt(0);
+
+        List<String> types = Lists.newArrayList(classPath.getDexClassTypes());
+        Collections.sort(types);
+
+        List<String> indexedTypes = Lists.newArrayList();
+        List<Integer> entryOffsets = Lists.newArrayList();
+        for (String type: types) {
+            int entryOffset = writer.writeClass(classPath, type);
+            if (entryOffset != -1) {
+                indexedTypes.add(type);
+                entryOffsets.add(entryOffset);
+            }
+        }
+
+        int[] typeOffsets = new int[indexedTypes.size()];
+        for (int i=0; i<indexedTypes.size(); i++) {
+            typeOffsets[i] = writer.writeString(indexedTypes.get(i));
+        }
+
+        int classTableOffset = writer.out.size();
+        for (int i=0; i<indexedTypes.size(); i++) {
+            writer.out.writeInt(typeOffsets[i]);
+            writer.out.writeInt(entryOffsets.get(i));
+        }
+        writer.out.close();
+
+        ByteBuffer data = ByteBuffer.wrap(writer.bytes.toByteArray());
+        data.putInt(CLASS_COUNT_OFFSET, indexedTypes.size());
+        data.putInt(CLASS_TABLE_OFFSET_OFFSET, classTableOffset);
+        return data;
+    }
+
+    @Nonnull
+    private static byte[] getKeyHash(@Nonnull String key) {
+        return Hashing.sha1().hashString(key, Charsets.UTF_8).asBytes();
+    }
+
+    /**
+     * @return The number of classes in this index
+     */
+    public int getClassCount() {
+        return classCount;
+    }
+
+    /**
+     * @return The indexed information for the given class, or null if this index doesn't contain the class
+     */
+    @Nullable
+    IndexedClass getIndexedClass(@Nonnull String type) {
+        int low = 0;
+        int high = classCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int tableEntryOffset = classTableOffset + mid * CLASS_TABLE_ENTRY_SIZE;
+            int comparison = getString(buffer.getInt(tableEntryOffset)).compareTo(type);
+            if (comparison < 0) {
+                low = mid + 1;
+            } else if (comparison > 0) {
+                high = mid - 1;
+            } else {
+                return readClass(buffer.getInt(tableEntryOffset + 4));
+            }
+        }
+        return null;
+    }
+
+    @Nonnull
+    private IndexedClass readClass(int offset) {
+        int interfaceCount = buffer.getInt(offset);
+        offset += 4;
+        List<String> interfaces = Lists.newArrayListWithCapacity(interfaceCount);
+        boolean[] interfaceHasClassDef = new boolean[interfaceCount];
+        for (int i=0; i<interfaceCount; i++) {
+            interfaces.add(getString(buffer.getInt(offset)));
+            interfaceHasClassDef[i] = buffer.get(offset + 4) != 0;
+            offset += 5;
+        }
+
+        int vtableSize = buffer.getInt(offset);
+        offset += 4;
+        Method[] vtable = new Method[vtableSize];
+        for (int i=0; i<vtableSize; i++) {
+            vtable[i] = getMethod(buffer.getInt(offset));
+            offset += 4;
+        }
+
+        int fieldCount = buffer.getInt(offset);
+        offset += 4;
+        SparseArray<FieldReference> instanceFields = new SparseArray<FieldReference>(fieldCount);
+        for (int i=0; i<fieldCount; i++) {
+            instanceFields.append(buffer.getInt(offset), getField(buffer.getInt(offset + 4)));
+            offset += 8;
+        }
+
+        return new IndexedClass(interfaces, interfaceHasClassDef, Arrays.asList(vtable), instanceFields);
+    }
+
+    @Nonnull
+    private String getString(int offset) {
+        String string = strings.get(offset);
+        if (string == null) {
+            int length = buffer.getInt(offset);
+            byte[] bytes = new byte[length];
+            ByteBuffer duplicate = buffer.duplicate();
+            duplicate.position(offset + 4);
+            duplicate.get(bytes);
+            string = new String(bytes, Charsets.UTF_8);
+            String existing = strings.putIfAbsent(offset, string);
+            if (existing != null) {
+                string = existing;
+            }
+        }
+        return string;
+    }
+
+    @Nonnull
+    private Method getMethod(int offset) {
+        Method method = methods.get(offset);
+        if (method == null) {
+            String definingClass = getString(buffer.getInt(offset));
+            String name = getString(buffer.getInt(offset + 4));
+            String returnType = getString(buffer.getInt(offset + 8));
+            int accessFlags = buffer.getInt(offset + 12);
+            int parameterCount = buffer.getInt(offset + 16);
+            ImmutableList.Builder<ImmutableMethodParameter> parameters = ImmutableList.builder();
+            for (int i=0; i<parameterCount; i++) {
+                parameters.add(new ImmutableMethodParameter(getString(buffer.getInt(offset + 20 + i * 4)),
+                        null, null));
+            }
+            method = new ImmutableMethod(definingClass, name, parameters.build(), returnType, accessFlags, null, null);
+            Method existing = methods.putIfAbsent(offset, method);
+            if (existing != null) {
+                method = existing;
+            }
+        }
+        return method;
+    }
+
+    @Nonnull
+    private FieldReference getField(int offset) {
+        FieldReference field = fields.get(offset);
+        if (field == null) {
+            field = new ImmutableFieldReference(getString(buffer.getInt(offset)), getString(buffer.getInt(offset + 4)),
+                    getString(buffer.getInt(offset + 8)));
+            FieldReference existing = fields.putIfAbsent(offset, field);
+            if (existing != null) {
+                field = existing;
+            }
+        }
+        return field;
+    }
+
+    /**
+     * The indexed information for a single class
+     */
+    static class IndexedClass {
+        @Nonnull private final List<String> interfaces;
+        @Nonnull private final boolean[] interfaceHasClassDef;
+        @Nonnull public final List<Method> vtable;
+        @Nonnull public final SparseArray<FieldReference> instanceFields;
+
+        private IndexedClass(@Nonnull List<String> interfaces, @Nonnull boolean[] interfaceHasClassDef,
+                             @Nonnull List<Method> vtable, @Nonnull SparseArray<FieldReference> instanceFields) {
+            this.interfaces = interfaces;
+            this.interfaceHasClassDef = interfaceHasClassDef;
+            this.vtable = vtable;
+            this.instanceFields = instanceFields;
+        }
+
+        /**
+         * @return The interfaces of the class, in the same form as ClassProto.getInterfaces()
+         */
+        @Nonnull
+        public LinkedHashMap<String, ClassDef> getInterfaces(@Nonnull ClassPath classPath) {
+            LinkedHashMap<String, ClassDef> interfaces = Maps.newLinkedHashMap();
+            for (int i=0; i<this.interfaces.size(); i++) {
+                String interfaceType = this.interfaces.get(i);
+                interfaces.put(interfaceType, interfaceHasClassDef[i] ? classPath.getClassDef(interfaceType) : null);
+            }
+            return interfaces;
+        }
+    }
+
+    private static class IndexWriter {
+        @Nonnull public final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        @Nonnull public final DataOutputStream out = new DataOutputStream(bytes);
+
+        @Nonnull private final Map<String, Integer> stringOffsets = Maps.newHashMap();
+        @Nonnull private final Map<String, Integer> methodOffsets = Maps.newHashMap();
+        @Nonnull private final Map<String, Integer> fieldOffsets = Maps.newHashMap();
+
+        public int writeString(@Nonnull String string) throws IOException {
+            Integer offset = stringOffsets.get(string);
+            if (offset == null) {
+                offset = out.size();
+                byte[] stringBytes = string.getBytes(Charsets.UTF_8);
+                out.writeInt(stringBytes.length);
+                out.write(stringBytes);
+                stringOffsets.put(string, offset);
+            }
+            return offset;
+        }
+
+        public int writeMethod(@Nonnull Method method) throws IOException {
+            String key = ReferenceUtil.getMethodDescriptor(method) + ':' + method.getAccessFlags();
+            Integer offset = methodOffsets.get(key);
+            if (offset == null) {
+                List<? extends MethodParameter> parameters = method.getParameters();
+                int[] values = new int[parameters.size() + 5];
+                values[0] = writeString(method.getDefiningClass());
+                values[1] = writeString(method.getName());
+                values[2] = writeString(method.getReturnType());
+                values[3] = method.getAccessFlags();
+                values[4] = parameters.size();
+                for (int i=0; i<parameters.size(); i++) {
+                    values[5 + i] = writeString(parameters.get(i).getType());
+                }
+
+                offset = out.size();
+                for (int value: values) {
+                    out.writeInt(value);
+                }
+                methodOffsets.put(key, offset);
+            }
+            return offset;
+        }
+
+        public int writeField(@Nonnull FieldReference field) throws IOException {
+            String key = ReferenceUtil.getFieldDescriptor(field);
+            Integer offset = fieldOffsets.get(key);
+            if (offset == null) {
+                int definingClass = writeString(field.getDefiningClass());
+                int name = writeString(field.getName());
+                int type = writeString(field.getType());
+
+                offset = out.size();
+                out.writeInt(definingClass);
+                out.writeInt(name);
+                out.writeInt(type);
+                fieldOffsets.put(key, offset);
+            }
+            return offset;
+        }
+
+        /**
+         * @return The offset of the class's entry, or -1 if the class couldn't be indexed
+         */
+        public int writeClass(@Nonnull ClassPath classPath, @Nonnull String type) throws IOException {
+            TypeProto typeProto = classPath.getClass(type);
+            if (!(typeProto instanceof ClassProto)) {
+                return -1;
+            }
+            ClassProto classProto = (ClassProto)typeProto;
+
+            LinkedHashMap<String, ClassDef> interfaces;
+            List<Method> vtable;
+            SparseArray<FieldReference> instanceFields;
+            try {
+                interfaces = classProto.getInterfaces();
+                vtable = classProto.getVtable();
+                instanceFields = classProto.getInstanceFields();
+            } catch (RuntimeException ex) {
+                // this class will be handled without the index, as usual
+                return -1;
+            }
+            if (!classProto.interfacesFullyResolved || !classProto.vtableFullyResolved) {
+                // the missing classes might be provided by the dex file being analyzed
+                return -1;
+            }
+
+            int[] interfaceOffsets = new int[interfaces.size()];
+            int i = 0;
+            for (String interfaceType: interfaces.keySet()) {
+                interfaceOffsets[i++] = writeString(interfaceType);
+            }
+            int[] methodOffsets = new int[vtable.size()];
+            for (i=0; i<vtable.size(); i++) {
+                methodOffsets[i] = writeMethod(vtable.get(i));
+            }
+            int[] fieldOffsets = new int[instanceFields.size()];
+            for (i=0; i<instanceFields.size(); i++) {
+                fieldOffsets[i] = writeField(instanceFields.valueAt(i));
+            }
+
+            int offset = out.size();
+            out.writeInt(interfaces.size());
+            i = 0;
+            for (Entry<String, ClassDef> entry: interfaces.entrySet()) {
+                out.writeInt(interfaceOffsets[i++]);
+                out.writeByte(entry.getValue() != null ? 1 : 0);
+            }
+            out.writeInt(vtable.size());
+            for (int methodOffset: methodOffsets) {
+                out.writeInt(methodOffset);
+            }
+            out.writeInt(instanceFields.size());
+            for (i=0; i<instanceFields.size(); i++) {
+                out.writeInt(instanceFields.keyAt(i));
+                out.writeInt(fieldOffsets[i]);
+            }
+            return offset;
+        }
+    }
+}
@@ -34,7 +34,10 @@ package org.jf.dexlib2.analysis;
 import com.beust.jcommander.internal.Sets;
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.jf.dexlib2.DexFileFactory;
 import org.jf.dexlib2.DexFileFactory.UnsupportedFileTypeException;
 import org.jf.dexlib2.Opcodes;
@@ -45,20 +48,31 @@ import org.jf.dexlib2.dexbacked.OatFile.OatDexFile;
 import org.jf.dexlib2.iface.DexFile;
 import org.jf.dexlib2.iface.MultiDexContainer;
 import org.jf.dexlib2.iface.MultiDexContainer.MultiDexFile;
+import org.jf.util.ExceptionWithContext;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class ClassPathResolver {
     private final Iterable<String> classPathDirs;
     private final Opcodes opcodes;
+    @Nullable private final ExecutorService executor;
 
-    private final Set<File> loadedFiles = Sets.newHashSet();
+    // containers that are being loaded in the background by executor, before they're needed
+    private final Map<File, Future<LoadedContainer>> prefetchedContainers = Maps.newHashMap();
+
+    private final Set<File> loadedFiles = Sets.newLinkedHashSet();
     private final List<ClassProvider> classProviders = Lists.newArrayList();
+    private int classPathProviderCount;
 
     /**
      * Constructs a new ClassPathResolver using a specified list of bootclasspath entries
@@ -82,7 +96,7 @@ public class ClassPathResolver {
     public ClassPathResolver(@Nonnull List<String> bootClassPathDirs, @Nonnull List<String> bootClassPathEntries,
                              @Nonnull List<String> extraClassPathEntries, @Nonnull DexFile dexFile)
             throws IOException {
-        this(bootClassPathDirs, bootClassPathEntries, extraClassPathEntries, dexFile, true);
+        this(bootClassPathDirs, bootClassPathEntries, extraClassPathEntries, dexFile, null);
     }
 
     /**
@@ -102,61 +116,114 @@ public class ClassPathResolver {
     public ClassPathResolver(@Nonnull List<String> bootClassPathDirs, @Nonnull List<String> extraClassPathEntries,
                              @Nonnull DexFile dexFile)
             throws IOException {
-        this(bootClassPathDirs, null, extraClassPathEntries, dexFile, true);
+        this(bootClassPathDirs, null, extraClassPathEntries, dexFile, null);
     }
 
-    private ClassPathResolver(@Nonnull List<String> bootClassPathDirs, @Nullable List<String> bootClassPathEntries,
-                              @Nonnull List<String> extraClassPathEntries, @Nonnull DexFile dexFile, boolean unused)
+    /**
+     * Constructs a new ClassPathResolver, optionally loading the classpath entries concurrently
+     *
+     * When an executor is given, all of the classpath entries are located up front, and are then loaded concurrently
+     * using the executor. Loading an entry includes reading each of the dex files it contains, e.g. inflating the dex
+     * entries of a jar or apk. The class providers are still added in the same order as they would be without an
+     * executor, so the first class provider that provides a given class is the same either way.
+     *
+     * @param bootClassPathDirs A list of directories to search for boot classpath entries
+     * @param bootClassPathEntries A list of boot classpath entries to load, as per the other constructor. If null, a
+     *                             default bootclasspath is used, depending on the the file type of dexFile and the api
+     *                             level
+     * @param extraClassPathEntries A list of additional classpath entries to load. Can be empty. All entries must be
+     *                              local paths. Device paths are not supported.
+     * @param dexFile The dex file that the classpath will be used to analyze
+     * @param executor If non-null, an executor used to load the classpath entries concurrently
+     * @throws IOException If any IOException occurs
+     * @throws ResolveException If any classpath entries cannot be loaded for some reason
+     */
+    public ClassPathResolver(@Nonnull List<String> bootClassPathDirs, @Nullable List<String> bootClassPathEntries,
+                             @Nonnull List<String> extraClassPathEntries, @Nonnull DexFile dexFile,
+                             @Nullable ExecutorService executor)
             throws IOException {
         this.classPathDirs = bootClassPathDirs;
         opcodes = dexFile.getOpcodes();
+        this.executor = executor;
 
         if (bootClassPathEntries == null) {
             bootClassPathEntries = getDefaultBootClassPath(dexFile, opcodes.api);
         }
 
-        for (String entry : bootClassPathEntries) {
-            try {
-                loadLocalOrDeviceBootClassPathEntry(entry);
-            } catch (NoDexException ex) {
-                if (entry.endsWith(".jar")) {
-                    String odexEntry = entry.substring(0, entry.length() - 4) + ".odex";
-                    try {
-                        loadLocalOrDeviceBootClassPathEntry(odexEntry);
-                    } catch (NoDexException ex2) {
-                        throw new ResolveException("Neither %s nor %s contain a dex file", entry, odexEntry);
-                    } catch (NotFoundException ex2) {
+        if (executor != null) {
+            for (String entry: bootClassPathEntries) {
+                prefetchContainer(findLocalOrDeviceBootClassPathEntry(entry));
+            }
+            for (String entry: extraClassPathEntries) {
+                prefetchContainer(findLocalClassPathEntry(entry));
+            }
+        }
+
+        try {
+            for (String entry : bootClassPathEntries) {
+                try {
+                    loadLocalOrDeviceBootClassPathEntry(entry);
+                } catch (NoDexException ex) {
+                    if (entry.endsWith(".jar")) {
+                        String odexEntry = entry.substring(0, entry.length() - 4) + ".odex";
+                        try {
+                            loadLocalOrDeviceBootClassPathEntry(odexEntry);
+                        } catch (NoDexException ex2) {
+                            throw new ResolveException("Neither %s nor %s contain a dex file", entry, odexEntry);
+                        } catch (NotFoundException ex2) {
+                            throw new ResolveException(ex);
+                        }
+                    } else {
                         throw new ResolveException(ex);
                     }
-                } else {
-                    throw new ResolveException(ex);
-                }
-            } catch (NotFoundException ex) {
-                if (entry.endsWith(".odex")) {
-                    String jarEntry = entry.substring(0, entry.length() - 5) + ".jar";
-                    try {
-                        loadLocalOrDeviceBootClassPathEntry(jarEntry);
-                        } catch (NoDexException ex2) {
-                        throw new ResolveException("Neither %s nor %s contain a dex file", entry, jarEntry);
-                    } catch (NotFoundException ex2) {
+                } catch (NotFoundException ex) {
+                    if (entry.endsWith(".odex")) {
+                        String jarEntry = entry.substring(0, entry.length() - 5) + ".jar";
+                        try {
+                            loadLocalOrDeviceBootClassPathEntry(jarEntry);
+                            } catch (NoDexException ex2) {
+                            throw new ResolveException("Neither %s nor %s contain a dex file", entry, jarEntry);
+                        } catch (NotFoundException ex2) {
+                            throw new ResolveException(ex);
+                        }
+                    } else {
                         throw new ResolveException(ex);
                     }
-                } else {
-                    throw new ResolveException(ex);
                 }
             }
-        }
 
-        for (String entry: extraClassPathEntries) {
-            // extra classpath entries must be specified using a local path, so we don't need to do the search through
-            // bootClassPathDirs
-            try {
-                loadLocalClassPathEntry(entry);
-            } catch (NoDexException ex) {
-                throw new ResolveException(ex);
+            for (String entry: extraClassPathEntries) {
+                // extra classpath entries must be specified using a local path, so we don't need to do the search
+                // through bootClassPathDirs
+                try {
+                    loadLocalClassPathEntry(entry);
+                } catch (NoDexException ex) {
+                    throw new ResolveException(ex);
+                }
             }
+        } finally {
+            // any remaining containers were for entries that weren't needed after all, e.g. a duplicate entry
+            for (Future<?> future: prefetchedContainers.values()) {
+                future.cancel(false);
+            }
+            prefetchedContainers.clear();
         }
 
+        classPathProviderCount = classProviders.size();
+
+        classProviders.addAll(getDexFileProviders(dexFile));
+    }
+
+    /**
+     * Gets the class providers for the given dex file being analyzed. If the dex file is part of a multidex
+     * container, this includes a provider for each of the dex files in the container.
+     *
+     * @param dexFile The dex file that the classpath will be used to analyze
+     * @return A list of class providers for the dex file
+     */
+    @Nonnull
+    public static List<ClassProvider> getDexFileProviders(@Nonnull DexFile dexFile) throws IOException {
+        List<ClassProvider> classProviders = Lists.newArrayList();
         if (dexFile instanceof MultiDexContainer.MultiDexFile) {
             MultiDexContainer<? extends MultiDexFile> container = ((MultiDexFile)dexFile).getContainer();
             for (String entry: container.getDexEntryNames()) {
@@ -165,6 +232,7 @@ public class ClassPathResolver {
         } else {
             classProviders.add(new DexClassProvider(dexFile));
         }
+        return classProviders;
     }
 
     @Nonnull
@@ -172,9 +240,35 @@ public class ClassPathResolver {
         return classProviders;
     }
 
-    private boolean loadLocalClassPathEntry(@Nonnull String entry) throws NoDexException, IOException {
+    /**
+     * @return The class providers for the class path entries, i.e. the resolved class providers without the ones for
+     * the dex file itself
+     */
+    @Nonnull
+    public List<ClassProvider> getClassPathProviders() {
+        return classProviders.subList(0, classPathProviderCount);
+    }
+
+    /**
+     * @return The class path files that were loaded, in the order they were loaded
+     */
+    @Nonnull
+    public List<File> getLoadedFiles() {
+        return ImmutableList.copyOf(loadedFiles);
+    }
+
+    @Nullable
+    private static File findLocalClassPathEntry(@Nonnull String entry) {
         File entryFile = new File(entry);
         if (entryFile.exists() && entryFile.isFile()) {
+            return entryFile;
+        }
+        return null;
+    }
+
+    private boolean loadLocalClassPathEntry(@Nonnull String entry) throws NoDexException, IOException {
+        File entryFile = findLocalClassPathEntry(entry);
+        if (entryFile != null) {
             try {
                 loadEntry(entryFile, true);
                 return true;
@@ -192,6 +286,26 @@ public class ClassPathResolver {
             return;
         }
 
+        File entryFile = findDeviceBootClassPathEntry(entry);
+        if (entryFile != null) {
+            loadEntry(entryFile, true);
+            return;
+        }
+
+        throw new NotFoundException("Could not find classpath entry %s", entry);
+    }
+
+    @Nullable
+    private File findLocalOrDeviceBootClassPathEntry(@Nonnull String entry) {
+        File entryFile = findLocalClassPathEntry(entry);
+        if (entryFile != null) {
+            return entryFile;
+        }
+        return findDeviceBootClassPathEntry(entry);
+    }
+
+    @Nullable
+    private File findDeviceBootClassPathEntry(@Nonnull String entry) {
         // It's not a local path, so let's try to resolve it as a device path, relative to one of the provided
         // directories
         List<String> pathComponents = splitDevicePath(entry);
@@ -207,13 +321,78 @@ public class ClassPathResolver {
                 String partialPath = pathJoiner.join(pathComponents.subList(i, pathComponents.size()));
                 File entryFile = new File(directoryFile, partialPath);
                 if (entryFile.exists() && entryFile.isFile()) {
-                    loadEntry(entryFile, true);
-                    return;
+                    return entryFile;
                 }
             }
         }
+        return null;
+    }
 
-        throw new NotFoundException("Could not find classpath entry %s", entry);
+    /**
+     * A container, along with all of its dex entries, which have already been loaded
+     */
+    private static class LoadedContainer {
+        @Nonnull public final MultiDexContainer<? extends DexBackedDexFile> container;
+        @Nonnull public final List<DexBackedDexFile> dexFiles;
+
+        public LoadedContainer(@Nonnull MultiDexContainer<? extends DexBackedDexFile> container,
+                               @Nonnull List<DexBackedDexFile> dexFiles) {
+            this.container = container;
+            this.dexFiles = dexFiles;
+        }
+    }
+
+    private void prefetchContainer(@Nullable final File file) {
+        if (executor == null || file == null || loadedFiles.contains(file) || prefetchedContainers.containsKey(file)) {
+            return;
+        }
+        prefetchedContainers.put(file, executor.submit(new Callable<LoadedContainer>() {
+            @Override public LoadedContainer call() throws Exception {
+                return readContainer(file);
+            }
+        }));
+    }
+
+    /**
+     * Reads the given container, along with each of its dex entries. For a zip file, this is where the dex entries are
+     * actually inflated and parsed.
+     */
+    @Nonnull
+    private LoadedContainer readContainer(@Nonnull File file) throws IOException {
+        MultiDexContainer<? extends DexBackedDexFile> container = DexFileFactory.loadDexContainer(file, opcodes);
+        List<DexBackedDexFile> dexFiles = Lists.newArrayList();
+        for (String entryName: container.getDexEntryNames()) {
+            DexBackedDexFile dexFile = container.getEntry(entryName);
+            if (dexFile == null) {
+                throw new ExceptionWithContext("Could not load dex entry %s from %s", entryName, file);
+            }
+            dexFiles.add(dexFile);
+        }
+        return new LoadedContainer(container, dexFiles);
+    }
+
+    @Nonnull
+    private LoadedContainer loadContainer(@Nonnull File file) throws IOException {
+        Future<LoadedContainer> future = prefetchedContainers.remove(file);
+        if (future == null) {
+            return readContainer(file);
+        }
+
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new ExceptionWithContext(cause, "Error while loading %s", file);
+        }
     }
 
     private void loadEntry(@Nonnull File entryFile, boolean loadOatDependencies)
@@ -222,23 +401,22 @@ public class ClassPathResolver {
             return;
         }
 
-        MultiDexContainer<? extends DexBackedDexFile> container;
+        LoadedContainer loadedContainer;
         try {
-            container = DexFileFactory.loadDexContainer(entryFile, opcodes);
+            loadedContainer = loadContainer(entryFile);
         } catch (UnsupportedFileTypeException ex) {
             throw new ResolveException(ex);
         }
+        MultiDexContainer<? extends DexBackedDexFile> container = loadedContainer.container;
 
-        List<String> entryNames = container.getDexEntryNames();
-
-        if (entryNames.size() == 0) {
+        if (loadedContainer.dexFiles.size() == 0) {
             throw new NoDexException("%s contains no dex file", entryFile);
         }
 
         loadedFiles.add(entryFile);
 
-        for (String entryName: entryNames) {
-            classProviders.add(new DexClassProvider(container.getEntry(entryName)));
+        for (DexBackedDexFile dexFile: loadedContainer.dexFiles) {
+            classProviders.add(new DexClassProvider(dexFile));
         }
 
         if (loadOatDependencies && container instanceof OatFile) {
@@ -263,6 +441,15 @@ public class ClassPathResolver {
     private void loadOatDependencies(@Nonnull File directory, @Nonnull List<String> oatDependencies)
             throws IOException, NoDexException, NotFoundException {
         // We assume that all oat dependencies are located in the same directory as the oat file
+        if (executor != null) {
+            for (String oatDependency: oatDependencies) {
+                File file = new File(directory, getFilenameForOatDependency(oatDependency));
+                if (file.exists()) {
+                    prefetchContainer(file);
+                }
+            }
+        }
+
         for (String oatDependency: oatDependencies) {
             String oatDependencyName = getFilenameForOatDependency(oatDependency);
             File file = new File(directory, oatDependencyName);
@@ -65,10 +65,11 @@ public class ClassProto implements TypeProto {
     @Nonnull protected final ClassPath classPath;
     @Nonnull protected final String type;
 
-    protected boolean vtableFullyResolved = true;
-    protected boolean interfacesFullyResolved = true;
+    // These are set while computing the vtable and interfaces, which may happen on another thread
+    protected volatile boolean vtableFullyResolved = true;
+    protected volatile boolean interfacesFullyResolved = true;
 
-    protected Set<String> unresolvedInterfaces = null;
+    protected volatile Set<String> unresolvedInterfaces = null;
 
     public ClassProto(@Nonnull ClassPath classPath, @Nonnull String type) {
         if (type.charAt(0) != 'L') {
@@ -122,6 +123,9 @@ public class ClassProto implements TypeProto {
      */
     @Nonnull
     protected LinkedHashMap<String, ClassDef> getInterfaces() {
+        if (getIndexedClass() != null) {
+            return indexedInterfaceSupplier.get();
+        }
         if (!classPath.isArt() || classPath.oatVersion < 72) {
             return preDefaultMethodInterfaceSupplier.get();
         } else {
@@ -129,6 +133,34 @@ public class ClassProto implements TypeProto {
         }
     }
 
+    /**
+     * @return The precomputed information for this class from the class path's index, or null if there is none
+     */
+    @Nullable
+    private ClassPathIndex.IndexedClass getIndexedClass() {
+        return indexedClassSupplier.get();
+    }
+
+    @Nonnull
+    private final Supplier<ClassPathIndex.IndexedClass> indexedClassSupplier =
+            Suppliers.memoize(new Supplier<ClassPathIndex.IndexedClass>() {
+                @Override public ClassPathIndex.IndexedClass get() {
+                    ClassPathIndex classPathIndex = classPath.getClassPathIndex();
+                    if (classPathIndex == null) {
+                        return null;
+                    }
+                    return classPathIndex.getIndexedClass(type);
+                }
+            });
+
+    @Nonnull
+    private final Supplier<LinkedHashMap<String, ClassDef>> indexedInterfaceSupplier =
+            Suppliers.memoize(new Supplier<LinkedHashMap<String, ClassDef>>() {
+                @Override public LinkedHashMap<String, ClassDef> get() {
+                    return getIndexedClass().getInterfaces(classPath);
+                }
+            });
+
     /**
      * This calculates the interfaces in the order required for vtable generation for dalvik and pre-default method ART
      */
@@ -482,6 +514,10 @@ public class ClassProto implements TypeProto {
     }
 
     @Nonnull public SparseArray<FieldReference> getInstanceFields() {
+        ClassPathIndex.IndexedClass indexedClass = getIndexedClass();
+        if (indexedClass != null) {
+            return indexedClass.instanceFields;
+        }
         if (classPath.isArt()) {
             return artInstanceFieldsSupplier.get();
         } else {
@@ -864,6 +900,10 @@ public class ClassProto implements TypeProto {
     }
 
     @Nonnull public List<Method> getVtable() {
+        ClassPathIndex.IndexedClass indexedClass = getIndexedClass();
+        if (indexedClass != null) {
+            return indexedClass.vtable;
+        }
         if (!classPath.isArt() || classPath.oatVersion < 72) {
             return preDefaultMethodVtableSupplier.get();
         } else if (classPath.oatVersion < 87) {
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.analysis;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.Sets;
+import org.jf.dexlib2.dexbacked.DexBackedClassDef;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexReader;
+import org.jf.dexlib2.dexbacked.raw.ClassDefItem;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An index from type to class def for a DexBackedDexFile, that is built directly from the class_def, type_id and
+ * string_id tables.
+ *
+ * The index is an open-addressing hash table of class indexes, keyed by a hash of the raw MUTF-8 bytes of each class's
+ * type string. Building it doesn't decode any strings or create any DexBackedClassDef instances, and a lookup only
+ * creates a DexBackedClassDef for the class that was found.
+ *
+ * The table is built lazily, the first time a class is looked up. The DexBackedClassDef for each class is created
+ * when it's first found, and then reused for later lookups.
+ */
+class DexBackedClassIndex {
+    @Nonnull private final DexBackedDexFile dexFile;
+    @Nonnull private final AtomicReferenceArray<DexBackedClassDef> classDefs;
+
+    private final Supplier<Table> tableSupplier = Suppliers.memoize(new Supplier<Table>() {
+        @Override public Table get() {
+            return buildTable();
+        }
+    });
+
+    private static class Table {
+        // each entry is the class index + 1, with 0 used for empty slots
+        @Nonnull public final int[] slots;
+        // the hash of the type of each class, as computed by hashType
+        @Nonnull public final int[] typeHashes;
+
+        public Table(@Nonnull int[] slots, @Nonnull int[] typeHashes) {
+            this.slots = slots;
+            this.typeHashes = typeHashes;
+        }
+    }
+
+    public DexBackedClassIndex(@Nonnull DexBackedDexFile dexFile) {
+        this.dexFile = dexFile;
+        this.classDefs = new AtomicReferenceArray<DexBackedClassDef>(dexFile.getClassCount());
+    }
+
+    @Nullable
+    public DexBackedClassDef getClassDef(@Nonnull String type) {
+        return getClassDef(type, hashType(type));
+    }
+
+    /**
+     * Looks up a class, given the hash of its type that was already computed by hashType
+     */
+    @Nullable
+    public DexBackedClassDef getClassDef(@Nonnull String type, int typeHash) {
+        int[] table = tableSupplier.get().slots;
+        int mask = table.length - 1;
+
+        int slot = smear(typeHash) & mask;
+        while (true) {
+            int entry = table[slot];
+            if (entry == 0) {
+                return null;
+            }
+            int classDefOffset = dexFile.getClassDefItemOffset(entry - 1);
+            if (typeEquals(getStringDataOffset(classDefOffset), type)) {
+                return getClassDefAt(entry - 1, classDefOffset);
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    @Nonnull
+    private DexBackedClassDef getClassDefAt(int classIndex, int classDefOffset) {
+        DexBackedClassDef classDef = classDefs.get(classIndex);
+        if (classDef == null) {
+            classDef = new DexBackedClassDef(dexFile, classDefOffset);
+            if (!classDefs.compareAndSet(classIndex, null, classDef)) {
+                classDef = classDefs.get(classIndex);
+            }
+        }
+        return classDef;
+    }
+
+    /**
+     * @return The hash of the type of each class in the dex file, as computed by hashType. These are computed from
+     * the raw string data, without decoding the type strings.
+     */
+    @Nonnull
+    public int[] getTypeHashes() {
+        return tableSupplier.get().typeHashes;
+    }
+
+    /**
+     * @return The types of all the classes in the dex file
+     */
+    @Nonnull
+    public Set<String> getClassTypes() {
+        int classCount = dexFile.getClassCount();
+        Set<String> types = Sets.newHashSetWithExpectedSize(classCount);
+        for (int i=0; i<classCount; i++) {
+            int typeIndex = dexFile.readSmallUint(dexFile.getClassDefItemOffset(i) + ClassDefItem.CLASS_OFFSET);
+            types.add(dexFile.getType(typeIndex));
+        }
+        return Collections.unmodifiableSet(types);
+    }
+
+    @Nonnull
+    private Table buildTable() {
+        int classCount = dexFile.getClassCount();
+
+        // keep the load factor at or below 0.5
+        int capacity = Integer.highestOneBit(Math.max(classCount, 1)) * 4;
+        if (capacity < 0) {
+            throw new IllegalStateException("Too many classes: " + classCount);
+        }
+        int mask = capacity - 1;
+
+        int[] table = new int[capacity];
+        int[] typeHashes = new int[classCount];
+        for (int i=0; i<classCount; i++) {
+            int classDefOffset = dexFile.getClassDefItemOffset(i);
+            int typeIndex = dexFile.readSmallUint(classDefOffset + ClassDefItem.CLASS_OFFSET);
+
+            int typeHash = hashStringData(getStringDataOffset(classDefOffset));
+            typeHashes[i] = typeHash;
+
+            int slot = smear(typeHash) & mask;
+            while (true) {
+                int entry = table[slot];
+                if (entry == 0) {
+                    table[slot] = i + 1;
+                    break;
+                }
+                int otherTypeIndex = dexFile.readSmallUint(
+                        dexFile.getClassDefItemOffset(entry - 1) + ClassDefItem.CLASS_OFFSET);
+                if (otherTypeIndex == typeIndex) {
+                    // a duplicate class def. The last one wins, as with the map-based DexClassProvider
+                    table[slot] = i + 1;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+        return new Table(table, typeHashes);
+    }
+
+    /**
+     * @return The offset of the first byte of the MUTF-8 data of the type string of the given class def
+     */
+    private int getStringDataOffset(int classDefOffset) {
+        int typeIndex = dexFile.readSmallUint(classDefOffset + ClassDefItem.CLASS_OFFSET);
+        int stringIndex = dexFile.readSmallUint(dexFile.getTypeIdItemOffset(typeIndex));
+        int stringDataOffset = dexFile.readSmallUint(dexFile.getStringIdItemOffset(stringIndex));
+
+        DexReader reader = dexFile.readerAt(stringDataOffset);
+        reader.skipUleb128();
+        return reader.getOffset();
+    }
+
+    private int hashStringData(int offset) {
+        int hash = 0;
+        int b;
+        while ((b = dexFile.readUbyte(offset++)) != 0) {
+            hash = hash * 31 + b;
+        }
+        return hash;
+    }
+
+    /**
+     * Computes the same hash as hashStringData, over the MUTF-8 encoding of the given string
+     */
+    static int hashType(@Nonnull String type) {
+        int hash = 0;
+        for (int i=0; i<type.length(); i++) {
+            char c = type.charAt(i);
+            if (c != 0 && c < 0x80) {
+                hash = hash * 31 + c;
+            } else if (c < 0x800) {
+                hash = hash * 31 + (((c >> 6) & 0x1f) | 0xc0);
+                hash = hash * 31 + ((c & 0x3f) | 0x80);
+            } else {
+                hash = hash * 31 + (((c >> 12) & 0x0f) | 0xe0);
+                hash = hash * 31 + (((c >> 6) & 0x3f) | 0x80);
+                hash = hash * 31 + ((c & 0x3f) | 0x80);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Compares the null-terminated MUTF-8 data at the given offset with the MUTF-8 encoding of the given string
+     */
+    private boolean typeEquals(int offset, @Nonnull String type) {
+        for (int i=0; i<type.length(); i++) {
+            char c = type.charAt(i);
+            if (c != 0 && c < 0x80) {
+                if (dexFile.readUbyte(offset++) != c) {
+                    return false;
+                }
+            } else if (c < 0x800) {
+                if (dexFile.readUbyte(offset++) != (((c >> 6) & 0x1f) | 0xc0) ||
+                        dexFile.readUbyte(offset++) != ((c & 0x3f) | 0x80)) {
+                    return false;
+                }
+            } else {
+                if (dexFile.readUbyte(offset++) != (((c >> 12) & 0x0f) | 0xe0) ||
+                        dexFile.readUbyte(offset++) != (((c >> 6) & 0x3f) | 0x80) ||
+                        dexFile.readUbyte(offset++) != ((c & 0x3f) | 0x80)) {
+                    return false;
+                }
+            }
+        }
+        return dexFile.readUbyte(offset) == 0;
+    }
+
+    static int smear(int hash) {
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        return hash ^ (hash >>> 7) ^ (hash >>> 4);
+    }
+}
@@ -32,25 +32,85 @@
 package org.jf.dexlib2.analysis;
 
 import com.google.common.collect.Maps;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
 import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.iface.DexFile;
 
+import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 
+/**
+ * A ClassProvider for the classes in a DexFile.
+ *
+ * For a DexBackedDexFile, the classes are looked up via an index that is built directly from the raw class_def
+ * table. For other DexFiles, all of the classes are read into a map up front.
+ */
 public class DexClassProvider implements ClassProvider {
     private final DexFile dexFile;
-    private Map<String, ClassDef> classMap = Maps.newHashMap();
+    @Nullable private final Map<String, ClassDef> classMap;
+    @Nullable private final DexBackedClassIndex classIndex;
 
     public DexClassProvider(DexFile dexFile) {
         this.dexFile = dexFile;
 
-        for (ClassDef classDef: dexFile.getClasses()) {
-            classMap.put(classDef.getType(), classDef);
+        if (dexFile instanceof DexBackedDexFile) {
+            classMap = null;
+            classIndex = new DexBackedClassIndex((DexBackedDexFile)dexFile);
+        } else {
+            classMap = Maps.newHashMap();
+            classIndex = null;
+            for (ClassDef classDef: dexFile.getClasses()) {
+                classMap.put(classDef.getType(), classDef);
+            }
         }
     }
 
     @Nullable @Override public ClassDef getClassDef(String type) {
+        if (classIndex != null) {
+            return classIndex.getClassDef(type);
+        }
+        return classMap.get(type);
+    }
+
+    /**
+     * Looks up a class, given the hash of its type that was already computed by DexBackedClassIndex.hashType
+     */
+    @Nullable
+    ClassDef getClassDef(@Nonnull String type, int typeHash) {
+        if (classIndex != null) {
+            return classIndex.getClassDef(type, typeHash);
+        }
         return classMap.get(type);
     }
+
+    /**
+     * @return The hash of the type of each class provided by this provider, as computed by
+     * DexBackedClassIndex.hashType. For a DexBackedDexFile, this doesn't decode any type strings.
+     */
+    @Nonnull
+    int[] getTypeHashes() {
+        if (classIndex != null) {
+            return classIndex.getTypeHashes();
+        }
+        int[] typeHashes = new int[classMap.size()];
+        int i = 0;
+        for (String type: classMap.keySet()) {
+            typeHashes[i++] = DexBackedClassIndex.hashType(type);
+        }
+        return typeHashes;
+    }
+
+    /**
+     * @return The types of all the classes provided by this provider
+     */
+    @Nonnull
+    public Set<String> getClassTypes() {
+        if (classIndex != null) {
+            return classIndex.getClassTypes();
+        }
+        return Collections.unmodifiableSet(classMap.keySet());
+    }
 }
@@ -90,6 +90,26 @@ public class MethodAnalyzer {
 
     @Nullable private AnalysisException analysisException = null;
 
+    // The instruction indexes of the instructions, in reverse post-order of the control flow graph. Any unreachable
+    // instructions are at the end, in instruction index order
+    private int[] reversePostOrder;
+
+    // The position of each instruction in reversePostOrder, keyed by instruction index. The work lists used during
+    // analysis are keyed by this position, so that they are processed in reverse post-order
+    private int[] reversePostOrderPositions;
+
+    // The number of times an instruction has been analyzed
+    private int analyzedInstructionCount = 0;
+
+    // The number of times a register type has been merged into an instruction from one of its predecessors
+    private int propagatedInstructionCount = 0;
+
+    // The number of passes over the work list that were needed to reach a fixed point
+    private int iterationCount = 0;
+
+    // The register types used in this method, which are stored as ids in each AnalyzedInstruction
+    @Nonnull private final RegisterTypeTable registerTypeTable = new RegisterTypeTable();
+
     // This is a dummy instruction that occurs immediately before the first real instruction. We can initialize the
     // register types for this instruction to the parameter types, in order to have them propagate to all of its
     // successors, e.g. the first real instruction, the first instructions in any exception handlers covering the first
@@ -125,6 +145,7 @@ public class MethodAnalyzer {
         };
 
         buildInstructionList();
+        buildReversePostOrder();
 
         analyzedState = new BitSet(analyzedInstructions.size());
         paramRegisterCount = MethodUtil.getParameterRegisterCount(method);
@@ -136,6 +157,44 @@ public class MethodAnalyzer {
         return classPath;
     }
 
+    /**
+     * @return The number of times an instruction was analyzed. An instruction is analyzed again whenever the register
+     * types from its predecessors change
+     */
+    public int getAnalyzedInstructionCount() {
+        return analyzedInstructionCount;
+    }
+
+    /**
+     * @return The number of times a changed register type was merged into an instruction from one of its predecessors
+     */
+    public int getPropagatedInstructionCount() {
+        return propagatedInstructionCount;
+    }
+
+    /**
+     * @return The number of passes over the work list that were needed to reach a fixed point
+     */
+    public int getIterationCount() {
+        return iterationCount;
+    }
+
+    @Nonnull
+    RegisterTypeTable getRegisterTypeTable() {
+        return registerTypeTable;
+    }
+
+    /**
+     * @param instructionIndex The index of an instruction, or -1 for the fake "StartOfMethod" instruction
+     */
+    @Nonnull
+    AnalyzedInstruction getAnalyzedInstruction(int instructionIndex) {
+        if (instructionIndex == -1) {
+            return startOfMethod;
+        }
+        return analyzedInstructions.valueAt(instructionIndex);
+    }
+
     private void analyze() {
         Method method = this.method;
         MethodImplementation methodImpl = this.methodImpl;
@@ -174,8 +233,8 @@ public class MethodAnalyzer {
         BitSet instructionsToAnalyze = new BitSet(analyzedInstructions.size());
 
         //make sure all of the "first instructions" are marked for processing
-        for (AnalyzedInstruction successor: startOfMethod.successors) {
-            instructionsToAnalyze.set(successor.instructionIndex);
+        for (int i=0; i<startOfMethod.getSuccessorCount(); i++) {
+            instructionsToAnalyze.set(reversePostOrderPositions[startOfMethod.getSuccessorIndex(i)]);
         }
 
         BitSet undeodexedInstructions = new BitSet(analyzedInstructions.size());
@@ -184,12 +243,18 @@ public class MethodAnalyzer {
             boolean didSomething = false;
 
             while (!instructionsToAnalyze.isEmpty()) {
-                for(int i=instructionsToAnalyze.nextSetBit(0); i>=0; i=instructionsToAnalyze.nextSetBit(i+1)) {
-                    instructionsToAnalyze.clear(i);
+                iterationCount++;
+                // instructionsToAnalyze is keyed by reverse post-order position, so that an instruction is usually
+                // analyzed after all of its predecessors
+                for(int position=instructionsToAnalyze.nextSetBit(0); position>=0;
+                        position=instructionsToAnalyze.nextSetBit(position+1)) {
+                    instructionsToAnalyze.clear(position);
+                    int i = reversePostOrder[position];
                     if (analyzedState.get(i)) {
                         continue;
                     }
                     AnalyzedInstruction instructionToAnalyze = analyzedInstructions.valueAt(i);
+                    analyzedInstructionCount++;
                     try {
                         if (instructionToAnalyze.originalInstruction.getOpcode().odexOnly()) {
                             //if we had deodexed an odex instruction in a previous pass, we might have more specific
@@ -217,8 +282,8 @@ public class MethodAnalyzer {
 
                     analyzedState.set(instructionToAnalyze.getInstructionIndex());
 
-                    for (AnalyzedInstruction successor: instructionToAnalyze.successors) {
-                        instructionsToAnalyze.set(successor.getInstructionIndex());
+                    for (int j=0; j<instructionToAnalyze.getSuccessorCount(); j++) {
+                        instructionsToAnalyze.set(reversePostOrderPositions[instructionToAnalyze.getSuccessorIndex(j)]);
                     }
                 }
                 if (analysisException != null) {
@@ -232,7 +297,7 @@ public class MethodAnalyzer {
 
             if (!undeodexedInstructions.isEmpty()) {
                 for (int i=undeodexedInstructions.nextSetBit(0); i>=0; i=undeodexedInstructions.nextSetBit(i+1)) {
-                    instructionsToAnalyze.set(i);
+                    instructionsToAnalyze.set(reversePostOrderPositions[i]);
                 }
             }
         } while (true);
@@ -332,19 +397,25 @@ public class MethodAnalyzer {
                 registerType);
     }
 
+    /**
+     * Propagates the type of a single register from the given instructions, until it stops changing.
+     *
+     * @param changedInstructions The instructions whose post-instruction type for the register has changed, keyed by
+     *                            reverse post-order position. This will be empty on return.
+     */
     private void propagateChanges(@Nonnull BitSet changedInstructions, int registerNumber, boolean override) {
         //Using a for loop inside the while loop optimizes for the common case of the successors of an instruction
-        //occurring after the instruction. Any successors that occur prior to the instruction will be picked up on
-        //the next iteration of the while loop.
+        //occurring after the instruction in reverse post-order, which is always the case except for back edges. Any
+        //successors that occur prior to the instruction will be picked up on the next iteration of the while loop.
         //This could also be done recursively, but in large methods it would likely cause very deep recursion.
         while (!changedInstructions.isEmpty()) {
-            for (int instructionIndex=changedInstructions.nextSetBit(0);
-                 instructionIndex>=0;
-                 instructionIndex=changedInstructions.nextSetBit(instructionIndex+1)) {
+            for (int position=changedInstructions.nextSetBit(0);
+                 position>=0;
+                 position=changedInstructions.nextSetBit(position+1)) {
 
-                changedInstructions.clear(instructionIndex);
+                changedInstructions.clear(position);
 
-                propagateRegisterToSuccessors(analyzedInstructions.valueAt(instructionIndex), registerNumber,
+                propagateRegisterToSuccessors(analyzedInstructions.valueAt(reversePostOrder[position]), registerNumber,
                         changedInstructions, override);
             }
         }
@@ -354,13 +425,12 @@ public class MethodAnalyzer {
             @Nonnull AnalyzedInstruction analyzedInstruction, @Nonnull AnalyzedInstruction predecessor,
             int registerNumber, @Nonnull RegisterType registerType) {
 
-        BitSet changedInstructions = new BitSet(analyzedInstructions.size());
-
         if (!analyzedInstruction.overridePredecessorRegisterType(
                 predecessor, registerNumber, registerType, analyzedState)) {
             return;
         }
-        changedInstructions.set(analyzedInstruction.instructionIndex);
+        BitSet changedInstructions = new BitSet(analyzedInstructions.size());
+        changedInstructions.set(reversePostOrderPositions[analyzedInstruction.instructionIndex]);
 
         propagateChanges(changedInstructions, registerNumber, true);
 
@@ -378,12 +448,12 @@ public class MethodAnalyzer {
     private void initializeRefAndPropagateChanges(@Nonnull AnalyzedInstruction analyzedInstruction,
                                                   int registerNumber, @Nonnull RegisterType registerType) {
 
-        BitSet changedInstructions = new BitSet(analyzedInstructions.size());
-
         if (!analyzedInstruction.setPostRegisterType(registerNumber, registerType)) {
             return;
         }
 
+        BitSet changedInstructions = new BitSet(analyzedInstructions.size());
+
         propagateRegisterToSuccessors(analyzedInstruction, registerNumber, changedInstructions, false);
 
         propagateChanges(changedInstructions, registerNumber, false);
@@ -400,12 +470,12 @@ public class MethodAnalyzer {
     private void setPostRegisterTypeAndPropagateChanges(@Nonnull AnalyzedInstruction analyzedInstruction,
                                                         int registerNumber, @Nonnull RegisterType registerType) {
 
-        BitSet changedInstructions = new BitSet(analyzedInstructions.size());
-
         if (!analyzedInstruction.setPostRegisterType(registerNumber, registerType)) {
             return;
         }
 
+        BitSet changedInstructions = new BitSet(analyzedInstructions.size());
+
         propagateRegisterToSuccessors(analyzedInstruction, registerNumber, changedInstructions, false);
 
         propagateChanges(changedInstructions, registerNumber, false);
@@ -421,10 +491,12 @@ public class MethodAnalyzer {
 
     private void propagateRegisterToSuccessors(@Nonnull AnalyzedInstruction instruction, int registerNumber,
                                                @Nonnull BitSet changedInstructions, boolean override) {
-        RegisterType postRegisterType = instruction.getPostInstructionRegisterType(registerNumber);
-        for (AnalyzedInstruction successor: instruction.successors) {
-            if (successor.mergeRegister(registerNumber, postRegisterType, analyzedState, override)) {
-                changedInstructions.set(successor.instructionIndex);
+        int postRegisterTypeId = instruction.getPostRegisterTypeId(registerNumber);
+        for (int i=0; i<instruction.getSuccessorCount(); i++) {
+            AnalyzedInstruction successor = analyzedInstructions.valueAt(instruction.getSuccessorIndex(i));
+            propagatedInstructionCount++;
+            if (successor.mergeRegister(registerNumber, postRegisterTypeId, analyzedState, override)) {
+                changedInstructions.set(reversePostOrderPositions[successor.instructionIndex]);
             }
         }
     }
@@ -545,6 +617,61 @@ public class MethodAnalyzer {
         }
     }
 
+    /**
+     * Orders the instructions in reverse post-order of a depth first traversal of the control flow graph, starting
+     * at the fake "StartOfMethod" instruction. In this order, every instruction comes after its predecessors, except
+     * for predecessors that are reached via a back edge, i.e. a loop.
+     */
+    private void buildReversePostOrder() {
+        int instructionCount = analyzedInstructions.size();
+
+        int[] postOrder = new int[instructionCount];
+        int postOrderCount = 0;
+
+        BitSet visited = new BitSet(instructionCount);
+
+        // The instructions on the current path, and the position of the next successor to visit for each
+        int[] stack = new int[instructionCount + 1];
+        int[] nextSuccessor = new int[instructionCount + 1];
+        int stackSize = 1;
+        stack[0] = -1;
+
+        while (stackSize > 0) {
+            AnalyzedInstruction instruction = getAnalyzedInstruction(stack[stackSize - 1]);
+            int successorPosition = nextSuccessor[stackSize - 1];
+            if (successorPosition < instruction.getSuccessorCount()) {
+                nextSuccessor[stackSize - 1]++;
+                int successorIndex = instruction.getSuccessorIndex(successorPosition);
+                if (!visited.get(successorIndex)) {
+                    visited.set(successorIndex);
+                    stack[stackSize] = successorIndex;
+                    nextSuccessor[stackSize] = 0;
+                    stackSize++;
+                }
+            } else {
+                stackSize--;
+                if (instruction != startOfMethod) {
+                    postOrder[postOrderCount++] = instruction.instructionIndex;
+                }
+            }
+        }
+
+        reversePostOrder = new int[instructionCount];
+        reversePostOrderPositions = new int[instructionCount];
+
+        int position = 0;
+        for (int i=postOrderCount-1; i>=0; i--) {
+            reversePostOrder[position] = postOrder[i];
+            reversePostOrderPositions[postOrder[i]] = position;
+            position++;
+        }
+        for (int i=visited.nextClearBit(0); i<instructionCount; i=visited.nextClearBit(i+1)) {
+            reversePostOrder[position] = i;
+            reversePostOrderPositions[i] = position;
+            position++;
+        }
+    }
+
     private void addPredecessorSuccessor(@Nonnull AnalyzedInstruction predecessor,
                                          @Nonnull AnalyzedInstruction successor,
                                          @Nonnull AnalyzedInstruction[][] exceptionHandlers,
@@ -1246,7 +1373,8 @@ public class MethodAnalyzer {
                 if (analyzedInstruction.getPredecessorCount() != 1) {
                     return;
                 }
-                AnalyzedInstruction prevAnalyzedInstruction = analyzedInstruction.getPredecessors().first();
+                AnalyzedInstruction prevAnalyzedInstruction =
+                        getAnalyzedInstruction(analyzedInstruction.getPredecessorIndex(0));
                 if (prevAnalyzedInstruction.instruction.getOpcode() == Opcode.INSTANCE_OF) {
 
                     AnalyzedInstruction fallthroughInstruction = analyzedInstructions.valueAt(
@@ -1934,7 +2062,7 @@ public class MethodAnalyzer {
     @Nonnull
     private static RegisterType getAndCheckSourceRegister(@Nonnull AnalyzedInstruction analyzedInstruction,
                                                           int registerNumber, BitSet validCategories) {
-        assert registerNumber >= 0 && registerNumber < analyzedInstruction.postRegisterMap.length;
+        assert registerNumber >= 0 && registerNumber < analyzedInstruction.getRegisterCount();
 
         RegisterType registerType = analyzedInstruction.getPreInstructionRegisterType(registerNumber);
 
@@ -1959,7 +2087,7 @@ public class MethodAnalyzer {
     }
 
     private static void checkWidePair(int registerNumber, AnalyzedInstruction analyzedInstruction) {
-        if (registerNumber + 1 >= analyzedInstruction.postRegisterMap.length) {
+        if (registerNumber + 1 >= analyzedInstruction.getRegisterCount()) {
             throw new AnalysisException(String.format("v%d cannot be used as the first register in a wide register" +
                     "pair because it is the last register.", registerNumber));
         }
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.analysis;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interns the register types used while analyzing a method as small integer ids, so that the register types for each
+ * instruction can be stored in a packed primitive array, rather than as an array of objects.
+ *
+ * The ids of the register types that don't have an associated TypeProto are the same as their category, so that
+ * UNKNOWN is always 0. Register types with a TypeProto are assigned ids sequentially, starting at CATEGORY_COUNT.
+ *
+ * Instances of this class are not thread safe.
+ */
+class RegisterTypeTable {
+    static final int CATEGORY_COUNT = RegisterType.CATEGORY_NAMES.length;
+
+    @Nonnull private final List<RegisterType> registerTypes = Lists.newArrayList();
+    @Nonnull private final Map<RegisterType, Integer> registerTypeIds = Maps.newHashMap();
+    @Nonnull private final Map<Long, Integer> mergeCache = Maps.newHashMap();
+
+    public RegisterTypeTable() {
+        for (byte category=0; category<CATEGORY_COUNT; category++) {
+            if (category == RegisterType.UNINIT_REF || category == RegisterType.UNINIT_THIS ||
+                    category == RegisterType.REFERENCE) {
+                // these always have a TypeProto, so they can't be stored by category alone
+                registerTypes.add(null);
+            } else {
+                registerTypes.add(RegisterType.getRegisterType(category, null));
+            }
+        }
+    }
+
+    /**
+     * Gets the id for the given register type, assigning a new id if needed.
+     *
+     * Note that uninitialized references are only equal to themselves, so each distinct instance gets its own id.
+     */
+    public int getId(@Nonnull RegisterType registerType) {
+        if (registerType.type == null) {
+            return registerType.category;
+        }
+
+        Integer id = registerTypeIds.get(registerType);
+        if (id == null) {
+            id = registerTypes.size();
+            registerTypes.add(registerType);
+            registerTypeIds.put(registerType, id);
+        }
+        return id;
+    }
+
+    @Nonnull
+    public RegisterType getRegisterType(int id) {
+        return registerTypes.get(id);
+    }
+
+    public int size() {
+        return registerTypes.size();
+    }
+
+    /**
+     * Merges the two register types with the given ids.
+     *
+     * Merging 2 reference types requires finding their common superclass, so the result is cached for any pair that
+     * involves a type with a TypeProto.
+     *
+     * @return The id of the merged register type, as per RegisterType.merge
+     */
+    public int merge(int id, int otherId) {
+        if (id == otherId) {
+            return id;
+        }
+        if (id < CATEGORY_COUNT && otherId < CATEGORY_COUNT) {
+            return getId(registerTypes.get(id).merge(registerTypes.get(otherId)));
+        }
+
+        long key = ((long)id << 32) | (otherId & 0xFFFFFFFFL);
+        Integer mergedId = mergeCache.get(key);
+        if (mergedId == null) {
+            mergedId = getId(registerTypes.get(id).merge(registerTypes.get(otherId)));
+            mergeCache.put(key, mergedId);
+        }
+        return mergedId;
+    }
+}
@@ -34,9 +34,21 @@ package org.jf.dexlib2.dexbacked;
 import org.jf.util.ExceptionWithContext;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
+/**
+ * A buffer containing dex data, backed by either a byte array or a ByteBuffer.
+ *
+ * The ByteBuffer variant is intended for memory-mapped files (or other off-heap storage), so that large files can be
+ * read without copying them into the java heap. The ByteBuffer is only ever accessed with absolute gets, so a single
+ * BaseDexBuffer can safely be read from multiple threads concurrently.
+ */
 public class BaseDexBuffer {
-    @Nonnull /* package private */ final byte[] buf;
+    // Exactly one of buf or byteBuf is non-null
+    @Nullable /* package private */ final byte[] buf;
+    @Nullable /* package private */ final ByteBuffer byteBuf;
     /* package private */ final int baseOffset;
 
     public BaseDexBuffer(@Nonnull byte[] buf) {
@@ -44,16 +56,51 @@ public class BaseDexBuffer {
     }
     public BaseDexBuffer(@Nonnull byte[] buf, int offset) {
         this.buf = buf;
+        this.byteBuf = null;
         this.baseOffset = offset;
     }
 
+    /**
+     * Creates a new BaseDexBuffer backed by the given ByteBuffer.
+     *
+     * Offsets are relative to the start of the buffer, not its current position. The buffer's position and limit are
+     * not modified.
+     *
+     * @param buf The ByteBuffer containing the data. This is typically a MappedByteBuffer.
+     */
+    public BaseDexBuffer(@Nonnull ByteBuffer buf) {
+        this(buf, 0);
+    }
+    public BaseDexBuffer(@Nonnull ByteBuffer buf, int offset) {
+        this.buf = null;
+        this.byteBuf = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.baseOffset = offset;
+    }
+
+    /**
+     * Creates a new BaseDexBuffer that shares the underlying storage of an existing buffer.
+     *
+     * @param buf The buffer whose storage should be shared
+     * @param offset The offset of the new buffer, relative to the base offset of the existing buffer
+     */
+    protected BaseDexBuffer(@Nonnull BaseDexBuffer buf, int offset) {
+        this.buf = buf.buf;
+        this.byteBuf = buf.byteBuf;
+        this.baseOffset = buf.baseOffset + offset;
+    }
+
     public int readSmallUint(int offset) {
         byte[] buf = this.buf;
         offset += baseOffset;
-        int result = (buf[offset] & 0xff) |
-                ((buf[offset+1] & 0xff) << 8) |
-                ((buf[offset+2] & 0xff) << 16) |
-                ((buf[offset+3]) << 24);
+        int result;
+        if (buf != null) {
+            result = (buf[offset] & 0xff) |
+                    ((buf[offset+1] & 0xff) << 8) |
+                    ((buf[offset+2] & 0xff) << 16) |
+                    ((buf[offset+3]) << 24);
+        } else {
+            result = byteBuf.getInt(offset);
+        }
         if (result < 0) {
             throw new ExceptionWithContext("Encountered small uint that is out of range at offset 0x%x", offset);
         }
@@ -63,10 +110,15 @@ public class BaseDexBuffer {
     public int readOptionalUint(int offset) {
         byte[] buf = this.buf;
         offset += baseOffset;
-        int result = (buf[offset] & 0xff) |
-                ((buf[offset+1] & 0xff) << 8) |
-                ((buf[offset+2] & 0xff) << 16) |
-                ((buf[offset+3]) << 24);
+        int result;
+        if (buf != null) {
+            result = (buf[offset] & 0xff) |
+                    ((buf[offset+1] & 0xff) << 8) |
+                    ((buf[offset+2] & 0xff) << 16) |
+                    ((buf[offset+3]) << 24);
+        } else {
+            result = byteBuf.getInt(offset);
+        }
         if (result < -1) {
             throw new ExceptionWithContext("Encountered optional uint that is out of range at offset 0x%x", offset);
         }
@@ -76,38 +128,49 @@ public class BaseDexBuffer {
     public int readUshort(int offset) {
         byte[] buf = this.buf;
         offset += baseOffset;
-        return (buf[offset] & 0xff) |
-                ((buf[offset+1] & 0xff) << 8);
+        if (buf != null) {
+            return (buf[offset] & 0xff) |
+                    ((buf[offset+1] & 0xff) << 8);
+        }
+        return byteBuf.getShort(offset) & 0xffff;
     }
 
     public int readUbyte(int offset) {
-        return buf[offset + baseOffset] & 0xff;
+        return byteAt(offset + baseOffset) & 0xff;
     }
 
     public long readLong(int offset) {
         byte[] buf = this.buf;
         offset += baseOffset;
-        return (buf[offset] & 0xff) |
-                ((buf[offset+1] & 0xff) << 8) |
-                ((buf[offset+2] & 0xff) << 16) |
-                ((buf[offset+3] & 0xffL) << 24) |
-                ((buf[offset+4] & 0xffL) << 32) |
-                ((buf[offset+5] & 0xffL) << 40) |
-                ((buf[offset+6] & 0xffL) << 48) |
-                (((long)buf[offset+7]) << 56);
+        if (buf != null) {
+            return (buf[offset] & 0xff) |
+                    ((buf[offset+1] & 0xff) << 8) |
+                    ((buf[offset+2] & 0xff) << 16) |
+                    ((buf[offset+3] & 0xffL) << 24) |
+                    ((buf[offset+4] & 0xffL) << 32) |
+                    ((buf[offset+5] & 0xffL) << 40) |
+                    ((buf[offset+6] & 0xffL) << 48) |
+                    (((long)buf[offset+7]) << 56);
+        }
+        return byteBuf.getLong(offset);
     }
 
     public int readLongAsSmallUint(int offset) {
         byte[] buf = this.buf;
         offset += baseOffset;
-        long result = (buf[offset] & 0xff) |
-                ((buf[offset+1] & 0xff) << 8) |
-                ((buf[offset+2] & 0xff) << 16) |
-                ((buf[offset+3] & 0xffL) << 24) |
-                ((buf[offset+4] & 0xffL) << 32) |
-                ((buf[offset+5] & 0xffL) << 40) |
-                ((buf[offset+6] & 0xffL) << 48) |
-                (((long)buf[offset+7]) << 56);
+        long result;
+        if (buf != null) {
+            result = (buf[offset] & 0xff) |
+                    ((buf[offset+1] & 0xff) << 8) |
+                    ((buf[offset+2] & 0xff) << 16) |
+                    ((buf[offset+3] & 0xffL) << 24) |
+                    ((buf[offset+4] & 0xffL) << 32) |
+                    ((buf[offset+5] & 0xffL) << 40) |
+                    ((buf[offset+6] & 0xffL) << 48) |
+                    (((long)buf[offset+7]) << 56);
+        } else {
+            result = byteBuf.getLong(offset);
+        }
         if (result < 0 || result > Integer.MAX_VALUE) {
             throw new ExceptionWithContext("Encountered out-of-range ulong at offset 0x%x", offset);
         }
@@ -117,21 +180,42 @@ public class BaseDexBuffer {
     public int readInt(int offset) {
         byte[] buf = this.buf;
         offset += baseOffset;
-        return (buf[offset] & 0xff) |
-                ((buf[offset+1] & 0xff) << 8) |
-                ((buf[offset+2] & 0xff) << 16) |
-                (buf[offset+3] << 24);
+        if (buf != null) {
+            return (buf[offset] & 0xff) |
+                    ((buf[offset+1] & 0xff) << 8) |
+                    ((buf[offset+2] & 0xff) << 16) |
+                    (buf[offset+3] << 24);
+        }
+        return byteBuf.getInt(offset);
     }
 
     public int readShort(int offset) {
         byte[] buf = this.buf;
         offset += baseOffset;
-        return (buf[offset] & 0xff) |
-                (buf[offset+1] << 8);
+        if (buf != null) {
+            return (buf[offset] & 0xff) |
+                    (buf[offset+1] << 8);
+        }
+        return byteBuf.getShort(offset);
     }
 
     public int readByte(int offset) {
-        return buf[baseOffset + offset];
+        return byteAt(baseOffset + offset);
+    }
+
+    @Nonnull
+    public byte[] readByteRange(int start, int length) {
+        byte[] buf = this.buf;
+        int offset = baseOffset + start;
+        byte[] result = new byte[length];
+        if (buf != null) {
+            System.arraycopy(buf, offset, result, 0, length);
+        } else {
+            ByteBuffer byteBuf = this.byteBuf.duplicate();
+            byteBuf.position(offset);
+            byteBuf.get(result);
+        }
+        return result;
     }
 
     @Nonnull
@@ -139,12 +223,45 @@ public class BaseDexBuffer {
         return new BaseDexReader<BaseDexBuffer>(this, offset);
     }
 
-    @Nonnull
+    /**
+     * Reads a single byte, given an absolute offset into the underlying storage
+     */
+    /* package private */ final byte byteAt(int absoluteOffset) {
+        byte[] buf = this.buf;
+        if (buf != null) {
+            return buf[absoluteOffset];
+        }
+        return byteBuf.get(absoluteOffset);
+    }
+
+    /**
+     * @return The backing array, or null if this buffer is backed by a ByteBuffer
+     */
+    @Nullable
     protected byte[] getBuf() {
         return buf;
     }
 
+    /**
+     * @return The backing ByteBuffer, or null if this buffer is backed by an array
+     */
+    @Nullable
+    protected ByteBuffer getByteBuffer() {
+        return byteBuf;
+    }
+
     protected int getBaseOffset() {
         return baseOffset;
     }
+
+    /**
+     * @return The total size of the underlying storage, without regard to the base offset
+     */
+    protected int getBufLength() {
+        byte[] buf = this.buf;
+        if (buf != null) {
+            return buf.length;
+        }
+        return byteBuf.capacity();
+    }
 }
@@ -40,6 +40,7 @@ import org.jf.dexlib2.dexbacked.reference.DexBackedMethodReference;
 import org.jf.dexlib2.dexbacked.reference.DexBackedStringReference;
 import org.jf.dexlib2.dexbacked.reference.DexBackedTypeReference;
 import org.jf.dexlib2.dexbacked.util.FixedSizeSet;
+import org.jf.dexlib2.dexbacked.util.StringCache;
 import org.jf.dexlib2.iface.DexFile;
 import org.jf.dexlib2.iface.reference.Reference;
 import org.jf.dexlib2.util.DexUtil;
@@ -49,6 +50,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.AbstractList;
 import java.util.List;
 import java.util.Set;
@@ -69,13 +71,25 @@ public class DexBackedDexFile extends BaseDexBuffer implements DexFile {
     private final int classCount;
     private final int classStartOffset;
 
+    @Nullable private volatile StringCache stringCache;
+
     protected DexBackedDexFile(@Nonnull Opcodes opcodes, @Nonnull byte[] buf, int offset, boolean verifyMagic) {
+        this(opcodes, new BaseDexBuffer(buf), offset, verifyMagic);
+    }
+
+    protected DexBackedDexFile(@Nonnull Opcodes opcodes, @Nonnull ByteBuffer buf, int offset, boolean verifyMagic) {
+        this(opcodes, new BaseDexBuffer(buf), offset, verifyMagic);
+    }
+
+    protected DexBackedDexFile(@Nonnull Opcodes opcodes, @Nonnull BaseDexBuffer buf, int offset,
+                               boolean verifyMagic) {
         super(buf, offset);
 
         this.opcodes = opcodes;
 
         if (verifyMagic) {
-            DexUtil.verifyDexHeader(buf, offset);
+            int headerSize = Math.max(0, Math.min(HeaderItem.ITEM_SIZE, getBufLength() - getBaseOffset()));
+            DexUtil.verifyDexHeader(readByteRange(0, headerSize), 0);
         }
 
         stringCount = readSmallUint(HeaderItem.STRING_COUNT_OFFSET);
@@ -93,7 +107,7 @@ public class DexBackedDexFile extends BaseDexBuffer implements DexFile {
     }
 
     public DexBackedDexFile(@Nonnull Opcodes opcodes, @Nonnull BaseDexBuffer buf) {
-        this(opcodes, buf.buf, buf.baseOffset);
+        this(opcodes, buf, 0, false);
     }
 
     public DexBackedDexFile(@Nonnull Opcodes opcodes, @Nonnull byte[] buf, int offset) {
@@ -104,6 +118,16 @@ public class DexBackedDexFile extends BaseDexBuffer implements DexFile {
         this(opcodes, buf, 0, true);
     }
 
+    /**
+     * Creates a DexBackedDexFile that reads directly from the given ByteBuffer, without copying it into the heap.
+     *
+     * @param opcodes The set of opcodes to use
+     * @param buf A ByteBuffer containing the dex file, starting at index 0. This is typically a MappedByteBuffer.
+     */
+    public DexBackedDexFile(@Nonnull Opcodes opcodes, @Nonnull ByteBuffer buf) {
+        this(opcodes, buf, 0, true);
+    }
+
     @Nonnull
     public static DexBackedDexFile fromInputStream(@Nonnull Opcodes opcodes, @Nonnull InputStream is)
             throws IOException {
@@ -210,10 +234,62 @@ public class DexBackedDexFile extends BaseDexBuffer implements DexFile {
         return methodCount;
     }
 
+    /**
+     * Enables caching of decoded strings.
+     *
+     * Once enabled, each string is decoded at most once (as long as it remains in the cache), and the same String
+     * instance is returned by subsequent calls to getString and getType, and by the references that use them.
+     *
+     * @param softReferences If true, the cached strings are held by soft references, so that they may be reclaimed
+     *                       if memory becomes tight.
+     */
+    public void enableStringCache(boolean softReferences) {
+        enableStringCache(softReferences, false);
+    }
+
+    /**
+     * Enables caching of decoded strings, as per enableStringCache(boolean).
+     *
+     * @param softReferences If true, the cached strings are held by soft references, so that they may be reclaimed
+     *                       if memory becomes tight.
+     * @param recordStats If true, the cache counts its hits and misses. This adds contention between threads that
+     *                    share the cache, so it should only be enabled when the counts are needed.
+     */
+    public void enableStringCache(boolean softReferences, boolean recordStats) {
+        stringCache = new StringCache(stringCount, softReferences, recordStats);
+    }
+
+    public void disableStringCache() {
+        stringCache = null;
+    }
+
+    /**
+     * @return The string cache for this dex file, or null if string caching isn't enabled
+     */
+    @Nullable
+    public StringCache getStringCache() {
+        return stringCache;
+    }
+
     @Nonnull
     public String getString(int stringIndex) {
         int stringOffset = getStringIdItemOffset(stringIndex);
-        int stringDataOffset = readSmallUint(stringOffset);
+
+        StringCache stringCache = this.stringCache;
+        if (stringCache != null) {
+            String string = stringCache.get(stringIndex);
+            if (string == null) {
+                string = readStringAt(stringOffset);
+                stringCache.put(stringIndex, string);
+            }
+            return string;
+        }
+        return readStringAt(stringOffset);
+    }
+
+    @Nonnull
+    private String readStringAt(int stringIdItemOffset) {
+        int stringDataOffset = readSmallUint(stringIdItemOffset);
         DexReader reader = readerAt(stringDataOffset);
         int utf16Length = reader.readSmallUleb128();
         return reader.readString(utf16Length);
@@ -62,8 +62,22 @@ public class DexBackedMethodImplementation implements MethodImplementation {
         this.codeOffset = codeOffset;
     }
 
+    /**
+     * @return The offset of this method's code_item in the dex file
+     */
+    public int getCodeOffset() {
+        return codeOffset;
+    }
+
     @Override public int getRegisterCount() { return dexFile.readUshort(codeOffset); }
 
+    /**
+     * @return The number of 16-bit code units in the instruction list, not the number of instructions
+     */
+    public int getInstructionsSize() {
+        return dexFile.readSmallUint(codeOffset + CodeItem.INSTRUCTION_COUNT_OFFSET);
+    }
+
     @Nonnull @Override public Iterable<? extends Instruction> getInstructions() {
         // instructionsSize is the number of 16-bit code units in the instruction list, not the number of instructions
         int instructionsSize = dexFile.readSmallUint(codeOffset + CodeItem.INSTRUCTION_COUNT_OFFSET);
@@ -133,7 +147,7 @@ public class DexBackedMethodImplementation implements MethodImplementation {
             System.err.println(String.format("%s: Invalid debug offset", method));
             return DebugInfo.newOrEmpty(dexFile, 0, this);
         }
-        if (debugOffset >= dexFile.buf.length) {
+        if (debugOffset >= dexFile.getBufLength()) {
             System.err.println(String.format("%s: Invalid debug offset", method));
             return DebugInfo.newOrEmpty(dexFile, 0, this);
         }
@@ -41,6 +41,7 @@ import javax.annotation.Nonnull;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 public class DexBackedOdexFile extends DexBackedDexFile {
@@ -55,6 +56,19 @@ public class DexBackedOdexFile extends DexBackedDexFile {
         this.odexBuf = odexBuf;
     }
 
+    /**
+     * Creates a DexBackedOdexFile that reads the embedded dex file directly from the given ByteBuffer.
+     *
+     * @param opcodes The set of opcodes to use
+     * @param odexBuf The odex header
+     * @param dexBuf A ByteBuffer containing the embedded dex file, starting at index 0
+     */
+    public DexBackedOdexFile(@Nonnull Opcodes opcodes, @Nonnull byte[] odexBuf, @Nonnull ByteBuffer dexBuf) {
+        super(opcodes, dexBuf);
+
+        this.odexBuf = odexBuf;
+    }
+
     @Override public boolean isOdexFile() {
         return true;
     }
@@ -67,8 +81,7 @@ public class DexBackedOdexFile extends DexBackedDexFile {
         final int dexOffset = OdexHeaderItem.getDexOffset(odexBuf);
         final int dependencyOffset = OdexHeaderItem.getDependenciesOffset(odexBuf) - dexOffset;
 
-        BaseDexBuffer buf = new BaseDexBuffer(this.buf);
-        int dependencyCount = buf.readInt(dependencyOffset + DEPENDENCY_COUNT_OFFSET);
+        int dependencyCount = readInt(dependencyOffset + DEPENDENCY_COUNT_OFFSET);
 
         return new VariableSizeList<String>(this, dependencyOffset + DEPENDENCY_START_OFFSET, dependencyCount) {
             @Override protected String readNextItem(@Nonnull DexReader reader, int index) {
@@ -76,7 +89,7 @@ public class DexBackedOdexFile extends DexBackedDexFile {
                 int offset = reader.getOffset();
                 reader.moveRelative(length + 20);
                 try {
-                    return new String(DexBackedOdexFile.this.buf, offset, length-1, "US-ASCII");
+                    return new String(readByteRange(offset, length-1), "US-ASCII");
                 } catch (UnsupportedEncodingException ex) {
                     throw new RuntimeException(ex);
                 }
@@ -101,6 +114,32 @@ public class DexBackedOdexFile extends DexBackedDexFile {
         return new DexBackedOdexFile(opcodes, odexBuf, dexBuf);
     }
 
+    /**
+     * Creates a DexBackedOdexFile from an odex file contained in a ByteBuffer, without copying the embedded dex file
+     * into the heap.
+     *
+     * @param opcodes The set of opcodes to use
+     * @param buf A ByteBuffer containing the odex file, starting at index 0. This is typically a MappedByteBuffer.
+     * @return A DexBackedOdexFile for the given buffer
+     * @throws NotAnOdexFile If the buffer does not contain an odex file
+     */
+    @Nonnull public static DexBackedOdexFile fromByteBuffer(@Nonnull Opcodes opcodes, @Nonnull ByteBuffer buf) {
+        if (buf.capacity() < OdexHeaderItem.ITEM_SIZE) {
+            throw new NotAnOdexFile("File is too short");
+        }
+
+        byte[] odexBuf = new byte[OdexHeaderItem.ITEM_SIZE];
+        ByteBuffer headerBuf = buf.duplicate();
+        headerBuf.position(0);
+        headerBuf.get(odexBuf);
+        DexUtil.verifyOdexHeader(odexBuf, 0);
+
+        int dexOffset = OdexHeaderItem.getDexOffset(odexBuf);
+        ByteBuffer dexBuf = buf.duplicate();
+        dexBuf.position(dexOffset);
+        return new DexBackedOdexFile(opcodes, odexBuf, dexBuf.slice());
+    }
+
     public int getOdexVersion() {
         return OdexHeaderItem.getVersion(odexBuf, 0);
     }
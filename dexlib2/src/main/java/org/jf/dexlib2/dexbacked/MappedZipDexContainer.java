@@ -0,0 +1,460 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.dexbacked;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile.NotADexFile;
+import org.jf.dexlib2.dexbacked.raw.HeaderItem;
+import org.jf.dexlib2.util.DexUtil;
+import org.jf.dexlib2.util.DexUtil.InvalidFile;
+import org.jf.dexlib2.util.DexUtil.UnsupportedFile;
+import org.jf.util.ExceptionWithContext;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A ZipDexContainer that memory-maps the zip file once, and reads everything from that mapping.
+ *
+ * The central directory is read once, when first needed, along with the header of each entry, to determine which
+ * entries are dex files. Dex files that are stored in the zip file without compression are read directly from the
+ * mapping, without being copied into the heap. Compressed dex files are inflated into the heap when first loaded, and
+ * are then cached, so that each entry is only inflated once. All the dex entries can be inflated concurrently with
+ * getDexEntries(ExecutorService).
+ *
+ * Zip64 archives aren't supported. isZipFile will return false for them, and ZipDexContainer can be used instead.
+ */
+public class MappedZipDexContainer extends ZipDexContainer {
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_HEADER_SIGNATURE = 0x06054b50;
+    private static final int END_HEADER_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+
+    private static final int INFLATE_CHUNK_SIZE = 64 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Nonnull private final File zipFilePath;
+
+    // These are all guarded by this
+    @Nullable private ByteBuffer zipBuffer;
+    @Nullable private Map<String, ZipEntryInfo> entries;
+    @Nullable private List<String> dexEntryNames;
+    @Nonnull private final Map<String, ZipDexFile> loadedEntries = Maps.newHashMap();
+
+    /**
+     * Constructs a new MappedZipDexContainer for the given zip file
+     *
+     * @param zipFilePath The path to the zip file
+     * @param opcodes The Opcodes instance to use when loading dex files from this container
+     */
+    public MappedZipDexContainer(@Nonnull File zipFilePath, @Nonnull Opcodes opcodes) {
+        super(zipFilePath, opcodes);
+        this.zipFilePath = zipFilePath;
+    }
+
+    @Nonnull @Override public synchronized List<String> getDexEntryNames() throws IOException {
+        if (dexEntryNames == null) {
+            List<String> dexEntryNames = Lists.newArrayList();
+            for (ZipEntryInfo entry: getEntries().values()) {
+                if (isDex(entry)) {
+                    dexEntryNames.add(entry.name);
+                }
+            }
+            this.dexEntryNames = ImmutableList.copyOf(dexEntryNames);
+        }
+        return dexEntryNames;
+    }
+
+    /**
+     * Loads a dex file from a specific named entry.
+     *
+     * The same ZipDexFile instance is returned for subsequent calls with the same entry name.
+     *
+     * @param entryName The name of the entry
+     * @return A ZipDexFile, or null if there is no entry with the given name
+     * @throws NotADexFile If the entry isn't a dex file
+     */
+    @Nullable @Override public ZipDexFile getEntry(@Nonnull String entryName) throws IOException {
+        ZipEntryInfo entry;
+        synchronized (this) {
+            ZipDexFile dexFile = loadedEntries.get(entryName);
+            if (dexFile != null) {
+                return dexFile;
+            }
+            entry = getEntries().get(entryName);
+            if (entry == null) {
+                return null;
+            }
+        }
+
+        // the entry is inflated outside of the lock, so that multiple entries can be inflated concurrently
+        ZipDexFile dexFile = loadEntry(entry);
+
+        synchronized (this) {
+            ZipDexFile existing = loadedEntries.get(entryName);
+            if (existing != null) {
+                return existing;
+            }
+            loadedEntries.put(entryName, dexFile);
+            return dexFile;
+        }
+    }
+
+    /**
+     * Loads all of the dex entries in this zip file, inflating them concurrently using the given executor.
+     *
+     * @param executor The executor to use to inflate the entries
+     * @return A list of the dex entries, in the same order as getDexEntryNames
+     */
+    @Nonnull
+    public List<ZipDexFile> getDexEntries(@Nonnull ExecutorService executor) throws IOException {
+        List<Future<ZipDexFile>> futures = Lists.newArrayList();
+        for (final String entryName: getDexEntryNames()) {
+            futures.add(executor.submit(new Callable<ZipDexFile>() {
+                @Override public ZipDexFile call() throws Exception {
+                    return getEntry(entryName);
+                }
+            }));
+        }
+
+        List<ZipDexFile> dexFiles = Lists.newArrayList();
+        for (Future<ZipDexFile> future: futures) {
+            try {
+                dexFiles.add(Uninterruptibles.getUninterruptibly(future));
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException)cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException)cause;
+                }
+                throw new ExceptionWithContext(cause, "Error while loading %s", zipFilePath);
+            }
+        }
+        return dexFiles;
+    }
+
+    @Override public boolean isZipFile() {
+        try {
+            getEntries();
+            return true;
+        } catch (IOException ex) {
+            return false;
+        } catch (NotAZipFileException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * @return A map of the entries in the central directory, in the order they appear in the central directory
+     */
+    @Nonnull
+    private synchronized Map<String, ZipEntryInfo> getEntries() throws IOException {
+        if (entries == null) {
+            zipBuffer = mapZipFile();
+            entries = readCentralDirectory(zipBuffer);
+        }
+        return entries;
+    }
+
+    @Nonnull
+    private ByteBuffer mapZipFile() throws IOException {
+        RandomAccessFile randomAccessFile;
+        try {
+            randomAccessFile = new RandomAccessFile(zipFilePath, "r");
+        } catch (IOException ex) {
+            throw new NotAZipFileException();
+        }
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new NotAZipFileException();
+            }
+            // The mapping remains valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    @Nonnull
+    private static Map<String, ZipEntryInfo> readCentralDirectory(@Nonnull ByteBuffer buf) {
+        int endOffset = findEndHeader(buf);
+        if (endOffset < 0) {
+            throw new NotAZipFileException();
+        }
+
+        int entryCount = buf.getShort(endOffset + 10) & 0xffff;
+        long directorySize = buf.getInt(endOffset + 12) & 0xffffffffL;
+        long directoryOffset = buf.getInt(endOffset + 16) & 0xffffffffL;
+        if (entryCount == 0xffff || directoryOffset == 0xffffffffL ||
+                directoryOffset + directorySize > endOffset) {
+            // either a zip64 archive, or a corrupt one
+            throw new NotAZipFileException();
+        }
+
+        Map<String, ZipEntryInfo> entries = Maps.newLinkedHashMap();
+        int offset = (int)directoryOffset;
+        for (int i=0; i<entryCount; i++) {
+            if (offset + CENTRAL_HEADER_SIZE > endOffset || buf.getInt(offset) != CENTRAL_HEADER_SIGNATURE) {
+                throw new NotAZipFileException();
+            }
+
+            int flags = buf.getShort(offset + 8) & 0xffff;
+            int method = buf.getShort(offset + 10) & 0xffff;
+            long compressedSize = buf.getInt(offset + 20) & 0xffffffffL;
+            long uncompressedSize = buf.getInt(offset + 24) & 0xffffffffL;
+            int nameLength = buf.getShort(offset + 28) & 0xffff;
+            int extraLength = buf.getShort(offset + 30) & 0xffff;
+            int commentLength = buf.getShort(offset + 32) & 0xffff;
+            long localHeaderOffset = buf.getInt(offset + 42) & 0xffffffffL;
+
+            if (offset + CENTRAL_HEADER_SIZE + nameLength > endOffset) {
+                throw new NotAZipFileException();
+            }
+            byte[] nameBytes = new byte[nameLength];
+            ByteBuffer nameBuf = buf.duplicate();
+            nameBuf.position(offset + CENTRAL_HEADER_SIZE);
+            nameBuf.get(nameBytes);
+            String name = new String(nameBytes, UTF8);
+
+            if (compressedSize == 0xffffffffL || uncompressedSize == 0xffffffffL ||
+                    localHeaderOffset == 0xffffffffL) {
+                throw new NotAZipFileException();
+            }
+
+            if (!entries.containsKey(name)) {
+                entries.put(name, new ZipEntryInfo(name, flags, method, (int)compressedSize, (int)uncompressedSize,
+                        (int)localHeaderOffset));
+            }
+
+            offset += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    private static int findEndHeader(@Nonnull ByteBuffer buf) {
+        int minOffset = Math.max(0, buf.limit() - END_HEADER_SIZE - MAX_COMMENT_SIZE);
+        for (int offset = buf.limit() - END_HEADER_SIZE; offset >= minOffset; offset--) {
+            if (buf.getInt(offset) == END_HEADER_SIGNATURE) {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isDex(@Nonnull ZipEntryInfo entry) throws IOException {
+        if (entry.uncompressedSize < HeaderItem.ITEM_SIZE) {
+            return false;
+        }
+
+        byte[] header;
+        try {
+            header = readEntryData(entry, HeaderItem.ITEM_SIZE);
+        } catch (ExceptionWithContext ex) {
+            return false;
+        }
+        if (header == null) {
+            return false;
+        }
+
+        try {
+            DexUtil.verifyDexHeader(header, 0);
+        } catch (NotADexFile ex) {
+            return false;
+        } catch (InvalidFile ex) {
+            return false;
+        } catch (UnsupportedFile ex) {
+            return false;
+        }
+        return true;
+    }
+
+    @Nonnull
+    private ZipDexFile loadEntry(@Nonnull ZipEntryInfo entry) throws IOException {
+        if (entry.method == METHOD_STORED && (entry.flags & 1) == 0) {
+            ByteBuffer data = getEntryBuffer(entry);
+            try {
+                return new ZipDexFile(getOpcodes(), data, entry.name);
+            } catch (IndexOutOfBoundsException ex) {
+                throw new NotADexFile(String.format("%s is too short", entry.name), ex);
+            }
+        }
+
+        byte[] data = readEntryData(entry, entry.uncompressedSize);
+        if (data == null) {
+            throw new NotADexFile(String.format("%s is encrypted or uses an unsupported compression method", entry.name));
+        }
+        DexUtil.verifyDexHeader(data, 0);
+        return new ZipDexFile(getOpcodes(), data, entry.name);
+    }
+
+    /**
+     * @return A buffer containing the raw data of the given entry, starting at index 0
+     */
+    @Nonnull
+    private ByteBuffer getEntryBuffer(@Nonnull ZipEntryInfo entry) {
+        ByteBuffer zipBuffer;
+        synchronized (this) {
+            zipBuffer = this.zipBuffer;
+        }
+        assert zipBuffer != null;
+
+        int localHeaderOffset = entry.localHeaderOffset;
+        if (localHeaderOffset + LOCAL_HEADER_SIZE > zipBuffer.limit() ||
+                zipBuffer.getInt(localHeaderOffset) != LOCAL_HEADER_SIGNATURE) {
+            throw new ExceptionWithContext("Invalid local header for zip entry %s", entry.name);
+        }
+        int nameLength = zipBuffer.getShort(localHeaderOffset + 26) & 0xffff;
+        int extraLength = zipBuffer.getShort(localHeaderOffset + 28) & 0xffff;
+        long dataOffset = (long)localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+        if (dataOffset + entry.compressedSize > zipBuffer.limit()) {
+            throw new ExceptionWithContext("Zip entry %s extends past the end of the file", entry.name);
+        }
+
+        ByteBuffer data = zipBuffer.duplicate();
+        data.position((int)dataOffset);
+        data.limit((int)dataOffset + entry.compressedSize);
+        return data.slice();
+    }
+
+    /**
+     * Reads the first length bytes of the uncompressed data of the given entry into a new array.
+     *
+     * @return The data, or null if the entry is encrypted or uses an unsupported compression method
+     */
+    @Nullable
+    private byte[] readEntryData(@Nonnull ZipEntryInfo entry, int length) throws IOException {
+        if ((entry.flags & 1) != 0) {
+            // encrypted
+            return null;
+        }
+
+        ByteBuffer data = getEntryBuffer(entry);
+        if (entry.method == METHOD_STORED) {
+            if (length > data.remaining()) {
+                throw new ExceptionWithContext("Zip entry %s is truncated", entry.name);
+            }
+            byte[] bytes = new byte[length];
+            data.get(bytes);
+            return bytes;
+        }
+
+        if (entry.method != METHOD_DEFLATED) {
+            return null;
+        }
+
+        byte[] output = new byte[length];
+        // Inflater requires its input in an array, so the compressed data is copied out of the mapping in chunks, as
+        // needed. This way, only a small part of the compressed data is copied when just reading the header.
+        byte[] input = new byte[Math.min(data.remaining(), INFLATE_CHUNK_SIZE)];
+        boolean addedDummyByte = false;
+        Inflater inflater = new Inflater(true);
+        try {
+            int outputOffset = 0;
+            while (outputOffset < length) {
+                if (inflater.needsInput()) {
+                    if (data.hasRemaining()) {
+                        int chunkSize = Math.min(data.remaining(), input.length);
+                        data.get(input, 0, chunkSize);
+                        inflater.setInput(input, 0, chunkSize);
+                    } else if (!addedDummyByte) {
+                        // In nowrap mode, Inflater may need an extra dummy byte at the end of the input
+                        inflater.setInput(new byte[1]);
+                        addedDummyByte = true;
+                    } else {
+                        throw new ExceptionWithContext("Zip entry %s is truncated", entry.name);
+                    }
+                }
+                int count = inflater.inflate(output, outputOffset, length - outputOffset);
+                if (count == 0 && (inflater.finished() || inflater.needsDictionary())) {
+                    throw new ExceptionWithContext("Zip entry %s is truncated", entry.name);
+                }
+                outputOffset += count;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException(String.format("Error while inflating zip entry %s: %s", entry.name,
+                    ex.getMessage()));
+        } finally {
+            inflater.end();
+        }
+        return output;
+    }
+
+    private static class ZipEntryInfo {
+        @Nonnull public final String name;
+        public final int flags;
+        public final int method;
+        public final int compressedSize;
+        public final int uncompressedSize;
+        public final int localHeaderOffset;
+
+        public ZipEntryInfo(@Nonnull String name, int flags, int method, int compressedSize, int uncompressedSize,
+                            int localHeaderOffset) {
+            this.name = name;
+            this.flags = flags;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.uncompressedSize = uncompressedSize;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+}
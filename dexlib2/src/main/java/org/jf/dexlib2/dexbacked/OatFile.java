@@ -47,6 +47,7 @@ import javax.annotation.Nullable;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.AbstractList;
 import java.util.Arrays;
@@ -77,20 +78,35 @@ public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFi
     }
 
     public OatFile(@Nonnull byte[] buf, @Nullable VdexProvider vdexProvider) {
-        super(buf);
+        this(new BaseDexBuffer(buf), vdexProvider);
+    }
+
+    /**
+     * Creates an OatFile that reads directly from the given ByteBuffer, without copying it into the heap.
+     *
+     * @param buf A ByteBuffer containing the oat file, starting at index 0. This is typically a MappedByteBuffer.
+     * @param vdexProvider A provider for the associated vdex file, if any
+     */
+    public OatFile(@Nonnull ByteBuffer buf, @Nullable VdexProvider vdexProvider) {
+        this(new BaseDexBuffer(buf), vdexProvider);
+    }
+
+    private OatFile(@Nonnull BaseDexBuffer buf, @Nullable VdexProvider vdexProvider) {
+        super(buf, 0);
 
-        if (buf.length < MIN_ELF_HEADER_SIZE) {
+        if (getBufLength() < MIN_ELF_HEADER_SIZE) {
             throw new NotAnOatFileException();
         }
 
-        verifyMagic(buf);
+        verifyMagic(readByteRange(0, ELF_MAGIC.length));
 
-        if (buf[4] == 1) {
+        int wordSize = readByte(4);
+        if (wordSize == 1) {
             is64bit = false;
-        } else if (buf[4] == 2) {
+        } else if (wordSize == 2) {
             is64bit = true;
         } else {
-            throw new InvalidOatFileException(String.format("Invalid word-size value: %x", buf[5]));
+            throw new InvalidOatFileException(String.format("Invalid word-size value: %x", readByte(5)));
         }
 
         OatHeader oatHeader = null;
@@ -234,6 +250,11 @@ public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFi
             this.filename = filename;
         }
 
+        public OatDexFile(@Nonnull BaseDexBuffer buf, int offset, @Nonnull String filename) {
+            super(opcodes, buf, offset, false);
+            this.filename = filename;
+        }
+
         @Nonnull @Override public String getEntryName() {
             return filename;
         }
@@ -256,22 +277,23 @@ public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFi
 
         public boolean isValid() {
             for (int i=0; i<OAT_MAGIC.length; i++) {
-                if (buf[headerOffset + i] != OAT_MAGIC[i]) {
+                if (readByte(headerOffset + i) != OAT_MAGIC[i]) {
                     return false;
                 }
             }
 
             for (int i=4; i<7; i++) {
-                if (buf[headerOffset + i] < '0' || buf[headerOffset + i] > '9') {
+                int c = readByte(headerOffset + i);
+                if (c < '0' || c > '9') {
                     return false;
                 }
             }
 
-            return buf[headerOffset + 7] == 0;
+            return readByte(headerOffset + 7) == 0;
         }
 
         public int getVersion() {
-            return Integer.valueOf(new String(buf, headerOffset + 4, 3));
+            return Integer.valueOf(new String(readByteRange(headerOffset + 4, 3)));
         }
 
         public int getDexFileCount() {
@@ -302,7 +324,7 @@ public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFi
 
             while (offset < endOffset) {
                 int keyStartOffset = offset;
-                while (offset < endOffset && buf[offset] != '\0') {
+                while (offset < endOffset && readByte(offset) != '\0') {
                     offset++;
                 }
                 if (offset >= endOffset) {
@@ -310,17 +332,17 @@ public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFi
                 }
                 int keyEndOffset = offset;
 
-                String k = new String(buf, keyStartOffset, keyEndOffset - keyStartOffset);
+                String k = new String(readByteRange(keyStartOffset, keyEndOffset - keyStartOffset));
                 if (k.equals(key)) {
                     int valueStartOffset = ++offset;
-                    while (offset < endOffset && buf[offset] != '\0') {
+                    while (offset < endOffset && readByte(offset) != '\0') {
                         offset++;
                     }
                     if (offset >= endOffset) {
                         throw new InvalidOatFileException("Oat file contains truncated key value store");
                     }
                     int valueEndOffset = offset;
-                    return new String(buf, valueStartOffset, valueEndOffset - valueStartOffset);
+                    return new String(readByteRange(valueStartOffset, valueEndOffset - valueStartOffset));
                 }
                 offset++;
             }
@@ -347,7 +369,7 @@ public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFi
             entryCount = readUshort(48);
         }
 
-        if (offset + (entrySize * entryCount) > buf.length) {
+        if (offset + (entrySize * entryCount) > getBufLength()) {
             throw new InvalidOatFileException("The ELF section headers extend past the end of the file");
         }
 
@@ -440,7 +462,7 @@ public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFi
             this.entrySize = header.getEntrySize();
             this.entryCount = header.getSize() / entrySize;
 
-            if (offset + entryCount * entrySize > buf.length) {
+            if (offset + entryCount * entrySize > getBufLength()) {
                 throw new InvalidOatFileException("Symbol table extends past end of file");
             }
         }
@@ -526,7 +548,7 @@ public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFi
             this.offset = header.getOffset();
             this.size = header.getSize();
 
-            if (offset + size > buf.length) {
+            if (offset + size > getBufLength()) {
                 throw new InvalidOatFileException("String table extends past end of file");
             }
         }
@@ -539,24 +561,24 @@ public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFi
 
             int start = offset + index;
             int end = start;
-            while (buf[end] != 0) {
+            while (readByte(end) != 0) {
                 end++;
                 if (end >= offset + size) {
                     throw new InvalidOatFileException("String extends past end of string table");
                 }
             }
 
-            return new String(buf, start, end-start, Charset.forName("US-ASCII"));
+            return new String(readByteRange(start, end-start), Charset.forName("US-ASCII"));
         }
     }
 
     private class DexEntry {
         public final String entryName;
-        public final byte[] buf;
+        public final BaseDexBuffer buf;
         public final int dexOffset;
 
 
-        public DexEntry(String entryName, byte[] buf, int dexOffset) {
+        public DexEntry(String entryName, BaseDexBuffer buf, int dexOffset) {
             this.entryName = entryName;
             this.buf = buf;
             this.dexOffset = dexOffset;
@@ -580,7 +602,7 @@ public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFi
             offset += 4;
 
             // TODO: what is the correct character encoding?
-            String filename = new String(buf, offset, filenameLength, Charset.forName("US-ASCII"));
+            String filename = new String(readByteRange(offset, filenameLength), Charset.forName("US-ASCII"));
             offset += filenameLength;
 
             offset += 4; // checksum
@@ -588,11 +610,12 @@ public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFi
             int dexOffset = readSmallUint(offset);
             offset += 4;
 
-            byte[] buf;
-            if (getOatVersion() >= 87 && vdexProvider != null && vdexProvider.getVdex() != null) {
-                buf = vdexProvider.getVdex();
-            } else {
-                buf = OatFile.this.buf;
+            BaseDexBuffer buf = null;
+            if (getOatVersion() >= 87 && vdexProvider != null) {
+                buf = getVdexBuffer(vdexProvider);
+            }
+            if (buf == null) {
+                buf = OatFile.this;
                 dexOffset += oatHeader.headerOffset;
             }
 
@@ -628,8 +651,29 @@ public class OatFile extends BaseDexBuffer implements MultiDexContainer<OatDexFi
         public NotAnOatFileException() {}
     }
 
+    @Nullable
+    private static BaseDexBuffer getVdexBuffer(@Nonnull VdexProvider vdexProvider) {
+        if (vdexProvider instanceof VdexBufferProvider) {
+            return ((VdexBufferProvider)vdexProvider).getVdexBuffer();
+        }
+        byte[] vdex = vdexProvider.getVdex();
+        if (vdex == null) {
+            return null;
+        }
+        return new BaseDexBuffer(vdex);
+    }
+
     public interface VdexProvider {
         @Nullable
         byte[] getVdex();
     }
+
+    /**
+     * A VdexProvider that can provide the vdex file without copying it into a byte array, e.g. from a memory-mapped
+     * file
+     */
+    public interface VdexBufferProvider extends VdexProvider {
+        @Nullable
+        BaseDexBuffer getVdexBuffer();
+    }
 }
\ No newline at end of file
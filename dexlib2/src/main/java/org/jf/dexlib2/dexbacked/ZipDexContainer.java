@@ -47,6 +47,7 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.zip.ZipEntry;
@@ -152,6 +153,11 @@ public class ZipDexContainer implements MultiDexContainer<ZipDexFile> {
             this.entryName = entryName;
         }
 
+        protected ZipDexFile(@Nonnull Opcodes opcodes, @Nonnull ByteBuffer buf, @Nonnull String entryName) {
+            super(opcodes, buf);
+            this.entryName = entryName;
+        }
+
         @Nonnull @Override public String getEntryName() {
             return entryName;
         }
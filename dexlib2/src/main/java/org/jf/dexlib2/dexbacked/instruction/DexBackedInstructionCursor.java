@@ -0,0 +1,512 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.dexbacked.instruction;
+
+import org.jf.dexlib2.Format;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.ReferenceType;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexBackedMethodImplementation;
+import org.jf.dexlib2.dexbacked.raw.CodeItem;
+import org.jf.dexlib2.dexbacked.reference.DexBackedReference;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.reference.Reference;
+import org.jf.util.ExceptionWithContext;
+import org.jf.util.NibbleUtils;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A reusable, mutable view over the instructions of a dex-backed method implementation.
+ *
+ * Unlike {@link DexBackedMethodImplementation#getInstructions()}, which creates a new instruction object for every
+ * instruction, the cursor decodes the fields of the current instruction directly from the dex buffer on demand. A
+ * single cursor can be reset and reused for any number of methods in the same dex file, so walking all the code in
+ * a dex file doesn't need to allocate anything per instruction.
+ *
+ * The format-specific accessors throw an IllegalStateException if the current instruction's format doesn't have
+ * the requested field.
+ */
+public class DexBackedInstructionCursor {
+    @Nonnull public final DexBackedDexFile dexFile;
+    @Nullable private DexBackedMethodImplementation methodImpl;
+
+    private int startOffset;
+    private int endOffset;
+
+    private int offset;
+    private int nextOffset;
+    private int index;
+
+    private int opcodeValue;
+    @Nullable private Opcode opcode;
+    @Nonnull private Format format = Format.Format10x;
+
+    public DexBackedInstructionCursor(@Nonnull DexBackedDexFile dexFile) {
+        this.dexFile = dexFile;
+    }
+
+    public DexBackedInstructionCursor(@Nonnull DexBackedMethodImplementation methodImpl) {
+        this(methodImpl.dexFile);
+        reset(methodImpl);
+    }
+
+    /**
+     * Positions the cursor before the first instruction of the given method.
+     */
+    public void reset(@Nonnull DexBackedMethodImplementation methodImpl) {
+        if (methodImpl.dexFile != dexFile) {
+            throw new IllegalArgumentException("The method implementation is from a different dex file");
+        }
+        this.methodImpl = methodImpl;
+        int codeOffset = methodImpl.getCodeOffset();
+        startOffset = codeOffset + CodeItem.INSTRUCTION_START_OFFSET;
+        endOffset = startOffset + dexFile.readSmallUint(codeOffset + CodeItem.INSTRUCTION_COUNT_OFFSET) * 2;
+        rewind();
+    }
+
+    /**
+     * Positions the cursor back before the first instruction of the current method.
+     */
+    public void rewind() {
+        offset = -1;
+        nextOffset = startOffset;
+        index = -1;
+        opcode = null;
+        opcodeValue = -1;
+        format = Format.Format10x;
+    }
+
+    /**
+     * Advances the cursor to the next instruction.
+     *
+     * @return true if the cursor is positioned at an instruction, or false if there are no more instructions
+     */
+    public boolean next() {
+        if (methodImpl == null) {
+            throw new IllegalStateException("The cursor has not been reset to a method");
+        }
+        if (nextOffset >= endOffset) {
+            offset = endOffset;
+            nextOffset = endOffset;
+            opcode = null;
+            return false;
+        }
+
+        offset = nextOffset;
+        index++;
+
+        opcodeValue = dexFile.readUbyte(offset);
+        if (opcodeValue == 0) {
+            opcodeValue = dexFile.readUshort(offset);
+        }
+        opcode = dexFile.getOpcodes().getOpcodeByValue(opcodeValue);
+        format = opcode == null ? Format.Format10x : opcode.format;
+
+        long end = offset + readCodeUnits() * 2L;
+        if (end > endOffset) {
+            throw new ExceptionWithContext("The last instruction in method %s is truncated", methodImpl.method);
+        }
+        nextOffset = (int)end;
+        return true;
+    }
+
+    /**
+     * Skips over the given number of instructions.
+     *
+     * @return true if the cursor is positioned at an instruction, or false if there were not enough instructions
+     */
+    public boolean skip(int count) {
+        for (int i=0; i<count; i++) {
+            if (!next()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of instructions in the current method. This leaves the cursor at the end of the method.
+     */
+    public int countInstructions() {
+        rewind();
+        while (next()) {
+        }
+        return index + 1;
+    }
+
+    private long readCodeUnits() {
+        switch (format) {
+            case PackedSwitchPayload:
+                return 4 + dexFile.readUshort(offset + 2) * 2L;
+            case SparseSwitchPayload:
+                return 2 + dexFile.readUshort(offset + 2) * 4L;
+            case ArrayPayload: {
+                long elementWidth = dexFile.readUshort(offset + 2);
+                long elementCount = dexFile.readSmallUint(offset + 4);
+                if (elementWidth * elementCount > Integer.MAX_VALUE) {
+                    throw new ExceptionWithContext(
+                            "Invalid array-payload instruction: element width*count overflows");
+                }
+                return 4 + (elementWidth * elementCount + 1) / 2;
+            }
+            default:
+                return format.size / 2;
+        }
+    }
+
+    private void checkPosition() {
+        if (offset < 0 || offset >= endOffset) {
+            throw new IllegalStateException("The cursor is not positioned at an instruction");
+        }
+    }
+
+    /**
+     * @return The offset of the current instruction in the dex file
+     */
+    public int getOffset() {
+        checkPosition();
+        return offset;
+    }
+
+    /**
+     * @return The code address of the current instruction, in 16-bit code units from the start of the method
+     */
+    public int getCodeAddress() {
+        checkPosition();
+        return (offset - startOffset) / 2;
+    }
+
+    /**
+     * @return The index of the current instruction within the method
+     */
+    public int getIndex() {
+        checkPosition();
+        return index;
+    }
+
+    /**
+     * @return The opcode of the current instruction, or null if the opcode is not recognized
+     */
+    @Nullable
+    public Opcode getOpcode() {
+        checkPosition();
+        return opcode;
+    }
+
+    /**
+     * @return The raw opcode value of the current instruction. For payload instructions, this is the 16-bit ident.
+     */
+    public int getOpcodeValue() {
+        checkPosition();
+        return opcodeValue;
+    }
+
+    /**
+     * @return The size of the current instruction, in 16-bit code units
+     */
+    public int getCodeUnits() {
+        checkPosition();
+        return (nextOffset - offset) / 2;
+    }
+
+    public int getRegisterA() {
+        switch (checkFormat()) {
+            case Format11x:
+            case Format21c:
+            case Format21ih:
+            case Format21lh:
+            case Format21s:
+            case Format21t:
+            case Format22b:
+            case Format22x:
+            case Format23x:
+            case Format31c:
+            case Format31i:
+            case Format31t:
+            case Format51l:
+                return dexFile.readUbyte(offset + 1);
+            case Format11n:
+            case Format12x:
+            case Format22c:
+            case Format22cs:
+            case Format22s:
+            case Format22t:
+                return NibbleUtils.extractLowUnsignedNibble(dexFile.readUbyte(offset + 1));
+            case Format32x:
+                return dexFile.readUshort(offset + 2);
+            default:
+                throw unsupported("register A");
+        }
+    }
+
+    public int getRegisterB() {
+        switch (checkFormat()) {
+            case Format12x:
+            case Format22c:
+            case Format22cs:
+            case Format22s:
+            case Format22t:
+                return NibbleUtils.extractHighUnsignedNibble(dexFile.readUbyte(offset + 1));
+            case Format22b:
+            case Format23x:
+                return dexFile.readUbyte(offset + 2);
+            case Format22x:
+                return dexFile.readUshort(offset + 2);
+            case Format32x:
+                return dexFile.readUshort(offset + 4);
+            default:
+                throw unsupported("register B");
+        }
+    }
+
+    public int getRegisterC() {
+        switch (checkFormat()) {
+            case Format23x:
+                return dexFile.readUbyte(offset + 3);
+            case Format35c:
+            case Format35mi:
+            case Format35ms:
+            case Format45cc:
+                return NibbleUtils.extractLowUnsignedNibble(dexFile.readUbyte(offset + 4));
+            default:
+                throw unsupported("register C");
+        }
+    }
+
+    public int getRegisterD() {
+        checkFiveRegisterFormat("register D");
+        return NibbleUtils.extractHighUnsignedNibble(dexFile.readUbyte(offset + 4));
+    }
+
+    public int getRegisterE() {
+        checkFiveRegisterFormat("register E");
+        return NibbleUtils.extractLowUnsignedNibble(dexFile.readUbyte(offset + 5));
+    }
+
+    public int getRegisterF() {
+        checkFiveRegisterFormat("register F");
+        return NibbleUtils.extractHighUnsignedNibble(dexFile.readUbyte(offset + 5));
+    }
+
+    public int getRegisterG() {
+        checkFiveRegisterFormat("register G");
+        return NibbleUtils.extractLowUnsignedNibble(dexFile.readUbyte(offset + 1));
+    }
+
+    public int getRegisterCount() {
+        switch (checkFormat()) {
+            case Format35c:
+            case Format35mi:
+            case Format35ms:
+            case Format45cc:
+                return NibbleUtils.extractHighUnsignedNibble(dexFile.readUbyte(offset + 1));
+            case Format3rc:
+            case Format3rmi:
+            case Format3rms:
+            case Format4rcc:
+                return dexFile.readUbyte(offset + 1);
+            default:
+                throw unsupported("register count");
+        }
+    }
+
+    public int getStartRegister() {
+        switch (checkFormat()) {
+            case Format3rc:
+            case Format3rmi:
+            case Format3rms:
+            case Format4rcc:
+                return dexFile.readUshort(offset + 4);
+            default:
+                throw unsupported("start register");
+        }
+    }
+
+    public int getNarrowLiteral() {
+        switch (checkFormat()) {
+            case Format11n:
+                return NibbleUtils.extractHighSignedNibble(dexFile.readByte(offset + 1));
+            case Format21ih:
+                return dexFile.readShort(offset + 2) << 16;
+            case Format21s:
+            case Format22s:
+                return dexFile.readShort(offset + 2);
+            case Format22b:
+                return dexFile.readByte(offset + 3);
+            case Format31i:
+                return dexFile.readInt(offset + 2);
+            default:
+                throw unsupported("narrow literal");
+        }
+    }
+
+    public long getWideLiteral() {
+        switch (checkFormat()) {
+            case Format21lh:
+                return ((long)dexFile.readShort(offset + 2)) << 48;
+            case Format51l:
+                return dexFile.readLong(offset + 2);
+            default:
+                return getNarrowLiteral();
+        }
+    }
+
+    /**
+     * @return The branch offset of the current instruction, in 16-bit code units relative to the instruction
+     */
+    public int getCodeOffset() {
+        switch (checkFormat()) {
+            case Format10t:
+                return dexFile.readByte(offset + 1);
+            case Format20t:
+            case Format21t:
+            case Format22t:
+                return dexFile.readShort(offset + 2);
+            case Format30t:
+            case Format31t:
+                return dexFile.readInt(offset + 2);
+            default:
+                throw unsupported("code offset");
+        }
+    }
+
+    /**
+     * @return The type of the current instruction's reference, as one of the values in {@link ReferenceType}
+     */
+    public int getReferenceType() {
+        if (checkFormat() == Format.Format20bc) {
+            int referenceType = (dexFile.readUbyte(offset + 1) >>> 6) + 1;
+            ReferenceType.validateReferenceType(referenceType);
+            return referenceType;
+        }
+        checkReferenceFormat();
+        assert opcode != null;
+        return opcode.referenceType;
+    }
+
+    public int getReferenceIndex() {
+        if (checkReferenceFormat() == Format.Format31c) {
+            return dexFile.readSmallUint(offset + 2);
+        }
+        return dexFile.readUshort(offset + 2);
+    }
+
+    /**
+     * @return The type of the current instruction's second reference, as one of the values in {@link ReferenceType}
+     */
+    public int getReferenceType2() {
+        checkDualReferenceFormat();
+        assert opcode != null;
+        return opcode.referenceType2;
+    }
+
+    public int getReferenceIndex2() {
+        checkDualReferenceFormat();
+        return dexFile.readUshort(offset + 6);
+    }
+
+    /**
+     * Creates a reference object for the current instruction's reference.
+     */
+    @Nonnull
+    public Reference getReference() {
+        return DexBackedReference.makeReference(dexFile, getReferenceType(), getReferenceIndex());
+    }
+
+    /**
+     * Creates a reference object for the current instruction's second reference.
+     */
+    @Nonnull
+    public Reference getReference2() {
+        return DexBackedReference.makeReference(dexFile, getReferenceType2(), getReferenceIndex2());
+    }
+
+    /**
+     * Creates an instruction object for the current instruction.
+     */
+    @Nonnull
+    public Instruction getInstruction() {
+        checkPosition();
+        return DexBackedInstruction.readFrom(dexFile.readerAt(offset));
+    }
+
+    @Nonnull
+    private Format checkFormat() {
+        checkPosition();
+        return format;
+    }
+
+    @Nonnull
+    private Format checkReferenceFormat() {
+        switch (checkFormat()) {
+            case Format20bc:
+            case Format21c:
+            case Format22c:
+            case Format31c:
+            case Format35c:
+            case Format3rc:
+            case Format45cc:
+            case Format4rcc:
+                return format;
+            default:
+                throw unsupported("reference");
+        }
+    }
+
+    private void checkDualReferenceFormat() {
+        Format format = checkFormat();
+        if (format != Format.Format45cc && format != Format.Format4rcc) {
+            throw unsupported("second reference");
+        }
+    }
+
+    private void checkFiveRegisterFormat(@Nonnull String field) {
+        switch (checkFormat()) {
+            case Format35c:
+            case Format35mi:
+            case Format35ms:
+            case Format45cc:
+                return;
+            default:
+                throw unsupported(field);
+        }
+    }
+
+    @Nonnull
+    private IllegalStateException unsupported(@Nonnull String field) {
+        return new IllegalStateException(String.format("Instruction at offset 0x%x (%s) has no %s", offset,
+                opcode == null ? String.format("unknown opcode 0x%x", opcodeValue) : opcode.name, field));
+    }
+}
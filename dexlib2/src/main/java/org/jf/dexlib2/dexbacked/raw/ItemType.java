@@ -53,6 +53,27 @@ public class ItemType {
     public static final int ENCODED_ARRAY_ITEM = 0x2005;
     public static final int ANNOTATION_DIRECTORY_ITEM = 0x2006;
 
+    private static final int[] ALL_ITEM_TYPES = new int[] {
+            HEADER_ITEM, STRING_ID_ITEM, TYPE_ID_ITEM, PROTO_ID_ITEM, FIELD_ID_ITEM, METHOD_ID_ITEM, CLASS_DEF_ITEM,
+            MAP_LIST, TYPE_LIST, ANNOTATION_SET_REF_LIST, ANNOTATION_SET_ITEM, CLASS_DATA_ITEM, CODE_ITEM,
+            STRING_DATA_ITEM, DEBUG_INFO_ITEM, ANNOTATION_ITEM, ENCODED_ARRAY_ITEM, ANNOTATION_DIRECTORY_ITEM
+    };
+
+    /**
+     * Looks up an item type by name.
+     *
+     * @param itemTypeName The name of the item type, as returned by getItemTypeName
+     * @return The item type, or -1 if the name isn't recognized
+     */
+    public static int getItemType(@Nonnull String itemTypeName) {
+        for (int itemType: ALL_ITEM_TYPES) {
+            if (getItemTypeName(itemType).equals(itemTypeName)) {
+                return itemType;
+            }
+        }
+        return -1;
+    }
+
     @Nonnull
     public static String getItemTypeName(int itemType) {
         switch (itemType) {
@@ -41,7 +41,6 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.Writer;
-import java.util.Arrays;
 import java.util.List;
 
 public class RawDexFile extends DexBackedDexFile {
@@ -57,11 +56,6 @@ public class RawDexFile extends DexBackedDexFile {
         this.headerItem = new HeaderItem(this);
     }
 
-    @Nonnull
-    public byte[] readByteRange(int start, int length) {
-        return Arrays.copyOfRange(getBuf(), getBaseOffset() + start, getBaseOffset() + start + length);
-    }
-
     public int getMapOffset() {
         return headerItem.getMapOffset();
     }
@@ -93,8 +87,19 @@ public class RawDexFile extends DexBackedDexFile {
         };
     }
 
+    /**
+     * @return The number of bytes of data available, starting at the beginning of the dex file
+     */
+    public int getDataLength() {
+        return getBufLength() - getBaseOffset();
+    }
+
     public void writeAnnotations(@Nonnull Writer out, @Nonnull AnnotatedBytes annotatedBytes) throws IOException {
         // TODO: need to pass in the offset
-        annotatedBytes.writeAnnotations(out, getBuf());
+        byte[] buf = getBuf();
+        if (buf == null) {
+            buf = readByteRange(-getBaseOffset(), getBufLength());
+        }
+        annotatedBytes.writeAnnotations(out, buf);
     }
 }
@@ -31,19 +31,29 @@
 
 package org.jf.dexlib2.dexbacked.raw.util;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.jf.dexlib2.dexbacked.raw.*;
 import org.jf.dexlib2.util.AnnotatedBytes;
+import org.jf.dexlib2.util.StreamingAnnotatedBytes;
+import org.jf.util.ExceptionWithContext;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.Writer;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class DexAnnotator extends AnnotatedBytes {
     @Nonnull public final RawDexFile dexFile;
@@ -51,6 +61,17 @@ public class DexAnnotator extends AnnotatedBytes {
     private final Map<Integer, SectionAnnotator> annotators = Maps.newHashMap();
     private static final Map<Integer, Integer> sectionAnnotationOrder = Maps.newHashMap();
 
+    /**
+     * The sections that propagate item identities, in order. Each of these sets the identities of the items in the
+     * next one.
+     */
+    private static final int[] identityChain = new int[] {
+            ItemType.CLASS_DEF_ITEM,
+            ItemType.CLASS_DATA_ITEM,
+            ItemType.CODE_ITEM,
+            ItemType.DEBUG_INFO_ITEM
+    };
+
     static {
         int[] sectionOrder = new int[] {
                 ItemType.MAP_LIST,
@@ -150,23 +171,270 @@ public class DexAnnotator extends AnnotatedBytes {
     }
 
     public void writeAnnotations(Writer out) throws IOException {
-        List<MapItem> mapItems = dexFile.getMapItems();
+        List<MapItem> mapItems = getMapItemsInAnnotationOrder();
+
+        try {
+            for (MapItem mapItem: mapItems) {
+                SectionAnnotator annotator = annotators.get(mapItem.getType());
+                annotator.annotateSection(this);
+            }
+        } finally {
+            dexFile.writeAnnotations(out, this);
+        }
+    }
+
+    /**
+     * Writes the annotations for the whole dex file to the given writer, annotating the sections in parallel using the
+     * given executor.
+     *
+     * Each section is annotated into its own AnnotatedBytes, and they are then merged in the same order that
+     * writeAnnotations annotates them, so the output is the same as that of writeAnnotations. The sections in
+     * identityChain depend on each other, so they are annotated one after another, in a single task. Since those are
+     * usually the largest sections, that task tends to limit the speedup.
+     *
+     * A section's annotations are held in memory until they are merged, so this can use more memory than
+     * writeAnnotations.
+     *
+     * @param out The writer to write the annotations to
+     * @param executor The executor to annotate the sections with
+     */
+    public void writeAnnotations(@Nonnull Writer out, @Nonnull ExecutorService executor) throws IOException {
+        List<MapItem> mapItems = getMapItemsInAnnotationOrder();
+
+        List<Integer> chainTypes = Lists.newArrayList();
+        for (int itemType: identityChain) {
+            if (annotators.containsKey(itemType)) {
+                chainTypes.add(itemType);
+            }
+        }
+
+        Map<Integer, Future<List<SectionResult>>> futures = Maps.newHashMap();
+        if (!chainTypes.isEmpty()) {
+            Future<List<SectionResult>> chainFuture = executor.submit(newSectionTask(chainTypes));
+            for (int itemType: chainTypes) {
+                futures.put(itemType, chainFuture);
+            }
+        }
+        for (MapItem mapItem: mapItems) {
+            if (!futures.containsKey(mapItem.getType())) {
+                futures.put(mapItem.getType(), executor.submit(newSectionTask(ImmutableList.of(mapItem.getType()))));
+            }
+        }
+
+        try {
+            for (MapItem mapItem: mapItems) {
+                // each result is dropped once it's merged, so that the section's annotations aren't kept around
+                SectionResult result = takeSectionResult(futures.remove(mapItem.getType()), mapItem.getType());
+                if (result == null) {
+                    // an earlier section in the same task failed, which would have been rethrown already
+                    break;
+                }
+                addAll(result.annotations);
+                if (result.exception != null) {
+                    throw result.exception;
+                }
+            }
+        } finally {
+            dexFile.writeAnnotations(out, this);
+        }
+    }
+
+    @Nonnull
+    private Callable<List<SectionResult>> newSectionTask(@Nonnull final List<Integer> itemTypes) {
+        return new Callable<List<SectionResult>>() {
+            @Override public List<SectionResult> call() {
+                List<SectionResult> results = Lists.newArrayList();
+                for (int itemType: itemTypes) {
+                    AnnotatedBytes sectionOut = new AnnotatedBytes(getOutputWidth());
+                    RuntimeException exception = null;
+                    try {
+                        annotators.get(itemType).annotateSection(sectionOut);
+                    } catch (RuntimeException ex) {
+                        exception = ex;
+                    }
+                    results.add(new SectionResult(itemType, sectionOut, exception));
+                    if (exception != null) {
+                        break;
+                    }
+                }
+                return results;
+            }
+        };
+    }
+
+    /**
+     * Gets the result for the given section from the given task, and removes it from the task's results
+     */
+    @Nullable
+    private static SectionResult takeSectionResult(@Nonnull Future<List<SectionResult>> future, int itemType) {
+        List<SectionResult> results;
+        try {
+            results = Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException ex) {
+            throw new ExceptionWithContext(ex.getCause(), "Error while annotating the %s section",
+                    ItemType.getItemTypeName(itemType));
+        }
+        for (int i=0; i<results.size(); i++) {
+            if (results.get(i).itemType == itemType) {
+                return results.remove(i);
+            }
+        }
+        return null;
+    }
+
+    private static class SectionResult {
+        public final int itemType;
+        @Nonnull public final AnnotatedBytes annotations;
+        @Nullable public final RuntimeException exception;
+
+        public SectionResult(int itemType, @Nonnull AnnotatedBytes annotations,
+                             @Nullable RuntimeException exception) {
+            this.itemType = itemType;
+            this.annotations = annotations;
+            this.exception = exception;
+        }
+    }
+
+    /**
+     * Writes the annotations for the whole dex file to the given writer, as they are generated.
+     *
+     * Unlike writeAnnotations, the annotations are not collected in memory first, so memory use doesn't grow with the
+     * size of the dex file. The output is the same as that of writeAnnotations.
+     *
+     * @param out The writer to write the annotations to
+     */
+    public void streamAnnotations(@Nonnull Writer out) throws IOException {
+        streamAnnotations(out, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Writes the annotations for the given range of offsets to the given writer, as they are generated.
+     *
+     * Only the sections that intersect the range are annotated.
+     *
+     * @param out The writer to write the annotations to
+     * @param startOffset The inclusive start of the range to write
+     * @param endOffset The exclusive end of the range to write
+     */
+    public void streamAnnotations(@Nonnull Writer out, int startOffset, int endOffset) throws IOException {
+        List<MapItem> mapItems = getMapItemsByOffset();
+        List<MapItem> selectedItems = Lists.newArrayList();
+        for (int i=0; i<mapItems.size(); i++) {
+            MapItem mapItem = mapItems.get(i);
+            int sectionEnd;
+            if (i + 1 < mapItems.size()) {
+                sectionEnd = mapItems.get(i + 1).getOffset();
+            } else {
+                sectionEnd = dexFile.getDataLength();
+            }
+            if (mapItem.getOffset() < endOffset && sectionEnd > startOffset) {
+                selectedItems.add(mapItem);
+            }
+        }
+
+        annotateItemIdentities(selectedItems);
+
+        StreamingAnnotatedBytes streamingOut = newStreamingOut(out);
+        streamingOut.setWindow(startOffset, endOffset);
+        try {
+            for (MapItem mapItem: selectedItems) {
+                annotators.get(mapItem.getType()).annotateSection(streamingOut);
+            }
+        } finally {
+            streamingOut.finish();
+        }
+    }
+
+    /**
+     * Writes the annotations for the given sections to the given writer, as they are generated.
+     *
+     * The sections are written in offset order. The unannotated bytes between the sections are not written.
+     *
+     * @param out The writer to write the annotations to
+     * @param itemTypes The item types of the sections to write. Sections that aren't present are ignored.
+     */
+    public void streamSectionAnnotations(@Nonnull Writer out, @Nonnull Collection<Integer> itemTypes)
+            throws IOException {
+        List<MapItem> selectedItems = Lists.newArrayList();
+        for (MapItem mapItem: getMapItemsByOffset()) {
+            if (itemTypes.contains(mapItem.getType())) {
+                selectedItems.add(mapItem);
+            }
+        }
+
+        annotateItemIdentities(selectedItems);
+
+        StreamingAnnotatedBytes streamingOut = newStreamingOut(out);
+        try {
+            for (MapItem mapItem: selectedItems) {
+                annotators.get(mapItem.getType()).annotateSection(streamingOut);
+                streamingOut.finishSection();
+            }
+        } finally {
+            streamingOut.finishSection();
+        }
+    }
+
+    @Nonnull
+    private StreamingAnnotatedBytes newStreamingOut(@Nonnull Writer out) {
+        return new StreamingAnnotatedBytes(out, getOutputWidth(), dexFile, dexFile.getDataLength());
+    }
+
+    @Nonnull
+    private List<MapItem> getMapItemsInAnnotationOrder() {
         // sort the map items based on the order defined by sectionAnnotationOrder
         Ordering<MapItem> ordering = Ordering.from(new Comparator<MapItem>() {
             @Override public int compare(MapItem o1, MapItem o2) {
                 return Ints.compare(sectionAnnotationOrder.get(o1.getType()), sectionAnnotationOrder.get(o2.getType()));
             }
         });
+        return ordering.immutableSortedCopy(dexFile.getMapItems());
+    }
 
-        mapItems = ordering.immutableSortedCopy(mapItems);
+    @Nonnull
+    private List<MapItem> getMapItemsByOffset() {
+        Ordering<MapItem> ordering = Ordering.from(new Comparator<MapItem>() {
+            @Override public int compare(MapItem o1, MapItem o2) {
+                return Ints.compare(o1.getOffset(), o2.getOffset());
+            }
+        });
+        return ordering.immutableSortedCopy(dexFile.getMapItems());
+    }
 
-        try {
-            for (MapItem mapItem: mapItems) {
-                SectionAnnotator annotator = annotators.get(mapItem.getType());
-                annotator.annotateSection(this);
+    /**
+     * Makes sure the item identities are available for the given sections, when they are annotated in the given
+     * order.
+     *
+     * The sections in identityChain that are needed by a later section, but that aren't annotated before it, are
+     * annotated up front without writing anything out.
+     */
+    private void annotateItemIdentities(@Nonnull List<MapItem> mapItems) {
+        Map<Integer, Integer> positions = Maps.newHashMap();
+        for (int i=0; i<mapItems.size(); i++) {
+            positions.put(mapItems.get(i).getType(), i);
+        }
+
+        boolean[] needed = new boolean[identityChain.length];
+        for (int i=identityChain.length-2; i>=0; i--) {
+            Integer position = positions.get(identityChain[i]);
+            Integer nextPosition = positions.get(identityChain[i+1]);
+            if (needed[i+1]) {
+                needed[i] = true;
+            } else if (nextPosition != null) {
+                needed[i] = position == null || position > nextPosition;
+            }
+        }
+
+        AnnotatedBytes discardingOut = new AnnotatedBytes(getOutputWidth()) {
+            @Override protected void addAnnotation(int offset, int length, int indentLevel, @Nonnull String msg,
+                                                   @Nullable Object[] formatArgs) {
+            }
+        };
+        for (int i=0; i<identityChain.length; i++) {
+            SectionAnnotator annotator = annotators.get(identityChain[i]);
+            if (needed[i] && annotator != null) {
+                annotator.annotateSection(discardingOut);
             }
-        } finally {
-            dexFile.writeAnnotations(out, this);
         }
     }
 
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.dexbacked.util;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.lang.ref.SoftReference;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lazily populated cache of decoded strings, indexed by string index.
+ *
+ * The cache may be shared between threads. Concurrent lookups of the same uncached index may both decode the string,
+ * in which case the last one to be stored wins.
+ */
+public class StringCache {
+    @Nonnull private final Object[] entries;
+    private final boolean softReferences;
+
+    // these are only non-null if stats are being recorded, so that lookups from multiple threads don't all contend on
+    // the counters otherwise
+    @Nullable private final AtomicLong hits;
+    @Nullable private final AtomicLong misses;
+
+    /**
+     * @param size The number of strings in the dex file
+     * @param softReferences If true, strings are held by soft references, so that they can be reclaimed if memory
+     *                       becomes tight. Otherwise, every decoded string is kept for the lifetime of the cache.
+     */
+    public StringCache(int size, boolean softReferences) {
+        this(size, softReferences, false);
+    }
+
+    /**
+     * @param size The number of strings in the dex file
+     * @param softReferences If true, strings are held by soft references, so that they can be reclaimed if memory
+     *                       becomes tight. Otherwise, every decoded string is kept for the lifetime of the cache.
+     * @param recordStats If true, the hits and misses are counted
+     */
+    public StringCache(int size, boolean softReferences, boolean recordStats) {
+        this.entries = new Object[size];
+        this.softReferences = softReferences;
+        if (recordStats) {
+            hits = new AtomicLong();
+            misses = new AtomicLong();
+        } else {
+            hits = null;
+            misses = null;
+        }
+    }
+
+    /**
+     * Gets the cached string with the given index.
+     *
+     * @param index The index of the string
+     * @return The cached string, or null if the string isn't in the cache
+     */
+    @Nullable
+    public String get(int index) {
+        Object entry = entries[index];
+        String string;
+        if (softReferences && entry != null) {
+            string = (String)((SoftReference<?>)entry).get();
+        } else {
+            string = (String)entry;
+        }
+
+        if (hits != null) {
+            if (string == null) {
+                misses.incrementAndGet();
+            } else {
+                hits.incrementAndGet();
+            }
+        }
+        return string;
+    }
+
+    public void put(int index, @Nonnull String string) {
+        if (softReferences) {
+            entries[index] = new SoftReference<String>(string);
+        } else {
+            entries[index] = string;
+        }
+    }
+
+    public boolean usesSoftReferences() {
+        return softReferences;
+    }
+
+    public boolean recordsStats() {
+        return hits != null;
+    }
+
+    /**
+     * @return The number of lookups that found a cached string, or 0 if stats aren't being recorded
+     */
+    public long getHitCount() {
+        return hits == null ? 0 : hits.get();
+    }
+
+    /**
+     * @return The number of lookups that didn't find a cached string, or 0 if stats aren't being recorded
+     */
+    public long getMissCount() {
+        return misses == null ? 0 : misses.get();
+    }
+}
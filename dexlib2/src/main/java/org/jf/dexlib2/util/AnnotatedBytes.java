@@ -124,28 +124,42 @@ public class AnnotatedBytes {
             throw new ExceptionWithContext("Annotating outside the parent bounds");
         }
 
-        String formattedMsg;
-        if (formatArgs != null && formatArgs.length > 0) {
-            formattedMsg = String.format(msg, formatArgs);
-        } else {
-            formattedMsg = msg;
-        }
-        int exclusiveEndOffset = cursor + length;
+        addAnnotation(cursor, length, indentLevel, msg, formatArgs);
+
+        cursor += length;
+    }
+
+    /**
+     * Records a single annotation. This is called by annotate, after the limits have been checked. The cursor is
+     * advanced past the annotation by the caller.
+     *
+     * Subclasses can override this to change how the annotations are stored or presented.
+     *
+     * @param offset the offset of the annotation
+     * @param length the length of data being annotated
+     * @param indentLevel the current indentation level
+     * @param msg the annotation message
+     * @param formatArgs format arguments to pass to String.format
+     */
+    protected void addAnnotation(int offset, int length, int indentLevel, @Nonnull String msg,
+                                 @Nullable Object[] formatArgs) {
+        String formattedMsg = formatMessage(msg, formatArgs);
+        int exclusiveEndOffset = offset + length;
 
         AnnotationEndpoint endPoint = null;
 
         // Do we have an endpoint at the beginning of this annotation already?
-        AnnotationEndpoint startPoint = annotatations.get(cursor);
+        AnnotationEndpoint startPoint = annotatations.get(offset);
         if (startPoint == null) {
             // Nope. We need to check that we're not in the middle of an existing range annotation.
-            Map.Entry<Integer, AnnotationEndpoint> previousEntry = annotatations.lowerEntry(cursor);
+            Map.Entry<Integer, AnnotationEndpoint> previousEntry = annotatations.lowerEntry(offset);
             if (previousEntry != null) {
                 AnnotationEndpoint previousAnnotations = previousEntry.getValue();
                 AnnotationItem previousRangeAnnotation = previousAnnotations.rangeAnnotation;
                 if (previousRangeAnnotation != null) {
                     throw new ExceptionWithContext(
                             "Cannot add annotation %s, due to existing annotation %s",
-                            formatAnnotation(cursor, cursor + length, formattedMsg),
+                            formatAnnotation(offset, offset + length, formattedMsg),
                             formatAnnotation(previousEntry.getKey(),
                                 previousRangeAnnotation.annotation));
                 }
@@ -155,14 +169,14 @@ public class AnnotatedBytes {
             if (existingRangeAnnotation != null) {
                 throw new ExceptionWithContext(
                         "Cannot add annotation %s, due to existing annotation %s",
-                                formatAnnotation(cursor, cursor + length, formattedMsg),
-                                formatAnnotation(cursor, existingRangeAnnotation.annotation));
+                                formatAnnotation(offset, offset + length, formattedMsg),
+                                formatAnnotation(offset, existingRangeAnnotation.annotation));
             }
         }
 
         if (length > 0) {
             // Ensure that there is no later annotation that would intersect with this one
-            Map.Entry<Integer, AnnotationEndpoint> nextEntry = annotatations.higherEntry(cursor);
+            Map.Entry<Integer, AnnotationEndpoint> nextEntry = annotatations.higherEntry(offset);
             if (nextEntry != null) {
                 int nextKey = nextEntry.getKey();
                 if (nextKey < exclusiveEndOffset) {
@@ -173,20 +187,20 @@ public class AnnotatedBytes {
                     if (nextRangeAnnotation != null) {
                         throw new ExceptionWithContext(
                                 "Cannot add annotation %s, due to existing annotation %s",
-                                        formatAnnotation(cursor, cursor + length, formattedMsg),
+                                        formatAnnotation(offset, offset + length, formattedMsg),
                                         formatAnnotation(nextKey, nextRangeAnnotation.annotation));
                     }
                     if (nextEndpoint.pointAnnotations.size() > 0) {
                         throw new ExceptionWithContext(
                                 "Cannot add annotation %s, due to existing annotation %s",
-                                        formatAnnotation(cursor, cursor + length, formattedMsg),
+                                        formatAnnotation(offset, offset + length, formattedMsg),
                                         formatAnnotation(nextKey, nextKey,
                                             nextEndpoint.pointAnnotations.get(0).annotation));
                     }
                     // There are no annotations on this endpoint. This "shouldn't" happen. We can still throw an exception.
                     throw new ExceptionWithContext(
                             "Cannot add annotation %s, due to existing annotation endpoint at %d",
-                                    formatAnnotation(cursor, cursor + length, formattedMsg),
+                                    formatAnnotation(offset, offset + length, formattedMsg),
                                     nextKey);
                 }
 
@@ -203,7 +217,7 @@ public class AnnotatedBytes {
         // the range annotation
         if (startPoint == null) {
             startPoint = new AnnotationEndpoint();
-            annotatations.put(cursor, startPoint);
+            annotatations.put(offset, startPoint);
         }
         if (length == 0) {
             startPoint.pointAnnotations.add(new AnnotationItem(indentLevel, formattedMsg));
@@ -216,8 +230,41 @@ public class AnnotatedBytes {
                 annotatations.put(exclusiveEndOffset, endPoint);
             }
         }
+    }
 
-        cursor += length;
+    @Nonnull
+    protected static String formatMessage(@Nonnull String msg, @Nullable Object[] formatArgs) {
+        if (formatArgs != null && formatArgs.length > 0) {
+            return String.format(msg, formatArgs);
+        }
+        return msg;
+    }
+
+    /**
+     * Adds all of the annotations from another AnnotatedBytes, in offset order. The result is the same as if the
+     * annotations had been added to this instance after its existing annotations.
+     *
+     * The cursor and indentation level of this instance are not affected.
+     *
+     * @param other The AnnotatedBytes to copy the annotations from
+     */
+    public void addAll(@Nonnull AnnotatedBytes other) {
+        Map.Entry<Integer, AnnotationEndpoint> entry = other.annotatations.firstEntry();
+        while (entry != null) {
+            int offset = entry.getKey();
+            AnnotationEndpoint endpoint = entry.getValue();
+            Map.Entry<Integer, AnnotationEndpoint> nextEntry = other.annotatations.higherEntry(offset);
+
+            for (AnnotationItem pointAnnotation: endpoint.pointAnnotations) {
+                addAnnotation(offset, 0, pointAnnotation.indentLevel, pointAnnotation.annotation, null);
+            }
+            AnnotationItem rangeAnnotation = endpoint.rangeAnnotation;
+            if (rangeAnnotation != null && nextEntry != null) {
+                addAnnotation(offset, nextEntry.getKey() - offset, rangeAnnotation.indentLevel,
+                        rangeAnnotation.annotation, null);
+            }
+            entry = nextEntry;
+        }
     }
 
     private String formatAnnotation(int offset, String annotationMsg) {
@@ -267,6 +314,20 @@ public class AnnotatedBytes {
         }
     }
 
+    /**
+     * @return The desired maximum output width
+     */
+    public int getOutputWidth() {
+        return outputWidth;
+    }
+
+    /**
+     * @return The number of bytes of hex output per line
+     */
+    public int getHexCols() {
+        return hexCols;
+    }
+
     /**
      * @return The width of the right side containing the annotations
      */
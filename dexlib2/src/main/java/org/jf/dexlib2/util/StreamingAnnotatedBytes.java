@@ -0,0 +1,218 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.util;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import org.jf.dexlib2.dexbacked.BaseDexBuffer;
+import org.jf.util.ExceptionWithContext;
+import org.jf.util.Hex;
+import org.jf.util.TwoColumnOutput;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * An AnnotatedBytes that writes each annotation out as soon as it is added, rather than collecting all of them in
+ * memory and writing them out at the end.
+ *
+ * Annotations must be added in offset order. Only the point annotations at the current offset are held in memory
+ * until the next annotation shows where they end. Given the same annotations, the output is identical to that of
+ * AnnotatedBytes.writeAnnotations.
+ *
+ * Output can optionally be limited to a window of offsets. Point annotations outside of the window are dropped, range
+ * annotations are written if they intersect the window, and unannotated bytes are clipped to the window.
+ */
+public class StreamingAnnotatedBytes extends AnnotatedBytes {
+    /** The maximum number of unannotated bytes to hex dump at once */
+    private static final int MAX_CHUNK_LINES = 4096;
+
+    @Nonnull private final BaseDexBuffer data;
+    private final int dataLength;
+    @Nonnull private final TwoColumnOutput twoc;
+    @Nonnull private final String padding = Strings.repeat(" ", 1000);
+
+    private int windowStart = 0;
+    private int windowEnd = Integer.MAX_VALUE;
+
+    /** The offset of the last annotation endpoint that hasn't been written yet, or -1 if there isn't one */
+    private int pendingOffset = -1;
+    /** The point annotations at pendingOffset, already indented */
+    @Nonnull private final List<String> pendingPoints = Lists.newArrayList();
+
+    @Nullable private IOException ioException = null;
+
+    /**
+     * @param out The writer to write the annotations to
+     * @param width The desired maximum output width
+     * @param data The data being annotated
+     * @param dataLength The length of the data being annotated
+     */
+    public StreamingAnnotatedBytes(@Nonnull Writer out, int width, @Nonnull BaseDexBuffer data, int dataLength) {
+        super(width);
+        this.data = data;
+        this.dataLength = dataLength;
+
+        int rightWidth = getAnnotationWidth();
+        int leftWidth = width - rightWidth - 1;
+        this.twoc = new TwoColumnOutput(out, leftWidth, rightWidth, "|");
+    }
+
+    /**
+     * Limits the output to the given range of offsets.
+     *
+     * @param start The inclusive start offset of the window
+     * @param end The exclusive end offset of the window
+     */
+    public void setWindow(int start, int end) {
+        if (start < 0 || end < start) {
+            throw new IllegalArgumentException(String.format("Invalid window: [0x%x, 0x%x)", start, end));
+        }
+        this.windowStart = start;
+        this.windowEnd = end;
+    }
+
+    @Override
+    protected void addAnnotation(int offset, int length, int indentLevel, @Nonnull String msg,
+                                 @Nullable Object[] formatArgs) {
+        if (offset < pendingOffset) {
+            throw new ExceptionWithContext(
+                    "Cannot add annotation at 0x%x, after an annotation ending at 0x%x. Annotations must be added " +
+                            "in offset order", offset, pendingOffset);
+        }
+        if (offset > pendingOffset) {
+            if (pendingOffset != -1) {
+                writePendingPoints();
+                writeBytes(pendingOffset, offset, "");
+            }
+            pendingOffset = offset;
+        }
+
+        if (length == 0) {
+            if (offset >= windowStart && offset < windowEnd) {
+                pendingPoints.add(indent(indentLevel, formatMessage(msg, formatArgs)));
+            }
+        } else {
+            writePendingPoints();
+            int end = offset + length;
+            if (offset < windowEnd && end > windowStart) {
+                writeLine(Hex.dump(data.readByteRange(offset, length), 0, length, offset, getHexCols(), 6),
+                        indent(indentLevel, formatMessage(msg, formatArgs)));
+            }
+            pendingOffset = end;
+        }
+    }
+
+    /**
+     * Writes any pending point annotations and forgets the current position. The next annotation can be at any
+     * offset, and the bytes between the last annotation and the next one are not written.
+     *
+     * This is useful to write out a series of separate sections.
+     *
+     * @throws IOException if an error occurred while writing the annotations
+     */
+    public void finishSection() throws IOException {
+        writePendingPoints();
+        pendingOffset = -1;
+        checkError();
+    }
+
+    /**
+     * Finishes writing the annotations. Any bytes after the last annotation are written out, unannotated. Like
+     * AnnotatedBytes.writeAnnotations, any point annotations at the very end are dropped.
+     *
+     * @throws IOException if an error occurred while writing the annotations
+     */
+    public void finish() throws IOException {
+        if (pendingOffset != -1 && pendingOffset < dataLength) {
+            writeBytes(pendingOffset, dataLength, "");
+        }
+        pendingPoints.clear();
+        pendingOffset = -1;
+        checkError();
+    }
+
+    private void checkError() throws IOException {
+        if (ioException != null) {
+            throw ioException;
+        }
+    }
+
+    @Nonnull
+    private String indent(int indentLevel, @Nonnull String annotation) {
+        return padding.substring(0, indentLevel*2) + annotation;
+    }
+
+    private void writePendingPoints() {
+        for (String pointAnnotation: pendingPoints) {
+            writeLine("", pointAnnotation);
+        }
+        pendingPoints.clear();
+    }
+
+    /**
+     * Writes a hex dump of the given range, clipped to the window, in chunks. The chunks are a multiple of the line
+     * size, so the output is the same as if the range was dumped at once.
+     */
+    private void writeBytes(int start, int end, @Nonnull String annotation) {
+        int hexCols = getHexCols();
+        int chunkSize = hexCols * MAX_CHUNK_LINES;
+
+        if (start < windowStart) {
+            start = windowStart;
+        }
+        if (end > windowEnd) {
+            end = windowEnd;
+        }
+
+        while (start < end) {
+            int length = Math.min(end - start, chunkSize);
+            writeLine(Hex.dump(data.readByteRange(start, length), 0, length, start, hexCols, 6), annotation);
+            start += length;
+        }
+    }
+
+    private void writeLine(@Nonnull String left, @Nonnull String right) {
+        if (ioException != null) {
+            return;
+        }
+        try {
+            twoc.write(left, right);
+        } catch (IOException ex) {
+            ioException = ex;
+        }
+    }
+}
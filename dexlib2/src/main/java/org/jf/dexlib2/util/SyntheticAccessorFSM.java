@@ -33,7 +33,9 @@
 
 package org.jf.dexlib2.util;
 
+import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.instruction.DexBackedInstructionCursor;
 import org.jf.dexlib2.iface.instruction.Instruction;
 import org.jf.dexlib2.iface.instruction.OneRegisterInstruction;
 import org.jf.dexlib2.iface.instruction.WideLiteralInstruction;
@@ -43,9 +45,9 @@ import java.util.List;
 
 public class SyntheticAccessorFSM {
     
-// line 43 "SyntheticAccessorFSM.rl"
+// line 46 "SyntheticAccessorFSM.rl"
     
-// line 48 "/home/jesusfreke/projects/smali/dexlib2/src/main/java/org/jf/dexlib2/util/SyntheticAccessorFSM.java"
+// line 50 "/home/jesusfreke/projects/smali/dexlib2/src/main/java/org/jf/dexlib2/util/SyntheticAccessorFSM.java"
 private static byte[] init__SyntheticAccessorFSM_actions_0()
 {
 	return new byte [] {
@@ -189,7 +191,7 @@ static final int SyntheticAccessorFSM_error = 0;
 static final int SyntheticAccessorFSM_en_main = 1;
 
 
-// line 44 "SyntheticAccessorFSM.rl"
+// line 47 "SyntheticAccessorFSM.rl"
 
     // math type constants
     public static final int ADD = SyntheticAccessorResolver.ADD_ASSIGNMENT;
@@ -219,7 +221,19 @@ static final int SyntheticAccessorFSM_en_main = 1;
         this.opcodes = opcodes;
     }
 
-    public int test(List<? extends Instruction> instructions) {
+    public int test(@Nonnull List<? extends Instruction> instructions) {
+        return test(new ListInstructionAccessor(instructions));
+    }
+
+    /**
+     * Tests the instructions of the method that the given cursor was last reset to, without creating any
+     * instruction objects. The cursor is rewound before the instructions are tested.
+     */
+    public int test(@Nonnull DexBackedInstructionCursor cursor) {
+        return test(new CursorInstructionAccessor(cursor));
+    }
+
+    private int test(@Nonnull InstructionAccessor instructions) {
         int accessorType = -1;
         int cs, p = 0;
         int pe = instructions.size();
@@ -239,12 +253,12 @@ static final int SyntheticAccessorFSM_en_main = 1;
         int returnRegister = -1;
 
         
-// line 242 "/home/jesusfreke/projects/smali/dexlib2/src/main/java/org/jf/dexlib2/util/SyntheticAccessorFSM.java"
+// line 256 "/home/jesusfreke/projects/smali/dexlib2/src/main/java/org/jf/dexlib2/util/SyntheticAccessorFSM.java"
 	{
 	cs = SyntheticAccessorFSM_start;
 	}
 
-// line 247 "/home/jesusfreke/projects/smali/dexlib2/src/main/java/org/jf/dexlib2/util/SyntheticAccessorFSM.java"
+// line 261 "/home/jesusfreke/projects/smali/dexlib2/src/main/java/org/jf/dexlib2/util/SyntheticAccessorFSM.java"
 	{
 	int _klen;
 	int _trans = 0;
@@ -278,9 +292,9 @@ case 1:
 				break;
 
 			_mid = _lower + ((_upper-_lower) >> 1);
-			if ( ( opcodes.getOpcodeValue(instructions.get(p).getOpcode())) < _SyntheticAccessorFSM_trans_keys[_mid] )
+			if ( ( instructions.getOpcodeValue(p)) < _SyntheticAccessorFSM_trans_keys[_mid] )
 				_upper = _mid - 1;
-			else if ( ( opcodes.getOpcodeValue(instructions.get(p).getOpcode())) > _SyntheticAccessorFSM_trans_keys[_mid] )
+			else if ( ( instructions.getOpcodeValue(p)) > _SyntheticAccessorFSM_trans_keys[_mid] )
 				_lower = _mid + 1;
 			else {
 				_trans += (_mid - _keys);
@@ -301,9 +315,9 @@ case 1:
 				break;
 
 			_mid = _lower + (((_upper-_lower) >> 1) & ~1);
-			if ( ( opcodes.getOpcodeValue(instructions.get(p).getOpcode())) < _SyntheticAccessorFSM_trans_keys[_mid] )
+			if ( ( instructions.getOpcodeValue(p)) < _SyntheticAccessorFSM_trans_keys[_mid] )
 				_upper = _mid - 2;
-			else if ( ( opcodes.getOpcodeValue(instructions.get(p).getOpcode())) > _SyntheticAccessorFSM_trans_keys[_mid+1] )
+			else if ( ( instructions.getOpcodeValue(p)) > _SyntheticAccessorFSM_trans_keys[_mid+1] )
 				_lower = _mid + 2;
 			else {
 				_trans += ((_mid - _keys)>>1);
@@ -325,166 +339,166 @@ case 1:
 			switch ( _SyntheticAccessorFSM_actions[_acts++] )
 			{
 	case 0:
-// line 100 "SyntheticAccessorFSM.rl"
+// line 115 "SyntheticAccessorFSM.rl"
 	{
-                putRegister = ((OneRegisterInstruction)instructions.get(p)).getRegisterA();
+                putRegister = instructions.getRegisterA(p);
             }
 	break;
 	case 1:
-// line 107 "SyntheticAccessorFSM.rl"
+// line 122 "SyntheticAccessorFSM.rl"
 	{
-                constantValue = ((WideLiteralInstruction)instructions.get(p)).getWideLiteral();
+                constantValue = instructions.getWideLiteral(p);
             }
 	break;
 	case 2:
-// line 111 "SyntheticAccessorFSM.rl"
+// line 126 "SyntheticAccessorFSM.rl"
 	{
                 mathType = INT;
                 mathOp = ADD;
-                constantValue = ((WideLiteralInstruction)instructions.get(p)).getWideLiteral();
+                constantValue = instructions.getWideLiteral(p);
             }
 	break;
 	case 3:
-// line 117 "SyntheticAccessorFSM.rl"
+// line 132 "SyntheticAccessorFSM.rl"
 	{ mathType = INT; }
 	break;
 	case 4:
-// line 118 "SyntheticAccessorFSM.rl"
+// line 133 "SyntheticAccessorFSM.rl"
 	{ mathType = LONG; }
 	break;
 	case 5:
-// line 119 "SyntheticAccessorFSM.rl"
+// line 134 "SyntheticAccessorFSM.rl"
 	{ mathType = FLOAT; }
 	break;
 	case 6:
-// line 120 "SyntheticAccessorFSM.rl"
+// line 135 "SyntheticAccessorFSM.rl"
 	{mathType = DOUBLE; }
 	break;
 	case 7:
-// line 120 "SyntheticAccessorFSM.rl"
+// line 135 "SyntheticAccessorFSM.rl"
 	{
                 mathOp = ADD;
             }
 	break;
 	case 8:
-// line 123 "SyntheticAccessorFSM.rl"
+// line 138 "SyntheticAccessorFSM.rl"
 	{ mathType = INT; }
 	break;
 	case 9:
-// line 124 "SyntheticAccessorFSM.rl"
+// line 139 "SyntheticAccessorFSM.rl"
 	{ mathType = LONG; }
 	break;
 	case 10:
-// line 125 "SyntheticAccessorFSM.rl"
+// line 140 "SyntheticAccessorFSM.rl"
 	{ mathType = FLOAT; }
 	break;
 	case 11:
-// line 126 "SyntheticAccessorFSM.rl"
+// line 141 "SyntheticAccessorFSM.rl"
 	{mathType = DOUBLE; }
 	break;
 	case 12:
-// line 126 "SyntheticAccessorFSM.rl"
+// line 141 "SyntheticAccessorFSM.rl"
 	{
                 mathOp = SUB;
             }
 	break;
 	case 13:
-// line 130 "SyntheticAccessorFSM.rl"
+// line 145 "SyntheticAccessorFSM.rl"
 	{
                 mathOp = MUL;
             }
 	break;
 	case 14:
-// line 134 "SyntheticAccessorFSM.rl"
+// line 149 "SyntheticAccessorFSM.rl"
 	{
                 mathOp = DIV;
             }
 	break;
 	case 15:
-// line 138 "SyntheticAccessorFSM.rl"
+// line 153 "SyntheticAccessorFSM.rl"
 	{
                 mathOp = REM;
             }
 	break;
 	case 16:
-// line 141 "SyntheticAccessorFSM.rl"
+// line 156 "SyntheticAccessorFSM.rl"
 	{
                 mathOp = AND;
             }
 	break;
 	case 17:
-// line 144 "SyntheticAccessorFSM.rl"
+// line 159 "SyntheticAccessorFSM.rl"
 	{
                 mathOp = OR;
             }
 	break;
 	case 18:
-// line 147 "SyntheticAccessorFSM.rl"
+// line 162 "SyntheticAccessorFSM.rl"
 	{
                 mathOp = XOR;
             }
 	break;
 	case 19:
-// line 150 "SyntheticAccessorFSM.rl"
+// line 165 "SyntheticAccessorFSM.rl"
 	{
                 mathOp = SHL;
             }
 	break;
 	case 20:
-// line 153 "SyntheticAccessorFSM.rl"
+// line 168 "SyntheticAccessorFSM.rl"
 	{
                 mathOp = SHR;
             }
 	break;
 	case 21:
-// line 156 "SyntheticAccessorFSM.rl"
+// line 171 "SyntheticAccessorFSM.rl"
 	{
                 mathOp = USHR;
             }
 	break;
 	case 22:
-// line 162 "SyntheticAccessorFSM.rl"
+// line 177 "SyntheticAccessorFSM.rl"
 	{
-                returnRegister = ((OneRegisterInstruction)instructions.get(p)).getRegisterA();
+                returnRegister = instructions.getRegisterA(p);
             }
 	break;
 	case 23:
-// line 168 "SyntheticAccessorFSM.rl"
+// line 183 "SyntheticAccessorFSM.rl"
 	{
                 accessorType = SyntheticAccessorResolver.GETTER; { p += 1; _goto_targ = 5; if (true)  continue _goto;}
             }
 	break;
 	case 24:
-// line 172 "SyntheticAccessorFSM.rl"
+// line 187 "SyntheticAccessorFSM.rl"
 	{
                 accessorType = SyntheticAccessorResolver.SETTER; { p += 1; _goto_targ = 5; if (true)  continue _goto;}
             }
 	break;
 	case 25:
-// line 176 "SyntheticAccessorFSM.rl"
+// line 191 "SyntheticAccessorFSM.rl"
 	{
                 accessorType = SyntheticAccessorResolver.METHOD; { p += 1; _goto_targ = 5; if (true)  continue _goto;}
             }
 	break;
 	case 26:
-// line 180 "SyntheticAccessorFSM.rl"
+// line 195 "SyntheticAccessorFSM.rl"
 	{
                 accessorType = getIncrementType(mathOp, mathType, constantValue, putRegister, returnRegister);
             }
 	break;
 	case 27:
-// line 184 "SyntheticAccessorFSM.rl"
+// line 199 "SyntheticAccessorFSM.rl"
 	{
                 accessorType = getIncrementType(mathOp, mathType, constantValue, putRegister, returnRegister);
             }
 	break;
 	case 28:
-// line 192 "SyntheticAccessorFSM.rl"
+// line 207 "SyntheticAccessorFSM.rl"
 	{
                 accessorType = mathOp; { p += 1; _goto_targ = 5; if (true)  continue _goto;}
             }
 	break;
-// line 487 "/home/jesusfreke/projects/smali/dexlib2/src/main/java/org/jf/dexlib2/util/SyntheticAccessorFSM.java"
+// line 501 "/home/jesusfreke/projects/smali/dexlib2/src/main/java/org/jf/dexlib2/util/SyntheticAccessorFSM.java"
 			}
 		}
 	}
@@ -504,7 +518,7 @@ case 5:
 	break; }
 	}
 
-// line 205 "SyntheticAccessorFSM.rl"
+// line 220 "SyntheticAccessorFSM.rl"
 
 
         return accessorType;
@@ -569,4 +583,79 @@ case 5:
             }
         }
     }
-}
\ No newline at end of file
+
+    private interface InstructionAccessor {
+        int size();
+        int getOpcodeValue(int index);
+        int getRegisterA(int index);
+        long getWideLiteral(int index);
+    }
+
+    private class ListInstructionAccessor implements InstructionAccessor {
+        @Nonnull private final List<? extends Instruction> instructions;
+
+        public ListInstructionAccessor(@Nonnull List<? extends Instruction> instructions) {
+            this.instructions = instructions;
+        }
+
+        @Override public int size() {
+            return instructions.size();
+        }
+
+        @Override public int getOpcodeValue(int index) {
+            return opcodes.getOpcodeValue(instructions.get(index).getOpcode());
+        }
+
+        @Override public int getRegisterA(int index) {
+            return ((OneRegisterInstruction)instructions.get(index)).getRegisterA();
+        }
+
+        @Override public long getWideLiteral(int index) {
+            return ((WideLiteralInstruction)instructions.get(index)).getWideLiteral();
+        }
+    }
+
+    private class CursorInstructionAccessor implements InstructionAccessor {
+        @Nonnull private final DexBackedInstructionCursor cursor;
+        private final int size;
+        private int index = -1;
+
+        public CursorInstructionAccessor(@Nonnull DexBackedInstructionCursor cursor) {
+            this.cursor = cursor;
+            this.size = cursor.countInstructions();
+            cursor.rewind();
+        }
+
+        private void moveTo(int index) {
+            if (index < this.index) {
+                cursor.rewind();
+                this.index = -1;
+            }
+            while (this.index < index) {
+                cursor.next();
+                this.index++;
+            }
+        }
+
+        @Override public int size() {
+            return size;
+        }
+
+        @Override public int getOpcodeValue(int index) {
+            moveTo(index);
+            Opcode opcode = cursor.getOpcode();
+            // unknown opcodes are treated as a nop, the same as DexBackedUnknownInstruction
+            return opcodes.getOpcodeValue(opcode == null ? Opcode.NOP : opcode);
+        }
+
+        @Override public int getRegisterA(int index) {
+            moveTo(index);
+            return cursor.getRegisterA();
+        }
+
+        @Override public long getWideLiteral(int index) {
+            moveTo(index);
+            return cursor.getWideLiteral();
+        }
+    }
+}
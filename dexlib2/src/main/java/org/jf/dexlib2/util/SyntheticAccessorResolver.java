@@ -36,6 +36,8 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import org.jf.dexlib2.AccessFlags;
 import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedMethodImplementation;
+import org.jf.dexlib2.dexbacked.instruction.DexBackedInstructionCursor;
 import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.iface.Method;
 import org.jf.dexlib2.iface.MethodImplementation;
@@ -125,18 +127,31 @@ public class SyntheticAccessorResolver {
             return null;
         }
 
-        List<Instruction> instructions = ImmutableList.copyOf(matchedMethodImpl.getInstructions());
-
-
-        int accessType = syntheticAccessorFSM.test(instructions);
-
-        if (accessType >= 0) {
-            AccessedMember member =
-                    new AccessedMember(accessType, ((ReferenceInstruction)instructions.get(0)).getReference());
-            resolvedAccessors.put(methodDescriptor, member);
-            return member;
+        int accessType;
+        Reference reference;
+        if (matchedMethodImpl instanceof DexBackedMethodImplementation) {
+            // avoid creating instruction objects for dex-backed methods
+            DexBackedInstructionCursor cursor =
+                    new DexBackedInstructionCursor((DexBackedMethodImplementation)matchedMethodImpl);
+            accessType = syntheticAccessorFSM.test(cursor);
+            if (accessType < 0) {
+                return null;
+            }
+            cursor.rewind();
+            cursor.next();
+            reference = cursor.getReference();
+        } else {
+            List<Instruction> instructions = ImmutableList.copyOf(matchedMethodImpl.getInstructions());
+            accessType = syntheticAccessorFSM.test(instructions);
+            if (accessType < 0) {
+                return null;
+            }
+            reference = ((ReferenceInstruction)instructions.get(0)).getReference();
         }
-        return null;
+
+        AccessedMember member = new AccessedMember(accessType, reference);
+        resolvedAccessors.put(methodDescriptor, member);
+        return member;
     }
 
     public static class AccessedMember {
@@ -34,13 +34,29 @@ package org.jf.dexlib2.writer;
 import org.jf.util.ExceptionWithContext;
 
 import javax.annotation.Nonnull;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
-public class DexDataWriter extends BufferedOutputStream {
+/**
+ * A buffered writer for the little-endian and variable length encodings used in a dex file.
+ *
+ * Unlike BufferedOutputStream, none of the methods are synchronized, and multi-byte values are stored directly into
+ * the buffer rather than being written a byte at a time. A DexDataWriter must not be used by multiple threads at once.
+ */
+public class DexDataWriter extends OutputStream {
+    /** The largest number of bytes that a single primitive or encoded value can take, including the header */
+    private static final int MAX_VALUE_SIZE = 9;
+
+    @Nonnull private final OutputStream output;
+
+    /** The buffered data that hasn't yet been written to output */
+    @Nonnull private final byte[] buf;
+
+    /** The number of bytes in buf */
+    private int count;
+
     /**
-     * The position within the file that we will write to next. This is only updated when the buffer is flushed to the
+     * The position within the file of the first byte in buf. This is only updated when the buffer is flushed to the
      * outputStream.
      */
     private int filePosition;
@@ -65,15 +81,38 @@ public class DexDataWriter extends BufferedOutputStream {
     }
 
     public DexDataWriter(@Nonnull OutputStream output, int filePosition, int bufferSize) {
-        super(output, bufferSize);
-
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size <= 0");
+        }
+        this.output = output;
+        this.buf = new byte[Math.max(bufferSize, MAX_VALUE_SIZE)];
         this.filePosition = filePosition;
     }
 
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            output.write(buf, 0, count);
+            filePosition += count;
+            count = 0;
+        }
+    }
+
+    /**
+     * Makes sure there are at least the given number of bytes free in the buffer. size must not be larger than
+     * MAX_VALUE_SIZE.
+     */
+    private void ensureCapacity(int size) throws IOException {
+        if (count + size > buf.length) {
+            flushBuffer();
+        }
+    }
+
     @Override
     public void write(int b) throws IOException {
-        filePosition++;
-        super.write(b);
+        if (count == buf.length) {
+            flushBuffer();
+        }
+        buf[count++] = (byte)b;
     }
 
     @Override
@@ -83,16 +122,55 @@ public class DexDataWriter extends BufferedOutputStream {
 
     @Override
     public void write(byte[] b, int off, int len) throws IOException {
-        filePosition += len;
-        super.write(b, off, len);
+        if (len >= buf.length) {
+            // no point in copying a large write into the buffer
+            flushBuffer();
+            output.write(b, off, len);
+            filePosition += len;
+            return;
+        }
+        if (len > buf.length - count) {
+            flushBuffer();
+        }
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        output.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            output.close();
+        }
     }
 
     public void writeLong(long value) throws IOException {
-        writeInt((int)value);
-        writeInt((int)(value >> 32));
+        ensureCapacity(8);
+        byte[] buf = this.buf;
+        int count = this.count;
+        buf[count] = (byte)value;
+        buf[count+1] = (byte)(value >> 8);
+        buf[count+2] = (byte)(value >> 16);
+        buf[count+3] = (byte)(value >> 24);
+        buf[count+4] = (byte)(value >> 32);
+        buf[count+5] = (byte)(value >> 40);
+        buf[count+6] = (byte)(value >> 48);
+        buf[count+7] = (byte)(value >> 56);
+        this.count = count + 8;
     }
 
     public static void writeInt(OutputStream out, int value) throws IOException {
+        if (out instanceof DexDataWriter) {
+            ((DexDataWriter)out).writeInt(value);
+            return;
+        }
         out.write(value);
         out.write(value >> 8);
         out.write(value >> 16);
@@ -100,23 +178,35 @@ public class DexDataWriter extends BufferedOutputStream {
     }
 
     public void writeInt(int value) throws IOException {
-        writeInt(this, value);
+        ensureCapacity(4);
+        byte[] buf = this.buf;
+        int count = this.count;
+        buf[count] = (byte)value;
+        buf[count+1] = (byte)(value >> 8);
+        buf[count+2] = (byte)(value >> 16);
+        buf[count+3] = (byte)(value >> 24);
+        this.count = count + 4;
     }
 
     public void writeShort(int value) throws IOException {
         if (value < Short.MIN_VALUE || value > Short.MAX_VALUE) {
             throw new ExceptionWithContext("Short value out of range: %d", value);
         }
-        write(value);
-        write(value >> 8);
+        writeRawShort(value);
     }
 
     public void writeUshort(int value) throws IOException {
         if (value < 0 || value > 0xFFFF) {
             throw new ExceptionWithContext("Unsigned short value out of range: %d", value);
         }
-        write(value);
-        write(value >> 8);
+        writeRawShort(value);
+    }
+
+    private void writeRawShort(int value) throws IOException {
+        ensureCapacity(2);
+        buf[count] = (byte)value;
+        buf[count+1] = (byte)(value >> 8);
+        count += 2;
     }
 
     public void writeUbyte(int value) throws IOException {
@@ -127,6 +217,10 @@ public class DexDataWriter extends BufferedOutputStream {
     }
 
     public static void writeUleb128(OutputStream out, int value) throws IOException {
+        if (out instanceof DexDataWriter) {
+            ((DexDataWriter)out).writeUleb128(value);
+            return;
+        }
         while ((value & 0xffffffffL) > 0x7f) {
             out.write((value & 0x7f) | 0x80);
             value >>>= 7;
@@ -135,10 +229,22 @@ public class DexDataWriter extends BufferedOutputStream {
     }
 
     public void writeUleb128(int value) throws IOException {
-        writeUleb128(this, value);
+        ensureCapacity(5);
+        byte[] buf = this.buf;
+        int count = this.count;
+        while ((value & 0xffffffffL) > 0x7f) {
+            buf[count++] = (byte)((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        buf[count++] = (byte)value;
+        this.count = count;
     }
 
     public static void writeSleb128(OutputStream out, int value) throws IOException {
+        if (out instanceof DexDataWriter) {
+            ((DexDataWriter)out).writeSleb128(value);
+            return;
+        }
         if (value >= 0) {
             while (value > 0x3f) {
                 out.write((value & 0x7f) | 0x80);
@@ -155,7 +261,22 @@ public class DexDataWriter extends BufferedOutputStream {
     }
 
     public void writeSleb128(int value) throws IOException {
-        writeSleb128(this, value);
+        ensureCapacity(5);
+        byte[] buf = this.buf;
+        int count = this.count;
+        if (value >= 0) {
+            while (value > 0x3f) {
+                buf[count++] = (byte)((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+        } else {
+            while (value < -0x40) {
+                buf[count++] = (byte)((value & 0x7f) | 0x80);
+                value >>= 7;
+            }
+        }
+        buf[count++] = (byte)(value & 0x7f);
+        this.count = count;
     }
 
     public void writeEncodedValueHeader(int valueType, int valueArg) throws IOException {
@@ -163,49 +284,42 @@ public class DexDataWriter extends BufferedOutputStream {
     }
 
     public void writeEncodedInt(int valueType, int value) throws IOException {
-        int index = 0;
-        if (value >= 0) {
-            while (value > 0x7f) {
-                tempBuf[index++] = (byte)value;
-                value >>= 8;
-            }
-        } else {
-            while (value < -0x80) {
-                tempBuf[index++] = (byte)value;
-                value >>= 8;
-            }
-        }
-        tempBuf[index++] = (byte)value;
-        writeEncodedValueHeader(valueType, index-1);
-        write(tempBuf, 0, index);
+        writeEncodedLong(valueType, value);
     }
 
     public void writeEncodedLong(int valueType, long value) throws IOException {
-        int index = 0;
+        ensureCapacity(MAX_VALUE_SIZE);
+        byte[] buf = this.buf;
+        // leave room for the header, which depends on the number of bytes in the value
+        int headerIndex = count;
+        int index = headerIndex + 1;
         if (value >= 0) {
             while (value > 0x7f) {
-                tempBuf[index++] = (byte)value;
+                buf[index++] = (byte)value;
                 value >>= 8;
             }
         } else {
             while (value < -0x80) {
-                tempBuf[index++] = (byte)value;
+                buf[index++] = (byte)value;
                 value >>= 8;
             }
         }
-        tempBuf[index++] = (byte)value;
-        writeEncodedValueHeader(valueType, index-1);
-        write(tempBuf, 0, index);
+        buf[index++] = (byte)value;
+        buf[headerIndex] = (byte)(valueType | ((index - headerIndex - 2) << 5));
+        count = index;
     }
 
     public void writeEncodedUint(int valueType, int value) throws IOException {
-        int index = 0;
+        ensureCapacity(5);
+        byte[] buf = this.buf;
+        int headerIndex = count;
+        int index = headerIndex + 1;
         do {
-            tempBuf[index++] = (byte)value;
+            buf[index++] = (byte)value;
             value >>>= 8;
         } while (value != 0);
-        writeEncodedValueHeader(valueType, index-1);
-        write(tempBuf, 0, index);
+        buf[headerIndex] = (byte)(valueType | ((index - headerIndex - 2) << 5));
+        count = index;
     }
 
     public void writeEncodedFloat(int valueType, float value) throws IOException {
@@ -245,14 +359,24 @@ public class DexDataWriter extends BufferedOutputStream {
     public void writeString(String string) throws IOException {
         int len = string.length();
 
-        // make sure we have enough room in the temporary buffer
-        if (tempBuf.length <= string.length()*3) {
-            tempBuf = new byte[string.length()*3];
+        // encode directly into the buffer if there's enough room, otherwise use the temporary buffer
+        final byte[] buf;
+        int bufPos;
+        if (len*3 <= this.buf.length) {
+            if (len*3 > this.buf.length - count) {
+                flushBuffer();
+            }
+            buf = this.buf;
+            bufPos = count;
+        } else {
+            // make sure we have enough room in the temporary buffer
+            if (tempBuf.length <= len*3) {
+                tempBuf = new byte[len*3];
+            }
+            buf = tempBuf;
+            bufPos = 0;
         }
 
-        final byte[] buf = tempBuf;
-
-        int bufPos = 0;
         for (int i = 0; i < len; i++) {
             char c = string.charAt(i);
             if ((c != 0) && (c < 0x80)) {
@@ -266,7 +390,12 @@ public class DexDataWriter extends BufferedOutputStream {
                 buf[bufPos++] = (byte)((c & 0x3f) | 0x80);
             }
         }
-        write(buf, 0, bufPos);
+
+        if (buf == this.buf) {
+            count = bufPos;
+        } else {
+            write(buf, 0, bufPos);
+        }
     }
 
     public void align() throws IOException {
@@ -277,6 +406,6 @@ public class DexDataWriter extends BufferedOutputStream {
     }
 
     public int getPosition() {
-        return filePosition;
+        return filePosition + count;
     }
 }
@@ -31,10 +31,12 @@
 
 package org.jf.dexlib2.writer;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
+import com.google.common.primitives.Ints;
 import org.jf.dexlib2.AccessFlags;
 import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.Opcodes;
@@ -69,8 +71,10 @@ import org.jf.util.ExceptionWithContext;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -78,7 +82,13 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.Adler32;
+import java.util.zip.CheckedOutputStream;
 
 public abstract class DexWriter<
         StringKey extends CharSequence, StringRef extends StringReference, TypeKey extends CharSequence,
@@ -143,6 +153,15 @@ public abstract class DexWriter<
     public final AnnotationSectionType annotationSection;
     public final AnnotationSetSectionType annotationSetSection;
 
+    /** The class section, if it can copy code_items from an existing dex file */
+    @Nullable private final CodeItemCopySection<MethodKey> codeItemCopySection;
+
+    @Nonnull private final AtomicLong peakHeapUsage = new AtomicLong();
+
+    private boolean skipSignature = false;
+
+    private static final int CHECKSUM_BUFFER_SIZE = 64 * 1024;
+
     protected DexWriter(Opcodes opcodes) {
         this.opcodes = opcodes;
 
@@ -156,6 +175,18 @@ public abstract class DexWriter<
         this.typeListSection = sectionProvider.getTypeListSection();
         this.annotationSection = sectionProvider.getAnnotationSection();
         this.annotationSetSection = sectionProvider.getAnnotationSetSection();
+        this.codeItemCopySection = getCodeItemCopySection(classSection);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable
+    private static <MethodKey> CodeItemCopySection<MethodKey> getCodeItemCopySection(
+            @Nonnull ClassSection<?, ?, ?, ?, ?, MethodKey, ?, ?> classSection) {
+        if (classSection instanceof CodeItemCopySection) {
+            // a class section copies the code_items of its own methods, so it uses the same method keys
+            return (CodeItemCopySection<MethodKey>)classSection;
+        }
+        return null;
     }
 
     @Nonnull protected abstract SectionProvider getSectionProvider();
@@ -166,7 +197,17 @@ public abstract class DexWriter<
     private static Comparator<Map.Entry> toStringKeyComparator =
             new Comparator<Map.Entry>() {
                 @Override public int compare(Entry o1, Entry o2) {
-                    return o1.getKey().toString().compareTo(o2.getKey().toString());
+                    Object key1 = o1.getKey();
+                    Object key2 = o2.getKey();
+                    // string and type references may be able to compare themselves without creating a String, e.g.
+                    // if their data is stored off-heap
+                    if (key1 instanceof StringReference && key2 instanceof StringReference) {
+                        return ((StringReference)key1).compareTo((StringReference)key2);
+                    }
+                    if (key1 instanceof TypeReference && key2 instanceof TypeReference) {
+                        return ((TypeReference)key1).compareTo((TypeReference)key2);
+                    }
+                    return key1.toString().compareTo(key2.toString());
                 }
             };
 
@@ -242,17 +283,99 @@ public abstract class DexWriter<
                 fieldSection.getItemCount() > (1 << 16);
     }
 
+    /**
+     * Records the current heap usage of the JVM, for getPeakHeapUsage()
+     */
+    protected void sampleHeapUsage() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        long peak = peakHeapUsage.get();
+        while (used > peak && !peakHeapUsage.compareAndSet(peak, used)) {
+            peak = peakHeapUsage.get();
+        }
+    }
+
+    /**
+     * Gets the peak heap usage seen while interning items into and writing this dex file.
+     *
+     * The heap usage is sampled as classes are interned and at several points while writing, so this can miss
+     * short-lived peaks. It's the heap usage of the whole JVM, including anything unrelated to this DexWriter.
+     *
+     * @return The peak heap usage, in bytes
+     */
+    public long getPeakHeapUsage() {
+        return peakHeapUsage.get();
+    }
+
+    /**
+     * @return The amount of off-heap memory used by this DexWriter, in bytes
+     */
+    public long getOffHeapUsage() {
+        return 0;
+    }
+
+    /**
+     * @return The factory for the temporary storage used for the code_item section, when one isn't explicitly
+     * specified
+     */
+    @Nonnull protected DeferredOutputStreamFactory getDefaultDeferredOutputStreamFactory() {
+        return MemoryDeferredOutputStream.getFactory();
+    }
+
+    /**
+     * Sets whether the SHA-1 signature of the dex file should be skipped when writing it.
+     *
+     * Computing the signature requires reading back the entire dex file after it has been written. If it's skipped,
+     * the signature is left zeroed, and the adler32 checksum is mostly computed as the dex file is written. Android
+     * doesn't verify the signature when loading a dex file, but some tools may.
+     *
+     * @param skipSignature true to skip the signature
+     */
+    public void setSkipSignature(boolean skipSignature) {
+        this.skipSignature = skipSignature;
+    }
+
     public void writeTo(@Nonnull DexDataStore dest) throws IOException {
-        this.writeTo(dest, MemoryDeferredOutputStream.getFactory());
+        this.writeTo(dest, getDefaultDeferredOutputStreamFactory());
     }
 
     public void writeTo(@Nonnull DexDataStore dest,
                         @Nonnull DeferredOutputStreamFactory tempFactory) throws IOException {
+        writeTo(dest, tempFactory, null);
+    }
+
+    /**
+     * Writes the dex file, encoding the debug_info and code_item sections in parallel.
+     *
+     * The debug_info and code_item items for each class are encoded by the given executor into separate buffers, which
+     * are then concatenated in class order. The output is identical to that of the serial
+     * {@link #writeTo(DexDataStore, DeferredOutputStreamFactory)}.
+     *
+     * @param dest The DexDataStore to write the dex file to
+     * @param tempFactory A factory for the temporary storage used for the code_item section
+     * @param executor The executor to use for encoding the code_item and debug_info items. If null, they will be
+     *                 encoded serially on the current thread.
+     */
+    public void writeTo(@Nonnull DexDataStore dest,
+                        @Nonnull DeferredOutputStreamFactory tempFactory,
+                        @Nullable ExecutorService executor) throws IOException {
         try {
             int dataSectionOffset = getDataSectionOffset();
             DexDataWriter headerWriter = outputAt(dest, 0);
             DexDataWriter indexWriter = outputAt(dest, HeaderItem.ITEM_SIZE);
-            DexDataWriter offsetWriter = outputAt(dest, dataSectionOffset);
+
+            // When skipping the signature, the checksum of the data section is computed as it's written, so that
+            // only the much smaller header and index sections have to be read back afterwards
+            Adler32 dataChecksum = null;
+            DexDataWriter offsetWriter;
+            if (skipSignature) {
+                dataChecksum = new Adler32();
+                offsetWriter = new DexDataWriter(
+                        new CheckedOutputStream(dest.outputAt(dataSectionOffset), dataChecksum), dataSectionOffset);
+            } else {
+                offsetWriter = outputAt(dest, dataSectionOffset);
+            }
+            int fileSize;
             try {
                 writeStrings(indexWriter, offsetWriter);
                 writeTypes(indexWriter);
@@ -265,36 +388,61 @@ public abstract class DexWriter<
                 writeAnnotationSets(offsetWriter);
                 writeAnnotationSetRefs(offsetWriter);
                 writeAnnotationDirectories(offsetWriter);
-                writeDebugAndCodeItems(offsetWriter, tempFactory.makeDeferredOutputStream());
+                sampleHeapUsage();
+                if (executor == null) {
+                    writeDebugAndCodeItems(offsetWriter, tempFactory.makeDeferredOutputStream());
+                } else {
+                    writeDebugAndCodeItems(offsetWriter, tempFactory.makeDeferredOutputStream(), executor);
+                }
+                sampleHeapUsage();
                 writeClasses(indexWriter, offsetWriter);
                 writeMapItem(offsetWriter);
-                writeHeader(headerWriter, dataSectionOffset, offsetWriter.getPosition());
+                sampleHeapUsage();
+                fileSize = offsetWriter.getPosition();
+                writeHeader(headerWriter, dataSectionOffset, fileSize);
             } finally {
                 headerWriter.close();
                 indexWriter.close();
                 offsetWriter.close();
             }
-            updateSignature(dest);
-            updateChecksum(dest);
+            if (dataChecksum != null) {
+                updateChecksum(dest, dataSectionOffset, dataChecksum.getValue(), fileSize - dataSectionOffset);
+            } else {
+                updateSignatureAndChecksum(dest);
+            }
         } finally {
             dest.close();
         }
     }
 
-    private void updateSignature(@Nonnull DexDataStore dataStore) throws IOException {
+    /**
+     * Computes the SHA-1 signature and the adler32 checksum in a single pass over the written dex file.
+     *
+     * The checksum covers the signature, so only the checksum of the data after the signature is computed during the
+     * pass, and it is then combined with the checksum of the signature.
+     */
+    private void updateSignatureAndChecksum(@Nonnull DexDataStore dataStore) throws IOException {
         MessageDigest md;
         try {
             md = MessageDigest.getInstance("SHA-1");
         } catch (NoSuchAlgorithmException ex) {
             throw new RuntimeException(ex);
         }
+        Adler32 a32 = new Adler32();
 
-        byte[] buffer = new byte[4 * 1024];
+        long length = 0;
+        byte[] buffer = new byte[CHECKSUM_BUFFER_SIZE];
         InputStream input = dataStore.readAt(HeaderItem.SIGNATURE_DATA_START_OFFSET);
-        int bytesRead = input.read(buffer);
-        while (bytesRead >= 0) {
-            md.update(buffer, 0, bytesRead);
-            bytesRead = input.read(buffer);
+        try {
+            int bytesRead = input.read(buffer);
+            while (bytesRead >= 0) {
+                md.update(buffer, 0, bytesRead);
+                a32.update(buffer, 0, bytesRead);
+                length += bytesRead;
+                bytesRead = input.read(buffer);
+            }
+        } finally {
+            input.close();
         }
 
         byte[] signature = md.digest();
@@ -306,25 +454,78 @@ public abstract class DexWriter<
         OutputStream output = dataStore.outputAt(HeaderItem.SIGNATURE_OFFSET);
         output.write(signature);
         output.close();
+
+        Adler32 signatureChecksum = new Adler32();
+        signatureChecksum.update(signature);
+        writeChecksum(dataStore, combineAdler32(signatureChecksum.getValue(), a32.getValue(), length));
     }
 
-    private void updateChecksum(@Nonnull DexDataStore dataStore) throws IOException {
+    /**
+     * Computes the adler32 checksum, given the checksum of the data section that was computed as it was written.
+     *
+     * Only the header and index sections are read back.
+     */
+    private void updateChecksum(@Nonnull DexDataStore dataStore, int dataSectionOffset, long dataChecksum,
+                                long dataLength) throws IOException {
         Adler32 a32 = new Adler32();
 
-        byte[] buffer = new byte[4 * 1024];
+        byte[] buffer = new byte[CHECKSUM_BUFFER_SIZE];
+        int remaining = dataSectionOffset - HeaderItem.CHECKSUM_DATA_START_OFFSET;
         InputStream input = dataStore.readAt(HeaderItem.CHECKSUM_DATA_START_OFFSET);
-        int bytesRead = input.read(buffer);
-        while (bytesRead >= 0) {
-            a32.update(buffer, 0, bytesRead);
-            bytesRead = input.read(buffer);
+        try {
+            while (remaining > 0) {
+                int bytesRead = input.read(buffer, 0, Math.min(remaining, buffer.length));
+                if (bytesRead < 0) {
+                    throw new EOFException("Unexpected end of dex file while computing checksum");
+                }
+                a32.update(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+            }
+        } finally {
+            input.close();
         }
 
+        writeChecksum(dataStore, combineAdler32(a32.getValue(), dataChecksum, dataLength));
+    }
+
+    private static void writeChecksum(@Nonnull DexDataStore dataStore, int checksum) throws IOException {
         // write checksum, utilizing logic in DexWriter to write the integer value properly
         OutputStream output = dataStore.outputAt(HeaderItem.CHECKSUM_OFFSET);
-        DexDataWriter.writeInt(output, (int)a32.getValue());
+        DexDataWriter.writeInt(output, checksum);
         output.close();
     }
 
+    private static final int ADLER32_BASE = 65521;
+
+    /**
+     * Combines the adler32 checksums of two consecutive blocks of data, as per zlib's adler32_combine.
+     *
+     * @param checksum1 The checksum of the first block
+     * @param checksum2 The checksum of the second block
+     * @param length2 The length of the second block
+     * @return The checksum of the concatenation of both blocks
+     */
+    static int combineAdler32(long checksum1, long checksum2, long length2) {
+        long remainder = length2 % ADLER32_BASE;
+        long sum1 = checksum1 & 0xffff;
+        long sum2 = (remainder * sum1) % ADLER32_BASE;
+        sum1 += (checksum2 & 0xffff) + ADLER32_BASE - 1;
+        sum2 += ((checksum1 >> 16) & 0xffff) + ((checksum2 >> 16) & 0xffff) + ADLER32_BASE - remainder;
+        if (sum1 >= ADLER32_BASE) {
+            sum1 -= ADLER32_BASE;
+        }
+        if (sum1 >= ADLER32_BASE) {
+            sum1 -= ADLER32_BASE;
+        }
+        if (sum2 >= (ADLER32_BASE << 1)) {
+            sum2 -= (ADLER32_BASE << 1);
+        }
+        if (sum2 >= ADLER32_BASE) {
+            sum2 -= ADLER32_BASE;
+        }
+        return (int)(sum1 | (sum2 << 16));
+    }
+
     private static DexDataWriter outputAt(DexDataStore dataStore, int filePosition) throws IOException {
         return new DexDataWriter(dataStore.outputAt(filePosition), filePosition);
     }
@@ -786,46 +987,17 @@ public abstract class DexWriter<
             Iterable<MethodKey> methods = Iterables.concat(directMethods, virtualMethods);
 
             for (MethodKey methodKey: methods) {
-                List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks =
-                        classSection.getTryBlocks(methodKey);
-                Iterable<? extends Instruction> instructions = classSection.getInstructions(methodKey);
-                Iterable<? extends DebugItem> debugItems = classSection.getDebugItems(methodKey);
-
-                if (instructions != null && stringSection.hasJumboIndexes()) {
-                    boolean needsFix = false;
-                    for (Instruction instruction: instructions) {
-                        if (instruction.getOpcode() == Opcode.CONST_STRING) {
-                            if (stringSection.getItemIndex(
-                                    (StringRef)((ReferenceInstruction)instruction).getReference()) >= 65536) {
-                                needsFix = true;
-                                break;
-                            }
-                        }
-                    }
-
-                    if (needsFix) {
-                        MutableMethodImplementation mutableMethodImplementation =
-                                classSection.makeMutableMethodImplementation(methodKey);
-                        fixInstructions(mutableMethodImplementation);
-
-                        instructions = mutableMethodImplementation.getInstructions();
-                        tryBlocks = mutableMethodImplementation.getTryBlocks();
-                        debugItems = mutableMethodImplementation.getDebugItems();
-                    }
-                }
+                MethodCode methodCode = getMethodCode(methodKey);
 
                 int debugItemOffset = writeDebugItem(offsetWriter, debugWriter,
-                        classSection.getParameterNames(methodKey), debugItems);
-                int codeItemOffset;
-                try {
-                    codeItemOffset = writeCodeItem(
-                            codeWriter, ehBuf, methodKey, tryBlocks, instructions, debugItemOffset);
-                } catch (RuntimeException ex) {
-                    throw new ExceptionWithContext(ex, "Exception occurred while writing code_item for method %s",
-                            methodSection.getMethodReference(methodKey));
+                        classSection.getParameterNames(methodKey), methodCode.debugItems);
+                if (debugItemOffset != NO_OFFSET) {
+                    numDebugInfoItems++;
                 }
 
+                int codeItemOffset = writeCodeItem(codeWriter, ehBuf, methodKey, methodCode, debugItemOffset);
                 if (codeItemOffset != -1) {
+                    numCodeItemItems++;
                     codeOffsets.add(new CodeItemOffset<MethodKey>(methodKey, codeItemOffset));
                 }
             }
@@ -843,6 +1015,257 @@ public abstract class DexWriter<
         }
     }
 
+    /**
+     * The maximum number of classes whose code items are encoded ahead of the class currently being written
+     */
+    private static final int MAX_PENDING_CLASSES = 1024;
+
+    /**
+     * A placeholder for the debug_info_item offset in a code_item that was encoded into a per-class buffer. It is
+     * replaced with the real offset once the offset of the class's debug_info_items is known.
+     */
+    private static final int DEBUG_OFFSET_PLACEHOLDER = -1;
+
+    private void writeDebugAndCodeItems(@Nonnull DexDataWriter offsetWriter,
+                                        @Nonnull DeferredOutputStream temp,
+                                        @Nonnull ExecutorService executor) throws IOException {
+        debugSectionOffset = offsetWriter.getPosition();
+
+        DexDataWriter codeWriter = new DexDataWriter(temp, 0);
+
+        List<CodeItemOffset<MethodKey>> codeOffsets = Lists.newArrayList();
+
+        Iterator<? extends ClassKey> classIterator = classSection.getSortedClasses().iterator();
+        ArrayDeque<Future<ClassCodeItems<MethodKey>>> pending = new ArrayDeque<Future<ClassCodeItems<MethodKey>>>();
+
+        try {
+            while (true) {
+                while (pending.size() < MAX_PENDING_CLASSES && classIterator.hasNext()) {
+                    final ClassKey classKey = classIterator.next();
+                    pending.add(executor.submit(new Callable<ClassCodeItems<MethodKey>>() {
+                        @Override public ClassCodeItems<MethodKey> call() throws IOException {
+                            return encodeDebugAndCodeItems(classKey);
+                        }
+                    }));
+                }
+
+                Future<ClassCodeItems<MethodKey>> future = pending.poll();
+                if (future == null) {
+                    break;
+                }
+                ClassCodeItems<MethodKey> classCodeItems = getClassCodeItems(future);
+
+                int classDebugOffset = offsetWriter.getPosition();
+                offsetWriter.write(classCodeItems.debugItems);
+                numDebugInfoItems += classCodeItems.debugItemCount;
+
+                int methodCount = classCodeItems.methods.size();
+                if (methodCount > 0) {
+                    byte[] codeItems = classCodeItems.codeItems;
+                    for (int i=0; i<methodCount; i++) {
+                        int debugItemOffset = classCodeItems.debugItemOffsets[i];
+                        if (debugItemOffset != -1) {
+                            writeInt(codeItems, classCodeItems.codeItemOffsets[i] + CodeItem.DEBUG_INFO_OFFSET,
+                                    classDebugOffset + debugItemOffset);
+                        }
+                    }
+
+                    // the first code_item in the buffer is at offset 0, so the buffer must start at an aligned offset,
+                    // just like the serial writer aligns before each code_item
+                    codeWriter.align();
+                    int classCodeOffset = codeWriter.getPosition();
+                    codeWriter.write(codeItems);
+                    numCodeItemItems += methodCount;
+
+                    for (int i=0; i<methodCount; i++) {
+                        codeOffsets.add(new CodeItemOffset<MethodKey>(classCodeItems.methods.get(i),
+                                classCodeOffset + classCodeItems.codeItemOffsets[i]));
+                    }
+                }
+            }
+        } finally {
+            for (Future<ClassCodeItems<MethodKey>> future: pending) {
+                future.cancel(true);
+            }
+        }
+
+        offsetWriter.align();
+        codeSectionOffset = offsetWriter.getPosition();
+
+        codeWriter.close();
+        temp.writeTo(offsetWriter);
+        temp.close();
+
+        for (CodeItemOffset<MethodKey> codeOffset: codeOffsets) {
+            classSection.setCodeItemOffset(codeOffset.method, codeSectionOffset + codeOffset.codeOffset);
+        }
+    }
+
+    @Nonnull
+    private static <T> T getClassCodeItems(@Nonnull Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while encoding code items");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static void writeInt(@Nonnull byte[] buf, int offset, int value) {
+        buf[offset] = (byte)value;
+        buf[offset+1] = (byte)(value >> 8);
+        buf[offset+2] = (byte)(value >> 16);
+        buf[offset+3] = (byte)(value >> 24);
+    }
+
+    /**
+     * The encoded debug_info and code_item items for a single class.
+     *
+     * Offsets are relative to the start of the respective buffer.
+     */
+    private static class ClassCodeItems<MethodKey> {
+        @Nonnull final byte[] debugItems;
+        @Nonnull final byte[] codeItems;
+        final int debugItemCount;
+        /** The methods that have a code_item, in the order they were written */
+        @Nonnull final List<MethodKey> methods;
+        @Nonnull final int[] codeItemOffsets;
+        /** The offset of the debug_info_item for each method in methods, or -1 if it has no debug info */
+        @Nonnull final int[] debugItemOffsets;
+
+        private ClassCodeItems(@Nonnull byte[] debugItems, @Nonnull byte[] codeItems, int debugItemCount,
+                               @Nonnull List<MethodKey> methods, @Nonnull int[] codeItemOffsets,
+                               @Nonnull int[] debugItemOffsets) {
+            this.debugItems = debugItems;
+            this.codeItems = codeItems;
+            this.debugItemCount = debugItemCount;
+            this.methods = methods;
+            this.codeItemOffsets = codeItemOffsets;
+            this.debugItemOffsets = debugItemOffsets;
+        }
+    }
+
+    @Nonnull
+    private ClassCodeItems<MethodKey> encodeDebugAndCodeItems(@Nonnull ClassKey classKey) throws IOException {
+        ByteArrayOutputStream ehBuf = new ByteArrayOutputStream();
+
+        ByteArrayOutputStream debugBuf = new ByteArrayOutputStream();
+        DexDataWriter debugDataWriter = new DexDataWriter(debugBuf, 0, 1024);
+        DebugWriter<StringKey, TypeKey> debugWriter =
+                new DebugWriter<StringKey, TypeKey>(stringSection, typeSection, debugDataWriter);
+
+        ByteArrayOutputStream codeBuf = new ByteArrayOutputStream();
+        DexDataWriter codeWriter = new DexDataWriter(codeBuf, 0, 1024);
+
+        int debugItemCount = 0;
+        List<MethodKey> methods = Lists.newArrayList();
+        List<Integer> codeItemOffsets = Lists.newArrayList();
+        List<Integer> debugItemOffsets = Lists.newArrayList();
+
+        for (MethodKey methodKey: Iterables.concat(classSection.getSortedDirectMethods(classKey),
+                classSection.getSortedVirtualMethods(classKey))) {
+            MethodCode methodCode = getMethodCode(methodKey);
+
+            int debugItemOffset = debugDataWriter.getPosition();
+            writeDebugItem(debugDataWriter, debugWriter, classSection.getParameterNames(methodKey),
+                    methodCode.debugItems);
+            boolean hasDebugItem = debugDataWriter.getPosition() != debugItemOffset;
+            if (hasDebugItem) {
+                debugItemCount++;
+            }
+
+            int codeItemOffset = writeCodeItem(codeWriter, ehBuf, methodKey, methodCode,
+                    hasDebugItem ? DEBUG_OFFSET_PLACEHOLDER : NO_OFFSET);
+            if (codeItemOffset != -1) {
+                methods.add(methodKey);
+                codeItemOffsets.add(codeItemOffset);
+                debugItemOffsets.add(hasDebugItem ? debugItemOffset : -1);
+            }
+        }
+
+        debugDataWriter.close();
+        codeWriter.close();
+
+        return new ClassCodeItems<MethodKey>(debugBuf.toByteArray(), codeBuf.toByteArray(), debugItemCount, methods,
+                Ints.toArray(codeItemOffsets), Ints.toArray(debugItemOffsets));
+    }
+
+    /**
+     * The instructions, try blocks and debug items of a method, after any required instruction fixups
+     */
+    private static class MethodCode {
+        @Nonnull final List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks;
+        @Nullable final Iterable<? extends Instruction> instructions;
+        @Nullable final Iterable<? extends DebugItem> debugItems;
+        /** If true, the code_item is written with CodeItemCopySection.writeCopiedCodeItem instead */
+        final boolean copyCodeItem;
+
+        private MethodCode(@Nonnull List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks,
+                           @Nullable Iterable<? extends Instruction> instructions,
+                           @Nullable Iterable<? extends DebugItem> debugItems) {
+            this(tryBlocks, instructions, debugItems, false);
+        }
+
+        private MethodCode(@Nonnull List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks,
+                           @Nullable Iterable<? extends Instruction> instructions,
+                           @Nullable Iterable<? extends DebugItem> debugItems,
+                           boolean copyCodeItem) {
+            this.tryBlocks = tryBlocks;
+            this.instructions = instructions;
+            this.debugItems = debugItems;
+            this.copyCodeItem = copyCodeItem;
+        }
+    }
+
+    @Nonnull
+    private MethodCode getMethodCode(@Nonnull MethodKey methodKey) {
+        Iterable<? extends DebugItem> debugItems = classSection.getDebugItems(methodKey);
+        if (codeItemCopySection != null && codeItemCopySection.canCopyCodeItem(methodKey)) {
+            return new MethodCode(ImmutableList.<TryBlock<? extends ExceptionHandler>>of(), null, debugItems, true);
+        }
+
+        List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks =
+                classSection.getTryBlocks(methodKey);
+        Iterable<? extends Instruction> instructions = classSection.getInstructions(methodKey);
+
+        if (instructions != null && stringSection.hasJumboIndexes()) {
+            boolean needsFix = false;
+            for (Instruction instruction: instructions) {
+                if (instruction.getOpcode() == Opcode.CONST_STRING) {
+                    if (stringSection.getItemIndex(
+                            (StringRef)((ReferenceInstruction)instruction).getReference()) >= 65536) {
+                        needsFix = true;
+                        break;
+                    }
+                }
+            }
+
+            if (needsFix) {
+                MutableMethodImplementation mutableMethodImplementation =
+                        classSection.makeMutableMethodImplementation(methodKey);
+                fixInstructions(mutableMethodImplementation);
+
+                instructions = mutableMethodImplementation.getInstructions();
+                tryBlocks = mutableMethodImplementation.getTryBlocks();
+                debugItems = mutableMethodImplementation.getDebugItems();
+            }
+        }
+
+        return new MethodCode(tryBlocks, instructions, debugItems);
+    }
+
     private void fixInstructions(@Nonnull MutableMethodImplementation methodImplementation) {
         List<? extends Instruction> instructions = methodImplementation.getInstructions();
 
@@ -882,8 +1305,6 @@ public abstract class DexWriter<
             return NO_OFFSET;
         }
 
-        numDebugInfoItems++;
-
         int debugItemOffset = writer.getPosition();
         int startingLineNumber = 0;
 
@@ -922,6 +1343,27 @@ public abstract class DexWriter<
         return debugItemOffset;
     }
 
+    private int writeCodeItem(@Nonnull DexDataWriter writer,
+                              @Nonnull ByteArrayOutputStream ehBuf,
+                              @Nonnull MethodKey methodKey,
+                              @Nonnull MethodCode methodCode,
+                              int debugItemOffset) throws IOException {
+        try {
+            if (methodCode.copyCodeItem) {
+                writer.align();
+                int codeItemOffset = writer.getPosition();
+                assert codeItemCopySection != null;
+                codeItemCopySection.writeCopiedCodeItem(writer, methodKey, debugItemOffset);
+                return codeItemOffset;
+            }
+            return writeCodeItem(writer, ehBuf, methodKey, methodCode.tryBlocks, methodCode.instructions,
+                    debugItemOffset);
+        } catch (RuntimeException ex) {
+            throw new ExceptionWithContext(ex, "Exception occurred while writing code_item for method %s",
+                    methodSection.getMethodReference(methodKey));
+        }
+    }
+
     private int writeCodeItem(@Nonnull DexDataWriter writer,
                               @Nonnull ByteArrayOutputStream ehBuf,
                               @Nonnull MethodKey methodKey,
@@ -932,8 +1374,6 @@ public abstract class DexWriter<
             return -1;
         }
 
-        numCodeItemItems++;
-
         writer.align();
 
         int codeItemOffset = writer.getPosition();
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.writer.builder;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A BuilderStringReference whose string data is kept off-heap, in a StringArena.
+ *
+ * The string is decoded on each call to getString(). Comparisons against other strings from the same arena are done
+ * directly on the stored data.
+ */
+class ArenaStringReference extends BuilderStringReference {
+    @Nonnull private final StringArena arena;
+    private final long position;
+
+    ArenaStringReference(@Nonnull StringArena arena, long position) {
+        this.arena = arena;
+        this.position = position;
+    }
+
+    @Nonnull @Override public String getString() {
+        return arena.getString(position);
+    }
+
+    boolean contentEquals(@Nonnull CharSequence string) {
+        return arena.contentEquals(position, string);
+    }
+
+    @Override public int compareTo(@Nonnull CharSequence o) {
+        if (o instanceof ArenaStringReference) {
+            ArenaStringReference other = (ArenaStringReference)o;
+            if (other.arena == arena) {
+                return arena.compare(position, other.position);
+            }
+        }
+        return super.compareTo(o);
+    }
+
+    @Override public boolean equals(@Nullable Object o) {
+        if (o instanceof ArenaStringReference && ((ArenaStringReference)o).arena == arena) {
+            // strings are only added to the arena once, when they are interned
+            return o == this;
+        }
+        return super.equals(o);
+    }
+
+    @Override public int hashCode() {
+        return super.hashCode();
+    }
+}
@@ -34,22 +34,49 @@ package org.jf.dexlib2.writer.builder;
 import com.google.common.collect.Maps;
 import org.jf.dexlib2.writer.DexWriter;
 import org.jf.dexlib2.writer.StringSection;
+import org.jf.dexlib2.writer.builder.BuilderStringReference.HeapStringReference;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentMap;
 
 class BuilderStringPool implements StringSection<BuilderStringReference, BuilderStringReference> {
     @Nonnull private final ConcurrentMap<String, BuilderStringReference> internedItems = Maps.newConcurrentMap();
 
+    // if set, this is used instead of internedItems, and the strings are kept in the arena
+    @Nullable private CompactInternTable<ArenaStringReference> compactItems = null;
+
+    /**
+     * Switches to keeping the interned strings off-heap, in the given arena. This must be called before any strings
+     * are interned.
+     */
+    void enableCompactStorage(@Nonnull final StringArena arena) {
+        if (!internedItems.isEmpty()) {
+            throw new IllegalStateException("Strings have already been interned");
+        }
+        this.compactItems = new CompactInternTable<ArenaStringReference>() {
+            @Override protected boolean keyEquals(@Nonnull ArenaStringReference value, @Nonnull CharSequence key) {
+                return value.contentEquals(key);
+            }
+
+            @Nonnull @Override protected ArenaStringReference newValue(@Nonnull CharSequence key) {
+                return new ArenaStringReference(arena, arena.add(key));
+            }
+        };
+    }
+
     @Nonnull BuilderStringReference internString(@Nonnull String string) {
+        if (compactItems != null) {
+            return compactItems.intern(string);
+        }
         BuilderStringReference ret = internedItems.get(string);
         if (ret != null) {
             return ret;
         }
-        BuilderStringReference stringReference = new BuilderStringReference(string);
+        BuilderStringReference stringReference = new HeapStringReference(string);
         ret = internedItems.putIfAbsent(string, stringReference);
         return ret==null?stringReference:ret;
     }
@@ -70,11 +97,15 @@ class BuilderStringPool implements StringSection<BuilderStringReference, Builder
     }
 
     @Override public boolean hasJumboIndexes() {
-        return internedItems.size() > 65536;
+        return getItemCount() > 65536;
     }
 
     @Nonnull @Override public Collection<? extends Entry<? extends BuilderStringReference, Integer>> getItems() {
-        return new BuilderMapEntryCollection<BuilderStringReference>(internedItems.values()) {
+        Collection<BuilderStringReference> items = internedItems.values();
+        if (compactItems != null) {
+            items = Collections.<BuilderStringReference>unmodifiableCollection(compactItems.getValues());
+        }
+        return new BuilderMapEntryCollection<BuilderStringReference>(items) {
             @Override protected int getValue(@Nonnull BuilderStringReference key) {
                 return key.index;
             }
@@ -88,6 +119,9 @@ class BuilderStringPool implements StringSection<BuilderStringReference, Builder
     }
 
     @Override public int getItemCount() {
+        if (compactItems != null) {
+            return compactItems.size();
+        }
         return internedItems.size();
     }
 }
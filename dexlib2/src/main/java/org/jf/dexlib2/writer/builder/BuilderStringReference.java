@@ -36,16 +36,10 @@ import org.jf.dexlib2.writer.DexWriter;
 
 import javax.annotation.Nonnull;
 
-public class BuilderStringReference extends BaseStringReference implements BuilderReference {
-    @Nonnull final String string;
+public abstract class BuilderStringReference extends BaseStringReference implements BuilderReference {
     int index = DexWriter.NO_INDEX;
 
-    BuilderStringReference(@Nonnull String string) {
-        this.string = string;
-    }
-
-    @Nonnull @Override public String getString() {
-        return string;
+    BuilderStringReference() {
     }
 
     @Override public int getIndex() {
@@ -55,4 +49,19 @@ public class BuilderStringReference extends BaseStringReference implements Build
     @Override public void setIndex(int index) {
         this.index = index;
     }
+
+    /**
+     * A BuilderStringReference that keeps its string on the heap
+     */
+    static class HeapStringReference extends BuilderStringReference {
+        @Nonnull private final String string;
+
+        HeapStringReference(@Nonnull String string) {
+            this.string = string;
+        }
+
+        @Nonnull @Override public String getString() {
+            return string;
+        }
+    }
 }
@@ -38,6 +38,7 @@ import org.jf.dexlib2.writer.TypeSection;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentMap;
 
@@ -45,11 +46,37 @@ class BuilderTypePool extends BaseBuilderPool
         implements TypeSection<BuilderStringReference, BuilderTypeReference, BuilderTypeReference> {
     @Nonnull private final ConcurrentMap<String, BuilderTypeReference> internedItems = Maps.newConcurrentMap();
 
+    // if set, this is used instead of internedItems. It doesn't hold the type strings, which are kept off-heap by
+    // the string pool
+    @Nullable private CompactInternTable<BuilderTypeReference> compactItems = null;
+
     public BuilderTypePool(@Nonnull DexBuilder dexBuilder) {
         super(dexBuilder);
     }
 
+    /**
+     * Switches to a compact interning table, keyed by the off-heap strings of the string pool. This must be called
+     * after enabling compact storage in the string pool, and before any types are interned.
+     */
+    void enableCompactStorage() {
+        if (!internedItems.isEmpty()) {
+            throw new IllegalStateException("Types have already been interned");
+        }
+        compactItems = new CompactInternTable<BuilderTypeReference>() {
+            @Override protected boolean keyEquals(@Nonnull BuilderTypeReference value, @Nonnull CharSequence key) {
+                return ((ArenaStringReference)value.stringReference).contentEquals(key);
+            }
+
+            @Nonnull @Override protected BuilderTypeReference newValue(@Nonnull CharSequence key) {
+                return new BuilderTypeReference(dexBuilder.stringSection.internString(key.toString()));
+            }
+        };
+    }
+
     @Nonnull public BuilderTypeReference internType(@Nonnull String type) {
+        if (compactItems != null) {
+            return compactItems.intern(type);
+        }
         BuilderTypeReference ret = internedItems.get(type);
         if (ret != null) {
             return ret;
@@ -80,7 +107,11 @@ class BuilderTypePool extends BaseBuilderPool
     }
 
     @Nonnull @Override public Collection<? extends Entry<? extends BuilderTypeReference, Integer>> getItems() {
-        return new BuilderMapEntryCollection<BuilderTypeReference>(internedItems.values()) {
+        Collection<BuilderTypeReference> items = internedItems.values();
+        if (compactItems != null) {
+            items = Collections.<BuilderTypeReference>unmodifiableCollection(compactItems.getValues());
+        }
+        return new BuilderMapEntryCollection<BuilderTypeReference>(items) {
             @Override protected int getValue(@Nonnull BuilderTypeReference key) {
                 return key.index;
             }
@@ -94,6 +125,9 @@ class BuilderTypePool extends BaseBuilderPool
     }
 
     @Override public int getItemCount() {
+        if (compactItems != null) {
+            return compactItems.size();
+        }
         return internedItems.size();
     }
 }
@@ -48,6 +48,14 @@ public class BuilderTypeReference extends BaseTypeReference implements BuilderRe
         return stringReference.getString();
     }
 
+    @Override public int compareTo(@Nonnull CharSequence o) {
+        if (o instanceof BuilderTypeReference) {
+            // this avoids creating the strings, if they are kept off-heap
+            return stringReference.compareTo(((BuilderTypeReference)o).stringReference);
+        }
+        return super.compareTo(o);
+    }
+
     @Override public int getIndex() {
         return index;
     }
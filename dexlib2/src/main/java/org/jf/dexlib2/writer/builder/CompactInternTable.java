@@ -0,0 +1,201 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.writer.builder;
+
+import com.google.common.collect.Lists;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A compact, thread-safe interning table for values that are keyed by a string.
+ *
+ * Rather than keeping a map entry and a key object for each value, the values are kept in flat arrays along with
+ * the 64-bit hash of their key, with collision chains threaded through an array of indexes. The keys themselves are
+ * not stored. A key is compared against a value by keyEquals, which is typically backed by the string data of the
+ * value in a StringArena.
+ *
+ * The table is split into segments by the upper bits of the hash, and each segment is locked independently.
+ */
+abstract class CompactInternTable<V> {
+    private static final int SEGMENT_BITS = 4;
+    private static final int INITIAL_SEGMENT_CAPACITY = 64;
+
+    @Nonnull private final Segment[] segments;
+    @Nonnull private final AtomicInteger size = new AtomicInteger();
+
+    CompactInternTable() {
+        segments = new Segment[1 << SEGMENT_BITS];
+        for (int i=0; i<segments.length; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * @return true if the given value has the given key
+     */
+    protected abstract boolean keyEquals(@Nonnull V value, @Nonnull CharSequence key);
+
+    /**
+     * Creates the value for a key that hasn't been interned yet. This is called while holding the lock for the
+     * key's segment.
+     */
+    @Nonnull protected abstract V newValue(@Nonnull CharSequence key);
+
+    @Nonnull
+    public V intern(@Nonnull CharSequence key) {
+        long hash = hash(key);
+        Segment segment = getSegment(hash);
+        synchronized (segment) {
+            V value = find(segment, hash, key);
+            if (value == null) {
+                value = newValue(key);
+                segment.add(hash, value);
+                size.incrementAndGet();
+            }
+            return value;
+        }
+    }
+
+    @Nullable
+    public V get(@Nonnull CharSequence key) {
+        long hash = hash(key);
+        Segment segment = getSegment(hash);
+        synchronized (segment) {
+            return find(segment, hash, key);
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * @return A snapshot of the values in the table, in no particular order
+     */
+    @Nonnull
+    public List<V> getValues() {
+        List<V> values = Lists.newArrayListWithCapacity(size());
+        for (Segment segment: segments) {
+            synchronized (segment) {
+                for (int i=0; i<segment.count; i++) {
+                    values.add(getValue(segment, i));
+                }
+            }
+        }
+        return values;
+    }
+
+    @Nonnull
+    private Segment getSegment(long hash) {
+        return segments[(int)(hash >>> (64 - SEGMENT_BITS))];
+    }
+
+    /**
+     * A 64-bit FNV-1a hash of the chars of the key, followed by a final mix so that the lower bits are usable as a
+     * bucket index
+     */
+    static long hash(@Nonnull CharSequence key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i=0; i<key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V getValue(@Nonnull Segment segment, int index) {
+        return (V)segment.values[index];
+    }
+
+    @Nullable
+    private V find(@Nonnull Segment segment, long hash, @Nonnull CharSequence key) {
+        for (int i = segment.buckets[segment.bucketIndex(hash)] - 1; i >= 0; i = segment.next[i] - 1) {
+            if (segment.hashes[i] == hash) {
+                V value = getValue(segment, i);
+                if (keyEquals(value, key)) {
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static class Segment {
+        // the index+1 of the first entry in each bucket's chain, or 0 for an empty bucket
+        @Nonnull int[] buckets = new int[INITIAL_SEGMENT_CAPACITY];
+        @Nonnull long[] hashes = new long[INITIAL_SEGMENT_CAPACITY];
+        // the index+1 of the next entry in the same chain, or 0 for the end of the chain
+        @Nonnull int[] next = new int[INITIAL_SEGMENT_CAPACITY];
+        @Nonnull Object[] values = new Object[INITIAL_SEGMENT_CAPACITY];
+        int count = 0;
+
+        void add(long hash, @Nonnull Object value) {
+            if (count == hashes.length) {
+                grow();
+            }
+            int index = count++;
+            hashes[index] = hash;
+            values[index] = value;
+            int bucket = bucketIndex(hash);
+            next[index] = buckets[bucket];
+            buckets[bucket] = index + 1;
+        }
+
+        private void grow() {
+            int capacity = hashes.length * 2;
+            hashes = Arrays.copyOf(hashes, capacity);
+            values = Arrays.copyOf(values, capacity);
+            next = new int[capacity];
+            buckets = new int[capacity];
+            for (int i=0; i<count; i++) {
+                int bucket = bucketIndex(hashes[i]);
+                next[i] = buckets[bucket];
+                buckets[bucket] = i + 1;
+            }
+        }
+
+        int bucketIndex(long hash) {
+            return (int)hash & (buckets.length - 1);
+        }
+    }
+}
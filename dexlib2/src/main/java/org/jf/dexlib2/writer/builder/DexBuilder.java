@@ -35,17 +35,29 @@ import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import org.jf.dexlib2.DebugItemType;
+import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.Opcodes;
 import org.jf.dexlib2.ValueType;
-import org.jf.dexlib2.iface.Annotation;
-import org.jf.dexlib2.iface.AnnotationElement;
-import org.jf.dexlib2.iface.MethodImplementation;
-import org.jf.dexlib2.iface.MethodParameter;
+import org.jf.dexlib2.base.BaseExceptionHandler;
+import org.jf.dexlib2.base.BaseTryBlock;
+import org.jf.dexlib2.builder.instruction.*;
+import org.jf.dexlib2.iface.*;
+import org.jf.dexlib2.iface.debug.DebugItem;
+import org.jf.dexlib2.iface.debug.SetSourceFile;
+import org.jf.dexlib2.iface.debug.StartLocal;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.formats.*;
 import org.jf.dexlib2.iface.reference.*;
 import org.jf.dexlib2.iface.value.*;
+import org.jf.dexlib2.immutable.debug.ImmutableDebugItem;
+import org.jf.dexlib2.immutable.instruction.ImmutableInstruction;
 import org.jf.dexlib2.writer.DexWriter;
 import org.jf.dexlib2.writer.builder.BuilderEncodedValues.*;
+import org.jf.dexlib2.writer.io.DeferredOutputStreamFactory;
+import org.jf.dexlib2.writer.io.FileDeferredOutputStream;
 import org.jf.util.ExceptionWithContext;
 
 import javax.annotation.Nonnull;
@@ -62,8 +74,49 @@ public class DexBuilder extends DexWriter<BuilderStringReference, BuilderStringR
         BuilderFieldPool, BuilderMethodPool, BuilderClassPool, BuilderTypeListPool, BuilderAnnotationPool,
         BuilderAnnotationSetPool> {
 
+    // the off-heap storage for the interned strings, in low memory mode
+    @Nullable private final StringArena stringArena;
+
     public DexBuilder(@Nonnull Opcodes opcodes) {
+        this(opcodes, false);
+    }
+
+    /**
+     * Creates a new DexBuilder, optionally in low memory mode.
+     *
+     * In low memory mode, the interned strings are stored off-heap, and the string and type pools use compact
+     * interning tables, rather than keeping a map entry and a String for each item. By default, the code_item
+     * section is buffered in a temporary file rather than in memory. Writing is somewhat slower as a result.
+     *
+     * @param opcodes The Opcodes instance to use
+     * @param lowMemory Whether to use low memory mode
+     */
+    public DexBuilder(@Nonnull Opcodes opcodes, boolean lowMemory) {
         super(opcodes);
+        if (lowMemory) {
+            stringArena = new StringArena();
+            stringSection.enableCompactStorage(stringArena);
+            typeSection.enableCompactStorage();
+        } else {
+            stringArena = null;
+        }
+    }
+
+    @Nonnull @Override protected DeferredOutputStreamFactory getDefaultDeferredOutputStreamFactory() {
+        if (stringArena != null) {
+            return FileDeferredOutputStream.getFactory(null);
+        }
+        return super.getDefaultDeferredOutputStreamFactory();
+    }
+
+    /**
+     * @return The size of the off-heap storage allocated for the interned strings, in low memory mode
+     */
+    @Override public long getOffHeapUsage() {
+        if (stringArena != null) {
+            return stringArena.getReservedBytes();
+        }
+        return 0;
     }
 
     @Nonnull @Override protected SectionProvider getSectionProvider() {
@@ -122,6 +175,7 @@ public class DexBuilder extends DexWriter<BuilderStringReference, BuilderStringR
             }
         }
 
+        sampleHeapUsage();
         return classSection.internClass(new BuilderClassDef(typeSection.internType(type),
                 accessFlags,
                 typeSection.internNullableType(superclass),
@@ -132,6 +186,236 @@ public class DexBuilder extends DexWriter<BuilderStringReference, BuilderStringR
                 methods));
     }
 
+    /**
+     * Interns an existing class definition into this DexBuilder.
+     *
+     * All references in the class, including those in its method implementations and debug info, are interned into
+     * this DexBuilder. The given class definition may be of any type, e.g. a class from a DexBackedDexFile.
+     *
+     * @param classDef The class to intern
+     * @return A BuilderClassDef for the interned class
+     */
+    @Nonnull public BuilderClassDef internClass(@Nonnull ClassDef classDef) {
+        List<BuilderField> fields = Lists.newArrayList();
+        for (Field field: classDef.getFields()) {
+            fields.add(internField(field.getDefiningClass(), field.getName(), field.getType(), field.getAccessFlags(),
+                    field.getInitialValue(), field.getAnnotations()));
+        }
+
+        List<BuilderMethod> methods = Lists.newArrayList();
+        for (Method method: classDef.getMethods()) {
+            MethodImplementation methodImplementation = method.getImplementation();
+            methods.add(internMethod(method.getDefiningClass(), method.getName(), method.getParameters(),
+                    method.getReturnType(), method.getAccessFlags(), method.getAnnotations(),
+                    methodImplementation == null ? null : internMethodImplementation(methodImplementation)));
+        }
+
+        return internClassDef(classDef.getType(), classDef.getAccessFlags(), classDef.getSuperclass(),
+                Lists.newArrayList(classDef.getInterfaces()), classDef.getSourceFile(), classDef.getAnnotations(),
+                fields, methods);
+    }
+
+    @Nonnull private MethodImplementation internMethodImplementation(
+            @Nonnull MethodImplementation methodImplementation) {
+        ImmutableList.Builder<Instruction> instructions = ImmutableList.builder();
+        for (Instruction instruction: methodImplementation.getInstructions()) {
+            instructions.add(internInstruction(instruction));
+        }
+
+        ImmutableList.Builder<TryBlock<? extends ExceptionHandler>> tryBlocks = ImmutableList.builder();
+        for (TryBlock<? extends ExceptionHandler> tryBlock: methodImplementation.getTryBlocks()) {
+            ImmutableList.Builder<ExceptionHandler> exceptionHandlers = ImmutableList.builder();
+            for (ExceptionHandler exceptionHandler: tryBlock.getExceptionHandlers()) {
+                exceptionHandlers.add(new InternedExceptionHandler(
+                        internNullableTypeReference(exceptionHandler.getExceptionType()),
+                        exceptionHandler.getHandlerCodeAddress()));
+            }
+            tryBlocks.add(new InternedTryBlock(tryBlock.getStartCodeAddress(), tryBlock.getCodeUnitCount(),
+                    exceptionHandlers.build()));
+        }
+
+        ImmutableList.Builder<DebugItem> debugItems = ImmutableList.builder();
+        for (DebugItem debugItem: methodImplementation.getDebugItems()) {
+            debugItems.add(internDebugItem(debugItem));
+        }
+
+        return new InternedMethodImplementation(methodImplementation.getRegisterCount(), instructions.build(),
+                tryBlocks.build(), debugItems.build());
+    }
+
+    @Nonnull private Instruction internInstruction(@Nonnull Instruction instruction) {
+        Opcode opcode = instruction.getOpcode();
+        switch (opcode.format) {
+            case Format20bc: {
+                Instruction20bc instr = (Instruction20bc)instruction;
+                return new BuilderInstruction20bc(opcode, instr.getVerificationError(),
+                        internReference(instr.getReference()));
+            }
+            case Format21c: {
+                Instruction21c instr = (Instruction21c)instruction;
+                return new BuilderInstruction21c(opcode, instr.getRegisterA(), internReference(instr.getReference()));
+            }
+            case Format22c: {
+                Instruction22c instr = (Instruction22c)instruction;
+                return new BuilderInstruction22c(opcode, instr.getRegisterA(), instr.getRegisterB(),
+                        internReference(instr.getReference()));
+            }
+            case Format31c: {
+                Instruction31c instr = (Instruction31c)instruction;
+                return new BuilderInstruction31c(opcode, instr.getRegisterA(), internReference(instr.getReference()));
+            }
+            case Format35c: {
+                Instruction35c instr = (Instruction35c)instruction;
+                return new BuilderInstruction35c(opcode, instr.getRegisterCount(), instr.getRegisterC(),
+                        instr.getRegisterD(), instr.getRegisterE(), instr.getRegisterF(), instr.getRegisterG(),
+                        internReference(instr.getReference()));
+            }
+            case Format3rc: {
+                Instruction3rc instr = (Instruction3rc)instruction;
+                return new BuilderInstruction3rc(opcode, instr.getStartRegister(), instr.getRegisterCount(),
+                        internReference(instr.getReference()));
+            }
+            case Format45cc: {
+                Instruction45cc instr = (Instruction45cc)instruction;
+                return new BuilderInstruction45cc(opcode, instr.getRegisterCount(), instr.getRegisterC(),
+                        instr.getRegisterD(), instr.getRegisterE(), instr.getRegisterF(), instr.getRegisterG(),
+                        internReference(instr.getReference()), internReference(instr.getReference2()));
+            }
+            case Format4rcc: {
+                Instruction4rcc instr = (Instruction4rcc)instruction;
+                return new BuilderInstruction4rcc(opcode, instr.getStartRegister(), instr.getRegisterCount(),
+                        internReference(instr.getReference()), internReference(instr.getReference2()));
+            }
+            default:
+                return ImmutableInstruction.of(instruction);
+        }
+    }
+
+    @Nonnull private DebugItem internDebugItem(@Nonnull DebugItem debugItem) {
+        switch (debugItem.getDebugItemType()) {
+            case DebugItemType.START_LOCAL: {
+                StartLocal startLocal = (StartLocal)debugItem;
+                return new InternedStartLocal(startLocal.getCodeAddress(), startLocal.getRegister(),
+                        internNullableStringReference(startLocal.getName()),
+                        internNullableTypeReference(startLocal.getType()),
+                        internNullableStringReference(startLocal.getSignature()));
+            }
+            case DebugItemType.SET_SOURCE_FILE: {
+                SetSourceFile setSourceFile = (SetSourceFile)debugItem;
+                return new InternedSetSourceFile(setSourceFile.getCodeAddress(),
+                        internNullableStringReference(setSourceFile.getSourceFile()));
+            }
+            default:
+                return ImmutableDebugItem.of(debugItem);
+        }
+    }
+
+    private static class InternedMethodImplementation implements MethodImplementation {
+        private final int registerCount;
+        @Nonnull private final List<? extends Instruction> instructions;
+        @Nonnull private final List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks;
+        @Nonnull private final List<? extends DebugItem> debugItems;
+
+        public InternedMethodImplementation(int registerCount,
+                                            @Nonnull List<? extends Instruction> instructions,
+                                            @Nonnull List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks,
+                                            @Nonnull List<? extends DebugItem> debugItems) {
+            this.registerCount = registerCount;
+            this.instructions = instructions;
+            this.tryBlocks = tryBlocks;
+            this.debugItems = debugItems;
+        }
+
+        @Override public int getRegisterCount() { return registerCount; }
+        @Nonnull @Override public Iterable<? extends Instruction> getInstructions() { return instructions; }
+        @Nonnull @Override public List<? extends TryBlock<? extends ExceptionHandler>> getTryBlocks() {
+            return tryBlocks;
+        }
+        @Nonnull @Override public Iterable<? extends DebugItem> getDebugItems() { return debugItems; }
+    }
+
+    private static class InternedTryBlock extends BaseTryBlock<ExceptionHandler> {
+        private final int startCodeAddress;
+        private final int codeUnitCount;
+        @Nonnull private final List<? extends ExceptionHandler> exceptionHandlers;
+
+        public InternedTryBlock(int startCodeAddress, int codeUnitCount,
+                                @Nonnull List<? extends ExceptionHandler> exceptionHandlers) {
+            this.startCodeAddress = startCodeAddress;
+            this.codeUnitCount = codeUnitCount;
+            this.exceptionHandlers = exceptionHandlers;
+        }
+
+        @Override public int getStartCodeAddress() { return startCodeAddress; }
+        @Override public int getCodeUnitCount() { return codeUnitCount; }
+        @Nonnull @Override public List<? extends ExceptionHandler> getExceptionHandlers() {
+            return exceptionHandlers;
+        }
+    }
+
+    private static class InternedExceptionHandler extends BaseExceptionHandler {
+        @Nullable private final BuilderTypeReference exceptionType;
+        private final int handlerCodeAddress;
+
+        public InternedExceptionHandler(@Nullable BuilderTypeReference exceptionType, int handlerCodeAddress) {
+            this.exceptionType = exceptionType;
+            this.handlerCodeAddress = handlerCodeAddress;
+        }
+
+        @Nullable @Override public String getExceptionType() {
+            return exceptionType == null ? null : exceptionType.getType();
+        }
+        @Nullable @Override public TypeReference getExceptionTypeReference() { return exceptionType; }
+        @Override public int getHandlerCodeAddress() { return handlerCodeAddress; }
+    }
+
+    private static class InternedStartLocal implements StartLocal {
+        private final int codeAddress;
+        private final int register;
+        @Nullable private final BuilderStringReference name;
+        @Nullable private final BuilderTypeReference type;
+        @Nullable private final BuilderStringReference signature;
+
+        public InternedStartLocal(int codeAddress, int register, @Nullable BuilderStringReference name,
+                                  @Nullable BuilderTypeReference type, @Nullable BuilderStringReference signature) {
+            this.codeAddress = codeAddress;
+            this.register = register;
+            this.name = name;
+            this.type = type;
+            this.signature = signature;
+        }
+
+        @Override public int getDebugItemType() { return DebugItemType.START_LOCAL; }
+        @Override public int getCodeAddress() { return codeAddress; }
+        @Override public int getRegister() { return register; }
+
+        @Nullable @Override public StringReference getNameReference() { return name; }
+        @Nullable @Override public TypeReference getTypeReference() { return type; }
+        @Nullable @Override public StringReference getSignatureReference() { return signature; }
+
+        @Nullable @Override public String getName() { return name == null ? null : name.getString(); }
+        @Nullable @Override public String getType() { return type == null ? null : type.getType(); }
+        @Nullable @Override public String getSignature() { return signature == null ? null : signature.getString(); }
+    }
+
+    private static class InternedSetSourceFile implements SetSourceFile {
+        private final int codeAddress;
+        @Nullable private final BuilderStringReference sourceFile;
+
+        public InternedSetSourceFile(int codeAddress, @Nullable BuilderStringReference sourceFile) {
+            this.codeAddress = codeAddress;
+            this.sourceFile = sourceFile;
+        }
+
+        @Override public int getDebugItemType() { return DebugItemType.SET_SOURCE_FILE; }
+        @Override public int getCodeAddress() { return codeAddress; }
+
+        @Nullable @Override public StringReference getSourceFileReference() { return sourceFile; }
+        @Nullable @Override public String getSourceFile() {
+            return sourceFile == null ? null : sourceFile.getString();
+        }
+    }
+
     @Nonnull public BuilderStringReference internStringReference(@Nonnull String string) {
         return stringSection.internString(string);
     }
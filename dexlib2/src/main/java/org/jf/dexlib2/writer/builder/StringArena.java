@@ -0,0 +1,210 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.writer.builder;
+
+import javax.annotation.Nonnull;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Stores strings off-heap, in a series of direct ByteBuffers.
+ *
+ * Each string is stored as a 4-byte header followed by its chars. The header holds the length of the string, and
+ * whether its chars are stored with 1 or 2 bytes each. Strings whose chars are all below 0x100 are stored with 1 byte
+ * per char, which covers nearly all of the strings in a typical dex file. Strings are stored exactly, including any
+ * unpaired surrogates.
+ *
+ * A string is identified by its position, which holds the index of its chunk in the upper 32 bits and its offset
+ * within the chunk in the lower 32 bits. Strings can be added concurrently with reads of previously added strings.
+ */
+class StringArena {
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int HEADER_SIZE = 4;
+    private static final int WIDE_FLAG = 0x80000000;
+
+    @Nonnull private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+    private int currentOffset = 0;
+    private long reservedBytes = 0;
+    private long usedBytes = 0;
+
+    /**
+     * Adds a string to the arena
+     *
+     * @return The position of the string, to pass to the other methods
+     */
+    public synchronized long add(@Nonnull CharSequence string) {
+        int length = string.length();
+        boolean wide = false;
+        for (int i=0; i<length; i++) {
+            if (string.charAt(i) >= 0x100) {
+                wide = true;
+                break;
+            }
+        }
+        int size = HEADER_SIZE + (wide ? length * 2 : length);
+
+        ByteBuffer[] chunks = this.chunks;
+        int chunkIndex = chunks.length - 1;
+        if (chunkIndex < 0 || chunks[chunkIndex].capacity() - currentOffset < size) {
+            chunkIndex++;
+            // a string that doesn't fit into a normal chunk gets a chunk of its own
+            ByteBuffer chunk = ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE, size));
+            chunks = Arrays.copyOf(chunks, chunkIndex + 1);
+            chunks[chunkIndex] = chunk;
+            currentOffset = 0;
+            reservedBytes += chunk.capacity();
+        }
+
+        ByteBuffer chunk = chunks[chunkIndex];
+        int offset = currentOffset;
+        chunk.putInt(offset, wide ? (length | WIDE_FLAG) : length);
+        int charOffset = offset + HEADER_SIZE;
+        if (wide) {
+            for (int i=0; i<length; i++) {
+                chunk.putChar(charOffset + i * 2, string.charAt(i));
+            }
+        } else {
+            for (int i=0; i<length; i++) {
+                chunk.put(charOffset + i, (byte)string.charAt(i));
+            }
+        }
+        currentOffset += size;
+        usedBytes += size;
+
+        // publish the new chunk, if any, only after the string has been written into it
+        this.chunks = chunks;
+        return ((long)chunkIndex << 32) | offset;
+    }
+
+    @Nonnull
+    public String getString(long position) {
+        ByteBuffer chunk = getChunk(position);
+        int offset = getOffset(position);
+        int header = chunk.getInt(offset);
+        int length = header & ~WIDE_FLAG;
+        char[] chars = new char[length];
+        if ((header & WIDE_FLAG) != 0) {
+            for (int i=0; i<length; i++) {
+                chars[i] = chunk.getChar(offset + HEADER_SIZE + i * 2);
+            }
+        } else {
+            for (int i=0; i<length; i++) {
+                chars[i] = (char)(chunk.get(offset + HEADER_SIZE + i) & 0xff);
+            }
+        }
+        return new String(chars);
+    }
+
+    /**
+     * @return true if the string at the given position is equal to the given string
+     */
+    public boolean contentEquals(long position, @Nonnull CharSequence string) {
+        ByteBuffer chunk = getChunk(position);
+        int offset = getOffset(position);
+        int header = chunk.getInt(offset);
+        int length = header & ~WIDE_FLAG;
+        if (length != string.length()) {
+            return false;
+        }
+        if ((header & WIDE_FLAG) != 0) {
+            for (int i=0; i<length; i++) {
+                if (chunk.getChar(offset + HEADER_SIZE + i * 2) != string.charAt(i)) {
+                    return false;
+                }
+            }
+        } else {
+            for (int i=0; i<length; i++) {
+                if ((chunk.get(offset + HEADER_SIZE + i) & 0xff) != string.charAt(i)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares the strings at the given positions, in the same order as String.compareTo
+     */
+    public int compare(long position1, long position2) {
+        ByteBuffer chunk1 = getChunk(position1);
+        int offset1 = getOffset(position1);
+        int header1 = chunk1.getInt(offset1);
+        ByteBuffer chunk2 = getChunk(position2);
+        int offset2 = getOffset(position2);
+        int header2 = chunk2.getInt(offset2);
+
+        int length1 = header1 & ~WIDE_FLAG;
+        int length2 = header2 & ~WIDE_FLAG;
+        boolean wide1 = (header1 & WIDE_FLAG) != 0;
+        boolean wide2 = (header2 & WIDE_FLAG) != 0;
+        int minLength = Math.min(length1, length2);
+        for (int i=0; i<minLength; i++) {
+            char c1 = getChar(chunk1, offset1, wide1, i);
+            char c2 = getChar(chunk2, offset2, wide2, i);
+            if (c1 != c2) {
+                return c1 - c2;
+            }
+        }
+        return length1 - length2;
+    }
+
+    private static char getChar(@Nonnull ByteBuffer chunk, int offset, boolean wide, int index) {
+        if (wide) {
+            return chunk.getChar(offset + HEADER_SIZE + index * 2);
+        }
+        return (char)(chunk.get(offset + HEADER_SIZE + index) & 0xff);
+    }
+
+    @Nonnull
+    private ByteBuffer getChunk(long position) {
+        return chunks[(int)(position >>> 32)];
+    }
+
+    private static int getOffset(long position) {
+        return (int)position;
+    }
+
+    /**
+     * @return The total size of the off-heap buffers that have been allocated
+     */
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    /**
+     * @return The number of bytes used by the strings that have been added
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+}
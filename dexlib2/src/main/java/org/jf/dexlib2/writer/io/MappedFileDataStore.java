@@ -0,0 +1,268 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.writer.io;
+
+import com.google.common.collect.Lists;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * A DexDataStore that writes to a memory-mapped file.
+ *
+ * The file is pre-sized and mapped up front, and is remapped with a larger size if the data grows past the end of the
+ * mapping. The streams returned by outputAt and readAt copy directly to and from the mapping, so writing and reading
+ * back the dex file doesn't need a system call per buffer. When the store is closed, the file is truncated to the
+ * amount of data that was actually written.
+ *
+ * This class is not thread-safe.
+ */
+public class MappedFileDataStore implements DexDataStore {
+    private static final int DEFAULT_INITIAL_SIZE = 16 * 1024 * 1024;
+    private static final int MIN_GROWTH_STEP = 16 * 1024 * 1024;
+
+    @Nonnull private final RandomAccessFile raf;
+    @Nonnull private final FileChannel channel;
+
+    @Nullable private MappedByteBuffer buffer;
+    /** A view of buffer that the streams position for their bulk reads and writes */
+    @Nullable private ByteBuffer view;
+    /** Any previous, smaller mappings of the file, that still need to be unmapped when the store is closed */
+    @Nonnull private final List<MappedByteBuffer> oldBuffers = Lists.newArrayList();
+
+    /** The amount of data in the file, i.e. the highest offset written to */
+    private int size = 0;
+
+    public MappedFileDataStore(@Nonnull File file) throws IOException {
+        this(file, DEFAULT_INITIAL_SIZE);
+    }
+
+    /**
+     * @param file The file to write to. Any existing contents will be discarded.
+     * @param initialSize The size to initially map the file with. If the expected size of the dex file is known, this
+     *                    avoids having to remap the file as it grows.
+     */
+    public MappedFileDataStore(@Nonnull File file, int initialSize) throws IOException {
+        if (initialSize < 0) {
+            throw new IllegalArgumentException("initialSize must not be negative");
+        }
+        this.raf = new RandomAccessFile(file, "rw");
+        try {
+            this.raf.setLength(0);
+            this.channel = raf.getChannel();
+            map(initialSize);
+        } catch (IOException ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    private void map(int capacity) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        view = buffer.duplicate();
+    }
+
+    @Nonnull
+    private ByteBuffer getView() throws IOException {
+        if (view == null) {
+            throw new IOException("The data store has been closed");
+        }
+        return view;
+    }
+
+    private void ensureCapacity(long minSize) throws IOException {
+        int capacity = getView().capacity();
+        if (minSize > capacity) {
+            if (minSize > Integer.MAX_VALUE) {
+                throw new IOException("Dex file is too large");
+            }
+            long newCapacity = Math.max(minSize + (minSize >> 2), (long)capacity + MIN_GROWTH_STEP);
+            oldBuffers.add(buffer);
+            map((int)Math.min(newCapacity, Integer.MAX_VALUE));
+        }
+    }
+
+    @Nonnull @Override public OutputStream outputAt(final int offset) {
+        if (offset < 0) throw new IllegalArgumentException();
+        return new OutputStream() {
+            private int position = offset;
+
+            @Override public void write(int b) throws IOException {
+                ensureCapacity(position + 1L);
+                getView().put(position++, (byte)b);
+                updateSize(position);
+            }
+
+            @Override public void write(byte[] b) throws IOException {
+                write(b, 0, b.length);
+            }
+
+            @Override public void write(byte[] b, int off, int len) throws IOException {
+                ensureCapacity((long)position + len);
+                ByteBuffer view = getView();
+                view.position(position);
+                view.put(b, off, len);
+                position += len;
+                updateSize(position);
+            }
+        };
+    }
+
+    private void updateSize(int position) {
+        if (position > size) {
+            size = position;
+        }
+    }
+
+    @Nonnull @Override public InputStream readAt(final int offset) {
+        if (offset < 0) throw new IllegalArgumentException();
+        return new InputStream() {
+            private int position = offset;
+            private int mark = offset;
+
+            @Override public int read() throws IOException {
+                ByteBuffer view = getView();
+                if (position >= size) {
+                    return -1;
+                }
+                return view.get(position++) & 0xff;
+            }
+
+            @Override public int read(byte[] b) throws IOException {
+                return read(b, 0, b.length);
+            }
+
+            @Override public int read(byte[] b, int off, int len) throws IOException {
+                ByteBuffer view = getView();
+                int readLength = Math.min(len, size - position);
+                if (readLength <= 0) {
+                    if (position >= size) {
+                        return -1;
+                    }
+                    return 0;
+                }
+                view.position(position);
+                view.get(b, off, readLength);
+                position += readLength;
+                return readLength;
+            }
+
+            @Override public long skip(long n) throws IOException {
+                int skipLength = (int)Math.max(0, Math.min(n, size - position));
+                position += skipLength;
+                return skipLength;
+            }
+
+            @Override public int available() throws IOException {
+                return Math.max(0, size - position);
+            }
+
+            @Override public void mark(int i) {
+                mark = position;
+            }
+
+            @Override public void reset() throws IOException {
+                position = mark;
+            }
+
+            @Override public boolean markSupported() {
+                return true;
+            }
+        };
+    }
+
+    @Override public void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            oldBuffers.add(buffer);
+            buffer = null;
+            view = null;
+            // The file can't be truncated while it's still mapped on some platforms, e.g. windows
+            for (MappedByteBuffer oldBuffer: oldBuffers) {
+                unmap(oldBuffer);
+            }
+            oldBuffers.clear();
+            raf.setLength(size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Attempts to release the given mapping immediately, rather than waiting for it to be garbage collected.
+     *
+     * There's no public API for this, so this uses the JDK internals when they're accessible, and is otherwise a
+     * no-op. The buffer must not be accessed afterwards.
+     */
+    private static void unmap(@Nonnull MappedByteBuffer buffer) {
+        try {
+            // java 9+
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (Exception ex) {
+            // fall through
+        }
+        try {
+            // java 6-8
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception ex) {
+            // the mapping will be released when the buffer is garbage collected
+        }
+    }
+}
@@ -37,6 +37,7 @@ import com.google.common.collect.*;
 import org.jf.dexlib2.DebugItemType;
 import org.jf.dexlib2.ReferenceType;
 import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.dexbacked.DexBackedMethodImplementation;
 import org.jf.dexlib2.iface.*;
 import org.jf.dexlib2.iface.debug.*;
 import org.jf.dexlib2.iface.instruction.Instruction;
@@ -47,7 +48,9 @@ import org.jf.dexlib2.immutable.value.ImmutableEncodedValueFactory;
 import org.jf.dexlib2.util.EncodedValueUtils;
 import org.jf.dexlib2.util.ReferenceUtil;
 import org.jf.dexlib2.writer.ClassSection;
+import org.jf.dexlib2.writer.CodeItemCopySection;
 import org.jf.dexlib2.writer.DebugWriter;
+import org.jf.dexlib2.writer.DexDataWriter;
 import org.jf.util.AbstractForwardSequentialList;
 import org.jf.util.CollectionUtils;
 import org.jf.util.ExceptionWithContext;
@@ -60,7 +63,7 @@ import java.util.Map.Entry;
 
 public class ClassPool extends BasePool<String, PoolClassDef> implements ClassSection<CharSequence, CharSequence,
         TypeListPool.Key<? extends Collection<? extends CharSequence>>, PoolClassDef, Field, PoolMethod,
-        Set<? extends Annotation>, EncodedValue> {
+        Set<? extends Annotation>, EncodedValue>, CodeItemCopySection<PoolMethod> {
 
     public ClassPool(@Nonnull DexPool dexPool) {
         super(dexPool);
@@ -116,12 +119,21 @@ public class ClassPool extends BasePool<String, PoolClassDef> implements ClassSe
         dexPool.annotationSetSection.intern(poolClassDef.getAnnotations());
     }
 
-    private void internCode(@Nonnull Method method) {
+    private void internCode(@Nonnull PoolMethod method) {
         // this also handles parameter names, which aren't directly tied to the MethodImplementation, even though the debug items are
         boolean hasInstruction = false;
 
         MethodImplementation methodImpl = method.getImplementation();
         if (methodImpl != null) {
+            if (methodImpl instanceof DexBackedMethodImplementation) {
+                DexBackedMethodImplementation dexBackedMethodImpl = (DexBackedMethodImplementation)methodImpl;
+                CodeItemCopier codeItemCopier = dexPool.getCodeItemCopier(dexBackedMethodImpl.dexFile);
+                if (codeItemCopier != null && codeItemCopier.internCode(dexBackedMethodImpl)) {
+                    method.codeItemCopier = codeItemCopier;
+                    return;
+                }
+            }
+
             for (Instruction instruction: methodImpl.getInstructions()) {
                 hasInstruction = true;
                 if (instruction instanceof ReferenceInstruction) {
@@ -421,6 +433,22 @@ public class ClassPool extends BasePool<String, PoolClassDef> implements ClassSe
         return new MutableMethodImplementation(poolMethod.getImplementation());
     }
 
+    @Override public boolean canCopyCodeItem(@Nonnull PoolMethod method) {
+        CodeItemCopier codeItemCopier = method.codeItemCopier;
+        return codeItemCopier != null &&
+                codeItemCopier.canCopyCodeItem((DexBackedMethodImplementation)method.getImplementation());
+    }
+
+    @Override public void writeCopiedCodeItem(@Nonnull DexDataWriter writer, @Nonnull PoolMethod method,
+                                              int debugItemOffset) throws IOException {
+        CodeItemCopier codeItemCopier = method.codeItemCopier;
+        if (codeItemCopier == null) {
+            throw new IllegalStateException("The code_item for this method can't be copied");
+        }
+        codeItemCopier.writeCodeItem(writer, (DexBackedMethodImplementation)method.getImplementation(),
+                debugItemOffset);
+    }
+
     @Override public void setEncodedArrayOffset(@Nonnull PoolClassDef classDef, int offset) {
         classDef.encodedArrayOffset = offset;
     }
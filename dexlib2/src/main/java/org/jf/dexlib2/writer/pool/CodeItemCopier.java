@@ -0,0 +1,422 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.writer.pool;
+
+import com.google.common.collect.Maps;
+import org.jf.dexlib2.Format;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.ReferenceType;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.DexBackedMethodImplementation;
+import org.jf.dexlib2.dexbacked.DexReader;
+import org.jf.dexlib2.dexbacked.instruction.DexBackedInstructionCursor;
+import org.jf.dexlib2.dexbacked.raw.CodeItem;
+import org.jf.dexlib2.dexbacked.reference.DexBackedMethodProtoReference;
+import org.jf.dexlib2.writer.DexDataWriter;
+import org.jf.util.AlignmentUtils;
+import org.jf.util.ExceptionWithContext;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+
+/**
+ * Copies code_items from a DexBackedDexFile into a DexPool, without building instruction objects.
+ *
+ * When a method is interned, the references in its code_item are interned by walking the raw code units with a
+ * {@link DexBackedInstructionCursor}. Each string/type/field/method/proto in the source dex file is only interned the
+ * first time it is seen. When the code_item is written, it is copied as-is, with the reference indexes patched via a
+ * per-reference-type table that maps an index in the source dex file to the corresponding index in the new dex file.
+ */
+class CodeItemCopier implements Markable {
+    @Nonnull private final DexPool dexPool;
+    @Nonnull private final DexBackedDexFile dexFile;
+
+    /** The items from the source dex file that have been interned, by reference type */
+    @Nonnull private final BitSet[] internedItems = new BitSet[ReferenceType.NONE];
+
+    /**
+     * The new index of each item from the source dex file, plus 1, by reference type. 0 means the index hasn't been
+     * looked up yet.
+     *
+     * Code items may be written concurrently. The indexes are looked up on demand, and it's fine if multiple
+     * threads happen to look up and store the same index at the same time.
+     */
+    @Nonnull private final int[][] indexMaps = new int[ReferenceType.NONE][];
+
+    /** The items that have been interned since the last mark, encoded as (referenceType << 32) | index */
+    @Nullable private long[] internLog = null;
+    private int internLogSize = 0;
+
+    private CodeItemCopier(@Nonnull DexPool dexPool, @Nonnull DexBackedDexFile dexFile) {
+        this.dexPool = dexPool;
+        this.dexFile = dexFile;
+
+        int[] counts = new int[ReferenceType.NONE];
+        counts[ReferenceType.STRING] = dexFile.getStringCount();
+        counts[ReferenceType.TYPE] = dexFile.getTypeCount();
+        counts[ReferenceType.FIELD] = dexFile.getFieldCount();
+        counts[ReferenceType.METHOD] = dexFile.getMethodCount();
+        counts[ReferenceType.METHOD_PROTO] = dexFile.getProtoCount();
+
+        for (int i=0; i<counts.length; i++) {
+            internedItems[i] = new BitSet(counts[i]);
+            indexMaps[i] = new int[counts[i]];
+        }
+    }
+
+    /**
+     * Creates a CodeItemCopier for copying code_items from the given dex file into the given DexPool
+     *
+     * @param opcodes The opcodes of the DexPool
+     *
+     * @return A new CodeItemCopier, or null if code_items from the given dex file can't be copied as-is. E.g. if its
+     * opcode values differ from those of the DexPool.
+     */
+    @Nullable
+    static CodeItemCopier create(@Nonnull DexPool dexPool, @Nonnull Opcodes opcodes,
+                                 @Nonnull DexBackedDexFile dexFile) {
+        Opcodes sourceOpcodes = dexFile.getOpcodes();
+        if (dexFile.hasOdexOpcodes() || sourceOpcodes.api != opcodes.api ||
+                sourceOpcodes.artVersion != opcodes.artVersion) {
+            return null;
+        }
+        return new CodeItemCopier(dexPool, dexFile);
+    }
+
+    /**
+     * Starts logging the items interned from the source dex file, so that they can be forgotten by reset()
+     */
+    @Override public void mark() {
+        if (internLog == null) {
+            internLog = new long[64];
+        }
+        internLogSize = 0;
+    }
+
+    /**
+     * Forgets any items interned since the last mark, to match a DexPool that was reset to that mark
+     */
+    @Override public void reset() {
+        if (internLog == null) {
+            throw new IllegalStateException("mark() must be called before calling reset()");
+        }
+        for (int i=0; i<internLogSize; i++) {
+            long entry = internLog[i];
+            internedItems[(int)(entry >>> 32)].clear((int)entry);
+        }
+        internLogSize = 0;
+    }
+
+    /**
+     * Interns the references in the given method's code_item.
+     *
+     * @return true if the code_item can be copied, or false if the method must be interned normally. In the latter
+     * case, some of the method's references may have already been interned.
+     */
+    boolean internCode(@Nonnull DexBackedMethodImplementation methodImpl) {
+        int codeOffset = methodImpl.getCodeOffset();
+        int instructionsSize = dexFile.readSmallUint(codeOffset + CodeItem.INSTRUCTION_COUNT_OFFSET);
+        int triesSize = dexFile.readUshort(codeOffset + CodeItem.TRIES_SIZE_OFFSET);
+        if (instructionsSize == 0 && triesSize > 0) {
+            return false;
+        }
+
+        DexBackedInstructionCursor cursor = new DexBackedInstructionCursor(methodImpl);
+        while (cursor.next()) {
+            Opcode opcode = cursor.getOpcode();
+            if (opcode == null || !isSupported(opcode)) {
+                return false;
+            }
+
+            if (opcode.referenceType != ReferenceType.NONE) {
+                if (!intern(opcode.referenceType, cursor.getReferenceIndex())) {
+                    return false;
+                }
+                if (hasSecondReference(opcode)) {
+                    if (!intern(opcode.referenceType2, cursor.getReferenceIndex2())) {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        if (triesSize > 0) {
+            DexReader reader = dexFile.readerAt(getHandlersOffset(codeOffset, instructionsSize, triesSize));
+            int handlerListCount = reader.readSmallUleb128();
+            for (int i=0; i<handlerListCount; i++) {
+                int handlerCount = reader.readSleb128();
+                for (int j=0; j<Math.abs(handlerCount); j++) {
+                    if (!intern(ReferenceType.TYPE, reader.readSmallUleb128())) {
+                        return false;
+                    }
+                    reader.readSmallUleb128();
+                }
+                if (handlerCount <= 0) {
+                    reader.readSmallUleb128();
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Determines whether the given method's code_item can still be copied, now that the final indexes are known.
+     *
+     * A const-string whose string index no longer fits in 16 bits has to be converted to a const-string/jumbo, which
+     * changes the size of the code, so such a method has to be written normally.
+     */
+    boolean canCopyCodeItem(@Nonnull DexBackedMethodImplementation methodImpl) {
+        if (!dexPool.stringSection.hasJumboIndexes()) {
+            return true;
+        }
+
+        DexBackedInstructionCursor cursor = new DexBackedInstructionCursor(methodImpl);
+        while (cursor.next()) {
+            if (cursor.getOpcode() == Opcode.CONST_STRING &&
+                    getNewIndex(ReferenceType.STRING, cursor.getReferenceIndex()) > 0xFFFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes a copy of the given method's code_item, with all references remapped to the new indexes.
+     *
+     * The writer should already be aligned.
+     */
+    void writeCodeItem(@Nonnull DexDataWriter writer, @Nonnull DexBackedMethodImplementation methodImpl,
+                       int debugItemOffset) throws IOException {
+        int codeOffset = methodImpl.getCodeOffset();
+        int instructionsSize = dexFile.readSmallUint(codeOffset + CodeItem.INSTRUCTION_COUNT_OFFSET);
+        int triesSize = dexFile.readUshort(codeOffset + CodeItem.TRIES_SIZE_OFFSET);
+
+        writer.writeUshort(dexFile.readUshort(codeOffset + CodeItem.REGISTERS_OFFSET));
+        writer.writeUshort(dexFile.readUshort(codeOffset + CodeItem.INS_OFFSET));
+        writer.writeUshort(dexFile.readUshort(codeOffset + CodeItem.OUTS_OFFSET));
+        writer.writeUshort(triesSize);
+        writer.writeInt(debugItemOffset);
+        writer.writeInt(instructionsSize);
+
+        int instructionsOffset = codeOffset + CodeItem.INSTRUCTION_START_OFFSET;
+        byte[] instructions = dexFile.readByteRange(instructionsOffset, instructionsSize * 2);
+        DexBackedInstructionCursor cursor = new DexBackedInstructionCursor(methodImpl);
+        while (cursor.next()) {
+            Opcode opcode = cursor.getOpcode();
+            assert opcode != null;
+
+            if (opcode.referenceType != ReferenceType.NONE) {
+                int position = cursor.getOffset() - instructionsOffset;
+                int newIndex = getNewIndex(opcode.referenceType, cursor.getReferenceIndex());
+                if (opcode.format == Format.Format31c) {
+                    writeUint(instructions, position + 2, newIndex);
+                } else {
+                    writeUshort(instructions, position + 2, checkUshortIndex(opcode, newIndex));
+                }
+                if (hasSecondReference(opcode)) {
+                    newIndex = getNewIndex(opcode.referenceType2, cursor.getReferenceIndex2());
+                    writeUshort(instructions, position + 6, checkUshortIndex(opcode, newIndex));
+                }
+            }
+        }
+        writer.write(instructions);
+
+        if (triesSize > 0) {
+            writer.align();
+
+            // re-encode the handler list with the new type indexes, keeping track of where each handler moved to
+            int handlersOffset = getHandlersOffset(codeOffset, instructionsSize, triesSize);
+            DexReader reader = dexFile.readerAt(handlersOffset);
+            ByteArrayOutputStream handlers = new ByteArrayOutputStream();
+            Map<Integer, Integer> handlerOffsetMap = Maps.newHashMap();
+
+            int handlerListCount = reader.readSmallUleb128();
+            DexDataWriter.writeUleb128(handlers, handlerListCount);
+            for (int i=0; i<handlerListCount; i++) {
+                handlerOffsetMap.put(reader.getOffset() - handlersOffset, handlers.size());
+
+                int handlerCount = reader.readSleb128();
+                DexDataWriter.writeSleb128(handlers, handlerCount);
+                for (int j=0; j<Math.abs(handlerCount); j++) {
+                    DexDataWriter.writeUleb128(handlers,
+                            getNewIndex(ReferenceType.TYPE, reader.readSmallUleb128()));
+                    DexDataWriter.writeUleb128(handlers, reader.readSmallUleb128());
+                }
+                if (handlerCount <= 0) {
+                    DexDataWriter.writeUleb128(handlers, reader.readSmallUleb128());
+                }
+            }
+
+            int triesOffset = handlersOffset - triesSize * CodeItem.TryItem.ITEM_SIZE;
+            for (int i=0; i<triesSize; i++) {
+                int tryItemOffset = triesOffset + i * CodeItem.TryItem.ITEM_SIZE;
+                writer.writeInt(dexFile.readSmallUint(tryItemOffset + CodeItem.TryItem.START_ADDRESS_OFFSET));
+                writer.writeUshort(dexFile.readUshort(tryItemOffset + CodeItem.TryItem.CODE_UNIT_COUNT_OFFSET));
+
+                int handlerOffset = dexFile.readUshort(tryItemOffset + CodeItem.TryItem.HANDLER_OFFSET);
+                Integer newHandlerOffset = handlerOffsetMap.get(handlerOffset);
+                if (newHandlerOffset == null) {
+                    throw new ExceptionWithContext("Invalid exception handler offset: 0x%x", handlerOffset);
+                }
+                writer.writeUshort(newHandlerOffset);
+            }
+
+            handlers.writeTo(writer);
+        }
+    }
+
+    private boolean intern(int referenceType, int index) {
+        BitSet interned = internedItems[referenceType];
+        if (index < 0 || index >= indexMaps[referenceType].length) {
+            return false;
+        }
+        if (interned.get(index)) {
+            return true;
+        }
+
+        switch (referenceType) {
+            case ReferenceType.STRING:
+                dexPool.stringSection.intern(dexFile.getString(index));
+                break;
+            case ReferenceType.TYPE:
+                dexPool.typeSection.intern(dexFile.getType(index));
+                break;
+            case ReferenceType.FIELD:
+                dexPool.fieldSection.intern(dexFile.getFields().get(index));
+                break;
+            case ReferenceType.METHOD:
+                dexPool.methodSection.intern(dexFile.getMethods().get(index));
+                break;
+            case ReferenceType.METHOD_PROTO:
+                dexPool.protoSection.intern(new DexBackedMethodProtoReference(dexFile, index));
+                break;
+            default:
+                throw new ExceptionWithContext("Unrecognized reference type: %d", referenceType);
+        }
+        interned.set(index);
+
+        if (internLog != null) {
+            if (internLogSize == internLog.length) {
+                internLog = Arrays.copyOf(internLog, internLogSize * 2);
+            }
+            internLog[internLogSize++] = ((long)referenceType << 32) | index;
+        }
+        return true;
+    }
+
+    private int getNewIndex(int referenceType, int index) {
+        int[] indexMap = indexMaps[referenceType];
+        int newIndex = indexMap[index] - 1;
+        if (newIndex < 0) {
+            switch (referenceType) {
+                case ReferenceType.STRING:
+                    newIndex = dexPool.stringSection.getItemIndex(dexFile.getString(index));
+                    break;
+                case ReferenceType.TYPE:
+                    newIndex = dexPool.typeSection.getItemIndex(dexFile.getType(index));
+                    break;
+                case ReferenceType.FIELD:
+                    newIndex = dexPool.fieldSection.getItemIndex(dexFile.getFields().get(index));
+                    break;
+                case ReferenceType.METHOD:
+                    newIndex = dexPool.methodSection.getItemIndex(dexFile.getMethods().get(index));
+                    break;
+                case ReferenceType.METHOD_PROTO:
+                    newIndex = dexPool.protoSection.getItemIndex(new DexBackedMethodProtoReference(dexFile, index));
+                    break;
+                default:
+                    throw new ExceptionWithContext("Unrecognized reference type: %d", referenceType);
+            }
+            indexMap[index] = newIndex + 1;
+        }
+        return newIndex;
+    }
+
+    private static boolean isSupported(@Nonnull Opcode opcode) {
+        switch (opcode.format) {
+            case Format20bc:
+            case Format22cs:
+            case Format35mi:
+            case Format35ms:
+            case Format3rmi:
+            case Format3rms:
+            case UnresolvedOdexInstruction:
+                return false;
+            case Format21c:
+            case Format22c:
+            case Format31c:
+            case Format35c:
+            case Format3rc:
+            case Format45cc:
+            case Format4rcc:
+                return true;
+            default:
+                return opcode.referenceType == ReferenceType.NONE;
+        }
+    }
+
+    private static boolean hasSecondReference(@Nonnull Opcode opcode) {
+        return opcode.format == Format.Format45cc || opcode.format == Format.Format4rcc;
+    }
+
+    private int getHandlersOffset(int codeOffset, int instructionsSize, int triesSize) {
+        int triesOffset = AlignmentUtils.alignOffset(
+                codeOffset + CodeItem.INSTRUCTION_START_OFFSET + instructionsSize * 2, 4);
+        return triesOffset + triesSize * CodeItem.TryItem.ITEM_SIZE;
+    }
+
+    private static int checkUshortIndex(@Nonnull Opcode opcode, int index) {
+        if (index > 0xFFFF) {
+            throw new ExceptionWithContext("Index 0x%x is too large for %s", index, opcode.name);
+        }
+        return index;
+    }
+
+    private static void writeUshort(@Nonnull byte[] buf, int offset, int value) {
+        buf[offset] = (byte)value;
+        buf[offset+1] = (byte)(value >> 8);
+    }
+
+    private static void writeUint(@Nonnull byte[] buf, int offset, int value) {
+        buf[offset] = (byte)value;
+        buf[offset+1] = (byte)(value >> 8);
+        buf[offset+2] = (byte)(value >> 16);
+        buf[offset+3] = (byte)(value >> 24);
+    }
+}
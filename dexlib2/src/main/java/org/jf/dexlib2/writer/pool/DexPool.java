@@ -31,8 +31,10 @@
 
 package org.jf.dexlib2.writer.pool;
 
+import com.google.common.collect.Maps;
 import org.jf.dexlib2.Opcodes;
 import org.jf.dexlib2.ValueType;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
 import org.jf.dexlib2.iface.Annotation;
 import org.jf.dexlib2.iface.AnnotationElement;
 import org.jf.dexlib2.iface.ClassDef;
@@ -45,9 +47,11 @@ import org.jf.dexlib2.writer.io.FileDataStore;
 import org.jf.util.ExceptionWithContext;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.Set;
 
 public class DexPool extends DexWriter<CharSequence, StringReference, CharSequence, TypeReference,
@@ -62,8 +66,27 @@ public class DexPool extends DexWriter<CharSequence, StringReference, CharSequen
             annotationSection, annotationSetSection
     };
 
+    private final boolean copyCodeItems;
+    private final IdentityHashMap<DexBackedDexFile, CodeItemCopier> codeItemCopiers = Maps.newIdentityHashMap();
+    private boolean marked = false;
+
     public DexPool(Opcodes opcodes) {
+        this(opcodes, false);
+    }
+
+    /**
+     * Creates a new DexPool
+     *
+     * @param opcodes The opcodes to use for the dex file
+     * @param copyCodeItems If true, the code_item of a method read from a DexBackedDexFile is copied as-is, with its
+     *                      string/type/field/method references remapped to their new indexes via a lookup table,
+     *                      instead of being decoded into instructions and re-encoded. This is much faster when
+     *                      rewriting or merging existing dex files. Such code_items keep their original outs_size
+     *                      and try blocks, instead of having them recalculated.
+     */
+    public DexPool(Opcodes opcodes, boolean copyCodeItems) {
         super(opcodes);
+        this.copyCodeItems = copyCodeItems;
     }
 
     @Nonnull @Override protected SectionProvider getSectionProvider() {
@@ -87,11 +110,32 @@ public class DexPool extends DexWriter<CharSequence, StringReference, CharSequen
         dexPool.writeTo(new FileDataStore(new File(path)));
     }
 
+    /**
+     * Writes the classes from the given dex files into a single new dex file.
+     *
+     * The code_items of methods read from a DexBackedDexFile are copied, rather than being decoded and re-encoded.
+     *
+     * @param dataStore The DexDataStore to write the merged dex file to
+     * @param opcodes The opcodes to use for the merged dex file
+     * @param inputs The dex files to merge. Each class may only be defined in one of them.
+     */
+    public static void merge(@Nonnull DexDataStore dataStore, @Nonnull Opcodes opcodes,
+                             @Nonnull org.jf.dexlib2.iface.DexFile... inputs) throws IOException {
+        DexPool dexPool = new DexPool(opcodes, true);
+        for (org.jf.dexlib2.iface.DexFile input: inputs) {
+            for (ClassDef classDef: input.getClasses()) {
+                dexPool.internClass(classDef);
+            }
+        }
+        dexPool.writeTo(dataStore);
+    }
+
     /**
      * Interns a class into this DexPool
      * @param classDef The class to intern
      */
     public void internClass(ClassDef classDef) {
+        sampleHeapUsage();
         classSection.intern(classDef);
     }
 
@@ -104,6 +148,12 @@ public class DexPool extends DexWriter<CharSequence, StringReference, CharSequen
         for (Markable section: sections) {
             section.mark();
         }
+        for (CodeItemCopier codeItemCopier: codeItemCopiers.values()) {
+            if (codeItemCopier != null) {
+                codeItemCopier.mark();
+            }
+        }
+        marked = true;
     }
 
     /**
@@ -115,6 +165,34 @@ public class DexPool extends DexWriter<CharSequence, StringReference, CharSequen
         for (Markable section: sections) {
             section.reset();
         }
+        for (CodeItemCopier codeItemCopier: codeItemCopiers.values()) {
+            if (codeItemCopier != null) {
+                codeItemCopier.reset();
+            }
+        }
+    }
+
+    /**
+     * Gets the CodeItemCopier for copying code_items from the given dex file
+     *
+     * @return The CodeItemCopier for the given dex file, or null if code_items should not or can not be copied from it
+     */
+    @Nullable
+    CodeItemCopier getCodeItemCopier(@Nonnull DexBackedDexFile dexFile) {
+        if (!copyCodeItems) {
+            return null;
+        }
+        if (codeItemCopiers.containsKey(dexFile)) {
+            return codeItemCopiers.get(dexFile);
+        }
+
+        CodeItemCopier codeItemCopier = CodeItemCopier.create(this, opcodes, dexFile);
+        if (codeItemCopier != null && marked) {
+            // anything interned from this dex file is newer than the current mark
+            codeItemCopier.mark();
+        }
+        codeItemCopiers.put(dexFile, codeItemCopier);
+        return codeItemCopier;
     }
 
     @Override protected void writeEncodedValue(@Nonnull InternalEncodedValueWriter writer,
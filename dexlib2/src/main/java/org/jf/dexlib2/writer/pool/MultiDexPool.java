@@ -0,0 +1,238 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.writer.pool;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.writer.io.FileDataStore;
+import org.jf.util.ExceptionWithContext;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Spreads classes over as many dex files as needed, so that none of them overflow.
+ *
+ * Each class is interned into the most recently started dex file. If that causes the method, field or type pools to
+ * overflow, the class is rolled back and a new dex file is started for it. The item counts of each DexPool are updated
+ * as classes are interned, so the check is cheap.
+ *
+ * Main dex classes are always interned into the first dex file. Until all of them have been interned, or
+ * finishMainDexClasses is called, any other classes are interned into the later dex files.
+ */
+public class MultiDexPool {
+    @Nonnull private final Opcodes opcodes;
+    @Nonnull private final Set<String> mainDexClasses;
+    private int pendingMainDexClasses;
+
+    @Nonnull private final Set<String> classTypes = Sets.newHashSet();
+
+    @Nonnull private final List<DexPool> dexPools = Lists.newArrayList();
+
+    public MultiDexPool(@Nonnull Opcodes opcodes) {
+        this(opcodes, ImmutableSet.<String>of());
+    }
+
+    /**
+     * @param opcodes The Opcodes instance to use for each dex file
+     * @param mainDexClasses The types of the classes that must be in the first dex file
+     */
+    public MultiDexPool(@Nonnull Opcodes opcodes, @Nonnull Collection<String> mainDexClasses) {
+        this.opcodes = opcodes;
+        this.mainDexClasses = ImmutableSet.copyOf(mainDexClasses);
+        this.pendingMainDexClasses = this.mainDexClasses.size();
+        dexPools.add(new DexPool(opcodes));
+    }
+
+    /**
+     * Indicates that all of the main dex classes that are present have been interned, so that other classes can be
+     * interned into the rest of the first dex file.
+     *
+     * This is needed when the list of main dex classes names classes that aren't interned, since the first dex file
+     * would otherwise be reserved for them indefinitely. Any main dex classes that are interned afterwards still go
+     * into the first dex file, if they fit.
+     */
+    public void finishMainDexClasses() {
+        pendingMainDexClasses = 0;
+    }
+
+    /**
+     * Interns a class into one of the dex files
+     *
+     * @param classDef The class to intern
+     * @return The index of the dex file that the class was interned into
+     */
+    public int internClass(@Nonnull ClassDef classDef) {
+        // each DexPool only checks for duplicates among its own classes
+        if (!classTypes.add(classDef.getType())) {
+            throw new ExceptionWithContext("Class %s has already been interned", classDef.getType());
+        }
+
+        if (mainDexClasses.contains(classDef.getType())) {
+            if (!tryIntern(dexPools.get(0), classDef)) {
+                throw new ExceptionWithContext("The main dex classes don't fit into a single dex file. %s caused " +
+                        "an overflow.", classDef.getType());
+            }
+            if (pendingMainDexClasses > 0) {
+                pendingMainDexClasses--;
+            }
+            return 0;
+        }
+
+        int index = dexPools.size() - 1;
+        if (index == 0 && pendingMainDexClasses > 0) {
+            // keep the first dex file free for the remaining main dex classes
+            index = 1;
+            dexPools.add(new DexPool(opcodes));
+        }
+
+        if (tryIntern(dexPools.get(index), classDef)) {
+            return index;
+        }
+
+        index++;
+        dexPools.add(new DexPool(opcodes));
+        if (!tryIntern(dexPools.get(index), classDef)) {
+            throw new ExceptionWithContext("Class %s is too large to fit into a dex file by itself",
+                    classDef.getType());
+        }
+        return index;
+    }
+
+    private static boolean tryIntern(@Nonnull DexPool dexPool, @Nonnull ClassDef classDef) {
+        dexPool.mark();
+        dexPool.internClass(classDef);
+        if (dexPool.hasOverflowed()) {
+            dexPool.reset();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return The DexPool for each dex file, in order
+     */
+    @Nonnull
+    public List<DexPool> getDexPools() {
+        return ImmutableList.copyOf(dexPools);
+    }
+
+    /**
+     * @param index The index of a dex file
+     * @return The conventional file name for the dex file at the given index, i.e. classes.dex, classes2.dex, etc.
+     */
+    @Nonnull
+    public static String getDexFileName(int index) {
+        if (index == 0) {
+            return "classes.dex";
+        }
+        return "classes" + (index + 1) + ".dex";
+    }
+
+    /**
+     * Writes the dex files into the given directory, named as per getDexFileName.
+     *
+     * @param directory The directory to write the dex files to. It must already exist.
+     * @param executor The executor to write the dex files with, so that they are written in parallel. If null, they
+     *                 will be written serially on the current thread.
+     * @return The dex files that were written, in order
+     */
+    @Nonnull
+    public List<File> writeTo(@Nonnull File directory, @Nullable ExecutorService executor) throws IOException {
+        List<File> dexFiles = Lists.newArrayList();
+        List<Future<Void>> futures = Lists.newArrayList();
+
+        try {
+            for (int i=0; i<dexPools.size(); i++) {
+                final DexPool dexPool = dexPools.get(i);
+                final File dexFile = new File(directory, getDexFileName(i));
+                dexFiles.add(dexFile);
+
+                if (executor == null) {
+                    dexPool.writeTo(new FileDataStore(dexFile));
+                } else {
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override public Void call() throws Exception {
+                            dexPool.writeTo(new FileDataStore(dexFile));
+                            return null;
+                        }
+                    }));
+                }
+            }
+
+            for (Future<Void> future: futures) {
+                waitForWrite(future);
+            }
+        } finally {
+            for (Future<Void> future: futures) {
+                future.cancel(true);
+            }
+        }
+        return dexFiles;
+    }
+
+    private static void waitForWrite(@Nonnull Future<Void> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writing dex files");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+}
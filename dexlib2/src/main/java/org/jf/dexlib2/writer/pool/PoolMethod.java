@@ -48,6 +48,8 @@ class PoolMethod extends BaseMethodReference implements Method {
     @Nonnull private final Method method;
     protected int annotationSetRefListOffset = DexPool.NO_OFFSET;
     protected int codeItemOffset = DexPool.NO_OFFSET;
+    /** The CodeItemCopier to copy this method's code_item with, or null if it must be written normally */
+    @Nullable CodeItemCopier codeItemCopier = null;
 
     public static final Function<Method, PoolMethod> TRANSFORM = new Function<Method, PoolMethod>() {
         @Override public PoolMethod apply(Method method) {
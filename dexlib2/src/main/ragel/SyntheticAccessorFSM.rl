@@ -34,8 +34,11 @@ package org.jf.dexlib2.util;
 import org.jf.dexlib2.iface.instruction.Instruction;
 import org.jf.dexlib2.iface.instruction.OneRegisterInstruction;
 import org.jf.dexlib2.iface.instruction.WideLiteralInstruction;
+import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.instruction.DexBackedInstructionCursor;
 
+import javax.annotation.Nonnull;
 import java.util.List;
 
 public class SyntheticAccessorFSM {
@@ -70,7 +73,19 @@ public class SyntheticAccessorFSM {
         this.opcodes = opcodes;
     }
 
-    public int test(List<? extends Instruction> instructions) {
+    public int test(@Nonnull List<? extends Instruction> instructions) {
+        return test(new ListInstructionAccessor(instructions));
+    }
+
+    /**
+     * Tests the instructions of the method that the given cursor was last reset to, without creating any
+     * instruction objects. The cursor is rewound before the instructions are tested.
+     */
+    public int test(@Nonnull DexBackedInstructionCursor cursor) {
+        return test(new CursorInstructionAccessor(cursor));
+    }
+
+    private int test(@Nonnull InstructionAccessor instructions) {
         int accessorType = -1;
         int cs, p = 0;
         int pe = instructions.size();
@@ -92,26 +107,26 @@ public class SyntheticAccessorFSM {
         %%{
             import "Opcodes.rl";
             alphtype short;
-            getkey opcodes.getOpcodeValue(instructions.get(p).getOpcode());
+            getkey instructions.getOpcodeValue(p);
 
             get = (0x52 .. 0x58) | (0x60 .. 0x66); # all igets/sgets
 
             # all iputs/sputs
             put = ((0x59 .. 0x5f) | (0x67 .. 0x6d)) @ {
-                putRegister = ((OneRegisterInstruction)instructions.get(p)).getRegisterA();
+                putRegister = instructions.getRegisterA(p);
             };
 
             invoke = (0x6e .. 0x72) | (0x74 .. 0x78); # all invokes
 
             # all numeric const instructions
             const_literal = (0x12 .. 0x19) @ {
-                constantValue = ((WideLiteralInstruction)instructions.get(p)).getWideLiteral();
+                constantValue = instructions.getWideLiteral(p);
             };
 
             add_const = (add_int_lit8 | add_int_lit16) @ {
                 mathType = INT;
                 mathOp = ADD;
-                constantValue = ((WideLiteralInstruction)instructions.get(p)).getWideLiteral();
+                constantValue = instructions.getWideLiteral(p);
             };
 
             arbitrary_add = (((add_int | add_int_2addr) @ { mathType = INT; }) |
@@ -160,7 +175,7 @@ public class SyntheticAccessorFSM {
             type_conversion = 0x81 .. 0x8f; # all type-conversion opcodes
 
             return_something = (return | return_wide | return_object) @ {
-                returnRegister = ((OneRegisterInstruction)instructions.get(p)).getRegisterA();
+                returnRegister = instructions.getRegisterA(p);
             };
 
             any_move_result = move_result | move_result_wide | move_result_object;
@@ -266,4 +281,79 @@ public class SyntheticAccessorFSM {
             }
         }
     }
-}
\ No newline at end of file
+
+    private interface InstructionAccessor {
+        int size();
+        int getOpcodeValue(int index);
+        int getRegisterA(int index);
+        long getWideLiteral(int index);
+    }
+
+    private class ListInstructionAccessor implements InstructionAccessor {
+        @Nonnull private final List<? extends Instruction> instructions;
+
+        public ListInstructionAccessor(@Nonnull List<? extends Instruction> instructions) {
+            this.instructions = instructions;
+        }
+
+        @Override public int size() {
+            return instructions.size();
+        }
+
+        @Override public int getOpcodeValue(int index) {
+            return opcodes.getOpcodeValue(instructions.get(index).getOpcode());
+        }
+
+        @Override public int getRegisterA(int index) {
+            return ((OneRegisterInstruction)instructions.get(index)).getRegisterA();
+        }
+
+        @Override public long getWideLiteral(int index) {
+            return ((WideLiteralInstruction)instructions.get(index)).getWideLiteral();
+        }
+    }
+
+    private class CursorInstructionAccessor implements InstructionAccessor {
+        @Nonnull private final DexBackedInstructionCursor cursor;
+        private final int size;
+        private int index = -1;
+
+        public CursorInstructionAccessor(@Nonnull DexBackedInstructionCursor cursor) {
+            this.cursor = cursor;
+            this.size = cursor.countInstructions();
+            cursor.rewind();
+        }
+
+        private void moveTo(int index) {
+            if (index < this.index) {
+                cursor.rewind();
+                this.index = -1;
+            }
+            while (this.index < index) {
+                cursor.next();
+                this.index++;
+            }
+        }
+
+        @Override public int size() {
+            return size;
+        }
+
+        @Override public int getOpcodeValue(int index) {
+            moveTo(index);
+            Opcode opcode = cursor.getOpcode();
+            // unknown opcodes are treated as a nop, the same as DexBackedUnknownInstruction
+            return opcodes.getOpcodeValue(opcode == null ? Opcode.NOP : opcode);
+        }
+
+        @Override public int getRegisterA(int index) {
+            moveTo(index);
+            return cursor.getRegisterA();
+        }
+
+        @Override public long getWideLiteral(int index) {
+            moveTo(index);
+            return cursor.getWideLiteral();
+        }
+    }
+}
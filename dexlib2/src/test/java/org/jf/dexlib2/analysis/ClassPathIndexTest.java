@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.analysis;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import junit.framework.Assert;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Field;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.reference.FieldReference;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.ImmutableField;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.util.ReferenceUtil;
+import org.jf.util.SparseArray;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+public class ClassPathIndexTest {
+    private static final String KEY = "test class path";
+
+    @Test
+    public void testClassPathIndex() throws IOException {
+        ImmutableDexFile dexFile = new ImmutableDexFile(Opcodes.getDefault(), ImmutableList.of(
+                makeInterface("Liface1;"),
+                makeInterface("Liface2;", "Liface1;"),
+                makeClass("Lbase;", "Ljava/lang/Object;", "Liface1;"),
+                makeClass("Lsub;", "Lbase;", "Liface2;"),
+                makeClass("Lsubsub;", "Lsub;"),
+                // the superclass of this class isn't in the class path, so it can't be indexed
+                makeClass("Lunresolved;", "Lmissing;")));
+
+        File tempDir = Files.createTempDir();
+        try {
+            File indexFile = new File(tempDir, "index");
+            ClassPathIndex.write(indexFile, KEY, new ClassPath(new DexClassProvider(dexFile)), null);
+
+            Assert.assertNull(ClassPathIndex.load(indexFile, "another class path"));
+            ClassPathIndex index = ClassPathIndex.load(indexFile, KEY);
+            Assert.assertNotNull(index);
+            Assert.assertNull(index.getIndexedClass("Lunresolved;"));
+            Assert.assertNotNull(index.getIndexedClass("Lsubsub;"));
+            Assert.assertNotNull(index.getIndexedClass("Ljava/lang/Object;"));
+
+            ClassPath expectedClassPath = new ClassPath(new DexClassProvider(dexFile));
+            ClassPath indexedClassPath = new ClassPath(ImmutableList.of(new DexClassProvider(dexFile)), false,
+                    ClassPath.NOT_ART, index);
+
+            for (ClassDef classDef: dexFile.getClasses()) {
+                ClassProto expected = (ClassProto)expectedClassPath.getClass(classDef.getType());
+                ClassProto actual = (ClassProto)indexedClassPath.getClass(classDef.getType());
+                if (classDef.getType().equals("Lunresolved;")) {
+                    continue;
+                }
+
+                Assert.assertEquals(getVtable(expected), getVtable(actual));
+                Assert.assertEquals(getInstanceFields(expected), getInstanceFields(actual));
+                Assert.assertEquals(Lists.newArrayList(expected.getInterfaces().keySet()),
+                        Lists.newArrayList(actual.getInterfaces().keySet()));
+            }
+
+            Assert.assertTrue(indexedClassPath.getClass("Lsubsub;").implementsInterface("Liface1;"));
+            Assert.assertEquals("Lbase;", indexedClassPath.getClass("Lsubsub;").getCommonSuperclass(
+                    indexedClassPath.getClass("Lbase;")).getType());
+        } finally {
+            for (File file: tempDir.listFiles()) {
+                file.delete();
+            }
+            tempDir.delete();
+        }
+    }
+
+    @Nonnull
+    private static ClassDef makeClass(@Nonnull String type, @Nonnull String superclass, String... interfaces) {
+        List<Method> methods = ImmutableList.<Method>of(
+                new ImmutableMethod(type, "method", null, "V", AccessFlags.PUBLIC.getValue(), null, null),
+                new ImmutableMethod(type, type.substring(1, type.length() - 1), null, "I",
+                        AccessFlags.PUBLIC.getValue(), null, null));
+        List<Field> fields = ImmutableList.<Field>of(
+                new ImmutableField(type, "wide", "J", AccessFlags.PUBLIC.getValue(), null, null),
+                new ImmutableField(type, "ref", "Ljava/lang/Object;", AccessFlags.PUBLIC.getValue(), null, null));
+        return new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue(), superclass, ImmutableList.copyOf(interfaces),
+                null, null, fields, methods);
+    }
+
+    @Nonnull
+    private static ClassDef makeInterface(@Nonnull String type, String... interfaces) {
+        List<Method> methods = ImmutableList.<Method>of(
+                new ImmutableMethod(type, "method", null, "V",
+                        AccessFlags.PUBLIC.getValue() | AccessFlags.ABSTRACT.getValue(), null, null));
+        return new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue() | AccessFlags.INTERFACE.getValue(),
+                "Ljava/lang/Object;", ImmutableSet.copyOf(interfaces), null, null, null, methods);
+    }
+
+    @Nonnull
+    private static List<String> getVtable(@Nonnull ClassProto classProto) {
+        List<String> vtable = Lists.newArrayList();
+        for (Method method: classProto.getVtable()) {
+            vtable.add(ReferenceUtil.getMethodDescriptor(method) + ":" + method.getAccessFlags());
+        }
+        return vtable;
+    }
+
+    @Nonnull
+    private static List<String> getInstanceFields(@Nonnull ClassProto classProto) {
+        List<String> fields = Lists.newArrayList();
+        SparseArray<FieldReference> instanceFields = classProto.getInstanceFields();
+        for (int i=0; i<instanceFields.size(); i++) {
+            fields.add(instanceFields.keyAt(i) + ":" + ReferenceUtil.getFieldDescriptor(instanceFields.valueAt(i)));
+        }
+        return fields;
+    }
+}
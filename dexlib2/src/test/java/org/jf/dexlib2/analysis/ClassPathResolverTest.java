@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.analysis;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import junit.framework.Assert;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.writer.io.FileDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ClassPathResolverTest {
+    private static final int ENTRY_COUNT = 12;
+
+    @Test
+    public void testConcurrentLoading() throws IOException {
+        File tempDir = Files.createTempDir();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<String> bootClassPath = Lists.newArrayList();
+            for (int i=0; i<ENTRY_COUNT; i++) {
+                File file = new File(tempDir, "entry" + i + ".dex");
+                // every entry defines Lshared;, and each pair of adjacent entries defines the same Lpair<n>; class
+                writeDexFile(file, ImmutableList.of(
+                        makeClassDef("Lshared;", "Lentry" + i + ";"),
+                        makeClassDef("Lpair" + (i / 2) + ";", "Lentry" + i + ";"),
+                        makeClassDef("Lentry" + i + ";", null)));
+                bootClassPath.add(file.getPath());
+            }
+            // a duplicate entry, which should only be loaded once
+            bootClassPath.add(bootClassPath.get(3));
+
+            File extraFile = new File(tempDir, "extra.dex");
+            writeDexFile(extraFile, ImmutableList.of(makeClassDef("Lshared;", "Lextra;")));
+
+            ImmutableDexFile dexFile = new ImmutableDexFile(Opcodes.getDefault(),
+                    ImmutableList.of(makeClassDef("Lshared;", "Ldex;")));
+
+            ClassPathResolver serialResolver = new ClassPathResolver(ImmutableList.<String>of(), bootClassPath,
+                    ImmutableList.of(extraFile.getPath()), dexFile);
+            ClassPathResolver concurrentResolver = new ClassPathResolver(ImmutableList.<String>of(), bootClassPath,
+                    ImmutableList.of(extraFile.getPath()), dexFile, executor);
+
+            Assert.assertEquals(ENTRY_COUNT + 1, concurrentResolver.getLoadedFiles().size());
+            Assert.assertEquals(serialResolver.getLoadedFiles(), concurrentResolver.getLoadedFiles());
+            Assert.assertEquals(ENTRY_COUNT + 2, concurrentResolver.getResolvedClassProviders().size());
+            Assert.assertEquals(ENTRY_COUNT + 1, concurrentResolver.getClassPathProviders().size());
+
+            ClassPath serialClassPath = new ClassPath(serialResolver.getResolvedClassProviders(), false,
+                    ClassPath.NOT_ART);
+            ClassPath concurrentClassPath = new ClassPath(concurrentResolver.getResolvedClassProviders(), false,
+                    ClassPath.NOT_ART);
+
+            Assert.assertEquals("Lentry0;", concurrentClassPath.getClassDef("Lshared;").getSuperclass());
+            for (int i=0; i<ENTRY_COUNT/2; i++) {
+                String type = "Lpair" + i + ";";
+                Assert.assertEquals("Lentry" + (i * 2) + ";", concurrentClassPath.getClassDef(type).getSuperclass());
+                Assert.assertEquals(serialClassPath.getClassDef(type).getSuperclass(),
+                        concurrentClassPath.getClassDef(type).getSuperclass());
+            }
+        } finally {
+            executor.shutdown();
+            for (File file: tempDir.listFiles()) {
+                file.delete();
+            }
+            tempDir.delete();
+        }
+    }
+
+    @Test
+    public void testMissingEntry() throws IOException {
+        File tempDir = Files.createTempDir();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            File file = new File(tempDir, "entry.dex");
+            writeDexFile(file, ImmutableList.of(makeClassDef("La;", null)));
+
+            try {
+                new ClassPathResolver(ImmutableList.<String>of(),
+                        ImmutableList.of(file.getPath(), new File(tempDir, "missing.dex").getPath()),
+                        ImmutableList.<String>of(), new ImmutableDexFile(Opcodes.getDefault(),
+                                ImmutableList.<ClassDef>of()), executor);
+                Assert.fail();
+            } catch (ClassPathResolver.ResolveException ex) {
+                // expected
+            }
+        } finally {
+            executor.shutdown();
+            for (File file: tempDir.listFiles()) {
+                file.delete();
+            }
+            tempDir.delete();
+        }
+    }
+
+    @Nonnull
+    private static ClassDef makeClassDef(@Nonnull String type, @Nullable String superclass) {
+        return new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue(), superclass, null, null, null, null,
+                null);
+    }
+
+    private static void writeDexFile(@Nonnull File file, @Nonnull List<ClassDef> classDefs) throws IOException {
+        DexPool dexPool = new DexPool(Opcodes.getDefault());
+        for (ClassDef classDef: classDefs) {
+            dexPool.internClass(classDef);
+        }
+        dexPool.writeTo(new FileDataStore(file));
+    }
+}
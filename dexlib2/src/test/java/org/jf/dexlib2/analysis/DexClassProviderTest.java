@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.analysis;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import junit.framework.Assert;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+public class DexClassProviderTest {
+    private static final List<String> TYPES = Lists.newArrayList(
+            "Ljava/lang/Object;",
+            "La;",
+            "Lb;",
+            "Lorg/jf/Test;",
+            "Lorg/jf/Test$Inner;",
+            "Lorg/jf/\u00e9t\u00e9;",
+            "Lorg/jf/\u4e2d\u6587;",
+            "Lorg/jf/\ud83d\ude00;");
+
+    @Test
+    public void testDexBackedLookup() throws IOException {
+        List<ClassDef> classDefs = Lists.newArrayList();
+        for (int i=0; i<500; i++) {
+            classDefs.add(makeClassDef("Lpkg" + (i % 7) + "/Class" + i + ";", null));
+        }
+        for (String type: TYPES) {
+            classDefs.add(makeClassDef(type, null));
+        }
+
+        DexBackedDexFile dexFile = writeDexFile(classDefs);
+        DexClassProvider provider = new DexClassProvider(dexFile);
+
+        for (ClassDef classDef: classDefs) {
+            ClassDef found = provider.getClassDef(classDef.getType());
+            Assert.assertNotNull(classDef.getType(), found);
+            Assert.assertEquals(classDef.getType(), found.getType());
+        }
+
+        // the class def is created once, and then reused
+        Assert.assertSame(provider.getClassDef("La;"), provider.getClassDef("La;"));
+
+        Assert.assertNull(provider.getClassDef("Lmissing;"));
+        Assert.assertNull(provider.getClassDef("La"));
+        Assert.assertNull(provider.getClassDef("La;;"));
+        Assert.assertNull(provider.getClassDef("Lorg/jf/\u00e9t\u00e8;"));
+        Assert.assertNull(provider.getClassDef("Lorg/jf/\u4e2d;"));
+
+        Set<String> expectedTypes = ImmutableSet.copyOf(Lists.transform(classDefs,
+                new Function<ClassDef, String>() {
+                    @Nullable @Override public String apply(ClassDef classDef) {
+                        return classDef.getType();
+                    }
+                }));
+        Assert.assertEquals(expectedTypes, provider.getClassTypes());
+    }
+
+    @Test
+    public void testEmptyDexFile() throws IOException {
+        DexClassProvider provider = new DexClassProvider(writeDexFile(Lists.<ClassDef>newArrayList()));
+        Assert.assertNull(provider.getClassDef("La;"));
+        Assert.assertTrue(provider.getClassTypes().isEmpty());
+    }
+
+    @Test
+    public void testFirstProviderWins() throws IOException {
+        DexClassProvider provider1 = new DexClassProvider(writeDexFile(Lists.newArrayList(
+                makeClassDef("La;", "Lfirst;"),
+                makeClassDef("Lb;", "Lfirst;"))));
+        DexClassProvider provider2 = new DexClassProvider(new ImmutableDexFile(Opcodes.getDefault(),
+                Lists.newArrayList(
+                        makeClassDef("Lb;", "Lsecond;"),
+                        makeClassDef("Lc;", "Lsecond;"))));
+
+        // a provider that doesn't list its classes, between the 2 dex providers
+        ClassProvider provider3 = new ClassProvider() {
+            @Nullable @Override public ClassDef getClassDef(String type) {
+                if (type.equals("Lc;") || type.equals("Ld;")) {
+                    return makeClassDef(type, "Lthird;");
+                }
+                return null;
+            }
+        };
+
+        ClassPath classPath = new ClassPath(Lists.newArrayList(provider1, provider3, provider2), false,
+                ClassPath.NOT_ART);
+        Assert.assertEquals("Lfirst;", classPath.getClassDef("La;").getSuperclass());
+        Assert.assertEquals("Lfirst;", classPath.getClassDef("Lb;").getSuperclass());
+        Assert.assertEquals("Lthird;", classPath.getClassDef("Lc;").getSuperclass());
+        Assert.assertEquals("Lthird;", classPath.getClassDef("Ld;").getSuperclass());
+        Assert.assertEquals("Ljava/lang/Object;", classPath.getClassDef("Ljava/lang/String;").getSuperclass());
+
+        try {
+            classPath.getClassDef("Le;");
+            Assert.fail();
+        } catch (UnresolvedClassException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testTypeHashCollision() throws IOException {
+        // "LAa;" and "LBB;" have the same hash, so the merged index has both providers as candidates for either type
+        Assert.assertEquals(DexBackedClassIndex.hashType("LAa;"), DexBackedClassIndex.hashType("LBB;"));
+
+        DexClassProvider provider1 = new DexClassProvider(writeDexFile(Lists.newArrayList(
+                makeClassDef("LAa;", "Lfirst;"))));
+        DexClassProvider provider2 = new DexClassProvider(writeDexFile(Lists.newArrayList(
+                makeClassDef("LBB;", "Lsecond;"),
+                makeClassDef("LAa;", "Lsecond;"))));
+
+        ClassPath classPath = new ClassPath(Lists.newArrayList(provider1, provider2), false, ClassPath.NOT_ART);
+        Assert.assertEquals("Lfirst;", classPath.getClassDef("LAa;").getSuperclass());
+        Assert.assertEquals("Lsecond;", classPath.getClassDef("LBB;").getSuperclass());
+
+        try {
+            classPath.getClassDef("LC#;");
+            Assert.fail();
+        } catch (UnresolvedClassException ex) {
+            // expected
+        }
+    }
+
+    @Nonnull
+    private static ClassDef makeClassDef(@Nonnull String type, @Nullable String superclass) {
+        return new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue(), superclass, null, null, null, null,
+                null);
+    }
+
+    @Nonnull
+    private static DexBackedDexFile writeDexFile(@Nonnull List<ClassDef> classDefs) throws IOException {
+        MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool dexPool = new DexPool(Opcodes.getDefault());
+        for (ClassDef classDef: classDefs) {
+            dexPool.internClass(classDef);
+        }
+        dexPool.writeTo(dataStore);
+        return new DexBackedDexFile(Opcodes.getDefault(), dataStore.getBuffer());
+    }
+}
@@ -36,7 +36,9 @@ import org.jf.dexlib2.AccessFlags;
 import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.Opcodes;
 import org.jf.dexlib2.builder.MethodImplementationBuilder;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction10t;
 import org.jf.dexlib2.builder.instruction.BuilderInstruction10x;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction11n;
 import org.jf.dexlib2.builder.instruction.BuilderInstruction12x;
 import org.jf.dexlib2.builder.instruction.BuilderInstruction21t;
 import org.jf.dexlib2.builder.instruction.BuilderInstruction22c;
@@ -257,4 +259,35 @@ public class MethodAnalyzerTest {
         Assert.assertEquals("Ljava/lang/Object;",
                 analyzedInstructions.get(4).getPreInstructionRegisterType(2).type.getType());
     }
+
+    @Test
+    public void testReversePostOrder() throws IOException {
+        MethodImplementationBuilder builder = new MethodImplementationBuilder(1);
+
+        builder.addInstruction(new BuilderInstruction10t(Opcode.GOTO, builder.getLabel("second")));
+        builder.addLabel("third");
+        builder.addInstruction(new BuilderInstruction10x(Opcode.RETURN_VOID));
+        builder.addLabel("second");
+        builder.addInstruction(new BuilderInstruction11n(Opcode.CONST_4, 0, 0));
+        builder.addInstruction(new BuilderInstruction10t(Opcode.GOTO, builder.getLabel("third")));
+
+        MethodImplementation methodImplementation = builder.getMethodImplementation();
+
+        Method method = new ImmutableMethod("Lmain;", "jumps", null, "V",
+                AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(), null, methodImplementation);
+        ClassDef classDef = new ImmutableClassDef("Lmain;", AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;", null,
+                null, null, null, Collections.singletonList(method));
+        DexFile dexFile = new ImmutableDexFile(Opcodes.forApi(19), Collections.singletonList(classDef));
+
+        ClassPath classPath = new ClassPath(new DexClassProvider(dexFile));
+        MethodAnalyzer methodAnalyzer = new MethodAnalyzer(classPath, method, null, false);
+
+        // Since the instructions are processed in control flow order rather than instruction index order, each
+        // instruction is only analyzed once, in a single pass
+        Assert.assertEquals(4, methodAnalyzer.getAnalyzedInstructionCount());
+        Assert.assertEquals(1, methodAnalyzer.getIterationCount());
+
+        List<AnalyzedInstruction> analyzedInstructions = methodAnalyzer.getAnalyzedInstructions();
+        Assert.assertEquals(RegisterType.NULL_TYPE, analyzedInstructions.get(1).getPreInstructionRegisterType(0));
+    }
 }
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.analysis;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import junit.framework.Assert;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Field;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.reference.FieldReference;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.ImmutableField;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.util.ReferenceUtil;
+import org.jf.util.SparseArray;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class PrecomputeClassTablesTest {
+    private static final int CLASS_COUNT = 1000;
+
+    @Test
+    public void testPrecomputeClassTables() throws Exception {
+        ImmutableDexFile dexFile = makeDexFile();
+
+        ClassPath serialClassPath = new ClassPath(Lists.newArrayList(new DexClassProvider(dexFile)), false,
+                ClassPath.NOT_ART);
+        ClassPath parallelClassPath = new ClassPath(Lists.newArrayList(new DexClassProvider(dexFile)), false,
+                ClassPath.NOT_ART);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            parallelClassPath.precomputeClassTables(executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        for (ClassDef classDef: dexFile.getClasses()) {
+            ClassProto expected = (ClassProto)serialClassPath.getClass(classDef.getType());
+            ClassProto actual = (ClassProto)parallelClassPath.getClass(classDef.getType());
+
+            Assert.assertEquals(getVtable(expected), getVtable(actual));
+            Assert.assertEquals(getInstanceFields(expected), getInstanceFields(actual));
+        }
+    }
+
+    /**
+     * Creates a set of classes in a random-ish hierarchy, where each class overrides some of the methods of its
+     * superclass and adds a few of its own, along with a few fields
+     */
+    @Nonnull
+    private static ImmutableDexFile makeDexFile() {
+        Random random = new Random(0);
+        List<ClassDef> classDefs = Lists.newArrayList();
+        for (int i=0; i<CLASS_COUNT; i++) {
+            String type = getType(i);
+            String superclass = i == 0 ? "Ljava/lang/Object;" : getType(random.nextInt(i));
+
+            List<Method> methods = Lists.newArrayList();
+            for (int j=0; j<3; j++) {
+                methods.add(new ImmutableMethod(type, "method" + ((i + j) % 16), null, "V",
+                        AccessFlags.PUBLIC.getValue(), null, null));
+            }
+
+            List<Field> fields = ImmutableList.<Field>of(
+                    new ImmutableField(type, "wide" + i, "J", AccessFlags.PUBLIC.getValue(), null, null),
+                    new ImmutableField(type, "ref" + i, "Ljava/lang/Object;", AccessFlags.PUBLIC.getValue(), null,
+                            null),
+                    new ImmutableField(type, "int" + i, "I", AccessFlags.PUBLIC.getValue(), null, null));
+
+            classDefs.add(new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue(), superclass, null, null, null,
+                    fields, methods));
+        }
+        return new ImmutableDexFile(Opcodes.getDefault(), classDefs);
+    }
+
+    @Nonnull
+    private static String getType(int index) {
+        return "Lclass" + index + ";";
+    }
+
+    @Nonnull
+    private static List<String> getVtable(@Nonnull ClassProto classProto) {
+        List<String> vtable = Lists.newArrayList();
+        for (Method method: classProto.getVtable()) {
+            vtable.add(ReferenceUtil.getMethodDescriptor(method));
+        }
+        return vtable;
+    }
+
+    @Nonnull
+    private static List<String> getInstanceFields(@Nonnull ClassProto classProto) {
+        List<String> fields = Lists.newArrayList();
+        SparseArray<FieldReference> instanceFields = classProto.getInstanceFields();
+        for (int i=0; i<instanceFields.size(); i++) {
+            fields.add(instanceFields.keyAt(i) + ":" +
+                    ReferenceUtil.getFieldDescriptor(instanceFields.valueAt(i)));
+        }
+        return fields;
+    }
+}
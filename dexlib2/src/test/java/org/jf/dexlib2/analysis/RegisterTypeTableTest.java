@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.analysis;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class RegisterTypeTableTest {
+    @Test
+    public void testRegisterTypeIds() throws IOException {
+        ClassPath classPath = new ClassPath(Lists.newArrayList(new DexClassProvider(new ImmutableDexFile(
+                Opcodes.getDefault(), ImmutableList.of(
+                        classDef("Lsuper;", "Ljava/lang/Object;"),
+                        classDef("Lsub1;", "Lsuper;"),
+                        classDef("Lsub2;", "Lsuper;"))))), false, 15);
+        RegisterTypeTable table = new RegisterTypeTable();
+
+        Assert.assertEquals(0, table.getId(RegisterType.UNKNOWN_TYPE));
+        Assert.assertEquals(RegisterType.INTEGER, table.getId(RegisterType.INTEGER_TYPE));
+        Assert.assertSame(RegisterType.CONFLICTED_TYPE, table.getRegisterType(RegisterType.CONFLICTED));
+
+        RegisterType sub1 = RegisterType.getRegisterType(RegisterType.REFERENCE, classPath.getClass("Lsub1;"));
+        RegisterType sub2 = RegisterType.getRegisterType(RegisterType.REFERENCE, classPath.getClass("Lsub2;"));
+        int sub1Id = table.getId(sub1);
+        int sub2Id = table.getId(sub2);
+        Assert.assertTrue(sub1Id >= RegisterTypeTable.CATEGORY_COUNT);
+        Assert.assertTrue(sub1Id != sub2Id);
+        Assert.assertEquals(sub1Id,
+                table.getId(RegisterType.getRegisterType(RegisterType.REFERENCE, classPath.getClass("Lsub1;"))));
+
+        // each uninitialized reference is distinct, even if it has the same type
+        int uninit1 = table.getId(RegisterType.getRegisterType(RegisterType.UNINIT_REF, classPath.getClass("Lsub1;")));
+        int uninit2 = table.getId(RegisterType.getRegisterType(RegisterType.UNINIT_REF, classPath.getClass("Lsub1;")));
+        Assert.assertTrue(uninit1 != uninit2);
+        Assert.assertEquals(RegisterType.CONFLICTED, table.merge(uninit1, uninit2));
+
+        int mergedId = table.merge(sub1Id, sub2Id);
+        Assert.assertEquals("Lsuper;", table.getRegisterType(mergedId).type.getType());
+        Assert.assertEquals(mergedId, table.merge(sub1Id, sub2Id));
+        Assert.assertEquals(sub1Id, table.merge(sub1Id, RegisterType.NULL));
+        Assert.assertEquals(RegisterType.INTEGER, table.merge(RegisterType.CHAR, RegisterType.SHORT));
+    }
+
+    private static ClassDef classDef(String type, String superclass) {
+        return new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue(), superclass, null, null, null, null, null);
+    }
+}
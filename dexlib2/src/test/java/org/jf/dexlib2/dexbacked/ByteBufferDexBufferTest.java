@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.dexlib2.dexbacked;
+
+import com.google.common.collect.Lists;
+import junit.framework.Assert;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+public class ByteBufferDexBufferTest {
+    @Test
+    public void testReadRandom() {
+        Random r = new Random(1234567890);
+        byte[] buf = new byte[1024];
+        r.nextBytes(buf);
+
+        ByteBuffer byteBuf = ByteBuffer.allocateDirect(buf.length);
+        byteBuf.put(buf);
+
+        BaseDexBuffer arrayDexBuf = new BaseDexBuffer(buf);
+        BaseDexBuffer byteBufDexBuf = new BaseDexBuffer(byteBuf);
+
+        for (int i=0; i<buf.length - 8; i++) {
+            Assert.assertEquals(arrayDexBuf.readInt(i), byteBufDexBuf.readInt(i));
+            Assert.assertEquals(arrayDexBuf.readShort(i), byteBufDexBuf.readShort(i));
+            Assert.assertEquals(arrayDexBuf.readUshort(i), byteBufDexBuf.readUshort(i));
+            Assert.assertEquals(arrayDexBuf.readByte(i), byteBufDexBuf.readByte(i));
+            Assert.assertEquals(arrayDexBuf.readUbyte(i), byteBufDexBuf.readUbyte(i));
+            Assert.assertEquals(arrayDexBuf.readLong(i), byteBufDexBuf.readLong(i));
+
+            for (int size=1; size<=4; size++) {
+                Assert.assertEquals(arrayDexBuf.readerAt(i).readSizedInt(size),
+                        byteBufDexBuf.readerAt(i).readSizedInt(size));
+                Assert.assertEquals(arrayDexBuf.readerAt(i).readSizedRightExtendedInt(size),
+                        byteBufDexBuf.readerAt(i).readSizedRightExtendedInt(size));
+            }
+            for (int size=1; size<=8; size++) {
+                Assert.assertEquals(arrayDexBuf.readerAt(i).readSizedLong(size),
+                        byteBufDexBuf.readerAt(i).readSizedLong(size));
+            }
+
+            BaseDexReader arrayReader = arrayDexBuf.readerAt(i);
+            BaseDexReader byteBufReader = byteBufDexBuf.readerAt(i);
+            try {
+                Assert.assertEquals(arrayReader.readBigUleb128(), byteBufReader.readBigUleb128());
+                Assert.assertEquals(arrayReader.getOffset(), byteBufReader.getOffset());
+            } catch (RuntimeException ex) {
+                // the random data isn't a valid uleb128 at this offset
+            }
+
+            arrayReader = arrayDexBuf.readerAt(i);
+            byteBufReader = byteBufDexBuf.readerAt(i);
+            try {
+                Assert.assertEquals(arrayReader.readSleb128(), byteBufReader.readSleb128());
+                Assert.assertEquals(arrayReader.getOffset(), byteBufReader.getOffset());
+            } catch (RuntimeException ex) {
+                // the random data isn't a valid sleb128 at this offset
+            }
+        }
+    }
+
+    @Test
+    public void testMappedDexFile() throws IOException {
+        URL url = ByteBufferDexBufferTest.class.getClassLoader().getResource("accessorTest.dex");
+        Assert.assertNotNull(url);
+        File file = new File(url.getFile());
+
+        DexBackedDexFile dexFile = DexFileFactory.loadDexFile(file, Opcodes.getDefault());
+        DexBackedDexFile mappedDexFile = DexFileFactory.mapDexFile(file, Opcodes.getDefault());
+
+        Assert.assertNull(mappedDexFile.getBuf());
+        Assert.assertNotNull(mappedDexFile.getByteBuffer());
+
+        List<? extends ClassDef> classes = Lists.newArrayList(dexFile.getClasses());
+        List<? extends ClassDef> mappedClasses = Lists.newArrayList(mappedDexFile.getClasses());
+        Assert.assertEquals(classes.size(), mappedClasses.size());
+
+        for (int i=0; i<classes.size(); i++) {
+            ClassDef classDef = classes.get(i);
+            ClassDef mappedClassDef = mappedClasses.get(i);
+            Assert.assertEquals(classDef, mappedClassDef);
+
+            List<? extends Method> methods = Lists.newArrayList(classDef.getMethods());
+            List<? extends Method> mappedMethods = Lists.newArrayList(mappedClassDef.getMethods());
+            Assert.assertEquals(methods, mappedMethods);
+
+            for (int j=0; j<methods.size(); j++) {
+                MethodImplementation impl = methods.get(j).getImplementation();
+                MethodImplementation mappedImpl = mappedMethods.get(j).getImplementation();
+                if (impl == null) {
+                    Assert.assertNull(mappedImpl);
+                    continue;
+                }
+                Assert.assertNotNull(mappedImpl);
+
+                List<? extends Instruction> instructions = Lists.newArrayList(impl.getInstructions());
+                List<? extends Instruction> mappedInstructions = Lists.newArrayList(mappedImpl.getInstructions());
+                Assert.assertEquals(instructions.size(), mappedInstructions.size());
+                for (int k=0; k<instructions.size(); k++) {
+                    Assert.assertEquals(instructions.get(k).getOpcode(), mappedInstructions.get(k).getOpcode());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.dexbacked;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.builder.Label;
+import org.jf.dexlib2.builder.MethodImplementationBuilder;
+import org.jf.dexlib2.builder.SwitchLabelElement;
+import org.jf.dexlib2.builder.instruction.*;
+import org.jf.dexlib2.dexbacked.instruction.DexBackedInstruction;
+import org.jf.dexlib2.dexbacked.instruction.DexBackedInstructionCursor;
+import org.jf.dexlib2.iface.instruction.*;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
+import org.jf.dexlib2.immutable.reference.ImmutableTypeReference;
+import org.jf.dexlib2.util.SyntheticAccessorFSM;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+
+public class DexBackedInstructionCursorTest {
+    @Test
+    public void testAccessorTest() throws IOException {
+        URL url = DexBackedInstructionCursorTest.class.getClassLoader().getResource("accessorTest.dex");
+        Assert.assertNotNull(url);
+        DexBackedDexFile dexFile = DexFileFactory.loadDexFile(new File(url.getFile()), Opcodes.getDefault());
+
+        SyntheticAccessorFSM fsm = new SyntheticAccessorFSM(dexFile.getOpcodes());
+        DexBackedInstructionCursor cursor = new DexBackedInstructionCursor(dexFile);
+        int accessors = 0;
+        for (DexBackedClassDef classDef: dexFile.getClasses()) {
+            for (DexBackedMethod method: classDef.getMethods()) {
+                DexBackedMethodImplementation impl = method.getImplementation();
+                if (impl != null) {
+                    cursor.reset(impl);
+                    assertMatches(impl, cursor);
+
+                    int accessorType = fsm.test(ImmutableList.copyOf(impl.getInstructions()));
+                    Assert.assertEquals(accessorType, fsm.test(cursor));
+                    if (accessorType >= 0) {
+                        accessors++;
+                    }
+                }
+            }
+        }
+        Assert.assertTrue(accessors > 0);
+    }
+
+    @Test
+    public void testFormats() throws IOException {
+        MethodImplementationBuilder builder = new MethodImplementationBuilder(400);
+        Label start = builder.addLabel("start");
+        builder.addInstruction(new BuilderInstruction11n(Opcode.CONST_4, 1, -3));
+        builder.addInstruction(new BuilderInstruction21s(Opcode.CONST_16, 2, -1000));
+        builder.addInstruction(new BuilderInstruction21ih(Opcode.CONST_HIGH16, 3, 0xfedc0000));
+        builder.addInstruction(new BuilderInstruction21lh(Opcode.CONST_WIDE_HIGH16, 4, 0x8765000000000000L));
+        builder.addInstruction(new BuilderInstruction31i(Opcode.CONST, 6, 0x12345678));
+        builder.addInstruction(new BuilderInstruction51l(Opcode.CONST_WIDE, 7, 0x123456789abcdef0L));
+        builder.addInstruction(new BuilderInstruction22b(Opcode.ADD_INT_LIT8, 9, 200, -5));
+        builder.addInstruction(new BuilderInstruction22s(Opcode.ADD_INT_LIT16, 10, 11, 300));
+        builder.addInstruction(new BuilderInstruction32x(Opcode.MOVE_16, 300, 301));
+        builder.addInstruction(new BuilderInstruction22x(Opcode.MOVE_FROM16, 12, 302));
+        builder.addInstruction(new BuilderInstruction23x(Opcode.ADD_INT, 13, 254, 255));
+        builder.addInstruction(new BuilderInstruction12x(Opcode.MOVE, 14, 15));
+        builder.addInstruction(new BuilderInstruction21c(Opcode.CONST_STRING, 200,
+                new ImmutableStringReference("string")));
+        builder.addInstruction(new BuilderInstruction21c(Opcode.CONST_CLASS, 201,
+                new ImmutableTypeReference("Lcursor;")));
+        builder.addInstruction(new BuilderInstruction22c(Opcode.IGET, 1, 2,
+                new ImmutableFieldReference("Lcursor;", "field", "I")));
+        builder.addInstruction(new BuilderInstruction35c(Opcode.INVOKE_STATIC, 5, 1, 2, 3, 4, 5,
+                new ImmutableMethodReference("Lcursor;", "five", ImmutableList.of("I", "I", "I", "I", "I"), "V")));
+        builder.addInstruction(new BuilderInstruction3rc(Opcode.INVOKE_STATIC_RANGE, 300, 2,
+                new ImmutableMethodReference("Lcursor;", "two", ImmutableList.of("I", "I"), "V")));
+
+        Label packedSwitch = builder.getLabel("packedSwitch");
+        Label sparseSwitch = builder.getLabel("sparseSwitch");
+        Label arrayData = builder.getLabel("arrayData");
+        Label end = builder.getLabel("end");
+        builder.addInstruction(new BuilderInstruction31t(Opcode.PACKED_SWITCH, 1, packedSwitch));
+        builder.addInstruction(new BuilderInstruction31t(Opcode.SPARSE_SWITCH, 1, sparseSwitch));
+        builder.addInstruction(new BuilderInstruction31t(Opcode.FILL_ARRAY_DATA, 16, arrayData));
+        builder.addInstruction(new BuilderInstruction21t(Opcode.IF_EQZ, 1, start));
+        builder.addInstruction(new BuilderInstruction22t(Opcode.IF_NE, 1, 2, end));
+        builder.addInstruction(new BuilderInstruction10t(Opcode.GOTO, start));
+        builder.addInstruction(new BuilderInstruction20t(Opcode.GOTO_16, end));
+        builder.addInstruction(new BuilderInstruction30t(Opcode.GOTO_32, start));
+        builder.addLabel("end");
+        builder.addInstruction(new BuilderInstruction10x(Opcode.RETURN_VOID));
+
+        builder.addLabel("packedSwitch");
+        builder.addInstruction(new BuilderPackedSwitchPayload(10, ImmutableList.of(start, end, start)));
+        builder.addLabel("sparseSwitch");
+        builder.addInstruction(new BuilderSparseSwitchPayload(ImmutableList.of(
+                new SwitchLabelElement(-5, start), new SwitchLabelElement(1000, end))));
+        builder.addLabel("arrayData");
+        builder.addInstruction(new BuilderArrayPayload(1, Lists.<Number>newArrayList(1, 2, 3)));
+
+        ImmutableMethod method = new ImmutableMethod("Lcursor;", "test", null, "V",
+                AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(), null,
+                builder.getMethodImplementation());
+        ImmutableClassDef classDef = new ImmutableClassDef("Lcursor;", AccessFlags.PUBLIC.getValue(),
+                "Ljava/lang/Object;", null, null, null, null, ImmutableList.of(method));
+
+        MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool.writeTo(dataStore, new ImmutableDexFile(Opcodes.getDefault(), ImmutableList.of(classDef)));
+        DexBackedDexFile dexFile = new DexBackedDexFile(Opcodes.getDefault(), dataStore.getData());
+
+        DexBackedMethodImplementation impl = dexFile.getClasses().iterator().next().getMethods().iterator().next()
+                .getImplementation();
+        Assert.assertNotNull(impl);
+        DexBackedInstructionCursor cursor = new DexBackedInstructionCursor(impl);
+        assertMatches(impl, cursor);
+
+        cursor.rewind();
+        Assert.assertTrue(cursor.next());
+        Assert.assertEquals(Opcode.CONST_4, cursor.getOpcode());
+        Assert.assertEquals(-3, cursor.getNarrowLiteral());
+        Assert.assertEquals(-3L, cursor.getWideLiteral());
+        try {
+            cursor.getRegisterB();
+            Assert.fail();
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        try {
+            cursor.getReferenceIndex();
+            Assert.fail();
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        Assert.assertTrue(cursor.skip(5));
+        Assert.assertEquals(Opcode.CONST_WIDE, cursor.getOpcode());
+        Assert.assertEquals(0x123456789abcdef0L, cursor.getWideLiteral());
+        Assert.assertFalse(cursor.skip(100));
+        Assert.assertEquals(impl.getInstructionsSize(), countCodeUnits(cursor));
+    }
+
+    private static int countCodeUnits(@Nonnull DexBackedInstructionCursor cursor) {
+        cursor.rewind();
+        int codeUnits = 0;
+        while (cursor.next()) {
+            codeUnits += cursor.getCodeUnits();
+        }
+        return codeUnits;
+    }
+
+    private static void assertMatches(@Nonnull DexBackedMethodImplementation impl,
+                                      @Nonnull DexBackedInstructionCursor cursor) {
+        int codeAddress = 0;
+        int index = 0;
+        for (Instruction instruction: impl.getInstructions()) {
+            Assert.assertTrue(cursor.next());
+            Assert.assertEquals(((DexBackedInstruction)instruction).instructionStart, cursor.getOffset());
+            Assert.assertEquals(codeAddress, cursor.getCodeAddress());
+            Assert.assertEquals(index, cursor.getIndex());
+            Assert.assertEquals(instruction.getOpcode(), cursor.getOpcode());
+            Assert.assertEquals(instruction.getCodeUnits(), cursor.getCodeUnits());
+
+            if (instruction instanceof OneRegisterInstruction) {
+                Assert.assertEquals(((OneRegisterInstruction)instruction).getRegisterA(), cursor.getRegisterA());
+            }
+            if (instruction instanceof TwoRegisterInstruction) {
+                Assert.assertEquals(((TwoRegisterInstruction)instruction).getRegisterB(), cursor.getRegisterB());
+            }
+            if (instruction instanceof ThreeRegisterInstruction) {
+                Assert.assertEquals(((ThreeRegisterInstruction)instruction).getRegisterC(), cursor.getRegisterC());
+            }
+            if (instruction instanceof FiveRegisterInstruction) {
+                FiveRegisterInstruction fiveRegisterInstruction = (FiveRegisterInstruction)instruction;
+                Assert.assertEquals(fiveRegisterInstruction.getRegisterCount(), cursor.getRegisterCount());
+                Assert.assertEquals(fiveRegisterInstruction.getRegisterC(), cursor.getRegisterC());
+                Assert.assertEquals(fiveRegisterInstruction.getRegisterD(), cursor.getRegisterD());
+                Assert.assertEquals(fiveRegisterInstruction.getRegisterE(), cursor.getRegisterE());
+                Assert.assertEquals(fiveRegisterInstruction.getRegisterF(), cursor.getRegisterF());
+                Assert.assertEquals(fiveRegisterInstruction.getRegisterG(), cursor.getRegisterG());
+            }
+            if (instruction instanceof RegisterRangeInstruction) {
+                RegisterRangeInstruction registerRangeInstruction = (RegisterRangeInstruction)instruction;
+                Assert.assertEquals(registerRangeInstruction.getRegisterCount(), cursor.getRegisterCount());
+                Assert.assertEquals(registerRangeInstruction.getStartRegister(), cursor.getStartRegister());
+            }
+            if (instruction instanceof NarrowLiteralInstruction) {
+                Assert.assertEquals(((NarrowLiteralInstruction)instruction).getNarrowLiteral(),
+                        cursor.getNarrowLiteral());
+            }
+            if (instruction instanceof WideLiteralInstruction) {
+                Assert.assertEquals(((WideLiteralInstruction)instruction).getWideLiteral(), cursor.getWideLiteral());
+            }
+            if (instruction instanceof OffsetInstruction) {
+                Assert.assertEquals(((OffsetInstruction)instruction).getCodeOffset(), cursor.getCodeOffset());
+            }
+            if (instruction instanceof ReferenceInstruction) {
+                ReferenceInstruction referenceInstruction = (ReferenceInstruction)instruction;
+                Assert.assertEquals(referenceInstruction.getReferenceType(), cursor.getReferenceType());
+                Assert.assertEquals(referenceInstruction.getReference(), cursor.getReference());
+            }
+
+            codeAddress += instruction.getCodeUnits();
+            index++;
+        }
+        Assert.assertFalse(cursor.next());
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.dexbacked;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import junit.framework.Assert;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.ZipDexContainer.ZipDexFile;
+import org.jf.dexlib2.iface.MultiDexContainer;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class MappedZipDexContainerTest {
+    @Test
+    public void testMappedZipDexContainer() throws IOException {
+        byte[] dexBytes = readResource("accessorTest.dex");
+
+        File tempDir = Files.createTempDir();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            File zipFile = new File(tempDir, "test.apk");
+            ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(zipFile));
+            try {
+                addEntry(zipOutputStream, "classes.dex", dexBytes, false);
+                addEntry(zipOutputStream, "res/raw.txt", "not a dex file".getBytes("UTF-8"), false);
+                addEntry(zipOutputStream, "classes2.dex", dexBytes, true);
+                addEntry(zipOutputStream, "short.dex", new byte[] {'d', 'e', 'x', '\n'}, true);
+                addEntry(zipOutputStream, "classes3.dex", dexBytes, false);
+            } finally {
+                zipOutputStream.close();
+            }
+
+            ZipDexContainer expectedContainer = new ZipDexContainer(zipFile, Opcodes.getDefault());
+            MappedZipDexContainer container = new MappedZipDexContainer(zipFile, Opcodes.getDefault());
+
+            Assert.assertTrue(container.isZipFile());
+            Assert.assertEquals(ImmutableList.of("classes.dex", "classes2.dex", "classes3.dex"),
+                    container.getDexEntryNames());
+            Assert.assertEquals(expectedContainer.getDexEntryNames(), container.getDexEntryNames());
+            Assert.assertNull(container.getEntry("missing.dex"));
+
+            List<ZipDexFile> dexFiles = container.getDexEntries(executor);
+            Assert.assertEquals(3, dexFiles.size());
+            for (ZipDexFile dexFile: dexFiles) {
+                Assert.assertSame(container, dexFile.getContainer());
+                Assert.assertSame(dexFile, container.getEntry(dexFile.getEntryName()));
+
+                ZipDexFile expectedDexFile = expectedContainer.getEntry(dexFile.getEntryName());
+                Assert.assertNotNull(expectedDexFile);
+                Assert.assertEquals(Lists.newArrayList(expectedDexFile.getClasses()),
+                        Lists.newArrayList(dexFile.getClasses()));
+            }
+
+            // the stored entry is read directly from the mapping, while the compressed entries are inflated
+            Assert.assertNotNull(container.getEntry("classes2.dex").getByteBuffer());
+            Assert.assertNotNull(container.getEntry("classes.dex").getBuf());
+
+            MultiDexContainer<? extends DexBackedDexFile> mappedContainer =
+                    DexFileFactory.mapDexContainer(zipFile, Opcodes.getDefault());
+            Assert.assertTrue(mappedContainer instanceof MappedZipDexContainer);
+
+            File notAZipFile = new File(tempDir, "classes.dex");
+            Files.write(dexBytes, notAZipFile);
+            Assert.assertFalse(new MappedZipDexContainer(notAZipFile, Opcodes.getDefault()).isZipFile());
+        } finally {
+            executor.shutdown();
+            for (File file: tempDir.listFiles()) {
+                file.delete();
+            }
+            tempDir.delete();
+        }
+    }
+
+    private static void addEntry(@Nonnull ZipOutputStream zipOutputStream, @Nonnull String name,
+                                 @Nonnull byte[] data, boolean stored) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        if (stored) {
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(data.length);
+            entry.setCompressedSize(data.length);
+            entry.setCrc(crc.getValue());
+        }
+        zipOutputStream.putNextEntry(entry);
+        zipOutputStream.write(data);
+        zipOutputStream.closeEntry();
+    }
+
+    @Nonnull
+    private static byte[] readResource(@Nonnull String name) throws IOException {
+        InputStream inputStream = MappedZipDexContainerTest.class.getClassLoader().getResourceAsStream(name);
+        Assert.assertNotNull(inputStream);
+        try {
+            return ByteStreams.toByteArray(inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+}
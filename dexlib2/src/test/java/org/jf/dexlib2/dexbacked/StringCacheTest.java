@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.dexbacked;
+
+import junit.framework.Assert;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.util.StringCache;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+
+public class StringCacheTest {
+    @Test
+    public void testStrongCache() throws IOException {
+        testCache(false);
+    }
+
+    @Test
+    public void testSoftCache() throws IOException {
+        testCache(true);
+    }
+
+    private void testCache(boolean softReferences) throws IOException {
+        URL url = StringCacheTest.class.getClassLoader().getResource("accessorTest.dex");
+        Assert.assertNotNull(url);
+        File file = new File(url.getFile());
+
+        DexBackedDexFile dexFile = DexFileFactory.loadDexFile(file, Opcodes.getDefault());
+        DexBackedDexFile cachedDexFile = DexFileFactory.loadDexFile(file, Opcodes.getDefault());
+        Assert.assertNull(cachedDexFile.getStringCache());
+
+        cachedDexFile.enableStringCache(softReferences, true);
+        StringCache stringCache = cachedDexFile.getStringCache();
+        Assert.assertNotNull(stringCache);
+        Assert.assertEquals(softReferences, stringCache.usesSoftReferences());
+        Assert.assertTrue(stringCache.recordsStats());
+
+        int stringCount = dexFile.getStringCount();
+        for (int i=0; i<stringCount; i++) {
+            Assert.assertEquals(dexFile.getString(i), cachedDexFile.getString(i));
+        }
+        Assert.assertEquals(0, stringCache.getHitCount());
+        Assert.assertEquals(stringCount, stringCache.getMissCount());
+
+        for (int i=0; i<stringCount; i++) {
+            String string = cachedDexFile.getString(i);
+            if (!softReferences) {
+                Assert.assertSame(string, cachedDexFile.getString(i));
+            }
+        }
+        if (!softReferences) {
+            Assert.assertEquals(stringCount * 2, stringCache.getHitCount());
+            Assert.assertEquals(stringCount, stringCache.getMissCount());
+        }
+
+        for (int i=0; i<dexFile.getTypeCount(); i++) {
+            Assert.assertEquals(dexFile.getType(i), cachedDexFile.getType(i));
+        }
+
+        cachedDexFile.disableStringCache();
+        Assert.assertNull(cachedDexFile.getStringCache());
+
+        // without stats, lookups aren't counted
+        cachedDexFile.enableStringCache(softReferences);
+        stringCache = cachedDexFile.getStringCache();
+        Assert.assertNotNull(stringCache);
+        Assert.assertFalse(stringCache.recordsStats());
+        for (int i=0; i<stringCount; i++) {
+            Assert.assertEquals(dexFile.getString(i), cachedDexFile.getString(i));
+            Assert.assertEquals(dexFile.getString(i), cachedDexFile.getString(i));
+        }
+        Assert.assertEquals(0, stringCache.getHitCount());
+        Assert.assertEquals(0, stringCache.getMissCount());
+    }
+}
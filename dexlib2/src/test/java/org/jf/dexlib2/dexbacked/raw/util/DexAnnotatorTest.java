@@ -0,0 +1,153 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.dexbacked.raw.util;
+
+import com.google.common.collect.ImmutableSet;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.raw.ItemType;
+import org.jf.dexlib2.dexbacked.raw.RawDexFile;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class DexAnnotatorTest {
+    private static final Pattern HEX_LINE = Pattern.compile("^([0-9a-f]{6}): ", Pattern.MULTILINE);
+
+    @Test
+    public void testStreamingMatchesWriteAnnotations() throws IOException {
+        RawDexFile dexFile = loadDexFile();
+
+        StringWriter expected = new StringWriter();
+        new DexAnnotator(dexFile, 120).writeAnnotations(expected);
+
+        StringWriter actual = new StringWriter();
+        new DexAnnotator(dexFile, 120).streamAnnotations(actual);
+
+        Assert.assertTrue(expected.toString().length() > 0);
+        Assert.assertEquals(expected.toString(), actual.toString());
+    }
+
+    @Test
+    public void testParallelMatchesWriteAnnotations() throws IOException {
+        RawDexFile dexFile = loadDexFile();
+
+        StringWriter expected = new StringWriter();
+        new DexAnnotator(dexFile, 120).writeAnnotations(expected);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            StringWriter actual = new StringWriter();
+            new DexAnnotator(dexFile, 120).writeAnnotations(actual, executor);
+            Assert.assertEquals(expected.toString(), actual.toString());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testStreamingSections() throws IOException {
+        RawDexFile dexFile = loadDexFile();
+
+        StringWriter full = new StringWriter();
+        new DexAnnotator(dexFile, 120).writeAnnotations(full);
+
+        StringWriter sections = new StringWriter();
+        new DexAnnotator(dexFile, 120).streamSectionAnnotations(sections,
+                ImmutableSet.of(ItemType.CODE_ITEM, ItemType.DEBUG_INFO_ITEM));
+        String output = sections.toString();
+
+        Assert.assertTrue(output.contains("code_item section"));
+        Assert.assertTrue(output.contains("debug_info_item section"));
+        Assert.assertFalse(output.contains("string_id_item section"));
+        Assert.assertFalse(output.contains("class_data_item section"));
+        // the item identities from the class_def and class_data sections should still be available
+        Assert.assertTrue(output.contains("[0] code_item: L"));
+        Assert.assertTrue(output.contains("[0] debug_info_item: L"));
+        assertLinesInOrder(full.toString(), output);
+    }
+
+    @Test
+    public void testStreamingRange() throws IOException {
+        RawDexFile dexFile = loadDexFile();
+
+        StringWriter full = new StringWriter();
+        new DexAnnotator(dexFile, 120).writeAnnotations(full);
+
+        StringWriter range = new StringWriter();
+        new DexAnnotator(dexFile, 120).streamAnnotations(range, 0x70, 0x100);
+        String output = range.toString();
+
+        Matcher matcher = HEX_LINE.matcher(output);
+        int lineCount = 0;
+        while (matcher.find()) {
+            int offset = Integer.parseInt(matcher.group(1), 16);
+            Assert.assertTrue(offset >= 0x70 && offset < 0x100);
+            lineCount++;
+        }
+        Assert.assertTrue(lineCount > 0);
+        Assert.assertTrue(output.contains("string_id_item section"));
+        Assert.assertFalse(output.contains("header_item section"));
+        assertLinesInOrder(full.toString(), output);
+    }
+
+    private static void assertLinesInOrder(@Nonnull String expected, @Nonnull String actual) {
+        String[] expectedLines = expected.split("\n");
+        int index = 0;
+        for (String line: actual.split("\n")) {
+            while (index < expectedLines.length && !expectedLines[index].equals(line)) {
+                index++;
+            }
+            Assert.assertTrue("Unexpected line: " + line, index < expectedLines.length);
+            index++;
+        }
+    }
+
+    @Nonnull
+    private static RawDexFile loadDexFile() throws IOException {
+        URL url = DexAnnotatorTest.class.getClassLoader().getResource("accessorTest.dex");
+        Assert.assertNotNull(url);
+        DexBackedDexFile dexFile = DexFileFactory.loadDexFile(new File(url.getFile()), Opcodes.getDefault());
+        return new RawDexFile(dexFile.getOpcodes(), dexFile);
+    }
+}
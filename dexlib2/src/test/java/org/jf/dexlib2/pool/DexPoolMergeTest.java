@@ -0,0 +1,200 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.pool;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.builder.Label;
+import org.jf.dexlib2.builder.MethodImplementationBuilder;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction10x;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction11x;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction21c;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction35c;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableDexFile;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.immutable.reference.ImmutableFieldReference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.immutable.reference.ImmutableStringReference;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+
+public class DexPoolMergeTest {
+    @Test
+    public void testRewrite() throws IOException {
+        DexBackedDexFile dexFile = loadAccessorTest();
+
+        MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool.merge(dataStore, dexFile.getOpcodes(), dexFile);
+
+        assertArrayEquals(write(new DexPool(dexFile.getOpcodes()), dexFile), dataStore.getData());
+    }
+
+    @Test
+    public void testMerge() throws IOException {
+        // the extra strings and types shift the indexes of almost everything in the other dex file
+        DexBackedDexFile dexFile = loadAccessorTest();
+        DexBackedDexFile otherDexFile = makeDexFile(makeClass("La;", "aaa"), makeClass("Lb;", "bbb"));
+
+        MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool.merge(dataStore, dexFile.getOpcodes(), dexFile, otherDexFile);
+
+        assertArrayEquals(write(new DexPool(dexFile.getOpcodes()), dexFile, otherDexFile), dataStore.getData());
+    }
+
+    @Test
+    public void testJumboString() throws IOException {
+        // enough strings before "zzz" that the const-string for it has to be converted to a const-string/jumbo
+        MethodImplementationBuilder builder = new MethodImplementationBuilder(1);
+        for (int i=0; i<66000; i++) {
+            builder.addInstruction(new BuilderInstruction21c(Opcode.CONST_STRING, 0,
+                    new ImmutableStringReference(String.format("a%08d", i))));
+        }
+        builder.addInstruction(new BuilderInstruction10x(Opcode.RETURN_VOID));
+        ClassDef jumboClass = new ImmutableClassDef("Ljumbo;", AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;",
+                null, null, null, null, ImmutableList.of(makeMethod("Ljumbo;", builder)));
+
+        DexBackedDexFile dexFile = makeDexFile(makeClass("Lz;", "zzz"), makeClass("Ly;", "yyy"));
+        DexFile jumboDexFile = new ImmutableDexFile(Opcodes.getDefault(), ImmutableList.of(jumboClass));
+
+        MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool.merge(dataStore, dexFile.getOpcodes(), dexFile, jumboDexFile);
+
+        assertArrayEquals(write(new DexPool(dexFile.getOpcodes()), dexFile, jumboDexFile), dataStore.getData());
+    }
+
+    @Test
+    public void testRollback() throws IOException {
+        DexBackedDexFile dexFile = makeDexFile(makeClass("La;", "aaa"), makeClass("Lb;", "aaa"));
+        List<ClassDef> classes = Lists.<ClassDef>newArrayList(dexFile.getClasses());
+
+        // interning La; interns "aaa" from the dex file. After rolling back, interning Lb; has to intern it again
+        DexPool dexPool = new DexPool(dexFile.getOpcodes(), true);
+        dexPool.mark();
+        dexPool.internClass(classes.get(0));
+        dexPool.reset();
+        dexPool.internClass(classes.get(1));
+        MemoryDataStore dataStore = new MemoryDataStore();
+        dexPool.writeTo(dataStore);
+
+        DexPool expected = new DexPool(dexFile.getOpcodes());
+        expected.internClass(classes.get(1));
+        MemoryDataStore expectedDataStore = new MemoryDataStore();
+        expected.writeTo(expectedDataStore);
+
+        assertArrayEquals(expectedDataStore.getData(), dataStore.getData());
+    }
+
+    @Nonnull
+    private static DexBackedDexFile loadAccessorTest() throws IOException {
+        URL url = DexPoolMergeTest.class.getClassLoader().getResource("accessorTest.dex");
+        Assert.assertNotNull(url);
+        return DexFileFactory.loadDexFile(new File(url.getFile()), Opcodes.getDefault());
+    }
+
+    @Nonnull
+    private static byte[] write(@Nonnull DexPool dexPool, @Nonnull DexFile... dexFiles) throws IOException {
+        for (DexFile dexFile: dexFiles) {
+            for (ClassDef classDef: dexFile.getClasses()) {
+                dexPool.internClass(classDef);
+            }
+        }
+        MemoryDataStore dataStore = new MemoryDataStore();
+        dexPool.writeTo(dataStore);
+        return dataStore.getData();
+    }
+
+    @Nonnull
+    private static DexBackedDexFile makeDexFile(@Nonnull ClassDef... classes) throws IOException {
+        MemoryDataStore dataStore = new MemoryDataStore();
+        DexPool.writeTo(dataStore, new ImmutableDexFile(Opcodes.getDefault(), ImmutableList.copyOf(classes)));
+        return new DexBackedDexFile(Opcodes.getDefault(), dataStore.getData());
+    }
+
+    /**
+     * Makes a class with a method that references a string, a field, a method and an exception type
+     */
+    @Nonnull
+    private static ClassDef makeClass(@Nonnull String type, @Nonnull String string) {
+        MethodImplementationBuilder builder = new MethodImplementationBuilder(1);
+        Label tryStart = builder.addLabel("tryStart");
+        builder.addInstruction(new BuilderInstruction21c(Opcode.CONST_STRING, 0,
+                new ImmutableStringReference(string)));
+        builder.addInstruction(new BuilderInstruction21c(Opcode.SPUT_OBJECT, 0,
+                new ImmutableFieldReference(type, "field", "Ljava/lang/String;")));
+        builder.addInstruction(new BuilderInstruction35c(Opcode.INVOKE_STATIC, 1, 0, 0, 0, 0, 0,
+                new ImmutableMethodReference("Ljava/lang/System;", "loadLibrary",
+                        ImmutableList.of("Ljava/lang/String;"), "V")));
+        Label tryEnd = builder.addLabel("tryEnd");
+        builder.addInstruction(new BuilderInstruction10x(Opcode.RETURN_VOID));
+        Label handler = builder.addLabel("handler");
+        builder.addInstruction(new BuilderInstruction11x(Opcode.MOVE_EXCEPTION, 0));
+        builder.addInstruction(new BuilderInstruction11x(Opcode.THROW, 0));
+        builder.addCatch("Ljava/lang/UnsatisfiedLinkError;", tryStart, tryEnd, handler);
+
+        return new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue(), "Ljava/lang/Object;", null, null, null,
+                null, ImmutableList.of(makeMethod(type, builder)));
+    }
+
+    @Nonnull
+    private static Method makeMethod(@Nonnull String type, @Nonnull MethodImplementationBuilder builder) {
+        return new ImmutableMethod(type, "test", null, "V",
+                AccessFlags.PUBLIC.getValue() | AccessFlags.STATIC.getValue(), null,
+                builder.getMethodImplementation());
+    }
+
+    private static void assertArrayEquals(@Nonnull byte[] expected, @Nonnull byte[] actual) {
+        Assert.assertEquals(expected.length, actual.length);
+        for (int i=0; i<expected.length; i++) {
+            if (expected[i] != actual[i]) {
+                Assert.fail(String.format("Mismatch at offset 0x%x", i));
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.pool;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodParameter;
+import org.jf.dexlib2.immutable.ImmutableClassDef;
+import org.jf.dexlib2.immutable.ImmutableMethod;
+import org.jf.dexlib2.writer.pool.MultiDexPool;
+import org.jf.util.ExceptionWithContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class MultiDexPoolTest {
+    private static final int CLASS_COUNT = 40;
+    private static final int METHODS_PER_CLASS = 4000;
+
+    @Test
+    public void testSplitting() throws IOException {
+        List<String> mainDexClasses = ImmutableList.of("Lcls39;", "Lcls38;");
+
+        MultiDexPool multiDexPool = makeMultiDexPool(mainDexClasses);
+        // each dex file can hold 16 of the classes, and the main dex classes are interned last, so they get the
+        // first dex file to themselves
+        Assert.assertEquals(4, multiDexPool.getDexPools().size());
+
+        File serialDir = Files.createTempDir();
+        File parallelDir = Files.createTempDir();
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            List<File> serialFiles = multiDexPool.writeTo(serialDir, null);
+            // a DexPool can only be written once
+            List<File> parallelFiles = makeMultiDexPool(mainDexClasses).writeTo(parallelDir, executor);
+            Assert.assertEquals(4, serialFiles.size());
+            Assert.assertEquals("classes.dex", serialFiles.get(0).getName());
+            Assert.assertEquals("classes4.dex", serialFiles.get(3).getName());
+
+            Set<String> classes = Sets.newHashSet();
+            for (int i=0; i<serialFiles.size(); i++) {
+                byte[] serial = Files.toByteArray(serialFiles.get(i));
+                Assert.assertArrayEquals(serial, Files.toByteArray(parallelFiles.get(i)));
+
+                DexBackedDexFile dexFile = new DexBackedDexFile(Opcodes.getDefault(), serial);
+                Assert.assertTrue(dexFile.getMethodCount() <= (1 << 16));
+                for (ClassDef classDef: dexFile.getClasses()) {
+                    Assert.assertTrue(classes.add(classDef.getType()));
+                    if (i == 0) {
+                        Assert.assertTrue(mainDexClasses.contains(classDef.getType()));
+                    }
+                }
+            }
+            Assert.assertEquals(CLASS_COUNT, classes.size());
+        } finally {
+            executor.shutdown();
+            delete(serialDir);
+            delete(parallelDir);
+        }
+    }
+
+    @Nonnull
+    private static MultiDexPool makeMultiDexPool(@Nonnull List<String> mainDexClasses) {
+        MultiDexPool multiDexPool = new MultiDexPool(Opcodes.getDefault(), mainDexClasses);
+        for (int i=0; i<CLASS_COUNT; i++) {
+            int index = multiDexPool.internClass(makeClass("Lcls" + i + ";"));
+            if (mainDexClasses.contains("Lcls" + i + ";")) {
+                Assert.assertEquals(0, index);
+            } else {
+                Assert.assertTrue(index > 0);
+            }
+        }
+        return multiDexPool;
+    }
+
+    @Test
+    public void testFillsFirstDexAfterMainDexClasses() {
+        MultiDexPool multiDexPool = new MultiDexPool(Opcodes.getDefault(), ImmutableList.of("Lcls0;"));
+        Assert.assertEquals(0, multiDexPool.internClass(makeClass("Lcls0;")));
+        Assert.assertEquals(0, multiDexPool.internClass(makeClass("Lcls1;")));
+        Assert.assertEquals(1, multiDexPool.getDexPools().size());
+    }
+
+    @Test
+    public void testMissingMainDexClass() {
+        MultiDexPool multiDexPool = new MultiDexPool(Opcodes.getDefault(), ImmutableList.of("Lcls0;", "Lmissing;"));
+        Assert.assertEquals(0, multiDexPool.internClass(makeClass("Lcls0;")));
+        multiDexPool.finishMainDexClasses();
+        Assert.assertEquals(0, multiDexPool.internClass(makeClass("Lcls1;")));
+        Assert.assertEquals(1, multiDexPool.getDexPools().size());
+    }
+
+    @Test(expected = ExceptionWithContext.class)
+    public void testDuplicateClass() {
+        MultiDexPool multiDexPool = new MultiDexPool(Opcodes.getDefault());
+        for (int i=0; i<20; i++) {
+            multiDexPool.internClass(makeClass("Lcls" + i + ";"));
+        }
+        // the original is in an earlier dex file
+        multiDexPool.internClass(makeClass("Lcls0;"));
+    }
+
+    @Nonnull
+    private static ClassDef makeClass(@Nonnull String type) {
+        List<Method> methods = Lists.newArrayList();
+        for (int i=0; i<METHODS_PER_CLASS; i++) {
+            methods.add(new ImmutableMethod(type, "method" + i, ImmutableList.<MethodParameter>of(), "V",
+                    AccessFlags.PUBLIC.getValue() | AccessFlags.ABSTRACT.getValue(), null, null));
+        }
+        return new ImmutableClassDef(type, AccessFlags.PUBLIC.getValue() | AccessFlags.ABSTRACT.getValue(),
+                "Ljava/lang/Object;", null, null, null, null, methods);
+    }
+
+    private static void delete(@Nonnull File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child: files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
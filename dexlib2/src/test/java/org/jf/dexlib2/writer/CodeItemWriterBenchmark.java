@@ -0,0 +1,96 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.writer;
+
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.io.MemoryDeferredOutputStream;
+import org.jf.dexlib2.writer.pool.DexPool;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A simple benchmark that compares the serial and parallel code_item writers.
+ *
+ * Usage: CodeItemWriterBenchmark <dex file> [threads] [iterations]
+ */
+public class CodeItemWriterBenchmark {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: CodeItemWriterBenchmark <dex file> [threads] [iterations]");
+            System.exit(1);
+        }
+
+        DexBackedDexFile dexFile = DexFileFactory.loadDexFile(new File(args[0]), Opcodes.getDefault());
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            // warm up
+            write(dexFile, null);
+            write(dexFile, executor);
+
+            long serialTime = 0;
+            long parallelTime = 0;
+            for (int i=0; i<iterations; i++) {
+                serialTime += write(dexFile, null);
+                parallelTime += write(dexFile, executor);
+            }
+
+            System.out.println(String.format("serial:   %d ms/iteration", serialTime / iterations / 1000000));
+            System.out.println(String.format("parallel: %d ms/iteration (%d threads)",
+                    parallelTime / iterations / 1000000, threads));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static long write(DexBackedDexFile dexFile, @Nullable ExecutorService executor) throws IOException {
+        DexPool dexPool = new DexPool(dexFile.getOpcodes());
+        for (ClassDef classDef: dexFile.getClasses()) {
+            dexPool.internClass(classDef);
+        }
+
+        long start = System.nanoTime();
+        dexPool.writeTo(new MemoryDataStore(), MemoryDeferredOutputStream.getFactory(), executor);
+        return System.nanoTime() - start;
+    }
+}
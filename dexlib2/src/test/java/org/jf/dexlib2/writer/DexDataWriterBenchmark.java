@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.jf.dexlib2.writer;
+
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A simple benchmark that compares DexDataWriter against writing the same values a byte at a time through a
+ * BufferedOutputStream, and times a full rewrite of a dex file.
+ *
+ * Usage: DexDataWriterBenchmark [dex file] [iterations]
+ */
+public class DexDataWriterBenchmark {
+    private static final int VALUE_COUNT = 10000000;
+
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        // warm up
+        writeValues(new DexDataWriter(new NullOutputStream(), 0));
+        writeValuesBuffered(new BufferedOutputStream(new NullOutputStream(), 256 * 1024));
+
+        long writerTime = 0;
+        long bufferedTime = 0;
+        for (int i=0; i<iterations; i++) {
+            writerTime += writeValues(new DexDataWriter(new NullOutputStream(), 0));
+            bufferedTime += writeValuesBuffered(new BufferedOutputStream(new NullOutputStream(), 256 * 1024));
+        }
+        System.out.println(String.format("BufferedOutputStream: %d ms/iteration", bufferedTime / iterations / 1000000));
+        System.out.println(String.format("DexDataWriter:        %d ms/iteration", writerTime / iterations / 1000000));
+
+        if (args.length > 0) {
+            DexBackedDexFile dexFile = DexFileFactory.loadDexFile(new File(args[0]), Opcodes.getDefault());
+            rewrite(dexFile);
+
+            long rewriteTime = 0;
+            for (int i=0; i<iterations; i++) {
+                rewriteTime += rewrite(dexFile);
+            }
+            System.out.println(String.format("dex rewrite:          %d ms/iteration",
+                    rewriteTime / iterations / 1000000));
+        }
+    }
+
+    private static long writeValues(DexDataWriter writer) throws IOException {
+        long start = System.nanoTime();
+        for (int i=0; i<VALUE_COUNT; i++) {
+            writer.writeUleb128(i);
+            writer.writeSleb128(-i);
+            writer.writeUshort(i & 0xffff);
+            writer.writeInt(i);
+            writer.writeEncodedInt(0x04, i);
+        }
+        writer.flush();
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Writes the same values as writeValues, the way DexDataWriter did when it extended BufferedOutputStream
+     */
+    private static long writeValuesBuffered(OutputStream out) throws IOException {
+        long start = System.nanoTime();
+        byte[] tempBuf = new byte[8];
+        for (int i=0; i<VALUE_COUNT; i++) {
+            int value = i;
+            while ((value & 0xffffffffL) > 0x7f) {
+                out.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+
+            value = -i;
+            while (value < -0x40) {
+                out.write((value & 0x7f) | 0x80);
+                value >>= 7;
+            }
+            out.write(value & 0x7f);
+
+            out.write(i);
+            out.write(i >> 8);
+
+            out.write(i);
+            out.write(i >> 8);
+            out.write(i >> 16);
+            out.write(i >> 24);
+
+            value = i;
+            int index = 0;
+            while (value > 0x7f) {
+                tempBuf[index++] = (byte)value;
+                value >>= 8;
+            }
+            tempBuf[index++] = (byte)value;
+            out.write(0x04 | ((index - 1) << 5));
+            out.write(tempBuf, 0, index);
+        }
+        out.flush();
+        return System.nanoTime() - start;
+    }
+
+    private static long rewrite(DexBackedDexFile dexFile) throws IOException {
+        DexPool dexPool = new DexPool(dexFile.getOpcodes());
+        for (ClassDef classDef: dexFile.getClasses()) {
+            dexPool.internClass(classDef);
+        }
+
+        long start = System.nanoTime();
+        dexPool.writeTo(new MemoryDataStore());
+        return System.nanoTime() - start;
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override public void write(int b) {
+        }
+
+        @Override public void write(byte[] b, int off, int len) {
+        }
+    }
+}
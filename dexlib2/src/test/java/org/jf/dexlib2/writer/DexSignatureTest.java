@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.writer;
+
+import junit.framework.Assert;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.dexbacked.raw.HeaderItem;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Adler32;
+
+public class DexSignatureTest {
+    @Test
+    public void testSignatureAndChecksum() throws IOException, NoSuchAlgorithmException {
+        byte[] dex = writeAccessorTest(false);
+
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        md.update(dex, HeaderItem.SIGNATURE_DATA_START_OFFSET, dex.length - HeaderItem.SIGNATURE_DATA_START_OFFSET);
+        Assert.assertTrue(Arrays.equals(md.digest(), Arrays.copyOfRange(dex, HeaderItem.SIGNATURE_OFFSET,
+                HeaderItem.SIGNATURE_OFFSET + HeaderItem.SIGNATURE_SIZE)));
+
+        assertChecksum(dex);
+    }
+
+    @Test
+    public void testSkipSignature() throws IOException {
+        byte[] dex = writeAccessorTest(true);
+
+        Assert.assertTrue(Arrays.equals(new byte[HeaderItem.SIGNATURE_SIZE], Arrays.copyOfRange(dex,
+                HeaderItem.SIGNATURE_OFFSET, HeaderItem.SIGNATURE_OFFSET + HeaderItem.SIGNATURE_SIZE)));
+
+        assertChecksum(dex);
+
+        // everything else should be the same as when the signature is computed
+        byte[] signedDex = writeAccessorTest(false);
+        Assert.assertTrue(Arrays.equals(
+                Arrays.copyOfRange(signedDex, HeaderItem.SIGNATURE_DATA_START_OFFSET, signedDex.length),
+                Arrays.copyOfRange(dex, HeaderItem.SIGNATURE_DATA_START_OFFSET, dex.length)));
+    }
+
+    @Test
+    public void testCombineAdler32() {
+        Random random = new Random(1234);
+        int[] lengths = new int[] { 0, 1, 20, 65520, 65521, 65522, 200000 };
+        for (int length1: lengths) {
+            for (int length2: lengths) {
+                byte[] data = new byte[length1 + length2];
+                random.nextBytes(data);
+
+                Adler32 expected = new Adler32();
+                expected.update(data);
+
+                Adler32 checksum1 = new Adler32();
+                checksum1.update(data, 0, length1);
+                Adler32 checksum2 = new Adler32();
+                checksum2.update(data, length1, length2);
+
+                Assert.assertEquals((int)expected.getValue(),
+                        DexWriter.combineAdler32(checksum1.getValue(), checksum2.getValue(), length2));
+            }
+        }
+    }
+
+    private static void assertChecksum(@Nonnull byte[] dex) {
+        Adler32 a32 = new Adler32();
+        a32.update(dex, HeaderItem.CHECKSUM_DATA_START_OFFSET, dex.length - HeaderItem.CHECKSUM_DATA_START_OFFSET);
+
+        DexBackedDexFile dexFile = new DexBackedDexFile(Opcodes.getDefault(), dex);
+        Assert.assertEquals((int)a32.getValue(), dexFile.readInt(HeaderItem.CHECKSUM_OFFSET));
+    }
+
+    @Nonnull
+    private static byte[] writeAccessorTest(boolean skipSignature) throws IOException {
+        URL url = DexSignatureTest.class.getClassLoader().getResource("accessorTest.dex");
+        Assert.assertNotNull(url);
+        DexBackedDexFile dexFile = DexFileFactory.loadDexFile(new File(url.getFile()), Opcodes.getDefault());
+
+        DexPool dexPool = new DexPool(dexFile.getOpcodes());
+        for (ClassDef classDef: dexFile.getClasses()) {
+            dexPool.internClass(classDef);
+        }
+        dexPool.setSkipSignature(skipSignature);
+        MemoryDataStore dataStore = new MemoryDataStore();
+        dexPool.writeTo(dataStore);
+        return dataStore.getData();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.writer;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import junit.framework.Assert;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.builder.MethodImplementationBuilder;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction10x;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction21c;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.Annotation;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+
+public class LowMemoryDexBuilderTest {
+    @Test
+    public void testLowMemoryOutputMatches() throws IOException {
+        URL url = LowMemoryDexBuilderTest.class.getClassLoader().getResource("accessorTest.dex");
+        Assert.assertNotNull(url);
+        DexBackedDexFile dexFile = DexFileFactory.loadDexFile(new File(url.getFile()), Opcodes.getDefault());
+
+        DexBuilder dexBuilder = new DexBuilder(Opcodes.getDefault());
+        byte[] expected = write(dexBuilder, dexFile);
+        Assert.assertEquals(0, dexBuilder.getOffHeapUsage());
+
+        DexBuilder lowMemoryDexBuilder = new DexBuilder(Opcodes.getDefault(), true);
+        byte[] actual = write(lowMemoryDexBuilder, dexFile);
+        Assert.assertTrue(lowMemoryDexBuilder.getOffHeapUsage() > 0);
+        Assert.assertTrue(lowMemoryDexBuilder.getPeakHeapUsage() > 0);
+
+        Assert.assertEquals(expected.length, actual.length);
+        for (int i=0; i<expected.length; i++) {
+            if (expected[i] != actual[i]) {
+                Assert.fail(String.format("Mismatch at offset 0x%x", i));
+            }
+        }
+    }
+
+    @Nonnull
+    private static byte[] write(@Nonnull DexBuilder dexBuilder, @Nonnull DexBackedDexFile dexFile)
+            throws IOException {
+        for (ClassDef classDef: dexFile.getClasses()) {
+            dexBuilder.internClass(classDef);
+        }
+
+        List<String> strings = Lists.newArrayList(
+                "", "\u00e9t\u00e9", "\u4e2d\u6587", "\ud83d\ude00", "unpaired \ud800 surrogate", "\u00ff\u0100");
+        // longer than a single arena chunk
+        StringBuilder sb = new StringBuilder();
+        for (int i=0; i<1100000; i++) {
+            sb.append((char)('a' + (i % 26)));
+        }
+        strings.add(sb.toString());
+        // enough strings that the interning tables need to grow
+        for (int i=0; i<5000; i++) {
+            strings.add(String.format("string%d", i));
+        }
+
+        MethodImplementationBuilder methodBuilder = new MethodImplementationBuilder(1);
+        for (String string: strings) {
+            methodBuilder.addInstruction(new BuilderInstruction21c(Opcode.CONST_STRING, 0,
+                    dexBuilder.internStringReference(string)));
+        }
+        methodBuilder.addInstruction(new BuilderInstruction10x(Opcode.RETURN_VOID));
+        BuilderMethod method = dexBuilder.internMethod("Lstrings;", "test", null, "V", 0,
+                ImmutableSet.<Annotation>of(), methodBuilder.getMethodImplementation());
+        dexBuilder.internClassDef("Lstrings;", 0, "Ljava/lang/Object;", null, null, ImmutableSet.<Annotation>of(),
+                null, ImmutableList.of(method));
+
+        // the default temporary storage for the code items differs between the modes, but the output shouldn't
+        MemoryDataStore dataStore = new MemoryDataStore();
+        dexBuilder.writeTo(dataStore);
+        return dataStore.getData();
+    }
+}
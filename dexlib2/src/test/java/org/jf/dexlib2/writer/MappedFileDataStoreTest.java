@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.writer;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.writer.io.DexDataStore;
+import org.jf.dexlib2.writer.io.MappedFileDataStore;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.Arrays;
+
+public class MappedFileDataStoreTest {
+    @Test
+    public void testWriteDex() throws IOException {
+        URL url = MappedFileDataStoreTest.class.getClassLoader().getResource("accessorTest.dex");
+        Assert.assertNotNull(url);
+        DexBackedDexFile dexFile = DexFileFactory.loadDexFile(new File(url.getFile()), Opcodes.getDefault());
+
+        MemoryDataStore expected = new MemoryDataStore();
+        write(dexFile, expected);
+
+        File file = File.createTempFile("mapped", ".dex");
+        try {
+            // a tiny initial size, so that the file has to be remapped as it grows
+            MappedFileDataStore dataStore = new MappedFileDataStore(file, 16);
+            write(dexFile, dataStore);
+            Assert.assertArrayEquals(expected.getData(), Files.toByteArray(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testPositionedStreams() throws IOException {
+        File file = File.createTempFile("mapped", ".dex");
+        try {
+            MappedFileDataStore dataStore = new MappedFileDataStore(file, 4);
+
+            OutputStream tail = dataStore.outputAt(6);
+            tail.write(new byte[] {6, 7, 8, 9}, 1, 2);
+            Assert.assertEquals(8, dataStore.getSize());
+
+            OutputStream head = dataStore.outputAt(0);
+            head.write(1);
+            head.write(new byte[] {2, 3});
+            Assert.assertEquals(8, dataStore.getSize());
+
+            InputStream input = dataStore.readAt(1);
+            byte[] buf = new byte[16];
+            Assert.assertEquals(7, input.read(buf));
+            Assert.assertArrayEquals(new byte[] {2, 3, 0, 0, 0, 7, 8}, Arrays.copyOf(buf, 7));
+            Assert.assertEquals(-1, input.read());
+
+            dataStore.close();
+            Assert.assertArrayEquals(new byte[] {1, 2, 3, 0, 0, 0, 7, 8}, Files.toByteArray(file));
+
+            try {
+                ByteStreams.toByteArray(dataStore.readAt(0));
+                Assert.fail();
+            } catch (IOException ex) {
+                // expected
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void write(DexBackedDexFile dexFile, DexDataStore dataStore) throws IOException {
+        DexPool dexPool = new DexPool(dexFile.getOpcodes());
+        for (ClassDef classDef: dexFile.getClasses()) {
+            dexPool.internClass(classDef);
+        }
+        dexPool.writeTo(dataStore);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.dexlib2.writer;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import junit.framework.Assert;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.builder.MethodImplementationBuilder;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction10x;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction21c;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.Annotation;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.io.MemoryDeferredOutputStream;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class ParallelCodeItemWriterTest {
+    @Test
+    public void testDexPool() throws IOException {
+        URL url = ParallelCodeItemWriterTest.class.getClassLoader().getResource("accessorTest.dex");
+        Assert.assertNotNull(url);
+        DexBackedDexFile dexFile = DexFileFactory.loadDexFile(new File(url.getFile()), Opcodes.getDefault());
+
+        byte[] serial = writeDexPool(dexFile, null);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            assertArrayEquals(serial, writeDexPool(dexFile, executor));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testDexBuilder() throws IOException {
+        byte[] serial = writeDexBuilder(null);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            assertArrayEquals(serial, writeDexBuilder(executor));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void assertArrayEquals(@Nonnull byte[] expected, @Nonnull byte[] actual) {
+        Assert.assertEquals(expected.length, actual.length);
+        for (int i=0; i<expected.length; i++) {
+            if (expected[i] != actual[i]) {
+                Assert.fail(String.format("Mismatch at offset 0x%x", i));
+            }
+        }
+    }
+
+    @Nonnull
+    private static byte[] writeDexPool(@Nonnull DexFile dexFile, @Nullable ExecutorService executor)
+            throws IOException {
+        DexPool dexPool = new DexPool(dexFile.getOpcodes());
+        for (ClassDef classDef: dexFile.getClasses()) {
+            dexPool.internClass(classDef);
+        }
+        MemoryDataStore dataStore = new MemoryDataStore();
+        dexPool.writeTo(dataStore, MemoryDeferredOutputStream.getFactory(), executor);
+        return dataStore.getData();
+    }
+
+    @Nonnull
+    private static byte[] writeDexBuilder(@Nullable ExecutorService executor) throws IOException {
+        DexBuilder dexBuilder = new DexBuilder(Opcodes.getDefault());
+
+        // enough strings to require const-string/jumbo, so that the instruction fixup path is exercised
+        MethodImplementationBuilder jumboBuilder = new MethodImplementationBuilder(1);
+        for (int i=0; i<66000; i++) {
+            jumboBuilder.addInstruction(new BuilderInstruction21c(Opcode.CONST_STRING, 0,
+                    dexBuilder.internStringReference(String.format("%08d", i))));
+        }
+        jumboBuilder.addInstruction(new BuilderInstruction10x(Opcode.RETURN_VOID));
+        internClass(dexBuilder, "Ljumbo;", ImmutableList.of(
+                internMethod(dexBuilder, "Ljumbo;", "test", jumboBuilder)));
+
+        for (int i=0; i<200; i++) {
+            String type = String.format("Ltest%d;", i);
+            List<BuilderMethod> methods = Lists.newArrayList();
+            for (int j=0; j<(i % 5); j++) {
+                MethodImplementationBuilder methodBuilder = new MethodImplementationBuilder(1);
+                methodBuilder.addLineNumber(i + j);
+                methodBuilder.addInstruction(new BuilderInstruction21c(Opcode.CONST_STRING, 0,
+                        dexBuilder.internStringReference(String.format("%08d", i * 7 + j))));
+                if (j % 2 == 0) {
+                    methodBuilder.addLineNumber(i + j + 1);
+                }
+                methodBuilder.addInstruction(new BuilderInstruction10x(Opcode.RETURN_VOID));
+                methods.add(internMethod(dexBuilder, type, "method" + j, methodBuilder));
+            }
+            internClass(dexBuilder, type, methods);
+        }
+
+        MemoryDataStore dataStore = new MemoryDataStore();
+        dexBuilder.writeTo(dataStore, MemoryDeferredOutputStream.getFactory(), executor);
+        return dataStore.getData();
+    }
+
+    @Nonnull
+    private static BuilderMethod internMethod(@Nonnull DexBuilder dexBuilder, @Nonnull String type,
+                                              @Nonnull String name,
+                                              @Nonnull MethodImplementationBuilder methodBuilder) {
+        return dexBuilder.internMethod(type, name, null, "V", 0, ImmutableSet.<Annotation>of(),
+                methodBuilder.getMethodImplementation());
+    }
+
+    private static void internClass(@Nonnull DexBuilder dexBuilder, @Nonnull String type,
+                                    @Nonnull List<BuilderMethod> methods) {
+        dexBuilder.internClassDef(type, 0, "Ljava/lang/Object;", null, null, ImmutableSet.<Annotation>of(), null,
+                methods);
+    }
+}
@@ -35,11 +35,15 @@ import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.Parameters;
 import com.beust.jcommander.validators.PositiveInteger;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
 import org.jf.util.jcommander.Command;
 import org.jf.util.jcommander.ExtendedParameter;
 import org.jf.util.jcommander.ExtendedParameters;
 
 import javax.annotation.Nonnull;
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
 
@@ -70,16 +74,53 @@ public class AssembleCommand extends Command {
     private String output = "out.dex";
 
     @Parameter(names = "--verbose",
-            description = "Generate verbose error messages.")
+            description = "Generate verbose error messages. With --low-memory, this also prints the peak heap " +
+                    "and off-heap memory usage.")
     private boolean verbose = false;
 
     @Parameter(names = {"--allow-odex-opcodes", "--allow-odex", "--ao"},
             description = "Allows the odex opcodes that dalvik doesn't reject to be assembled.")
     private boolean allowOdexOpcodes;
 
+    @Parameter(names = "--cache",
+            description = "Caches the assembled form of each file in the given directory, so that only files that " +
+                    "have changed since a previous run with the same cache directory need to be re-assembled.")
+    @ExtendedParameter(argumentNames = "dir")
+    private String cacheDirectory = null;
+
+    @Parameter(names = {"--multi-dex", "--multidex"},
+            description = "Spreads the classes over as many dex files as needed, instead of failing when there are " +
+                    "too many methods, fields or types for a single dex file. The output option then gives the " +
+                    "directory to write classes.dex, classes2.dex, etc. into.")
+    private boolean multiDex = false;
+
+    @Parameter(names = "--main-dex-list",
+            description = "A file listing the classes that must be in the first dex file, when using --multi-dex. " +
+                    "Each line is either a class descriptor, like Lcom/example/Main;, or a class file path, like " +
+                    "com/example/Main.class.")
+    @ExtendedParameter(argumentNames = "file")
+    private String mainDexList = null;
+
+    @Parameter(names = "--low-memory",
+            description = "Reduces the amount of memory needed to assemble very large inputs, at the cost of some " +
+                    "speed. The interned strings are stored off-heap, and the code items are buffered in a " +
+                    "temporary file while writing. Use --verbose to print the peak memory usage.")
+    private boolean lowMemory = false;
+
+    @Parameter(names = "--skip-signature",
+            description = "Doesn't compute the SHA-1 signature of the output dex file, and leaves it zeroed instead. " +
+                    "This avoids reading back the whole dex file after it's written.")
+    private boolean skipSignature = false;
+
+    @Parameter(names = "--stdin",
+            description = "Reads a zip or tar archive of smali files from stdin, and assembles it along with any " +
+                    "other inputs.")
+    private boolean stdin = false;
+
     @Parameter(description = "Assembles the given files. If a directory is specified, it will be " +
-            "recursively searched for any files with a .smali prefix")
-    @ExtendedParameter(argumentNames = "[<file>|<dir>]+")
+            "recursively searched for any files with a .smali prefix. If a zip or tar archive is specified, such as " +
+            "one written by baksmali, the .smali files in it are assembled directly from the archive.")
+    @ExtendedParameter(argumentNames = "[<file>|<dir>|<archive>]+")
     private List<String> input;
 
     public AssembleCommand(@Nonnull List<JCommander> commandAncestors) {
@@ -87,19 +128,32 @@ public class AssembleCommand extends Command {
     }
 
     @Override public void run() {
-        if (help || input == null || input.isEmpty()) {
+        if (help || ((input == null || input.isEmpty()) && !stdin)) {
             usage();
             return;
         }
 
+        if (mainDexList != null && !multiDex) {
+            System.err.println("--main-dex-list can only be used with --multi-dex");
+            System.exit(-1);
+        }
+
+        List<String> inputs = Lists.newArrayList();
+        if (input != null) {
+            inputs.addAll(input);
+        }
+        if (stdin) {
+            inputs.add("-");
+        }
+
         try {
-            Smali.assemble(getOptions(), input);
+            Smali.assemble(getOptions(), inputs);
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
     }
 
-    protected SmaliOptions getOptions() {
+    protected SmaliOptions getOptions() throws IOException {
         SmaliOptions options = new SmaliOptions();
 
         options.jobs = jobs;
@@ -107,7 +161,30 @@ public class AssembleCommand extends Command {
         options.outputDexFile = output;
         options.allowOdexOpcodes = allowOdexOpcodes;
         options.verboseErrors = verbose;
+        options.cacheDirectory = cacheDirectory;
+        options.multiDex = multiDex;
+        options.lowMemory = lowMemory;
+        options.skipSignature = skipSignature;
+        if (mainDexList != null) {
+            options.mainDexClasses = readMainDexList(new File(mainDexList));
+        }
 
         return options;
     }
+
+    @Nonnull
+    private static List<String> readMainDexList(@Nonnull File file) throws IOException {
+        List<String> classes = Lists.newArrayList();
+        for (String line: Files.readLines(file, Charsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            if (line.endsWith(".class")) {
+                line = "L" + line.substring(0, line.length() - ".class".length()) + ";";
+            }
+            classes.add(line);
+        }
+        return classes;
+    }
 }
@@ -32,27 +32,42 @@
 package org.jf.smali;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
 import org.antlr.runtime.CommonTokenStream;
 import org.antlr.runtime.Token;
 import org.antlr.runtime.TokenSource;
 import org.antlr.runtime.tree.CommonTree;
 import org.antlr.runtime.tree.CommonTreeNodeStream;
 import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.dexbacked.DexBackedDexFile;
+import org.jf.dexlib2.iface.ClassDef;
 import org.jf.dexlib2.writer.builder.DexBuilder;
 import org.jf.dexlib2.writer.io.FileDataStore;
+import org.jf.dexlib2.writer.io.FileDeferredOutputStream;
+import org.jf.dexlib2.writer.io.MemoryDataStore;
+import org.jf.dexlib2.writer.io.MemoryDeferredOutputStream;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.jf.dexlib2.writer.pool.MultiDexPool;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.Arrays;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.*;
 
 public class Smali {
+    private static final String STDIN = "-";
 
     /**
      * Assemble the specified files, using the given options
@@ -68,14 +83,23 @@ public class Smali {
     /**
      * Assemble the specified files, using the given options
      *
+     * Each input can be a smali file, a directory to search for smali files, or a zip or tar archive containing smali
+     * files. An input of "-" reads a zip or tar archive from stdin.
+     *
      * @param options a SmaliOptions object with the options to run smali with
-     * @param input The files/directories to process
+     * @param input The files/directories/archives to process
      * @return true if assembly completed with no errors, or false if errors were encountered
      */
     public static boolean assemble(final SmaliOptions options, List<String> input) throws IOException {
         LinkedHashSet<File> filesToProcessSet = new LinkedHashSet<File>();
+        List<File> archivesToProcess = Lists.newArrayList();
 
         for (String fileToProcess: input) {
+            if (fileToProcess.equals(STDIN)) {
+                archivesToProcess.add(new File(STDIN));
+                continue;
+            }
+
             File argFile = new File(fileToProcess);
 
             if (!argFile.exists()) {
@@ -85,13 +109,25 @@ public class Smali {
             if (argFile.isDirectory()) {
                 getSmaliFilesInDir(argFile, filesToProcessSet);
             } else if (argFile.isFile()) {
-                filesToProcessSet.add(argFile);
+                if (!argFile.getName().endsWith(".smali") && isArchive(argFile)) {
+                    archivesToProcess.add(argFile);
+                } else {
+                    filesToProcessSet.add(argFile);
+                }
             }
         }
 
         boolean errors = false;
 
-        final DexBuilder dexBuilder = new DexBuilder(Opcodes.forApi(options.apiLevel));
+        final DexBuilder dexBuilder = new DexBuilder(Opcodes.forApi(options.apiLevel), options.lowMemory);
+        dexBuilder.setSkipSignature(options.skipSignature);
+
+        final SmaliClassCache cache;
+        if (options.cacheDirectory != null && !options.printTokens) {
+            cache = new SmaliClassCache(new File(options.cacheDirectory), options);
+        } else {
+            cache = null;
+        }
 
         ExecutorService executor = Executors.newFixedThreadPool(options.jobs);
         List<Future<Boolean>> tasks = Lists.newArrayList();
@@ -99,11 +135,23 @@ public class Smali {
         for (final File file: filesToProcessSet) {
             tasks.add(executor.submit(new Callable<Boolean>() {
                 @Override public Boolean call() throws Exception {
+                    if (cache != null) {
+                        return assembleSmaliFile(file, dexBuilder, options, cache);
+                    }
                     return assembleSmaliFile(file, dexBuilder, options);
                 }
             }));
         }
 
+        try {
+            for (File archive: archivesToProcess) {
+                submitArchiveEntries(archive, dexBuilder, options, cache, executor, tasks);
+            }
+        } catch (IOException ex) {
+            executor.shutdownNow();
+            throw ex;
+        }
+
         for (Future<Boolean> task: tasks) {
             while(true) {
                 try {
@@ -121,17 +169,123 @@ public class Smali {
             }
         }
 
-        executor.shutdown();
-
         if (errors) {
+            executor.shutdown();
             return false;
         }
 
-        dexBuilder.writeTo(new FileDataStore(new File(options.outputDexFile)));
+        try {
+            if (options.multiDex) {
+                writeMultiDex(dexBuilder, options, options.jobs > 1 ? executor : null);
+            } else if (options.jobs > 1) {
+                dexBuilder.writeTo(new FileDataStore(new File(options.outputDexFile)),
+                        options.lowMemory ? FileDeferredOutputStream.getFactory(null) :
+                                MemoryDeferredOutputStream.getFactory(), executor);
+            } else {
+                dexBuilder.writeTo(new FileDataStore(new File(options.outputDexFile)));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        if (options.lowMemory && options.verboseErrors) {
+            // with --multi-dex, this only covers assembling the classes, since the dex files are written by a
+            // MultiDexPool
+            System.out.println(String.format(Locale.US, "Peak heap usage: %d KB, off-heap usage: %d KB",
+                    dexBuilder.getPeakHeapUsage() / 1024, dexBuilder.getOffHeapUsage() / 1024));
+        }
 
         return true;
     }
 
+    /**
+     * Spreads the assembled classes over as many dex files as needed, and writes them into the output directory.
+     */
+    private static void writeMultiDex(@Nonnull DexBuilder dexBuilder, @Nonnull SmaliOptions options,
+                                      @Nullable ExecutorService executor) throws IOException {
+        Set<String> mainDexClasses = Sets.newHashSet();
+        if (options.mainDexClasses != null) {
+            mainDexClasses.addAll(options.mainDexClasses);
+        }
+        MultiDexPool multiDexPool = new MultiDexPool(Opcodes.forApi(options.apiLevel), mainDexClasses);
+
+        // intern the main dex classes first, so that the other classes can fill up the rest of the first dex file
+        List<ClassDef> otherClasses = Lists.newArrayList();
+        for (ClassDef classDef: dexBuilder.classSection.getSortedClasses()) {
+            if (mainDexClasses.contains(classDef.getType())) {
+                multiDexPool.internClass(classDef);
+            } else {
+                otherClasses.add(classDef);
+            }
+        }
+        // the main dex list may name classes that aren't in the input
+        multiDexPool.finishMainDexClasses();
+        for (ClassDef classDef: otherClasses) {
+            multiDexPool.internClass(classDef);
+        }
+
+        File outputDirectory = new File(options.outputDexFile);
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IOException("Can't create the output directory " + outputDirectory);
+        }
+        for (DexPool dexPool: multiDexPool.getDexPools()) {
+            dexPool.setSkipSignature(options.skipSignature);
+        }
+        multiDexPool.writeTo(outputDirectory, executor);
+    }
+
+    private static boolean isArchive(@Nonnull File file) throws IOException {
+        InputStream is = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return SmaliArchiveReader.isArchive(is);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Reads the smali files from the given archive, and submits a task to assemble each one as soon as it has been
+     * read. The number of entries that have been read but not yet assembled is bounded, so that a large archive
+     * isn't held in memory all at once.
+     */
+    private static void submitArchiveEntries(@Nonnull File archive, @Nonnull final DexBuilder dexBuilder,
+                                             @Nonnull final SmaliOptions options,
+                                             @Nullable final SmaliClassCache cache,
+                                             @Nonnull ExecutorService executor,
+                                             @Nonnull List<Future<Boolean>> tasks) throws IOException {
+        boolean stdin = archive.getPath().equals(STDIN);
+        InputStream is = stdin ? System.in : new FileInputStream(archive);
+        try {
+            SmaliArchiveReader reader = new SmaliArchiveReader(new BufferedInputStream(is));
+            final Semaphore pendingEntries = new Semaphore(options.jobs * 4);
+
+            SmaliArchiveReader.Entry entry;
+            while ((entry = reader.nextEntry()) != null) {
+                final File smaliFile = new File(archive, entry.name);
+                final byte[] contents = entry.contents;
+
+                pendingEntries.acquireUninterruptibly();
+                tasks.add(executor.submit(new Callable<Boolean>() {
+                    @Override public Boolean call() throws Exception {
+                        try {
+                            if (cache != null) {
+                                return assembleSmaliFile(smaliFile, contents, dexBuilder, options, cache);
+                            }
+                            return assembleSmaliFile(smaliFile, new ByteArrayInputStream(contents), dexBuilder,
+                                    options);
+                        } finally {
+                            pendingEntries.release();
+                        }
+                    }
+                }));
+            }
+        } finally {
+            if (!stdin) {
+                is.close();
+            }
+        }
+    }
+
     private static void getSmaliFilesInDir(@Nonnull File dir, @Nonnull Set<File> smaliFiles) {
         File[] files = dir.listFiles();
         if (files != null) {
@@ -145,64 +299,102 @@ public class Smali {
         }
     }
 
+    /**
+     * Assembles the given smali file, using the cached classes from a previous assembly of the file if they exist
+     */
+    private static boolean assembleSmaliFile(File smaliFile, DexBuilder dexBuilder, SmaliOptions options,
+                                             @Nonnull SmaliClassCache cache) throws Exception {
+        return assembleSmaliFile(smaliFile, Files.toByteArray(smaliFile), dexBuilder, options, cache);
+    }
+
+    private static boolean assembleSmaliFile(File smaliFile, byte[] contents, DexBuilder dexBuilder,
+                                             SmaliOptions options, @Nonnull SmaliClassCache cache)
+            throws Exception {
+        String key = cache.getKey(contents);
+
+        byte[] dexBytes = cache.get(key);
+        if (dexBytes == null) {
+            DexBuilder fileDexBuilder = new DexBuilder(Opcodes.forApi(options.apiLevel));
+            if (!assembleSmaliFile(smaliFile, new ByteArrayInputStream(contents), fileDexBuilder, options)) {
+                return false;
+            }
+
+            MemoryDataStore dataStore = new MemoryDataStore();
+            fileDexBuilder.writeTo(dataStore);
+            dexBytes = dataStore.getData();
+            cache.put(key, dexBytes);
+        }
+
+        DexBackedDexFile dexFile = new DexBackedDexFile(Opcodes.forApi(options.apiLevel), dexBytes);
+        for (ClassDef classDef: dexFile.getClasses()) {
+            dexBuilder.internClass(classDef);
+        }
+        return true;
+    }
+
     private static boolean assembleSmaliFile(File smaliFile, DexBuilder dexBuilder, SmaliOptions options)
             throws Exception {
         FileInputStream fis = null;
         try {
             fis = new FileInputStream(smaliFile);
-            InputStreamReader reader = new InputStreamReader(fis, "UTF-8");
+            return assembleSmaliFile(smaliFile, fis, dexBuilder, options);
+        } finally {
+            if (fis != null) {
+                fis.close();
+            }
+        }
+    }
 
-            LexerErrorInterface lexer = new smaliFlexLexer(reader);
-            ((smaliFlexLexer)lexer).setSourceFile(smaliFile);
-            CommonTokenStream tokens = new CommonTokenStream((TokenSource)lexer);
+    private static boolean assembleSmaliFile(File smaliFile, InputStream is, DexBuilder dexBuilder,
+                                             SmaliOptions options) throws Exception {
+        InputStreamReader reader = new InputStreamReader(is, "UTF-8");
 
-            if (options.printTokens) {
-                tokens.getTokens();
+        LexerErrorInterface lexer = new smaliFlexLexer(reader);
+        ((smaliFlexLexer)lexer).setSourceFile(smaliFile);
+        CommonTokenStream tokens = new CommonTokenStream((TokenSource)lexer);
 
-                for (int i=0; i<tokens.size(); i++) {
-                    Token token = tokens.get(i);
-                    if (token.getChannel() == smaliParser.HIDDEN) {
-                        continue;
-                    }
+        if (options.printTokens) {
+            tokens.getTokens();
 
-                    System.out.println(smaliParser.tokenNames[token.getType()] + ": " + token.getText());
+            for (int i=0; i<tokens.size(); i++) {
+                Token token = tokens.get(i);
+                if (token.getChannel() == smaliParser.HIDDEN) {
+                    continue;
                 }
 
-                System.out.flush();
+                System.out.println(smaliParser.tokenNames[token.getType()] + ": " + token.getText());
             }
 
-            smaliParser parser = new smaliParser(tokens);
-            parser.setVerboseErrors(options.verboseErrors);
-            parser.setAllowOdex(options.allowOdexOpcodes);
-            parser.setApiLevel(options.apiLevel);
+            System.out.flush();
+        }
 
-            smaliParser.smali_file_return result = parser.smali_file();
+        smaliParser parser = new smaliParser(tokens);
+        parser.setVerboseErrors(options.verboseErrors);
+        parser.setAllowOdex(options.allowOdexOpcodes);
+        parser.setApiLevel(options.apiLevel);
 
-            if (parser.getNumberOfSyntaxErrors() > 0 || lexer.getNumberOfSyntaxErrors() > 0) {
-                return false;
-            }
+        smaliParser.smali_file_return result = parser.smali_file();
 
-            CommonTree t = result.getTree();
+        if (parser.getNumberOfSyntaxErrors() > 0 || lexer.getNumberOfSyntaxErrors() > 0) {
+            return false;
+        }
 
-            CommonTreeNodeStream treeStream = new CommonTreeNodeStream(t);
-            treeStream.setTokenStream(tokens);
+        CommonTree t = result.getTree();
 
-            if (options.printTokens) {
-                System.out.println(t.toStringTree());
-            }
+        CommonTreeNodeStream treeStream = new CommonTreeNodeStream(t);
+        treeStream.setTokenStream(tokens);
 
-            smaliTreeWalker dexGen = new smaliTreeWalker(treeStream);
-            dexGen.setApiLevel(options.apiLevel);
+        if (options.printTokens) {
+            System.out.println(t.toStringTree());
+        }
 
-            dexGen.setVerboseErrors(options.verboseErrors);
-            dexGen.setDexBuilder(dexBuilder);
-            dexGen.smali_file();
+        smaliTreeWalker dexGen = new smaliTreeWalker(treeStream);
+        dexGen.setApiLevel(options.apiLevel);
 
-            return dexGen.getNumberOfSyntaxErrors() == 0;
-        } finally {
-            if (fis != null) {
-                fis.close();
-            }
-        }
+        dexGen.setVerboseErrors(options.verboseErrors);
+        dexGen.setDexBuilder(dexBuilder);
+        dexGen.smali_file();
+
+        return dexGen.getNumberOfSyntaxErrors() == 0;
     }
 }
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.smali;
+
+import com.google.common.io.ByteStreams;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads the smali files from a zip or tar archive, such as one written by baksmali.
+ *
+ * The archive is read sequentially, so it can come from a pipe. The format is detected from the contents of the
+ * stream. Only regular files with a .smali extension are returned, and everything else in the archive is skipped.
+ */
+public class SmaliArchiveReader {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int TAR_BLOCK_SIZE = 512;
+    private static final int TAR_MAGIC_OFFSET = 257;
+
+    @Nullable private final ZipInputStream zipInputStream;
+    @Nullable private final InputStream tarInputStream;
+
+    // for tar, the name from a preceding gnu long name or pax extended header entry, if any
+    @Nullable private String nextTarName = null;
+
+    public SmaliArchiveReader(@Nonnull InputStream inputStream) throws IOException {
+        InputStream is = inputStream.markSupported() ? inputStream : new BufferedInputStream(inputStream);
+
+        byte[] header = readHeader(is);
+        if (isZipMagic(header)) {
+            zipInputStream = new ZipInputStream(is);
+            tarInputStream = null;
+        } else if (isTarMagic(header)) {
+            zipInputStream = null;
+            tarInputStream = is;
+        } else {
+            throw new IOException("Not a zip or tar archive");
+        }
+    }
+
+    /**
+     * @param inputStream A stream positioned at the start of the data to check. It must support mark/reset.
+     * @return true if the stream looks like a zip or tar archive. The stream is left at its current position.
+     */
+    public static boolean isArchive(@Nonnull InputStream inputStream) throws IOException {
+        byte[] header = readHeader(inputStream);
+        return isZipMagic(header) || isTarMagic(header);
+    }
+
+    /**
+     * Reads up to a tar block's worth of data from the start of the stream, without consuming it. Any bytes past the
+     * end of the stream are left as 0.
+     */
+    @Nonnull
+    private static byte[] readHeader(@Nonnull InputStream inputStream) throws IOException {
+        byte[] header = new byte[TAR_BLOCK_SIZE];
+        inputStream.mark(header.length);
+        try {
+            ByteStreams.read(inputStream, header, 0, header.length);
+        } finally {
+            inputStream.reset();
+        }
+        return header;
+    }
+
+    private static boolean isZipMagic(@Nonnull byte[] header) {
+        return header[0] == 'P' && header[1] == 'K' && header[2] == 3 && header[3] == 4;
+    }
+
+    private static boolean isTarMagic(@Nonnull byte[] header) {
+        // matches both the posix "ustar\0" and the gnu "ustar " magic
+        return header[TAR_MAGIC_OFFSET] == 'u' && header[TAR_MAGIC_OFFSET + 1] == 's' &&
+                header[TAR_MAGIC_OFFSET + 2] == 't' && header[TAR_MAGIC_OFFSET + 3] == 'a' &&
+                header[TAR_MAGIC_OFFSET + 4] == 'r';
+    }
+
+    /**
+     * @return The next smali file in the archive, or null if there are no more
+     */
+    @Nullable
+    public Entry nextEntry() throws IOException {
+        if (zipInputStream != null) {
+            return nextZipEntry(zipInputStream);
+        }
+        assert tarInputStream != null;
+        return nextTarEntry(tarInputStream);
+    }
+
+    @Nullable
+    private static Entry nextZipEntry(@Nonnull ZipInputStream zis) throws IOException {
+        ZipEntry zipEntry;
+        while ((zipEntry = zis.getNextEntry()) != null) {
+            if (!zipEntry.isDirectory() && isSmaliFile(zipEntry.getName())) {
+                return new Entry(zipEntry.getName(), ByteStreams.toByteArray(zis));
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    private Entry nextTarEntry(@Nonnull InputStream is) throws IOException {
+        byte[] header = new byte[TAR_BLOCK_SIZE];
+        while (true) {
+            int headerLength = ByteStreams.read(is, header, 0, header.length);
+            if (headerLength == 0 || isZeroBlock(header)) {
+                // the end of archive marker, or a truncated archive without one
+                return null;
+            }
+            if (headerLength < TAR_BLOCK_SIZE) {
+                throw new EOFException("Truncated tar header");
+            }
+            if (!isTarMagic(header)) {
+                throw new IOException("Invalid tar header");
+            }
+
+            long size = getTarOctal(header, 124, 12);
+            if (size < 0 || size > Integer.MAX_VALUE) {
+                throw new IOException("Invalid tar entry size");
+            }
+            byte type = header[156];
+
+            String name;
+            if (nextTarName != null) {
+                name = nextTarName;
+                nextTarName = null;
+            } else {
+                name = getTarString(header, 0, 100);
+                String prefix = getTarString(header, 345, 155);
+                if (prefix.length() > 0) {
+                    name = prefix + "/" + name;
+                }
+            }
+
+            boolean wanted = (type == '0' || type == 0) && isSmaliFile(name);
+            byte[] data = null;
+            if (wanted || type == 'L' || type == 'x') {
+                data = new byte[(int)size];
+                ByteStreams.readFully(is, data);
+            } else {
+                ByteStreams.skipFully(is, size);
+            }
+            ByteStreams.skipFully(is, (TAR_BLOCK_SIZE - (size % TAR_BLOCK_SIZE)) % TAR_BLOCK_SIZE);
+
+            if (type == 'L') {
+                nextTarName = getTarString(data, 0, data.length);
+            } else if (type == 'x') {
+                nextTarName = getPaxPath(data);
+            } else if (wanted) {
+                return new Entry(name, data);
+            }
+        }
+    }
+
+    private static boolean isZeroBlock(@Nonnull byte[] block) {
+        for (byte b: block) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The path from a pax extended header, or null if it doesn't have one
+     */
+    @Nullable
+    private static String getPaxPath(@Nonnull byte[] data) throws IOException {
+        // each record is "<length> <key>=<value>\n", where length is the length of the entire record
+        int offset = 0;
+        while (offset < data.length) {
+            int space = offset;
+            while (space < data.length && data[space] != ' ') {
+                space++;
+            }
+            int length;
+            try {
+                length = Integer.parseInt(new String(data, offset, space - offset, UTF8));
+            } catch (NumberFormatException ex) {
+                throw new IOException("Invalid pax extended header");
+            }
+            if (length < space - offset + 2 || offset + length > data.length) {
+                throw new IOException("Invalid pax extended header");
+            }
+            String record = new String(data, space + 1, offset + length - space - 2, UTF8);
+            if (record.startsWith("path=")) {
+                return record.substring(5);
+            }
+            offset += length;
+        }
+        return null;
+    }
+
+    @Nonnull
+    private static String getTarString(@Nonnull byte[] buf, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && buf[end] != 0) {
+            end++;
+        }
+        return new String(buf, offset, end - offset, UTF8);
+    }
+
+    private static long getTarOctal(@Nonnull byte[] header, int offset, int length) throws IOException {
+        String value = getTarString(header, offset, length).trim();
+        if (value.length() == 0) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value, 8);
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid tar header");
+        }
+    }
+
+    private static boolean isSmaliFile(@Nonnull String name) {
+        return name.endsWith(".smali");
+    }
+
+    public static class Entry {
+        /** The path of the entry within the archive */
+        @Nonnull public final String name;
+        @Nonnull public final byte[] contents;
+
+        public Entry(@Nonnull String name, @Nonnull byte[] contents) {
+            this.name = name;
+            this.contents = contents;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.smali;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * An on-disk cache of assembled smali files.
+ *
+ * Each entry holds the classes assembled from a single smali file, stored as a small dex file. Entries are keyed by a
+ * hash of the file's contents along with any options that affect how the file is assembled, so an entry is never
+ * stale. Entries for old versions of a file are not removed, and the cache directory can be deleted at any time.
+ */
+public class SmaliClassCache {
+    /**
+     * The version of the cache format. This should be incremented whenever the assembled form of a smali file may
+     * change for the same input, so that old entries are ignored.
+     */
+    private static final int CACHE_VERSION = 1;
+
+    @Nonnull private final File cacheDirectory;
+    @Nonnull private final SmaliOptions options;
+
+    public SmaliClassCache(@Nonnull File cacheDirectory, @Nonnull SmaliOptions options) {
+        this.cacheDirectory = cacheDirectory;
+        this.options = options;
+    }
+
+    /**
+     * Gets the cache key for a smali file with the given contents
+     *
+     * @param contents The contents of the smali file
+     * @return The cache key, as a hex string
+     */
+    @Nonnull
+    public String getKey(@Nonnull byte[] contents) {
+        Hasher hasher = Hashing.sha1().newHasher();
+        hasher.putInt(CACHE_VERSION);
+        hasher.putInt(options.apiLevel);
+        hasher.putBoolean(options.allowOdexOpcodes);
+        hasher.putBytes(contents);
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Gets the cached dex file for the given key
+     *
+     * @param key The cache key, as returned by getKey
+     * @return The contents of the cached dex file, or null if there is no entry for the given key
+     */
+    @Nullable
+    public byte[] get(@Nonnull String key) throws IOException {
+        File entryFile = getEntryFile(key);
+        if (!entryFile.isFile()) {
+            return null;
+        }
+        return Files.toByteArray(entryFile);
+    }
+
+    /**
+     * Stores a dex file in the cache
+     *
+     * @param key The cache key, as returned by getKey
+     * @param dexFile The contents of the dex file
+     */
+    public void put(@Nonnull String key, @Nonnull byte[] dexFile) throws IOException {
+        File entryFile = getEntryFile(key);
+        File entryDir = entryFile.getParentFile();
+        if (!entryDir.exists() && !entryDir.mkdirs() && !entryDir.exists()) {
+            throw new IOException("Could not create cache directory: " + entryDir.getPath());
+        }
+
+        // Write to a temporary file first, so that a concurrent or interrupted run never sees a partial entry
+        File tempFile = File.createTempFile(key, ".tmp", entryDir);
+        try {
+            Files.write(dexFile, tempFile);
+            if (!tempFile.renameTo(entryFile) && !entryFile.isFile()) {
+                throw new IOException("Could not create cache entry: " + entryFile.getPath());
+            }
+        } finally {
+            if (tempFile.exists()) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    @Nonnull
+    private File getEntryFile(@Nonnull String key) {
+        return new File(new File(cacheDirectory, key.substring(0, 2)), key + ".dex");
+    }
+}
@@ -31,6 +31,8 @@
 
 package org.jf.smali;
 
+import java.util.List;
+
 public class SmaliOptions {
     public int apiLevel = 15;
     public String outputDexFile = "out.dex";
@@ -39,4 +41,32 @@ public class SmaliOptions {
     public boolean allowOdexOpcodes = false;
     public boolean verboseErrors = false;
     public boolean printTokens = false;
+
+    /**
+     * If set, the assembled classes from each smali file are cached in this directory, so that unchanged files do not
+     * need to be re-assembled by subsequent runs.
+     */
+    public String cacheDirectory = null;
+
+    /**
+     * If true, the classes are spread over as many dex files as needed, and outputDexFile is the directory to write
+     * classes.dex, classes2.dex, etc. into.
+     */
+    public boolean multiDex = false;
+
+    /**
+     * The types of the classes that must be in the first dex file, when multiDex is set.
+     */
+    public List<String> mainDexClasses = null;
+
+    /**
+     * If true, the assembled classes are kept in a more compact form, with the strings stored off-heap, and the
+     * code_item section is buffered in a temporary file while writing.
+     */
+    public boolean lowMemory = false;
+
+    /**
+     * If true, the SHA-1 signature of the output dex file is left zeroed instead of being computed.
+     */
+    public boolean skipSignature = false;
 }
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ *     * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ *     * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.smali;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import junit.framework.Assert;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.Opcodes;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class SmaliArchiveReaderTest {
+    // longer than the 100 bytes that fit in the name field of a tar header
+    private static final String LONG_DIR = Strings.repeat("long_directory_name/", 8);
+
+    private static final String CLASS1 = "" +
+            ".class public LArchiveTest1;\n" +
+            ".super Ljava/lang/Object;\n";
+
+    private static final String CLASS2 = "" +
+            ".class public LArchiveTest2;\n" +
+            ".super LArchiveTest1;\n";
+
+    @Test
+    public void testPaxLongName() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTarEntry(out, "dir/", '5', new byte[0]);
+        writeTarEntry(out, "PaxHeaders/ArchiveTest1.smali", 'x',
+                getPaxRecord("path", LONG_DIR + "ArchiveTest1.smali"));
+        writeTarEntry(out, "ArchiveTest1.smali", '0', CLASS1.getBytes(Charsets.UTF_8));
+        writeTarEntry(out, "dir/readme.txt", '0', "not smali".getBytes(Charsets.UTF_8));
+        writeTarEntry(out, "dir/ArchiveTest2.smali", '0', CLASS2.getBytes(Charsets.UTF_8));
+        writeTarEnd(out);
+
+        List<SmaliArchiveReader.Entry> entries = readEntries(out.toByteArray());
+        Assert.assertEquals(2, entries.size());
+        assertEntry(entries.get(0), LONG_DIR + "ArchiveTest1.smali", CLASS1);
+        assertEntry(entries.get(1), "dir/ArchiveTest2.smali", CLASS2);
+    }
+
+    @Test
+    public void testGnuLongName() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTarEntry(out, "././@LongLink", 'L', (LONG_DIR + "ArchiveTest1.smali\0").getBytes(Charsets.UTF_8));
+        writeTarEntry(out, "ArchiveTest1.smali", '0', CLASS1.getBytes(Charsets.UTF_8));
+        writeTarEntry(out, "ArchiveTest2.smali", '0', CLASS2.getBytes(Charsets.UTF_8));
+        writeTarEnd(out);
+
+        List<SmaliArchiveReader.Entry> entries = readEntries(out.toByteArray());
+        Assert.assertEquals(2, entries.size());
+        assertEntry(entries.get(0), LONG_DIR + "ArchiveTest1.smali", CLASS1);
+        assertEntry(entries.get(1), "ArchiveTest2.smali", CLASS2);
+    }
+
+    @Test
+    public void testZip() throws IOException {
+        byte[] zip = createZip();
+
+        List<SmaliArchiveReader.Entry> entries = readEntries(zip);
+        Assert.assertEquals(2, entries.size());
+        assertEntry(entries.get(0), LONG_DIR + "ArchiveTest1.smali", CLASS1);
+        assertEntry(entries.get(1), "dir/ArchiveTest2.smali", CLASS2);
+    }
+
+    @Test
+    public void testIsArchive() throws IOException {
+        ByteArrayOutputStream tar = new ByteArrayOutputStream();
+        writeTarEntry(tar, "ArchiveTest1.smali", '0', CLASS1.getBytes(Charsets.UTF_8));
+        writeTarEnd(tar);
+
+        Assert.assertTrue(SmaliArchiveReader.isArchive(new ByteArrayInputStream(tar.toByteArray())));
+        Assert.assertTrue(SmaliArchiveReader.isArchive(new ByteArrayInputStream(createZip())));
+        Assert.assertFalse(SmaliArchiveReader.isArchive(new ByteArrayInputStream(CLASS1.getBytes(Charsets.UTF_8))));
+        Assert.assertFalse(SmaliArchiveReader.isArchive(new ByteArrayInputStream(new byte[0])));
+    }
+
+    @Test
+    public void testAssembleFromStdin() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeTarEntry(out, "././@LongLink", 'L', (LONG_DIR + "ArchiveTest1.smali").getBytes(Charsets.UTF_8));
+        writeTarEntry(out, "ArchiveTest1.smali", '0', CLASS1.getBytes(Charsets.UTF_8));
+        writeTarEntry(out, "ArchiveTest2.smali", '0', CLASS2.getBytes(Charsets.UTF_8));
+        writeTarEnd(out);
+
+        File tempDir = Files.createTempDir();
+        InputStream oldIn = System.in;
+        try {
+            File output = new File(tempDir, "out.dex");
+            SmaliOptions options = new SmaliOptions();
+            options.outputDexFile = output.getPath();
+
+            System.setIn(new ByteArrayInputStream(out.toByteArray()));
+            Assert.assertTrue(Smali.assemble(options, "-"));
+
+            DexFile dexFile = DexFileFactory.loadDexFile(output, Opcodes.getDefault());
+            List<String> types = Lists.newArrayList();
+            for (ClassDef classDef: dexFile.getClasses()) {
+                types.add(classDef.getType());
+            }
+            Assert.assertEquals(Lists.newArrayList("LArchiveTest1;", "LArchiveTest2;"), types);
+        } finally {
+            System.setIn(oldIn);
+            delete(tempDir);
+        }
+    }
+
+    @Nonnull
+    private static List<SmaliArchiveReader.Entry> readEntries(@Nonnull byte[] archive) throws IOException {
+        // wrap the stream so that the reader can't rely on mark/reset being supported by the underlying stream
+        SmaliArchiveReader reader = new SmaliArchiveReader(new FilterInputStream(new ByteArrayInputStream(archive)) {
+            @Override public boolean markSupported() {
+                return false;
+            }
+        });
+        List<SmaliArchiveReader.Entry> entries = Lists.newArrayList();
+        SmaliArchiveReader.Entry entry;
+        while ((entry = reader.nextEntry()) != null) {
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private static void assertEntry(@Nonnull SmaliArchiveReader.Entry entry, @Nonnull String name,
+                                    @Nonnull String contents) {
+        Assert.assertEquals(name, entry.name);
+        Assert.assertEquals(contents, new String(entry.contents, Charsets.UTF_8));
+    }
+
+    @Nonnull
+    private static byte[] createZip() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(out);
+        zos.putNextEntry(new ZipEntry("dir/"));
+        zos.putNextEntry(new ZipEntry(LONG_DIR + "ArchiveTest1.smali"));
+        zos.write(CLASS1.getBytes(Charsets.UTF_8));
+        zos.putNextEntry(new ZipEntry("dir/readme.txt"));
+        zos.write("not smali".getBytes(Charsets.UTF_8));
+        zos.putNextEntry(new ZipEntry("dir/ArchiveTest2.smali"));
+        zos.write(CLASS2.getBytes(Charsets.UTF_8));
+        zos.close();
+        return out.toByteArray();
+    }
+
+    @Nonnull
+    private static byte[] getPaxRecord(@Nonnull String key, @Nonnull String value) {
+        // the length prefix includes its own digits, so find the length that is consistent with itself
+        String record = " " + key + "=" + value + "\n";
+        int length = record.length();
+        while (String.valueOf(length).length() + record.length() != length) {
+            length = String.valueOf(length).length() + record.length();
+        }
+        return (length + record).getBytes(Charsets.UTF_8);
+    }
+
+    private static void writeTarEntry(@Nonnull OutputStream out, @Nonnull String name, char type,
+                                      @Nonnull byte[] data) throws IOException {
+        byte[] header = new byte[512];
+        putTarString(header, 0, 100, name);
+        putTarString(header, 100, 8, "0000644");
+        putTarString(header, 108, 8, "0000000");
+        putTarString(header, 116, 8, "0000000");
+        putTarString(header, 124, 12, String.format("%011o", data.length));
+        putTarString(header, 136, 12, "00000000000");
+        header[156] = (byte)type;
+        putTarString(header, 257, 6, "ustar");
+        putTarString(header, 263, 2, "00");
+
+        // the checksum is computed with the checksum field itself filled with spaces
+        putTarString(header, 148, 8, "        ");
+        int checksum = 0;
+        for (byte b: header) {
+            checksum += b & 0xff;
+        }
+        putTarString(header, 148, 8, String.format("%06o", checksum));
+
+        out.write(header);
+        out.write(data);
+        out.write(new byte[(512 - data.length % 512) % 512]);
+    }
+
+    private static void writeTarEnd(@Nonnull OutputStream out) throws IOException {
+        out.write(new byte[1024]);
+    }
+
+    private static void putTarString(@Nonnull byte[] header, int offset, int length, @Nonnull String value) {
+        byte[] bytes = value.getBytes(Charsets.UTF_8);
+        int count = Math.min(bytes.length, length);
+        System.arraycopy(bytes, 0, header, offset, count);
+        for (int i=count; i<length; i++) {
+            header[offset + i] = 0;
+        }
+    }
+
+    private static void delete(@Nonnull File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child: files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017, Google Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * Redistributions in binary form must reproduce the above
+ * copyright notice, this list of conditions and the following disclaimer
+ * in the documentation and/or other materials provided with the
+ * distribution.
+ * Neither the name of Google Inc. nor the names of its
+ * contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+ * OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.jf.smali;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class SmaliClassCacheTest {
+    private static final String CLASS1 = "" +
+            ".class public LCacheTest1;\n" +
+            ".super Ljava/lang/Object;\n" +
+            ".source \"CacheTest1.java\"\n" +
+            ".implements Ljava/lang/Runnable;\n" +
+            ".annotation runtime Ljava/lang/Deprecated;\n" +
+            ".end annotation\n" +
+            ".field public static final NAME:Ljava/lang/String; = \"name\"\n" +
+            ".field public static COUNT:I = 0x5\n" +
+            ".field private value:J\n" +
+            ".method public constructor <init>()V\n" +
+            "    .registers 1\n" +
+            "    invoke-direct {p0}, Ljava/lang/Object;-><init>()V\n" +
+            "    return-void\n" +
+            ".end method\n" +
+            ".method public run()V\n" +
+            "    .registers 4\n" +
+            "    .line 10\n" +
+            "    :try_start\n" +
+            "    const-string v0, \"hello\"\n" +
+            "    .local v0, \"str\":Ljava/lang/String;\n" +
+            "    sget-object v1, Ljava/lang/System;->out:Ljava/io/PrintStream;\n" +
+            "    invoke-virtual {v1, v0}, Ljava/io/PrintStream;->println(Ljava/lang/String;)V\n" +
+            "    iget-wide v1, p0, LCacheTest1;->value:J\n" +
+            "    :try_end\n" +
+            "    .catch Ljava/lang/RuntimeException; {:try_start .. :try_end} :handler\n" +
+            "    .catchall {:try_start .. :try_end} :handler\n" +
+            "    .end local v0\n" +
+            "    .line 11\n" +
+            "    return-void\n" +
+            "    :handler\n" +
+            "    move-exception v0\n" +
+            "    throw v0\n" +
+            ".end method\n";
+
+    private static final String CLASS2 = "" +
+            ".class public LCacheTest2;\n" +
+            ".super LCacheTest1;\n" +
+            ".method public static test(I)I\n" +
+            "    .registers 2\n" +
+            "    .param p0, \"value\"\n" +
+            "    packed-switch p0, :switch_data\n" +
+            "    const/4 v0, 0x0\n" +
+            "    return v0\n" +
+            "    :case0\n" +
+            "    const-class v0, LCacheTest1;\n" +
+            "    const/4 v0, 0x1\n" +
+            "    return v0\n" +
+            "    :switch_data\n" +
+            "    .packed-switch 0x0\n" +
+            "        :case0\n" +
+            "    .end packed-switch\n" +
+            ".end method\n";
+
+    @Test
+    public void testCache() throws IOException {
+        File tempDir = Files.createTempDir();
+        try {
+            File smaliDir = new File(tempDir, "smali");
+            File cacheDir = new File(tempDir, "cache");
+            Assert.assertTrue(smaliDir.mkdir());
+
+            Files.write(CLASS1, new File(smaliDir, "CacheTest1.smali"), Charsets.UTF_8);
+            Files.write(CLASS2, new File(smaliDir, "CacheTest2.smali"), Charsets.UTF_8);
+
+            byte[] uncached = assemble(smaliDir, new File(tempDir, "uncached.dex"), null);
+            byte[] cold = assemble(smaliDir, new File(tempDir, "cold.dex"), cacheDir);
+            Assert.assertTrue(Arrays.equals(uncached, cold));
+            Assert.assertEquals(2, countEntries(cacheDir));
+
+            byte[] warm = assemble(smaliDir, new File(tempDir, "warm.dex"), cacheDir);
+            Assert.assertTrue(Arrays.equals(uncached, warm));
+            Assert.assertEquals(2, countEntries(cacheDir));
+
+            Files.write(CLASS2.replace("const/4 v0, 0x1", "const/4 v0, 0x2"), new File(smaliDir, "CacheTest2.smali"),
+                    Charsets.UTF_8);
+            byte[] modifiedUncached = assemble(smaliDir, new File(tempDir, "modified_uncached.dex"), null);
+            byte[] modifiedCached = assemble(smaliDir, new File(tempDir, "modified_cached.dex"), cacheDir);
+            Assert.assertFalse(Arrays.equals(uncached, modifiedUncached));
+            Assert.assertTrue(Arrays.equals(modifiedUncached, modifiedCached));
+            Assert.assertEquals(3, countEntries(cacheDir));
+        } finally {
+            delete(tempDir);
+        }
+    }
+
+    @Nonnull
+    private static byte[] assemble(@Nonnull File smaliDir, @Nonnull File output, @Nullable File cacheDir)
+            throws IOException {
+        SmaliOptions options = new SmaliOptions();
+        options.outputDexFile = output.getPath();
+        options.cacheDirectory = cacheDir == null ? null : cacheDir.getPath();
+        Assert.assertTrue(Smali.assemble(options, smaliDir.getPath()));
+        return Files.toByteArray(output);
+    }
+
+    private static int countEntries(@Nonnull File dir) {
+        int count = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file: files) {
+                if (file.isDirectory()) {
+                    count += countEntries(file);
+                } else if (file.getName().endsWith(".dex")) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static void delete(@Nonnull File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child: files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -71,12 +71,13 @@ public class ClassFileNameHandler {
         this.modifyWindowsReservedFilenames = isWindows();
     }
 
-    // for testing
+    // for testing, and for generating paths that don't correspond to an actual directory (e.g. in an archive)
     public ClassFileNameHandler(File path, String fileExtension, boolean caseSensitive,
                                 boolean modifyWindowsReservedFilenames) {
+        // the forced case sensitivity must be set before creating the top level entry, which picks it up
+        this.forcedCaseSensitivity = caseSensitive?CASE_SENSITIVE:CASE_INSENSITIVE;
         this.top = new DirectoryEntry(path);
         this.fileExtension = fileExtension;
-        this.forcedCaseSensitivity = caseSensitive?CASE_SENSITIVE:CASE_INSENSITIVE;
         this.modifyWindowsReservedFilenames = modifyWindowsReservedFilenames;
     }
 
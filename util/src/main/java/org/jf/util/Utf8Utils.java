@@ -26,6 +26,7 @@ package org.jf.util;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.nio.ByteBuffer;
 
 /**
  * Constants of type <code>CONSTANT_Utf8_info</code>.
@@ -270,6 +271,99 @@ public final class Utf8Utils {
         return new String(chars, 0, outAt);
     }
 
+    /**
+     * Converts UTF-8 bytes from a ByteBuffer into a string.
+     *
+     * The bytes are read using absolute gets, so the position of the buffer is not modified.
+     *
+     * @param bytes non-null; the buffer containing the bytes to convert
+     * @param start the start index of the utf8 string to convert
+     * @param utf16Length the number of utf16 characters in the string to decode
+     * @param readLength If non-null, the first element will contain the number of bytes read after the method exits
+     * @return non-null; the converted string
+     */
+    public static String utf8BytesWithUtf16LengthToString(@Nonnull ByteBuffer bytes, int start, int utf16Length,
+                                                          @Nullable int[] readLength) {
+        char[] chars = localBuffer.get();
+        if (chars == null || chars.length < utf16Length) {
+            chars = new char[utf16Length];
+            localBuffer.set(chars);
+        }
+        int outAt = 0;
+
+        int at = 0;
+        for (at = start; utf16Length > 0; utf16Length--) {
+            int v0 = bytes.get(at) & 0xFF;
+            char out;
+            switch (v0 >> 4) {
+                case 0x00: case 0x01: case 0x02: case 0x03:
+                case 0x04: case 0x05: case 0x06: case 0x07: {
+                    // 0XXXXXXX -- single-byte encoding
+                    if (v0 == 0) {
+                        // A single zero byte is illegal.
+                        return throwBadUtf8(v0, at);
+                    }
+                    out = (char) v0;
+                    at++;
+                    break;
+                }
+                case 0x0c: case 0x0d: {
+                    // 110XXXXX -- two-byte encoding
+                    int v1 = bytes.get(at + 1) & 0xFF;
+                    if ((v1 & 0xc0) != 0x80) {
+                        return throwBadUtf8(v1, at + 1);
+                    }
+                    int value = ((v0 & 0x1f) << 6) | (v1 & 0x3f);
+                    if ((value != 0) && (value < 0x80)) {
+                        /*
+                         * This should have been represented with
+                         * one-byte encoding.
+                         */
+                        return throwBadUtf8(v1, at + 1);
+                    }
+                    out = (char) value;
+                    at += 2;
+                    break;
+                }
+                case 0x0e: {
+                    // 1110XXXX -- three-byte encoding
+                    int v1 = bytes.get(at + 1) & 0xFF;
+                    if ((v1 & 0xc0) != 0x80) {
+                        return throwBadUtf8(v1, at + 1);
+                    }
+                    int v2 = bytes.get(at + 2) & 0xFF;
+                    if ((v2 & 0xc0) != 0x80) {
+                        return throwBadUtf8(v2, at + 2);
+                    }
+                    int value = ((v0 & 0x0f) << 12) | ((v1 & 0x3f) << 6) |
+                        (v2 & 0x3f);
+                    if (value < 0x800) {
+                        /*
+                         * This should have been represented with one- or
+                         * two-byte encoding.
+                         */
+                        return throwBadUtf8(v2, at + 2);
+                    }
+                    out = (char) value;
+                    at += 3;
+                    break;
+                }
+                default: {
+                    // 10XXXXXX, 1111XXXX -- illegal
+                    return throwBadUtf8(v0, at);
+                }
+            }
+            chars[outAt] = out;
+            outAt++;
+        }
+
+        if (readLength != null && readLength.length > 0) {
+            readLength[0] = at - start;
+            readLength[0] = at - start;
+        }
+        return new String(chars, 0, outAt);
+    }
+
     /**
      * Helper for {@link #utf8BytesToString}, which throws the right
      * exception for a bogus utf-8 byte.